@@ -0,0 +1,77 @@
+package com.example.scrum.llm.brains;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dot product and matrix-vector kernels of the quantized tensor types.
+ * {@code dot} is single-threaded; {@code matmul} and {@code batchedMatmul} use {@link Parallel}
+ * like {@link Llama#forward} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class FloatTensorBenchmark {
+
+    @Param({"Q4_0", "Q8_0", "F16", "BF16"})
+    String type;
+
+    @Param({"2048"})
+    int dim;
+
+    @Param({"2048"})
+    int rows;
+
+    @Param({"16"})
+    int batchSize;
+
+    private FloatTensor weights;
+    private FloatTensor x;
+    private FloatTensor out;
+    private FloatTensor[] xs;
+    private FloatTensor[] outs;
+
+    @Setup
+    public void setup() {
+        weights = SyntheticModels.randomTensor(GGMLType.valueOf(type), rows * dim, 42);
+        x = SyntheticModels.randomActivations(dim, 1);
+        out = ArrayFloatTensor.allocate(rows);
+        xs = new FloatTensor[batchSize];
+        outs = new FloatTensor[batchSize];
+        for (int b = 0; b < batchSize; b++) {
+            xs[b] = SyntheticModels.randomActivations(dim, 100 + b);
+            outs[b] = ArrayFloatTensor.allocate(rows);
+        }
+    }
+
+    @Benchmark
+    public float dot() {
+        return weights.dot(0, x, 0, dim);
+    }
+
+    @Benchmark
+    public FloatTensor matmul() {
+        weights.matmul(x, out, rows, dim);
+        return out;
+    }
+
+    @Benchmark
+    public FloatTensor[] batchedMatmul() {
+        weights.matmul(batchSize, xs, outs, rows, dim);
+        return outs;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.scrum.llm.brains;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full {@link Llama#forward} steps on a small random-weight model.
+ * <ul>
+ *     <li>{@code prefill}: ingest {@code promptLength} tokens in batches of {@code batchSize}, logits only for the last batch.</li>
+ *     <li>{@code decode}: one token at {@code position}; the attention cost grows with the position.</li>
+ * </ul>
+ * {@code position} belongs to the {@link DecodePosition} state, so it only multiplies the decode runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class ForwardBenchmark {
+
+    @Param({"Q4_0", "Q8_0"})
+    String type;
+
+    @Param({"512"})
+    int dim;
+
+    @Param({"4"})
+    int layers;
+
+    @Param({"128"})
+    int promptLength;
+
+    @Param({"16"})
+    int batchSize;
+
+    private Llama model;
+    private Llama.State state;
+    private int[][] promptBatches;
+
+    @State(Scope.Benchmark)
+    public static class DecodePosition {
+        @Param({"0", "1024"})
+        int position;
+    }
+
+    @Setup
+    public void setup() {
+        model = SyntheticModels.randomModel(dim, 3 * dim, layers, 8, 2, 8192, 2048, GGMLType.valueOf(type), 42);
+        state = model.createNewState(batchSize);
+        int[] prompt = model.tokenizer().encode(SyntheticModels.SAMPLE_TEXT.repeat(1 + promptLength / 32));
+        if (prompt.length < promptLength) {
+            throw new IllegalStateException("sample prompt has only " + prompt.length + " tokens");
+        }
+        promptBatches = new int[(promptLength + batchSize - 1) / batchSize][];
+        for (int b = 0; b < promptBatches.length; b++) {
+            int n = Math.min(batchSize, promptLength - b * batchSize);
+            promptBatches[b] = new int[n];
+            System.arraycopy(prompt, b * batchSize, promptBatches[b], 0, n);
+        }
+    }
+
+    @Benchmark
+    public FloatTensor prefill() {
+        FloatTensor logits = null;
+        for (int b = 0; b < promptBatches.length; b++) {
+            logits = Llama.forward(model, state, promptBatches[b], b * batchSize, b == promptBatches.length - 1);
+        }
+        return logits;
+    }
+
+    @Benchmark
+    public FloatTensor decode(DecodePosition at) {
+        return Llama.forward(model, state, new int[]{state.latestToken}, at.position, true);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.scrum.llm.brains;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The element-wise building blocks of {@link Llama#forward}: rmsnorm and the attention softmax.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class OpsBenchmark {
+
+    @Param({"2048"})
+    int dim;
+
+    // attention span (position + 1) the softmax runs over
+    @Param({"128", "1024"})
+    int span;
+
+    private FloatTensor x;
+    private FloatTensor out;
+    private FloatBuffer weight;
+    private ArrayFloatTensor scores;
+    private float[] scoresTemplate;
+
+    @Setup
+    public void setup() {
+        x = SyntheticModels.randomActivations(dim, 1);
+        out = ArrayFloatTensor.allocate(dim);
+        float[] ones = new float[dim];
+        Arrays.fill(ones, 1f);
+        weight = FloatBuffer.wrap(ones);
+        scores = SyntheticModels.randomActivations(span, 2);
+        scoresTemplate = scores.values.clone();
+    }
+
+    @Benchmark
+    public FloatTensor rmsnorm() {
+        Llama.rmsnorm(out, x, weight, dim, 1e-5f);
+        return out;
+    }
+
+    @Benchmark
+    public FloatTensor softmax() {
+        // softmax is in place; restoring the input is a plain array copy
+        System.arraycopy(scoresTemplate, 0, scores.values, 0, span);
+        return scores.softmaxInPlace(0, span);
+    }
+}
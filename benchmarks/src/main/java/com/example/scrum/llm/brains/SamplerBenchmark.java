@@ -0,0 +1,56 @@
+package com.example.scrum.llm.brains;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token sampling over a Llama 3 sized vocabulary, as configured by {@link Llama3#selectSampler}:
+ * temperature 0 is argmax, topp 1 is plain categorical sampling, anything else is top-p.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class SamplerBenchmark {
+
+    @Param({"128256"})
+    int vocabularySize;
+
+    @Param({"0", "0.7"})
+    float temperature;
+
+    @Param({"0.95", "1"})
+    float topp;
+
+    private Sampler sampler;
+    private ArrayFloatTensor logits;
+    private float[] logitsTemplate;
+
+    @Setup
+    public void setup() {
+        sampler = Llama3.selectSampler(vocabularySize, temperature, topp, 42);
+        logits = SyntheticModels.randomActivations(vocabularySize, 7);
+        logits.mapInPlace(f -> f * 10); // a spread comparable to real logits
+        logitsTemplate = logits.values.clone();
+    }
+
+    @Benchmark
+    public int sample() {
+        // the samplers scale and softmax the logits in place
+        System.arraycopy(logitsTemplate, 0, logits.values, 0, vocabularySize);
+        return sampler.sampleToken(logits);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.scrum.llm.brains;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Random-weight models and tokenizers for the benchmarks, built with {@link SyntheticGGUF} so no GGUF
+ * download is needed. Models are written to a temporary GGUF file and loaded through {@link ModelLoader}.
+ */
+final class SyntheticModels {
+
+    static final String SAMPLE_TEXT = SyntheticGGUF.SAMPLE_TEXT;
+
+    private SyntheticModels() {
+    }
+
+    static Llama randomModel(int dim, int hiddenDim, int layers, int heads, int kvHeads, int vocabularySize, int contextLength,
+                             GGMLType type, long seed) {
+        try {
+            Path dir = Files.createTempDirectory("synthetic-gguf");
+            dir.toFile().deleteOnExit();
+            Path gguf = dir.resolve("synthetic-" + type.name().toLowerCase() + ".gguf");
+            gguf.toFile().deleteOnExit();
+            ModelSnapshot.sidecarPath(gguf).toFile().deleteOnExit();
+            SyntheticGGUF.builder()
+                    .dim(dim).hiddenDim(hiddenDim).layers(layers).heads(heads).kvHeads(kvHeads)
+                    .vocabularySize(vocabularySize).contextLength(contextLength)
+                    .type(type).seed(seed)
+                    .write(gguf);
+            return ModelLoader.loadModel(gguf, contextLength, true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static FloatTensor randomTensor(GGMLType type, int numberOfElements, long seed) {
+        // native memory, the quantized kernels read through the segment address
+        MemorySegment segment = Arena.ofAuto().allocate(type.byteSizeFor(numberOfElements), 64);
+        SyntheticGGUF.fillRandom(segment, type, numberOfElements, new SplittableRandom(seed));
+        return ModelLoader.loadQuantized(new GGMLTensorEntry(segment, "random", type, new int[]{numberOfElements}, segment));
+    }
+
+    static ArrayFloatTensor randomActivations(int size, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        float[] values = new float[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = (float) random.nextDouble(-1, 1);
+        }
+        return new ArrayFloatTensor(values);
+    }
+
+    static Tokenizer tokenizer(int vocabularySize) {
+        SyntheticGGUF.SyntheticVocabulary synthetic = SyntheticGGUF.vocabulary(vocabularySize);
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("tokenizer.ggml.merges", synthetic.merges().toArray(String[]::new));
+        metadata.put("tokenizer.ggml.token_type", synthetic.tokenTypes());
+        return ModelLoader.createTokenizer(metadata, new Vocabulary(synthetic.tokens().toArray(String[]::new), null));
+    }
+}
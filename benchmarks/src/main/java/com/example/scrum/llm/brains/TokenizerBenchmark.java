@@ -0,0 +1,52 @@
+package com.example.scrum.llm.brains;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BPE encode/decode of an agent-style prompt with a synthetic byte-level tokenizer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--enable-preview", "--add-modules", "jdk.incubator.vector"})
+public class TokenizerBenchmark {
+
+    @Param({"4096"})
+    int vocabularySize;
+
+    private Tokenizer tokenizer;
+    private String text;
+    private List<Integer> tokens;
+
+    @Setup
+    public void setup() {
+        tokenizer = SyntheticModels.tokenizer(vocabularySize);
+        text = SyntheticModels.SAMPLE_TEXT;
+        tokens = tokenizer.encodeAsList(text);
+    }
+
+    @Benchmark
+    public int[] encode() {
+        return tokenizer.encode(text);
+    }
+
+    @Benchmark
+    public String decode() {
+        return tokenizer.decode(tokens);
+    }
+}
@@ -1,9 +1,13 @@
 package com.example.agency.agents;
 
 import com.example.agency.BaseLlmAgent;
+import com.example.agency.bus.Envelope;
 import com.example.agency.bus.Source;
 import com.example.agency.agents.context.GroomingAgentContext;
 import com.example.agency.handler.IntentHandler;
+import com.example.agency.messages.AgencyMessages;
+import com.example.agency.messages.AgencyMessages.BeginGroomingCycle;
+import com.example.scrum.llm.InferenceScheduler;
 import com.example.scrum.llm.LlamaLanguageModelWrapper;
 import com.example.scrum.tools.JiraTool;
 import com.example.scrum.tools.MSTeamsTool;
@@ -13,7 +17,6 @@ import com.example.agency.util.LlmResponseUtil;
 import com.example.agency.util.NaturalLanguageToolParser;
 import com.example.agency.util.ToolIntent;
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import dev.langchain4j.data.message.AiMessage;
@@ -26,6 +29,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -50,6 +54,7 @@ public class GroomingAgent extends BaseLlmAgent {
     private List<String> ticketsPostedToTeamsForFollowUp;
     private String currentCycleProjectKey;
     private String currentTicketIdForAnalysis;
+    private static final Duration LLM_DEADLINE = Duration.ofMinutes(5);
 
     private static final String SYSTEM_PROMPT_TICKET_ANALYSIS =
             "You are an agile evangelist. Analyze the provided Jira ticket details. " +
@@ -77,24 +82,18 @@ public class GroomingAgent extends BaseLlmAgent {
     }
 
     private void handleTask(String rawTask) {
-        AgentActivityLogger.logTaskReceived(agentName, rawTask);
+        // a task that does not decode fails here, so the bus retries and then dead-letters it
+        Envelope<?> task = AgencyMessages.decode(rawTask);
+        String taskText = task.toString();
+        AgentActivityLogger.logTaskReceived(agentName, taskText);
         this.currentTicketIdForAnalysis = null;
 
-        if (rawTask.startsWith("BeginGroomingCycle")) {
-            String projectKey = "ALPHA";
-            if (rawTask.contains(":")) {
-                try {
-                    String taskParamsJson = rawTask.substring(rawTask.indexOf(":") + 1);
-                    JsonNode taskParamsNode = localObjectMapper.readTree(taskParamsJson);
-                    if (taskParamsNode.has("projectKey")) {
-                        projectKey = taskParamsNode.get("projectKey").asText(projectKey);
-                    }
-                } catch (IOException e) { AgentActivityLogger.logError(agentName, rawTask, "Could not parse projectKey", e); }
-            }
+        if (task.body() instanceof BeginGroomingCycle begin) {
+            String projectKey = begin.projectKey() != null ? begin.projectKey() : "ALPHA";
 
             String cycleKey = "BeginGroomingCycle_" + projectKey;
             if (activeGroomingCycles.contains(cycleKey)) {
-                AgentActivityLogger.logAction(agentName, rawTask, "Cycle for " + projectKey + " already active. Skipping.");
+                AgentActivityLogger.logAction(agentName, taskText, "Cycle for " + projectKey + " already active. Skipping.");
                 return;
             }
             activeGroomingCycles.add(cycleKey);
@@ -121,9 +120,11 @@ public class GroomingAgent extends BaseLlmAgent {
 
             // --- NEW VALIDATION ---
             if (ticketsToAnalyze.size() < 2 && !"TEST_EMPTY".equals(projectKey)) { // Allow TEST_EMPTY for specific testing
-                log.error("CRITICAL_VALIDATION_FAILURE: Project {} has fewer than 2 tickets ({}) for analysis. Exiting application.", projectKey, ticketsToAnalyze.size());
-                AgentActivityLogger.logError(agentName, "CycleStart_" + projectKey, "Project has " + ticketsToAnalyze.size() + " tickets, which is less than the required 2. Terminating.", null);
-                System.exit(1); // Terminate the application
+                log.error("CRITICAL_VALIDATION_FAILURE: Project {} has fewer than 2 tickets ({}) for analysis. Failing the task.", projectKey, ticketsToAnalyze.size());
+                AgentActivityLogger.logError(agentName, "CycleStart_" + projectKey, "Project has " + ticketsToAnalyze.size() + " tickets, which is less than the required 2. Failing the task.", null);
+                // the bus retries the task and dead-letters it after the last attempt; the retry must not find the cycle active
+                activeGroomingCycles.remove(cycleKey);
+                throw new IllegalStateException("Project " + projectKey + " has " + ticketsToAnalyze.size() + " ticket(s), at least 2 are required");
             }
             // --- END VALIDATION ---
 
@@ -135,7 +136,7 @@ public class GroomingAgent extends BaseLlmAgent {
                 processNextTicketInQueue(new ArrayList<>(ticketsToAnalyze), "CycleProcessing_" + projectKey);
             }
         } else {
-            AgentActivityLogger.logAction(agentName, rawTask, "Received unclassified/unsupported task type: " + rawTask + ". Ignoring.");
+            AgentActivityLogger.logAction(agentName, taskText, "Received unclassified/unsupported task type: " + task.type().name() + ". Ignoring.");
         }
     }
 
@@ -205,7 +206,12 @@ public class GroomingAgent extends BaseLlmAgent {
         int maxNewTokens = originalTaskContext.startsWith("ReportFor_") ? 100 : 150;
 
         if (this.llm instanceof LlamaLanguageModelWrapper) {
-            llmResponse = ((LlamaLanguageModelWrapper) this.llm).generate(systemPromptText, currentUserMessageText, maxNewTokens, 0.1f);
+            String taskType = originalTaskContext.startsWith("ReportFor_") ? "Report" : "AnalyzeTicket";
+            // the end-of-cycle report is background work and must not hold up interactive replies
+            InferenceScheduler.Priority priority = originalTaskContext.startsWith("ReportFor_") ?
+                    InferenceScheduler.Priority.BATCH : InferenceScheduler.Priority.NORMAL;
+            llmResponse = ((LlamaLanguageModelWrapper) this.llm).generate(agentName, taskType, priority, LLM_DEADLINE,
+                    systemPromptText, currentUserMessageText, maxNewTokens, 0.1f);
         } else {
             String combinedPrompt = "SYSTEM:\n" + systemPromptText + "\n\nUSER:\n" + currentUserMessageText + "\n\nASSISTANT:\n";
             llmResponse = this.llm.generate(combinedPrompt);
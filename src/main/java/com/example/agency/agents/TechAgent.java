@@ -1,12 +1,15 @@
 package com.example.agency.agents;
 
 import com.example.agency.BaseLlmAgent;
+import com.example.agency.bus.Envelope;
 import com.example.agency.bus.Source;
+import com.example.agency.messages.AgencyMessages;
+import com.example.agency.messages.AgencyMessages.NewSlackMessageEvent;
+import com.example.agency.messages.AgencyMessages.ProcessNewSlackMessage;
+import com.example.scrum.llm.InferenceScheduler;
 import com.example.scrum.llm.LlamaLanguageModelWrapper; // Ensure this is the correct wrapper
 import com.example.scrum.tools.MSTeamsTool;
 import com.example.agency.util.AgentActivityLogger;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import dev.langchain4j.data.message.SystemMessage;
 import dev.langchain4j.data.message.UserMessage;
 import dev.langchain4j.memory.ChatMemory;
@@ -14,7 +17,7 @@ import dev.langchain4j.model.language.LanguageModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.time.Duration;
 import java.util.Map;
 
 public class TechAgent extends BaseLlmAgent {
@@ -23,9 +26,10 @@ public class TechAgent extends BaseLlmAgent {
     private final Source.TaskQueue myQueue;
     private final Source.FileSource eventBus;
     private final MSTeamsTool teamsTool;
-    private final ObjectMapper objectMapper = new ObjectMapper();
     private final String USER_AGENT_NAME = "UserAgent";
     private static final String SHARED_CHANNEL = "support-channel";
+    // conversational reply, queued ahead of grooming work and dropped if it cannot be answered in time
+    private static final Duration REPLY_DEADLINE = Duration.ofSeconds(60);
 
     private static final String SYSTEM_PROMPT =
             "YOU ARE TechAgent on channel '" + SHARED_CHANNEL + "'. You are helping UserAgent with a login issue. " +
@@ -71,43 +75,39 @@ public class TechAgent extends BaseLlmAgent {
     }
 
     private void handleTask(String rawTask) {
-        AgentActivityLogger.logTaskReceived(agentName, rawTask);
+        // a task that does not decode fails here, so the bus retries and then dead-letters it
+        Envelope<?> task = AgencyMessages.decode(rawTask);
+        String taskText = task.toString();
+        AgentActivityLogger.logTaskReceived(agentName, taskText);
         // No need to clear memory here if each interaction is stateless for the LLM call
         // this.memory.clear();
         // this.memory.add(new SystemMessage(SYSTEM_PROMPT)); // System prompt is passed directly
 
         String userAgentMessageText;
 
-        if (rawTask.startsWith("ProcessNewSlackMessage:")) {
-            try {
-                String taskJson = rawTask.substring("ProcessNewSlackMessage:".length());
-                JsonNode taskNode = objectMapper.readTree(taskJson);
-                String channel = taskNode.path("channel").asText();
-                String originalSender = taskNode.path("originalSender").asText();
-
-                if (!SHARED_CHANNEL.equals(channel) || !USER_AGENT_NAME.equals(originalSender)) {
-                    log.warn("{} received message not from {} or not on {}. Ignoring.", agentName, USER_AGENT_NAME, SHARED_CHANNEL);
-                    return;
-                }
-
-                Map<String, Object> lastMessageData = teamsTool.readLastMessageFromSender(SHARED_CHANNEL, USER_AGENT_NAME);
-                userAgentMessageText = (String) lastMessageData.getOrDefault("text", "UserAgent's message was unclear or not found.");
-                AgentActivityLogger.logAction(agentName, rawTask, "Processing message from " + originalSender + ": '" + userAgentMessageText + "'");
-
-                if (userAgentMessageText.toLowerCase().contains("issue is resolved")) {
-                    AgentActivityLogger.logAction(agentName, rawTask, "UserAgent indicates issue resolved. No reply needed from TechAgent.");
-                    return;
-                }
-                if (userAgentMessageText.toLowerCase().contains("escalate this")) {
-                    AgentActivityLogger.logAction(agentName, rawTask, "UserAgent is escalating. No further troubleshooting reply needed from TechAgent.");
-                    return;
-                }
-            } catch (IOException e) {
-                AgentActivityLogger.logError(agentName, rawTask, "Failed to parse ProcessNewSlackMessage task", e);
+        if (task.body() instanceof ProcessNewSlackMessage message) {
+            String channel = message.channel();
+            String originalSender = message.originalSender();
+
+            if (!SHARED_CHANNEL.equals(channel) || !USER_AGENT_NAME.equals(originalSender)) {
+                log.warn("{} received message not from {} or not on {}. Ignoring.", agentName, USER_AGENT_NAME, SHARED_CHANNEL);
+                return;
+            }
+
+            Map<String, Object> lastMessageData = teamsTool.readLastMessageFromSender(SHARED_CHANNEL, USER_AGENT_NAME);
+            userAgentMessageText = (String) lastMessageData.getOrDefault("text", "UserAgent's message was unclear or not found.");
+            AgentActivityLogger.logAction(agentName, taskText, "Processing message from " + originalSender + ": '" + userAgentMessageText + "'");
+
+            if (userAgentMessageText.toLowerCase().contains("issue is resolved")) {
+                AgentActivityLogger.logAction(agentName, taskText, "UserAgent indicates issue resolved. No reply needed from TechAgent.");
+                return;
+            }
+            if (userAgentMessageText.toLowerCase().contains("escalate this")) {
+                AgentActivityLogger.logAction(agentName, taskText, "UserAgent is escalating. No further troubleshooting reply needed from TechAgent.");
                 return;
             }
         } else {
-            log.warn("{} received unknown task: {}", agentName, rawTask);
+            log.warn("{} received unknown task: {}", agentName, taskText);
             return;
         }
 
@@ -121,7 +121,8 @@ public class TechAgent extends BaseLlmAgent {
         dev.langchain4j.model.output.Response<String> llmResponse;
         if (this.llm instanceof LlamaLanguageModelWrapper) {
             // Use the specific generate method of LlamaLanguageModelWrapper
-            llmResponse = ((LlamaLanguageModelWrapper) this.llm).generate(SYSTEM_PROMPT, llmUserPrompt, 70, 0.2f); // Max new tokens, temp
+            llmResponse = ((LlamaLanguageModelWrapper) this.llm).generate(agentName, "Reply",
+                    InferenceScheduler.Priority.INTERACTIVE, REPLY_DEADLINE, SYSTEM_PROMPT, llmUserPrompt, 70, 0.2f); // Max new tokens, temp unless the routed profile sets one
         } else {
             // Fallback for generic LanguageModel (less ideal as it combines prompts)
             log.warn("{} LLM is not LlamaLanguageModelWrapper. Combining prompts.", agentName);
@@ -135,15 +136,12 @@ public class TechAgent extends BaseLlmAgent {
         String rawLlmMessageOutput = (llmResponse != null && llmResponse.content() != null) ? llmResponse.content().trim() : "";
 
         String messageToSendToUserAgent = cleanLlmMessage(rawLlmMessageOutput, userAgentMessageText);
-        AgentActivityLogger.logAction(agentName, rawTask, agentName + " formulated message: '" + messageToSendToUserAgent + "'");
+        AgentActivityLogger.logAction(agentName, taskText, agentName + " formulated message: '" + messageToSendToUserAgent + "'");
 
         teamsTool.recordMessageSent(SHARED_CHANNEL, agentName, messageToSendToUserAgent);
 
-        String eventPayload = String.format(
-                "{\"channel\":\"%s\", \"sender\":\"%s\", \"recipient\":\"%s\"}",
-                SHARED_CHANNEL, agentName, USER_AGENT_NAME
-        );
-        eventBus.publish("NewSlackMessageEvent:" + eventPayload);
+        eventBus.publish(Envelope.of(AgencyMessages.NEW_SLACK_MESSAGE_EVENT,
+                new NewSlackMessageEvent(SHARED_CHANNEL, agentName, USER_AGENT_NAME)));
         AgentActivityLogger.logAction(agentName, SHARED_CHANNEL, "Published NewSlackMessageEvent for " + USER_AGENT_NAME);
     }
 }
\ No newline at end of file
@@ -0,0 +1,198 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Appends lines to a file that stays open, for any number of concurrent publishers.
+ * <p>
+ * Lines are encoded on the publisher's thread and written in group commits ({@link GroupCommitQueue}): each
+ * group is copied into one buffer and written with a single {@code write} call. The file is opened with
+ * {@code O_APPEND} and every write holds whole lines, so processes appending to the same file never
+ * interleave inside a line. A file that is deleted or replaced under the writer is reopened before the
+ * next group.
+ * <p>
+ * Durability follows {@code -Dbus.Fsync}:
+ * <ul>
+ *   <li>{@code none} (default): {@link #append} returns once its line is in the OS page cache. It
+ *       survives a crash of this JVM, not of the machine.</li>
+ *   <li>{@code batch}: {@link #append} returns once its group is written and forced to disk.</li>
+ *   <li>{@code interval}: {@link #append} returns once written; files are forced every
+ *       {@code bus.FsyncIntervalMillis} ms (default 100), bounding what a machine crash can lose.</li>
+ * </ul>
+ */
+public final class AppendWriter {
+    private static final Logger log = LoggerFactory.getLogger(AppendWriter.class);
+
+    public enum FsyncPolicy {
+        NONE, BATCH, INTERVAL;
+
+        static FsyncPolicy fromSystemProperties() {
+            String value = System.getProperty("bus.Fsync", "none");
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                log.warn("Unknown bus.Fsync '{}', using none", value);
+                return NONE;
+            }
+        }
+    }
+
+    static final int BATCH_BUFFER_BYTES = Integer.getInteger("bus.WriteBatchBytes", 256 * 1024);
+    static final FsyncPolicy DEFAULT_POLICY = FsyncPolicy.fromSystemProperties();
+
+    private static final Map<Path, AppendWriter> WRITERS = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private final GroupCommitQueue queue;
+
+    // commit state, only touched by the one running drain
+    private final ByteBuffer batch = ByteBuffer.allocateDirect(Math.max(4096, BATCH_BUFFER_BYTES));
+    private volatile FileChannel channel;
+    private Object fileKey;
+
+    private AppendWriter(Path path, FsyncPolicy policy) {
+        this.path = path;
+        this.queue = new GroupCommitQueue("AppendWriter " + path, policy, new GroupCommitQueue.Committer() {
+            @Override
+            public void commit(List<byte[]> records) throws IOException {
+                write(records);
+            }
+
+            @Override
+            public void force() throws IOException {
+                FileChannel ch = channel;
+                if (ch != null && ch.isOpen()) {
+                    ch.force(false);
+                }
+            }
+
+            @Override
+            public void afterCommit() {
+                Tailer.shared().changed(AppendWriter.this.path);
+            }
+        });
+    }
+
+    /**
+     * The shared writer of {@code file}, opened on first use, with the {@code bus.Fsync} policy.
+     */
+    public static AppendWriter forPath(Path file) {
+        return WRITERS.computeIfAbsent(file.toAbsolutePath().normalize(), p -> new AppendWriter(p, DEFAULT_POLICY));
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public FsyncPolicy policy() {
+        return queue.policy();
+    }
+
+    /**
+     * Appends {@code line} and a newline and waits until the line is as durable as the fsync policy promises.
+     */
+    public void append(String line) throws IOException {
+        GroupCommitQueue.await(appendAsync(line));
+    }
+
+    /**
+     * Appends {@code line} and a newline without waiting. The future completes when the line's group is written
+     * (and forced under {@link FsyncPolicy#BATCH}), or exceptionally with the {@link UncheckedIOException} that
+     * failed the write.
+     */
+    public CompletableFuture<Void> appendAsync(String line) {
+        return queue.submit((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Waits until everything appended before this call is written, then forces the file unless the policy is
+     * {@link FsyncPolicy#NONE}.
+     */
+    public void flush() throws IOException {
+        queue.flush();
+    }
+
+    private void write(List<byte[]> records) throws IOException {
+        FileChannel ch;
+        try {
+            ch = openChannel();
+            batch.clear();
+            for (byte[] record : records) {
+                if (record.length > batch.remaining()) {
+                    writeFully(ch, batch.flip());
+                    batch.clear();
+                    if (record.length > batch.capacity()) {
+                        writeFully(ch, ByteBuffer.wrap(record));
+                        continue;
+                    }
+                }
+                batch.put(record);
+            }
+            writeFully(ch, batch.flip());
+        } catch (IOException e) {
+            closeChannel();
+            throw e;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    /**
+     * The open channel, reopened if the file was deleted or replaced since the previous group.
+     */
+    private FileChannel openChannel() throws IOException {
+        FileChannel ch = channel;
+        if (ch != null) {
+            try {
+                Object currentKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+                if (currentKey == null || Objects.equals(currentKey, fileKey)) {
+                    return ch;
+                }
+                log.info("AppendWriter: {} was replaced, reopening it", path);
+            } catch (NoSuchFileException e) {
+                log.info("AppendWriter: {} was deleted, recreating it", path);
+            }
+            closeChannel();
+        }
+        Files.createDirectories(path.getParent());
+        ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        channel = ch;
+        return ch;
+    }
+
+    private void closeChannel() {
+        FileChannel ch = channel;
+        channel = null;
+        fileKey = null;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                log.debug("AppendWriter: error closing {}", path, e);
+            }
+        }
+    }
+}
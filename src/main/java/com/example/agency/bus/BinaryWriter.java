@@ -0,0 +1,148 @@
+package com.example.agency.bus;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Writes the compact binary form of {@link Envelope}s: unsigned varints for lengths, ids and counts, zig-zag
+ * varints for signed numbers, and strings as a varint length (+1, 0 for {@code null}) followed by their UTF-8 bytes,
+ * encoded in place without a temporary array. The buffer grows by doubling and is kept across {@link #reset()}.
+ */
+public final class BinaryWriter {
+    private byte[] buffer;
+    private int size;
+
+    public BinaryWriter() {
+        this(128);
+    }
+
+    public BinaryWriter(int initialCapacity) {
+        this.buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public BinaryWriter reset() {
+        size = 0;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensure(int more) {
+        if (size + more > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + more));
+        }
+    }
+
+    public void writeByte(int value) {
+        ensure(1);
+        buffer[size++] = (byte) value;
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    /**
+     * @param value read as unsigned
+     */
+    public void writeVarInt(int value) {
+        ensure(5);
+        while ((value & ~0x7f) != 0) {
+            buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    /**
+     * @param value read as unsigned
+     */
+    public void writeVarLong(long value) {
+        ensure(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    /**
+     * Zig-zag encoded: small negative numbers stay short.
+     */
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Seconds and nanoseconds of the epoch, to the nanosecond.
+     */
+    public void writeInstant(Instant value) {
+        writeSignedVarLong(value.getEpochSecond());
+        writeVarInt(value.getNano());
+    }
+
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        int length = value.length();
+        int utf8 = utf8Length(value, length);
+        writeVarInt(utf8 + 1);
+        ensure(utf8);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[size++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xc0 | c >> 6);
+                buffer[size++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buffer[size++] = (byte) (0xf0 | cp >> 18);
+                buffer[size++] = (byte) (0x80 | cp >> 12 & 0x3f);
+                buffer[size++] = (byte) (0x80 | cp >> 6 & 0x3f);
+                buffer[size++] = (byte) (0x80 | cp & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                buffer[size++] = '?'; // unpaired, as String.getBytes does
+            } else {
+                buffer[size++] = (byte) (0xe0 | c >> 12);
+                buffer[size++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buffer[size++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+    }
+
+    private static int utf8Length(String value, int length) {
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 2; // 4 bytes for the pair
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * The bytes as a string of one char per byte (ISO-8859-1), the form the bus carries: the JVM stores it with one
+     * byte per char, so it is a single copy either way.
+     */
+    String toLatin1String() {
+        return new String(buffer, 0, size, StandardCharsets.ISO_8859_1);
+    }
+}
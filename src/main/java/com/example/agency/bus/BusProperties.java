@@ -0,0 +1,24 @@
+package com.example.agency.bus;
+
+/**
+ * Bus settings that can be given per queue or topic: {@code -D<property>.<queue>} overrides {@code -D<property>}.
+ */
+final class BusProperties {
+
+    private BusProperties() {
+    }
+
+    static long get(String property, String queueName, long defaultValue) {
+        Long perQueue = Long.getLong(property + "." + queueName);
+        return perQueue != null ? perQueue : Long.getLong(property, defaultValue);
+    }
+
+    static int getInt(String property, String queueName, int defaultValue) {
+        return (int) Math.min(Integer.MAX_VALUE, get(property, queueName, defaultValue));
+    }
+
+    static boolean getBoolean(String property, String queueName, boolean defaultValue) {
+        String perQueue = System.getProperty(property + "." + queueName);
+        return Boolean.parseBoolean(perQueue != null ? perQueue : System.getProperty(property, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,338 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The workers consuming one {@link PartitionedQueue} together: every partition is consumed by exactly one member of
+ * the group at a time, with its own committed offset, so the members split the queue between them.
+ * <p>
+ * Members may live in several processes on one host; they coordinate through file locks under
+ * {@code data/bus_state/groups/<queue>/<group>/}. Each member holds the lock of its {@code members/<id>} file for
+ * as long as it lives, so a member whose process died is recognized by its lock being free. Every member sorts the
+ * live member ids and takes partition {@code p} if it is member {@code p % members}. Taking a partition means
+ * holding the lock of its {@code p<n>.lock} file; a member giving a partition up first stops reading it and waits
+ * until its records in flight were acknowledged (or timed out), so records of one key never run in two members at
+ * once. Members rebalance when one joins or leaves in this process and every {@code bus.RebalanceMillis} (1000 ms)
+ * to notice other processes.
+ * <p>
+ * The group named after the queue is its default group: it is what {@link Source.TaskQueue#subscribe} joins, and
+ * it keeps the offset files of the unpartitioned queues ({@code data/bus_state/tasks/<queue>.offset}).
+ */
+final class ConsumerGroup {
+    private static final Logger log = LoggerFactory.getLogger(ConsumerGroup.class);
+
+    static final Path BASE_DIR = Paths.get("data", "bus_state", "groups");
+    static final long REBALANCE_MILLIS = Math.max(10, Long.getLong("bus.RebalanceMillis", 1000));
+
+    private static final Map<Path, ConsumerGroup> GROUPS = new ConcurrentHashMap<>();
+    // one channel per partition lock file: closing any channel of a file may drop every lock this process holds on it
+    private static final Map<Path, FileChannel> LOCK_CHANNELS = new HashMap<>();
+    private static final AtomicInteger MEMBER_SEQUENCE = new AtomicInteger();
+    // pid first: ids sort the same way in every process
+    private static final String LOCAL_ID_PREFIX = String.format("%010d-", ProcessHandle.current().pid());
+    private static final ScheduledExecutorService COORDINATOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "bus-groups");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        COORDINATOR.scheduleWithFixedDelay(ConsumerGroup::rebalanceAll, REBALANCE_MILLIS, REBALANCE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private final PartitionedQueue queue;
+    private final String group;
+    private final Path dir;
+    private final Path membersDir;
+    private final List<Member> members = new CopyOnWriteArrayList<>();
+
+    private ConsumerGroup(PartitionedQueue queue, String group, Path dir) throws IOException {
+        this.queue = queue;
+        this.group = group;
+        this.dir = dir;
+        this.membersDir = dir.resolve("members");
+        Files.createDirectories(membersDir);
+    }
+
+    /**
+     * Adds a member to {@code group} of {@code queue}. It owns no partitions until the next rebalance, which is
+     * started right away.
+     */
+    static Member join(PartitionedQueue queue, String group) throws IOException {
+        Path dir = BASE_DIR.resolve(queue.name()).resolve(group).toAbsolutePath().normalize();
+        ConsumerGroup consumerGroup = GROUPS.get(dir);
+        if (consumerGroup == null) {
+            ConsumerGroup created = new ConsumerGroup(queue, group, dir);
+            consumerGroup = GROUPS.putIfAbsent(dir, created);
+            if (consumerGroup == null) {
+                consumerGroup = created;
+            }
+        }
+        Member member = consumerGroup.new Member();
+        consumerGroup.members.add(member);
+        log.info("ConsumerGroup {}/{}: member {} joined", queue.name(), group, member.id);
+        COORDINATOR.execute(consumerGroup::rebalance);
+        return member;
+    }
+
+    /**
+     * The offset file of {@code partition} for {@code group}.
+     */
+    static Path offsetFile(String queue, String group, int partition) {
+        if (group.equals(queue)) {
+            String suffix = partition == 0 ? "" : "." + partition;
+            return PartitionedQueue.STATE_DIR.resolve(queue + suffix + ".offset");
+        }
+        return BASE_DIR.resolve(queue).resolve(group).resolve("p" + partition + ".offset");
+    }
+
+    /**
+     * Only called on the coordinator thread.
+     */
+    private static FileChannel lockChannel(Path lockFile) throws IOException {
+        FileChannel channel = LOCK_CHANNELS.get(lockFile);
+        if (channel == null) {
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            LOCK_CHANNELS.put(lockFile, channel);
+        }
+        return channel;
+    }
+
+    private static void rebalanceAll() {
+        for (ConsumerGroup consumerGroup : GROUPS.values()) {
+            consumerGroup.rebalance();
+        }
+    }
+
+    /**
+     * Moves every member of this process towards its share of the partitions. Runs on the coordinator thread only.
+     */
+    private void rebalance() {
+        try {
+            List<String> live = liveMembers();
+            for (Member member : members) {
+                int index = live.indexOf(member.id);
+                List<Integer> target = new ArrayList<>();
+                if (index >= 0 && !member.left) {
+                    for (int p = index; p < queue.partitions(); p += live.size()) {
+                        target.add(p);
+                    }
+                }
+                member.moveTo(target);
+                if (member.left && member.owned.isEmpty()) {
+                    members.remove(member);
+                    member.close();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("ConsumerGroup {}/{}: rebalance failed, retrying in {} ms", queue.name(), group, REBALANCE_MILLIS, e);
+        }
+    }
+
+    /**
+     * @return the sorted ids of the members whose processes are alive, deleting the files of dead ones
+     */
+    private List<String> liveMembers() throws IOException {
+        List<String> live = new ArrayList<>();
+        for (Member member : members) {
+            if (!member.left) {
+                live.add(member.id);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(membersDir)) {
+            for (Path file : files) {
+                String id = file.getFileName().toString();
+                if (id.endsWith(".tmp")) {
+                    continue; // a member still locking its file
+                }
+                // Never probe a member of this process, even one still joining or closing: closing the probe's
+                // channel would drop the lock the member holds on the file.
+                if (!id.startsWith(LOCAL_ID_PREFIX) && heldElsewhere(file)) {
+                    live.add(id);
+                }
+            }
+        }
+        Collections.sort(live);
+        return live;
+    }
+
+    private boolean heldElsewhere(Path memberFile) {
+        try (FileChannel ch = FileChannel.open(memberFile, StandardOpenOption.WRITE)) {
+            FileLock lock = ch.tryLock();
+            if (lock == null) {
+                return true;
+            }
+            lock.release();
+            Files.deleteIfExists(memberFile);
+            log.info("ConsumerGroup {}/{}: removed member {} of a process that ended", queue.name(), group, memberFile.getFileName());
+            return false;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        } catch (IOException e) {
+            // deleted meanwhile
+            return false;
+        }
+    }
+
+    /**
+     * One worker of the group. Its handlers receive the records of the partitions it currently owns.
+     */
+    final class Member {
+        final String id;
+        private final FileChannel memberChannel;
+        private final FileLock memberLock;
+        private final List<HandlerExecutor.Handler> handlers = new CopyOnWriteArrayList<>();
+        // partition -> its consumer and lock file; changed on the coordinator thread, under handlersLock for handlers
+        private final Map<Integer, Owned> owned = new ConcurrentHashMap<>();
+        private final ReentrantLock handlersLock = new ReentrantLock();
+        private volatile boolean left;
+
+        private Member() throws IOException {
+            this.id = LOCAL_ID_PREFIX + String.format("%06d", MEMBER_SEQUENCE.incrementAndGet());
+            Path file = membersDir.resolve(id);
+            Path tmp = membersDir.resolve(id + ".tmp");
+            this.memberChannel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.memberLock = memberChannel.lock();
+            // locked before it is visible, so no other process takes it for the file of a dead member
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        void subscribe(HandlerExecutor.Handler handler) {
+            handlersLock.lock();
+            try {
+                handlers.add(handler);
+                for (Owned partition : owned.values()) {
+                    partition.consumer.subscribe(handler);
+                }
+            } finally {
+                handlersLock.unlock();
+            }
+        }
+
+        /**
+         * Gives up this member's partitions, once their records in flight were acknowledged, and leaves the group.
+         */
+        void leave() {
+            left = true;
+            log.info("ConsumerGroup {}/{}: member {} leaving", queue.name(), group, id);
+            COORDINATOR.execute(ConsumerGroup.this::rebalance);
+        }
+
+        private void moveTo(List<Integer> target) {
+            for (Map.Entry<Integer, Owned> entry : owned.entrySet()) {
+                if (!target.contains(entry.getKey())) {
+                    release(entry.getKey(), entry.getValue());
+                }
+            }
+            for (int p : target) {
+                if (!owned.containsKey(p)) {
+                    tryAcquire(p);
+                }
+            }
+        }
+
+        private void tryAcquire(int partition) {
+            FileLock lock = null;
+            try {
+                FileChannel channel = lockChannel(dir.resolve("p" + partition + ".lock"));
+                try {
+                    lock = channel.tryLock();
+                } catch (OverlappingFileLockException e) {
+                    lock = null; // a member of this process still drains it
+                }
+                if (lock == null) {
+                    log.debug("ConsumerGroup {}/{}: partition {} still owned elsewhere", queue.name(), group, partition);
+                    return;
+                }
+                // named after the queue: the handler limit and bus.* settings are per queue, not per partition
+                QueueConsumer consumer = QueueConsumer.open("tasks", queue.name(), queue.partition(partition),
+                        offsetFile(queue.name(), group, partition));
+                handlersLock.lock();
+                try {
+                    owned.put(partition, new Owned(consumer, lock));
+                    handlers.forEach(consumer::subscribe);
+                } finally {
+                    handlersLock.unlock();
+                }
+                consumer.start();
+                log.info("ConsumerGroup {}/{}: member {} took partition {} at offset {}",
+                        queue.name(), group, id, partition, consumer.position());
+            } catch (IOException | RuntimeException e) {
+                log.error("ConsumerGroup {}/{}: member {} could not take partition {}", queue.name(), group, id, partition, e);
+                if (lock != null) {
+                    try {
+                        lock.release();
+                    } catch (IOException ex) {
+                        log.warn("ConsumerGroup {}/{}: releasing the lock of partition {}: {}", queue.name(), group, partition, ex.toString());
+                    }
+                }
+            }
+        }
+
+        private void release(int partition, Owned partitionOwned) {
+            if (partitionOwned.releasing) {
+                return;
+            }
+            partitionOwned.releasing = true;
+            log.info("ConsumerGroup {}/{}: member {} giving up partition {}", queue.name(), group, id, partition);
+            partitionOwned.consumer.stop().whenComplete((ignored, e) -> {
+                try {
+                    partitionOwned.lock.release();
+                } catch (IOException ex) {
+                    log.warn("ConsumerGroup {}/{}: releasing the lock of partition {}: {}", queue.name(), group, partition, ex.toString());
+                }
+                owned.remove(partition, partitionOwned);
+                log.info("ConsumerGroup {}/{}: member {} released partition {} at offset {}",
+                        queue.name(), group, id, partition, partitionOwned.consumer.position());
+                // the next owner may be in this process
+                COORDINATOR.execute(ConsumerGroup.this::rebalance);
+            });
+        }
+
+        private void close() {
+            try {
+                memberLock.release();
+                memberChannel.close();
+                Files.deleteIfExists(membersDir.resolve(id));
+            } catch (IOException e) {
+                log.warn("ConsumerGroup {}/{}: removing member file {}: {}", queue.name(), group, id, e.toString());
+            }
+            log.info("ConsumerGroup {}/{}: member {} left", queue.name(), group, id);
+        }
+    }
+
+    private static final class Owned {
+        final QueueConsumer consumer;
+        final FileLock lock;
+        volatile boolean releasing;
+
+        Owned(QueueConsumer consumer, FileLock lock) {
+            this.consumer = consumer;
+            this.lock = lock;
+        }
+    }
+}
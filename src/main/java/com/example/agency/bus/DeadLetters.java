@@ -0,0 +1,102 @@
+package com.example.agency.bus;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records that failed on every attempt, one {@code .jsonl} file per task queue or event topic under
+ * {@code data/bus_state/dlq/<kind>/<name>.jsonl}.
+ * <p>
+ * Each line holds the record (key and payload), where it came from (log and offset) and why it failed (attempts,
+ * last error, time of the first failure and of dead-lettering). {@link #replay(String, String)} appends the
+ * records to their queue or topic again, after the cause was fixed.
+ */
+public final class DeadLetters {
+    private static final Logger log = LoggerFactory.getLogger(DeadLetters.class);
+
+    static final Path BASE_DIR = Paths.get("data", "bus_state", "dlq");
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private DeadLetters() {
+    }
+
+    /**
+     * @param kind {@code "tasks"} or {@code "events"}
+     */
+    public static Path file(String kind, String name) {
+        return BASE_DIR.resolve(kind).resolve(name + ".jsonl");
+    }
+
+    static void write(String kind, String name, String logName, long offset, String key, String payload,
+                      int attempts, Throwable error, long firstFailureMillis) throws IOException {
+        Map<String, Object> entry = new LinkedHashMap<>();
+        entry.put("queue", name);
+        entry.put("kind", kind);
+        entry.put("log", logName);
+        entry.put("offset", offset);
+        entry.put("key", key);
+        entry.put("payload", payload);
+        if (Envelope.isBinary(payload)) {
+            entry.put("view", Envelope.debugView(payload));
+        }
+        entry.put("attempts", attempts);
+        entry.put("error", error == null ? null : error.toString());
+        entry.put("firstFailure", Instant.ofEpochMilli(firstFailureMillis).toString());
+        entry.put("deadLetteredAt", Instant.now().toString());
+        Path file = file(kind, name);
+        Files.createDirectories(file.getParent());
+        AppendWriter.forPath(file).append(MAPPER.writeValueAsString(entry));
+    }
+
+    /**
+     * Appends every dead-lettered record of {@code name} to it again, with its key, and moves the file aside as
+     * {@code <name>.jsonl.replayed-<millis>}. Records that fail again are dead-lettered into a new file.
+     *
+     * @param kind {@code "tasks"} or {@code "events"}
+     * @return the number of records replayed
+     */
+    public static int replay(String kind, String name) throws IOException {
+        Path file = file(kind, name);
+        if (!Files.exists(file)) {
+            log.info("DeadLetters: nothing to replay for {}/{}", kind, name);
+            return 0;
+        }
+        // moved first: new failures during the replay go to a new file
+        Path replaying = file.resolveSibling(file.getFileName() + ".replayed-" + System.currentTimeMillis());
+        Files.move(file, replaying, StandardCopyOption.ATOMIC_MOVE);
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(replaying, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonNode entry = MAPPER.readTree(line);
+                String key = entry.path("key").isTextual() ? entry.get("key").asText() : null;
+                String payload = entry.path("payload").asText();
+                if ("tasks".equals(kind)) {
+                    PartitionedQueue.open(name).append(key, payload);
+                } else {
+                    SegmentedLog.open(kind, name).append(key, payload);
+                }
+                count++;
+            }
+        }
+        log.info("DeadLetters: replayed {} record(s) into {}/{}, kept them in {}", count, kind, name, replaying);
+        return count;
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.agency.bus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A typed bus message: its {@link MessageType}, the key it is routed and ordered by ({@code null} for none), when it
+ * was created, string headers and the body.
+ * <p>
+ * On the bus an envelope travels in a compact binary form ({@link #encode()}), carried as a string of one char per
+ * byte so that every transport takes it unchanged: {@code [0x00][format][varint type id][type version][key]
+ * [signed varlong millis][varint header count][name value]*[body]}.
+ * The leading zero tells it apart from the text form {@code <type name>:<body>} that the bus carried before, which
+ * {@link #decode(String)} still reads and {@link #toString()} produces as a debug view.
+ * <p>
+ * The {@value #CHAIN_HEADER} header ties the messages caused by one message together, e.g. a replayed event and the
+ * tasks and events the agents produced for it. {@link #decode(String)} remembers the chain of the message on the
+ * current thread and {@link #of(MessageType, Object)} copies it into the messages the handler creates.
+ */
+public record Envelope<T>(MessageType<T> type, String key, long timestamp, Map<String, String> headers, T body) {
+    private static final char BINARY_MARKER = '\0';
+    private static final int FORMAT = 1;
+    // codecs do not publish, so one writer per thread is enough and its buffer is reused
+    private static final ThreadLocal<BinaryWriter> WRITER = ThreadLocal.withInitial(BinaryWriter::new);
+    // the chain of the message this thread decoded last
+    private static final ThreadLocal<String> CHAIN = new ThreadLocal<>();
+
+    public static final String CHAIN_HEADER = "chain";
+
+    public Envelope {
+        Objects.requireNonNull(type, "type");
+        body = type.cast(body);
+        headers = Map.copyOf(headers);
+    }
+
+    /**
+     * An envelope without key, created now; its only header is the chain of the message the current thread decoded
+     * last, if that had one.
+     */
+    public static <T> Envelope<T> of(MessageType<T> type, T body) {
+        String chain = CHAIN.get();
+        return new Envelope<>(type, null, System.currentTimeMillis(),
+                chain == null ? Map.of() : Map.of(CHAIN_HEADER, chain), body);
+    }
+
+    public Envelope<T> withKey(String key) {
+        return new Envelope<>(type, key, timestamp, headers, body);
+    }
+
+    public Envelope<T> withTimestamp(long timestamp) {
+        return new Envelope<>(type, key, timestamp, headers, body);
+    }
+
+    public Envelope<T> withHeader(String name, String value) {
+        Map<String, String> copy = new LinkedHashMap<>(headers);
+        copy.put(name, value);
+        return new Envelope<>(type, key, timestamp, copy, body);
+    }
+
+    public String header(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * @return the binary form, as the bus carries it
+     */
+    public String encode() {
+        BinaryWriter out = WRITER.get().reset();
+        out.writeByte(BINARY_MARKER);
+        out.writeByte(FORMAT);
+        out.writeVarInt(type.id());
+        out.writeByte(type.version());
+        out.writeString(key);
+        out.writeSignedVarLong(timestamp);
+        out.writeVarInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            out.writeString(header.getKey());
+            out.writeString(header.getValue());
+        }
+        type.codec().write(body, out);
+        return out.toLatin1String();
+    }
+
+    /**
+     * Reads the binary or the text form of a message; the text form has no key, headers or timestamp (it gets 0).
+     * The message's chain becomes the chain of the messages this thread creates next.
+     *
+     * @throws IllegalArgumentException if the type is not registered or the message is malformed
+     */
+    public static Envelope<?> decode(String message) {
+        Envelope<?> envelope = unpack(message);
+        CHAIN.set(envelope.header(CHAIN_HEADER));
+        return envelope;
+    }
+
+    private static Envelope<?> unpack(String message) {
+        if (!isBinary(message)) {
+            return parseText(message);
+        }
+        byte[] bytes = message.getBytes(StandardCharsets.ISO_8859_1);
+        BinaryReader in = new BinaryReader(bytes, 1, bytes.length - 1);
+        int format = in.readByte();
+        if (format != FORMAT) {
+            throw new IllegalArgumentException("Unknown envelope format " + format);
+        }
+        return read(MessageType.byId(in.readVarInt()), in);
+    }
+
+    private static <T> Envelope<T> read(MessageType<T> type, BinaryReader in) {
+        int version = in.readByte();
+        String key = in.readString();
+        long timestamp = in.readSignedVarLong();
+        int headerCount = in.readVarInt();
+        Map<String, String> headers = headerCount == 0 ? Map.of() : new LinkedHashMap<>();
+        for (int i = 0; i < headerCount; i++) {
+            headers.put(in.readString(), in.readString());
+        }
+        return new Envelope<>(type, key, timestamp, headers, type.codec().read(in, version));
+    }
+
+    private static Envelope<?> parseText(String message) {
+        int colon = message.indexOf(':');
+        MessageType<?> type = MessageType.byName(colon < 0 ? message.trim() : message.substring(0, colon));
+        return fromText(type, colon < 0 ? "" : message.substring(colon + 1).trim());
+    }
+
+    private static <T> Envelope<T> fromText(MessageType<T> type, String text) {
+        return new Envelope<>(type, null, 0L, Map.of(), type.fromText(text));
+    }
+
+    public static boolean isBinary(String message) {
+        return !message.isEmpty() && message.charAt(0) == BINARY_MARKER;
+    }
+
+    /**
+     * The bytes a message is stored and sent as: a binary envelope carries one byte per char and is written as
+     * those bytes, a text message as UTF-8.
+     */
+    static byte[] bytes(String message) {
+        return message.getBytes(isBinary(message) ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The message stored as {@code bytes}, see {@link #bytes(String)}.
+     */
+    static String message(byte[] bytes) {
+        boolean binary = bytes.length > 0 && bytes[0] == BINARY_MARKER;
+        return new String(bytes, binary ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The text form of a message as it is on the bus, for logs and dead letters; messages that cannot be decoded
+     * are returned as they are.
+     */
+    public static String debugView(String message) {
+        if (!isBinary(message)) {
+            return message;
+        }
+        try {
+            return unpack(message).toString();
+        } catch (RuntimeException e) {
+            return message;
+        }
+    }
+
+    /**
+     * @return the text form, {@code <type name>:<body>}, or the type name alone for an empty body
+     */
+    @Override
+    public String toString() {
+        String text = type.toText(body);
+        return text.isEmpty() ? type.name() : type.name() + ":" + text;
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The default {@link Transport}: task queues are {@link PartitionedQueue}s consumed through {@link ConsumerGroup}s,
+ * event topics are {@link SegmentedLog}s with one {@link QueueConsumer} per topic and process. Every record is on
+ * disk before it is delivered, and every process on the host sees it.
+ */
+final class FileTransport implements Transport {
+    private static final Logger log = LoggerFactory.getLogger(FileTransport.class);
+    private static final Path STATE_BASE_DIR = Paths.get("data", "bus_state");
+
+    private final Map<String, PartitionedQueue> queues = new ConcurrentHashMap<>();
+    // this process's member of each queue's default group, shared by all plain subscriptions
+    private final Map<String, ConsumerGroup.Member> defaultMembers = new ConcurrentHashMap<>();
+    // this process's consumer of each topic, shared by all its subscriptions
+    private final Map<String, QueueConsumer> topics = new ConcurrentHashMap<>();
+    // registration opens the logs, a ReentrantLock keeps that from pinning virtual-thread publishers
+    private final ReentrantLock registrationLock = new ReentrantLock();
+
+    FileTransport() {
+        try {
+            Files.createDirectories(STATE_BASE_DIR.resolve("tasks"));
+        } catch (IOException e) {
+            log.error("Could not create base state directory for FileTransport: {}", STATE_BASE_DIR.resolve("tasks"), e);
+        }
+        log.info("FileTransport started, every queue partition is consumed on its own when its log changes.");
+    }
+
+    @Override
+    public void open(String kind, String name) throws IOException {
+        if ("tasks".equals(kind)) {
+            queue(name);
+        } else {
+            topic(name);
+        }
+    }
+
+    private PartitionedQueue queue(String queueName) throws IOException {
+        PartitionedQueue queue = queues.get(queueName);
+        if (queue != null) {
+            return queue;
+        }
+        registrationLock.lock();
+        try {
+            queue = queues.get(queueName);
+            if (queue == null) {
+                queue = PartitionedQueue.open(queueName);
+                queues.put(queueName, queue);
+                log.info("FileTransport: Queue '{}' registered with {} partition(s). Log: {}",
+                        queueName, queue.partitions(), queue.partition(0).name());
+            }
+            return queue;
+        } finally {
+            registrationLock.unlock();
+        }
+    }
+
+    private QueueConsumer topic(String topic) throws IOException {
+        QueueConsumer consumer = topics.get(topic);
+        if (consumer != null) {
+            return consumer;
+        }
+        registrationLock.lock();
+        try {
+            consumer = topics.get(topic);
+            if (consumer == null) {
+                Path legacyEventFile = Paths.get("data", "events", topic + ".log");
+                Path offsetFile = STATE_BASE_DIR.resolve("events").resolve(topic + ".offset");
+                consumer = QueueConsumer.open("events", topic, legacyEventFile, offsetFile);
+                LogCompactor.register(topic, SegmentedLog.open("events", topic));
+                consumer.start();
+                topics.put(topic, consumer);
+                log.info("FileTransport: Topic '{}' registered, log: {}. Initial offset: {}",
+                        topic, consumer.source().name(), consumer.position());
+            }
+            return consumer;
+        } finally {
+            registrationLock.unlock();
+        }
+    }
+
+    @Override
+    public void publish(String kind, String name, String key, String payload) throws IOException {
+        if ("tasks".equals(kind)) {
+            queue(name).append(key, payload);
+        } else {
+            topic(name);
+            SegmentedLog.open("events", name).append(key, payload);
+        }
+    }
+
+    /**
+     * For a task queue, subscribes {@code handler} to the partitions this process's member of the queue's default
+     * group owns; with one partition and one process, that is every task.
+     */
+    @Override
+    public void subscribe(String kind, String name, HandlerExecutor.Handler handler) throws IOException {
+        if (!"tasks".equals(kind)) {
+            topic(name).subscribe(handler);
+            return;
+        }
+        PartitionedQueue queue = queue(name);
+        ConsumerGroup.Member member;
+        registrationLock.lock();
+        try {
+            member = defaultMembers.get(name);
+            if (member == null) {
+                member = ConsumerGroup.join(queue, name);
+                defaultMembers.put(name, member);
+            }
+        } finally {
+            registrationLock.unlock();
+        }
+        member.subscribe(handler);
+    }
+
+    @Override
+    public Source.Subscription join(String name, String group, HandlerExecutor.Handler handler) throws IOException {
+        ConsumerGroup.Member member = ConsumerGroup.join(queue(name), group);
+        member.subscribe(handler);
+        log.info("FileTransport: Worker {} of group '{}' joined queue '{}'", member.id, group, name);
+        return member::leave;
+    }
+
+    @Override
+    public Path publishedLogDir() {
+        return SegmentedLog.BASE_DIR;
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The group commit behind {@link AppendWriter} and {@link SegmentedLog}.
+ * <p>
+ * Publishers push encoded records onto a lock-free multi-producer, single-consumer queue. The first publisher to
+ * find the queue idle starts a drain, which hands everything queued to the {@link Committer} in one call.
+ * Publishers arriving while that commit is in progress form the next group, so the number of writes (and fsyncs)
+ * per record falls as the load rises. Forcing follows the {@link AppendWriter.FsyncPolicy}.
+ */
+final class GroupCommitQueue {
+    private static final Logger log = LoggerFactory.getLogger(GroupCommitQueue.class);
+
+    static final long DEFAULT_FSYNC_INTERVAL_MILLIS = 100;
+    static final int MAX_GROUP_RECORDS = 4096;
+
+    /**
+     * Writes one group. Called by one drain at a time, never concurrently with itself.
+     */
+    interface Committer {
+        void commit(List<byte[]> records) throws IOException;
+
+        /** Forces what was committed to the storage device. May run concurrently with {@link #commit}. */
+        void force() throws IOException;
+
+        /** Runs after every group, successful or not, outside of any lock the committer takes. */
+        default void afterCommit() {
+        }
+    }
+
+    private static final byte[] FLUSH_MARKER = new byte[0];
+
+    private static final AtomicInteger drainerCount = new AtomicInteger();
+    // file writes block their thread either way, platform threads keep them off the virtual-thread carriers
+    private static final ExecutorService DRAINERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "bus-append-" + drainerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Set<GroupCommitQueue> ALL = ConcurrentHashMap.newKeySet();
+    private static volatile ScheduledExecutorService syncTimer;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(GroupCommitQueue::flushAll, "bus-append-shutdown"));
+    }
+
+    private final String name;
+    private final Committer committer;
+    private final AppendWriter.FsyncPolicy policy;
+    private final MpscQueue pending = new MpscQueue();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    // only touched by the running drain
+    private final List<Entry> group = new ArrayList<>();
+    private final List<byte[]> records = new ArrayList<>();
+
+    GroupCommitQueue(String name, AppendWriter.FsyncPolicy policy, Committer committer) {
+        this.name = name;
+        this.policy = policy;
+        this.committer = committer;
+        ALL.add(this);
+        if (policy == AppendWriter.FsyncPolicy.INTERVAL) {
+            startSyncTimer();
+        }
+    }
+
+    AppendWriter.FsyncPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * Queues {@code record}. The future completes once its group is committed (and forced under
+     * {@link AppendWriter.FsyncPolicy#BATCH}), or exceptionally with the {@link UncheckedIOException} that
+     * failed the commit.
+     */
+    CompletableFuture<Void> submit(byte[] record) {
+        Entry entry = new Entry(record);
+        pending.offer(entry);
+        // linked before the flag is checked: a drain that just went idle either saw the entry or is restarted here
+        if (draining.compareAndSet(false, true)) {
+            DRAINERS.execute(this::drain);
+        }
+        return entry.done;
+    }
+
+    /**
+     * Waits until everything submitted before this call is committed, then forces unless the policy is
+     * {@link AppendWriter.FsyncPolicy#NONE}.
+     */
+    void flush() throws IOException {
+        await(submit(FLUSH_MARKER));
+        if (policy != AppendWriter.FsyncPolicy.NONE) {
+            dirty.set(false);
+            committer.force();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Entry e;
+            while (group.size() < MAX_GROUP_RECORDS && (e = pending.poll()) != null) {
+                group.add(e);
+            }
+            if (group.isEmpty()) {
+                draining.set(false);
+                // a publisher may have linked an entry between the last poll and the reset
+                if (pending.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            commitGroup();
+        }
+    }
+
+    private void commitGroup() {
+        try {
+            for (Entry e : group) {
+                if (e.record != FLUSH_MARKER) {
+                    records.add(e.record);
+                }
+            }
+            if (!records.isEmpty()) {
+                committer.commit(records);
+                if (policy == AppendWriter.FsyncPolicy.BATCH) {
+                    committer.force();
+                } else if (policy == AppendWriter.FsyncPolicy.INTERVAL) {
+                    dirty.set(true);
+                }
+            }
+            for (Entry e : group) {
+                e.done.complete(null);
+            }
+            log.trace("{}: committed a group of {} record(s)", name, records.size());
+        } catch (IOException | RuntimeException e) {
+            log.error("{}: failed to commit {} record(s)", name, records.size(), e);
+            UncheckedIOException failure = e instanceof IOException io ? new UncheckedIOException(io)
+                    : new UncheckedIOException(new IOException(e));
+            for (Entry entry : group) {
+                entry.done.completeExceptionally(failure);
+            }
+        } finally {
+            group.clear();
+            records.clear();
+        }
+        try {
+            committer.afterCommit();
+        } catch (RuntimeException e) {
+            log.error("{}: post-commit hook failed", name, e);
+        }
+    }
+
+    private static void startSyncTimer() {
+        if (syncTimer != null) {
+            return;
+        }
+        synchronized (GroupCommitQueue.class) {
+            if (syncTimer == null) {
+                long interval = Math.max(1, Long.getLong("bus.FsyncIntervalMillis", DEFAULT_FSYNC_INTERVAL_MILLIS));
+                ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "bus-fsync");
+                    t.setDaemon(true);
+                    return t;
+                });
+                timer.scheduleWithFixedDelay(GroupCommitQueue::forceDirty, interval, interval, TimeUnit.MILLISECONDS);
+                syncTimer = timer;
+                log.info("Forcing bus files to disk every {} ms", interval);
+            }
+        }
+    }
+
+    private static void forceDirty() {
+        for (GroupCommitQueue queue : ALL) {
+            if (queue.dirty.compareAndSet(true, false)) {
+                try {
+                    queue.committer.force();
+                } catch (IOException | RuntimeException e) {
+                    log.error("{}: fsync failed", queue.name, e);
+                }
+            }
+        }
+    }
+
+    private static void flushAll() {
+        for (GroupCommitQueue queue : ALL) {
+            try {
+                queue.flush();
+            } catch (IOException e) {
+                log.error("{}: flush at shutdown failed", queue.name, e);
+            }
+        }
+    }
+
+    static void await(CompletableFuture<Void> done) throws IOException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // the record is still committed, the caller just no longer waits for it
+            throw new InterruptedIOException("Interrupted while waiting for the append to complete");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static final class Entry {
+        final byte[] record;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        volatile Entry next;
+
+        Entry(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Intrusive MPSC queue after Vyukov: a producer swaps itself in as the head and then links its predecessor to
+     * itself, one atomic instruction per offer. Only the drain polls.
+     */
+    private static final class MpscQueue {
+        private final AtomicReference<Entry> head;
+        private Entry tail;
+
+        MpscQueue() {
+            Entry stub = new Entry(null);
+            head = new AtomicReference<>(stub);
+            tail = stub;
+        }
+
+        void offer(Entry e) {
+            Entry previous = head.getAndSet(e);
+            previous.next = e;
+        }
+
+        /**
+         * @return the oldest entry, or {@code null} if the queue is empty or its next entry is not linked yet
+         */
+        Entry poll() {
+            Entry next = tail.next;
+            if (next == null) {
+                return null;
+            }
+            // next becomes the new stub
+            tail = next;
+            return next;
+        }
+
+        boolean isEmpty() {
+            return tail.next == null;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.agency.bus;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The workers of one consumer group in this process, as the single handler of the group's ring consumer: each
+ * record goes to the next worker in turn. The consumer still delivers records with the same key one at a time.
+ */
+final class GroupWorkers implements HandlerExecutor.Handler {
+    private final String name;
+    private final List<HandlerExecutor.Handler> workers = new CopyOnWriteArrayList<>();
+    private final AtomicInteger turn = new AtomicInteger();
+
+    /**
+     * @param name the group's ring, for errors
+     */
+    GroupWorkers(String name) {
+        this.name = name;
+    }
+
+    void add(HandlerExecutor.Handler worker) {
+        workers.add(worker);
+    }
+
+    /**
+     * @return the number of workers left
+     */
+    int remove(HandlerExecutor.Handler worker) {
+        workers.remove(worker);
+        return workers.size();
+    }
+
+    int size() {
+        return workers.size();
+    }
+
+    @Override
+    public CompletionStage<?> handle(String payload) throws Exception {
+        HandlerExecutor.Handler[] current = workers.toArray(new HandlerExecutor.Handler[0]);
+        if (current.length == 0) {
+            // the last worker left while this record was on its way, the transport is stopping the group's consumer
+            throw new IllegalStateException("No worker left in the group of ring '" + name + "'");
+        }
+        return current[Math.floorMod(turn.getAndIncrement(), current.length)].handle(payload);
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs bus handlers on virtual threads, at most a configured number at a time per queue or topic.
+ * <p>
+ * Handlers block for seconds on LLM calls, tool file I/O and sleeps; on a virtual thread that only parks
+ * the thread and frees its carrier, so thousands of pending handlers cost a few KB of stack each instead of
+ * a platform thread. A handler waiting for its queue's permit is parked as well.
+ * <p>
+ * The limit is {@code -Dbus.MaxConcurrentHandlers.<queue>}, falling back to {@code -Dbus.MaxConcurrentHandlers}
+ * (default {@value #DEFAULT_MAX_CONCURRENT}); a handler holds its permit until it returns, also if the record
+ * is handled asynchronously after that. Handler code must not block inside {@code synchronized}, which
+ * pins the carrier thread; LLM calls are safe, they wait on the InferenceScheduler's future and run the model
+ * on its own platform threads.
+ */
+final class HandlerExecutor {
+    private static final Logger log = LoggerFactory.getLogger(HandlerExecutor.class);
+
+    static final int DEFAULT_MAX_CONCURRENT = 16;
+
+    private static final ExecutorService VIRTUAL_THREADS = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("bus-handler-", 0).factory());
+
+    // per "<kind>/<name>": a task queue and an event topic of the same name do not share permits
+    private static final Map<String, Semaphore> PERMITS = new ConcurrentHashMap<>();
+
+    private HandlerExecutor() {
+    }
+
+    static int maxConcurrent(String queueName) {
+        return Math.max(1, BusProperties.getInt("bus.MaxConcurrentHandlers", queueName, DEFAULT_MAX_CONCURRENT));
+    }
+
+    /**
+     * A handler that may finish after it returns: the record counts as handled when the returned stage completes
+     * normally, or right away if it returns {@code null}.
+     */
+    @FunctionalInterface
+    interface Handler {
+        CompletionStage<?> handle(String payload) throws Exception;
+
+        static Handler of(Consumer<String> handler) {
+            return payload -> {
+                handler.accept(payload);
+                return null;
+            };
+        }
+    }
+
+    /**
+     * One delivery of a record to all handlers of its queue. Completes when every handler finished, with the
+     * handlers that failed in {@link #failures()}; cancelling it interrupts the handlers still running.
+     */
+    static final class Attempt extends CompletableFuture<Void> {
+        private final Set<Thread> running = ConcurrentHashMap.newKeySet();
+        private final Map<Handler, Throwable> failures = new ConcurrentHashMap<>();
+
+        /**
+         * @return the handlers that threw or whose stage completed exceptionally, with their error
+         */
+        Map<Handler, Throwable> failures() {
+            return failures;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                running.forEach(Thread::interrupt);
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * Delivers {@code payload} to every handler in {@code handlers}, each on a new virtual thread once a permit of
+     * {@code queueName} of {@code kind} ({@code "tasks"} or {@code "events"}) is free. A handler that throws, or whose stage completes exceptionally, is finished too; it
+     * is listed in the attempt's failures for the consumer to retry. A handler interrupted before it ran fails the
+     * attempt, so its record is not acknowledged.
+     */
+    static Attempt submitAll(String kind, String queueName, List<Handler> handlers, String payload) {
+        Attempt attempt = new Attempt();
+        if (handlers.isEmpty()) {
+            attempt.complete(null);
+            return attempt;
+        }
+        Semaphore permits = PERMITS.computeIfAbsent(kind + "/" + queueName, k -> {
+            int limit = maxConcurrent(queueName);
+            log.info("Bus handlers for '{}' limited to {} concurrent virtual thread(s)", k, limit);
+            return new Semaphore(limit, true);
+        });
+        AtomicInteger remaining = new AtomicInteger(handlers.size());
+        Runnable handled = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                attempt.complete(null);
+            }
+        };
+        for (Handler handler : handlers) {
+            VIRTUAL_THREADS.execute(() -> run(queueName, handler, payload, permits, attempt, handled));
+        }
+        return attempt;
+    }
+
+    private static void run(String queueName, Handler handler, String payload, Semaphore permits, Attempt attempt, Runnable handled) {
+        if (attempt.isDone()) {
+            return; // cancelled while queued
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            log.warn("Handler for '{}' interrupted before it ran, payload '{}' left unacknowledged", queueName, payload);
+            attempt.completeExceptionally(e);
+            return;
+        }
+        CompletionStage<?> stage = null;
+        VirtualMachineError fatal = null;
+        attempt.running.add(Thread.currentThread());
+        try {
+            if (!attempt.isDone()) {
+                stage = handler.handle(payload);
+            }
+        } catch (Throwable e) {
+            // errors too (AssertionError, NoClassDefFoundError...): the record is retried and dead-lettered like any
+            // failure instead of holding its in-flight slot until the ack timeout
+            log.warn("Handler for '{}' failed on payload '{}': {}", queueName, payload, e.toString());
+            attempt.failures.put(handler, e);
+            if (e instanceof VirtualMachineError error) {
+                fatal = error;
+            }
+        } finally {
+            attempt.running.remove(Thread.currentThread());
+            permits.release();
+            // an interrupt aimed at this attempt ends with it
+            Thread.interrupted();
+        }
+        if (stage == null) {
+            handled.run();
+            if (fatal != null) {
+                throw fatal;
+            }
+        } else {
+            stage.whenComplete((result, e) -> {
+                if (e != null) {
+                    log.warn("Handler for '{}' failed on payload '{}': {}", queueName, payload, e.toString());
+                    attempt.failures.put(handler, e);
+                }
+                handled.run();
+            });
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.agency.bus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads newline-terminated UTF-8 records from a {@link FileChannel} in large blocks.
+ * <p>
+ * Blocks of {@code bus.ReadBlockBytes} (64 KB) are read into one direct buffer and scanned for
+ * {@code '\n'} eight bytes at a time (SWAR). A newline byte never occurs inside a multi-byte UTF-8
+ * sequence, so every line is decoded as a whole, also when it spans blocks. A trailing line without
+ * its newline is still being written and is left for the next read. A trailing {@code '\r'} is
+ * stripped, as {@code RandomAccessFile.readLine} did.
+ * <p>
+ * Not thread-safe; one reader per polling thread, reused across reads.
+ */
+final class LineReader {
+
+    static final int DEFAULT_BLOCK_BYTES = Integer.getInteger("bus.ReadBlockBytes", 64 * 1024);
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long NEWLINES = ONES * '\n';
+
+    /**
+     * Receives one line and the file offset just past its newline.
+     */
+    @FunctionalInterface
+    interface LineSink {
+        /**
+         * @return {@code false} to stop reading after this line
+         */
+        boolean accept(String line, long endOffset);
+    }
+
+    private final ByteBuffer block;
+    // bytes of the current line that started in an earlier block
+    private byte[] carry = new byte[256];
+    private int carryLength;
+
+    LineReader() {
+        this(DEFAULT_BLOCK_BYTES);
+    }
+
+    LineReader(int blockBytes) {
+        this.block = ByteBuffer.allocateDirect(Math.max(16, blockBytes)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Reads the complete lines from {@code position} to the current end of the file.
+     *
+     * @return the offset just past the last line passed to {@code sink}, i.e. where the next read starts
+     */
+    long read(FileChannel channel, long position, LineSink sink) throws IOException {
+        long committed = position;  // end of the last delivered line
+        long blockStart = position; // file offset of block[0]
+        carryLength = 0;
+        while (true) {
+            block.clear();
+            int n = channel.read(block, blockStart);
+            if (n <= 0) {
+                return committed;
+            }
+            block.flip();
+            int lineStart = 0;
+            int nl;
+            while ((nl = indexOfNewline(block, lineStart, n)) >= 0) {
+                String line = decode(lineStart, nl);
+                long end = blockStart + nl + 1;
+                committed = end;
+                lineStart = nl + 1;
+                if (!sink.accept(line, end)) {
+                    return committed;
+                }
+            }
+            appendToCarry(lineStart, n);
+            blockStart += n;
+        }
+    }
+
+    /**
+     * Index of the first {@code '\n'} in {@code buf[from, to)}, or -1.
+     */
+    static int indexOfNewline(ByteBuffer buf, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long x = buf.getLong(i) ^ NEWLINES;
+            // high bit set in every byte of x that was zero, i.e. every '\n'; the lowest one is exact
+            long found = (x - ONES) & ~x & HIGHS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (buf.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String decode(int from, int newline) {
+        int end = newline;
+        if (carryLength == 0) {
+            if (end > from && block.get(end - 1) == '\r') {
+                end--;
+            }
+            byte[] bytes = new byte[end - from];
+            block.get(from, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+        appendToCarry(from, end);
+        int length = carryLength;
+        if (length > 0 && carry[length - 1] == '\r') {
+            length--;
+        }
+        carryLength = 0;
+        return new String(carry, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void appendToCarry(int from, int to) {
+        int n = to - from;
+        if (n == 0) {
+            return;
+        }
+        if (carryLength + n > carry.length) {
+            carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + n));
+        }
+        block.get(from, carry, carryLength, n);
+        carryLength += n;
+    }
+}
@@ -0,0 +1,73 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compacts the logs of the queues and topics where only the latest record per key matters (the latest grooming
+ * request per project, the latest message pointer per channel), so that their disk footprint and the time to read
+ * them from the start follow the number of live keys, not the history.
+ * <p>
+ * {@code -Dbus.Compact.<queue>=true} (or {@code -Dbus.Compact=true} for all) enables it, in every process that uses
+ * the queue. One background thread per process then runs {@link SegmentedLog#compact()} on those logs every
+ * {@code bus.CompactIntervalMillis} (60 s), which rewrites the segments sealed since its last run and picks up
+ * segments other processes rewrote. Records with the same key keep their order, only all but the last are dropped;
+ * a consumer that had not read the dropped ones yet skips them. Compacted logs are exempt from retention.
+ */
+final class LogCompactor {
+    private static final Logger log = LoggerFactory.getLogger(LogCompactor.class);
+
+    static final long INTERVAL_MILLIS = Math.max(100, Long.getLong("bus.CompactIntervalMillis", 60_000));
+
+    private static final LogCompactor SHARED = new LogCompactor();
+
+    private final Set<SegmentedLog> logs = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    private LogCompactor() {
+    }
+
+    /**
+     * Compacts {@code records}, a log of queue or topic {@code name}, if compaction is enabled for it.
+     */
+    static void register(String name, SegmentedLog records) throws IOException {
+        if (BusProperties.getBoolean("bus.Compact", name, false)) {
+            SHARED.add(records);
+        }
+    }
+
+    private void add(SegmentedLog records) throws IOException {
+        if (!logs.add(records)) {
+            return;
+        }
+        records.enableCompaction();
+        if (started.compareAndSet(false, true)) {
+            Thread thread = new Thread(this::run, "bus-compactor");
+            thread.setDaemon(true);
+            thread.start();
+            log.info("LogCompactor started, compacting every {} ms", INTERVAL_MILLIS);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            for (SegmentedLog records : logs) {
+                try {
+                    records.compact();
+                } catch (IOException | RuntimeException e) {
+                    log.error("LogCompactor: compacting {} failed, retrying in {} ms", records.name(), INTERVAL_MILLIS, e);
+                }
+            }
+            try {
+                Thread.sleep(INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
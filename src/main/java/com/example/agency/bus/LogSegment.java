@@ -0,0 +1,527 @@
+package com.example.agency.bus;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * One fixed-size, memory-mapped segment file of a {@link SegmentedLog} and its sparse index.
+ * <p>
+ * Layout, little-endian: a {@value #HEADER_BYTES}-byte header (magic, version, base offset, and once sealed the
+ * record count, newest timestamp and end position), then records aligned to 8 bytes:
+ * <pre>
+ *   int  length     header, key and payload bytes, never 0; 0 marks the end of the written records
+ *   int  crc        CRC-32C of everything after it
+ *   long timestamp  epoch millis of the append
+ *   int  keyLength  0 for records without a key
+ *   byte key[keyLength]
+ *   byte payload[length - 20 - keyLength]
+ * </pre>
+ * Version 1 segments, written before records had keys, lack {@code keyLength} and {@code key}; they are read as
+ * records without a key, and keys appended to a version 1 segment are dropped until the log rolls.
+ * Version 3 segments are sealed segments rewritten by compaction ({@link #compact}): records dropped from them
+ * leave gaps in the offsets, so every record stores {@code int relativeOffset} before {@code keyLength}, and the
+ * record count is that of the segment before compaction, dropped records included.
+ * The length is stored last with release semantics and read with acquire semantics, so a reader in this or
+ * another process that sees a length also sees the complete record. The index file holds
+ * {@code (int relativeOffset, int position)} pairs, the position stored last; a zero position ends it. It is named
+ * {@code <base>.idx}, or {@code <base>.<generation>.idx} after compaction, the generation being in the header, so
+ * that the data file of a segment is only ever read with its own index.
+ * <p>
+ * Readers may share a segment. Writes happen under the log's write lock only.
+ */
+final class LogSegment {
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_HEADER_BYTES = 16;
+    static final int INDEX_ENTRY_BYTES = 8;
+
+    private static final int MAGIC = 0x4C535542; // "BUSL"
+    private static final int VERSION = 2;
+    private static final int UNKEYED_VERSION = 1;
+    private static final int COMPACTED_VERSION = 3;
+    private static final ByteBuffer NO_KEY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+    private static final int MAGIC_AT = 0;
+    private static final int VERSION_AT = 4;
+    private static final int BASE_OFFSET_AT = 8;
+    private static final int SEALED_AT = 16;
+    private static final int RECORD_COUNT_AT = 24;
+    private static final int MAX_TIMESTAMP_AT = 32;
+    private static final int END_POSITION_AT = 40;
+    private static final int GENERATION_AT = 44;
+
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    final long baseOffset;
+    final int version;
+    final int generation;
+    // identifies the file this segment was mapped from, to notice it being replaced by compaction
+    private final Object fileKey;
+    final Path file;
+    final Path indexFile;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+
+    private LogSegment(Path file, Path indexFile, MappedByteBuffer data, MappedByteBuffer index, Object fileKey)
+            throws IOException {
+        this.file = file;
+        this.fileKey = fileKey;
+        this.indexFile = indexFile;
+        this.data = data;
+        this.index = index;
+        this.version = data.getInt(VERSION_AT);
+        if (data.getInt(MAGIC_AT) != MAGIC || version < UNKEYED_VERSION || version > COMPACTED_VERSION) {
+            throw new IOException(file + " is not a bus log segment (version " + UNKEYED_VERSION + " to " + COMPACTED_VERSION + ")");
+        }
+        this.baseOffset = data.getLong(BASE_OFFSET_AT);
+        this.generation = data.getInt(GENERATION_AT);
+    }
+
+    static Path file(Path dir, long baseOffset) {
+        return dir.resolve(String.format("%020d.seg", baseOffset));
+    }
+
+    static Path indexFile(Path segmentFile, int generation) {
+        String name = segmentFile.getFileName().toString();
+        String base = name.substring(0, name.length() - ".seg".length());
+        return segmentFile.resolveSibling(generation == 0 ? base + ".idx" : base + "." + generation + ".idx");
+    }
+
+    /**
+     * @return the space a record with length field {@code length} takes, up to the next record
+     */
+    static int stride(int length) {
+        return (length + 7) & ~7;
+    }
+
+    /**
+     * Encodes key and payload the way records of the current version store them after the timestamp; this is the
+     * form appends are queued in.
+     */
+    static byte[] body(byte[] key, byte[] payload) {
+        byte[] body = new byte[Integer.BYTES + key.length + payload.length];
+        ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN).putInt(key.length).put(key).put(payload);
+        return body;
+    }
+
+    /**
+     * Creates the segment starting at {@code baseOffset}. The files are built under temporary names and moved into
+     * place, so nobody maps a half-written header.
+     */
+    static LogSegment create(Path dir, long baseOffset, int capacity, int indexCapacity) throws IOException {
+        Path file = file(dir, baseOffset);
+        Path indexFile = indexFile(file, 0);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Path indexTmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(indexTmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            // sized up front: the file is sparse until written
+            ch.write(ByteBuffer.allocate(1), indexCapacity - 1L);
+        }
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC_AT, MAGIC).putInt(VERSION_AT, VERSION).putLong(BASE_OFFSET_AT, baseOffset);
+            ch.write(header, 0);
+            ch.write(ByteBuffer.allocate(1), capacity - 1L);
+        }
+        Files.move(indexTmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    static LogSegment open(Path file) throws IOException {
+        return open(file, false);
+    }
+
+    /**
+     * Maps the segment for reading only, e.g. from a recording the process may not write to; writing to it fails.
+     */
+    static LogSegment openReadOnly(Path file) throws IOException {
+        return open(file, true);
+    }
+
+    private static LogSegment open(Path file, boolean readOnly) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            // read before mapping: if the file is replaced in between, the key is the old one and the next check reopens it
+            Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+            MappedByteBuffer data = map(file, readOnly);
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            Path indexFile = indexFile(file, data.getInt(GENERATION_AT));
+            MappedByteBuffer index;
+            try {
+                index = map(indexFile, readOnly);
+            } catch (NoSuchFileException e) {
+                // compacted again between the two maps: its index is gone, the file now holds the next generation
+                if (attempt == 3) {
+                    throw e;
+                }
+                continue;
+            }
+            index.order(ByteOrder.LITTLE_ENDIAN);
+            return new LogSegment(file, indexFile, data, index, fileKey);
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, boolean readOnly) throws IOException {
+        // the mapping outlives the channel
+        if (readOnly) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+        }
+    }
+
+    int capacity() {
+        return data.capacity();
+    }
+
+    /**
+     * @return the length field of the record at {@code position}, 0 if no record is (yet) there
+     */
+    int length(int position) {
+        if (position + RECORD_HEADER_BYTES > data.capacity()) {
+            return 0;
+        }
+        return (int) INT.getAcquire(data, position);
+    }
+
+    long timestamp(int position) {
+        return data.getLong(position + 8);
+    }
+
+    /**
+     * A view of the key of the record at {@code position}, straight from the mapping; empty if it has none.
+     */
+    ByteBuffer key(int position) {
+        if (version == UNKEYED_VERSION) {
+            return NO_KEY;
+        }
+        return data.slice(keyLengthAt(position) + Integer.BYTES, keyLength(position)).asReadOnlyBuffer();
+    }
+
+    /**
+     * A view of the payload of the record at {@code position}, straight from the mapping.
+     */
+    ByteBuffer payload(int position, int length) {
+        int start = RECORD_HEADER_BYTES;
+        if (version != UNKEYED_VERSION) {
+            start = keyLengthAt(position) - position + Integer.BYTES + keyLength(position);
+        }
+        return data.slice(position + start, length - start).asReadOnlyBuffer();
+    }
+
+    private int keyLengthAt(int position) {
+        return position + RECORD_HEADER_BYTES + (version == COMPACTED_VERSION ? Integer.BYTES : 0);
+    }
+
+    private int keyLength(int position) {
+        return data.getInt(keyLengthAt(position));
+    }
+
+    /**
+     * @param next the offset after the record before, or the offset of the index entry the scan started at
+     * @return the offset of the record at {@code position}: {@code next}, except in compacted segments
+     */
+    long offset(int position, long next) {
+        return version == COMPACTED_VERSION ? baseOffset + data.getInt(position + RECORD_HEADER_BYTES) : next;
+    }
+
+    boolean checksumMatches(int position, int length) {
+        return data.getInt(position + 4) == checksum(position, length);
+    }
+
+    /**
+     * @param body a record {@link #body(byte[], byte[])}
+     */
+    boolean fits(int position, byte[] body) {
+        return (long) position + stride(recordLength(body)) <= data.capacity();
+    }
+
+    private int recordLength(byte[] body) {
+        return RECORD_HEADER_BYTES + (version == UNKEYED_VERSION ? body.length - Integer.BYTES - bodyKeyLength(body) : body.length);
+    }
+
+    private static int bodyKeyLength(byte[] body) {
+        return ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+    }
+
+    /**
+     * Writes a record with {@code body} ({@link #body(byte[], byte[])}) at {@code position}, publishing it with the
+     * release store of its length.
+     *
+     * @return the position after the record
+     */
+    int write(int position, long timestamp, byte[] body) {
+        int length = recordLength(body);
+        data.putLong(position + 8, timestamp);
+        if (version == UNKEYED_VERSION) {
+            int skip = Integer.BYTES + bodyKeyLength(body);
+            data.put(position + RECORD_HEADER_BYTES, body, skip, body.length - skip);
+        } else {
+            data.put(position + RECORD_HEADER_BYTES, body);
+        }
+        data.putInt(position + 4, checksum(position, length));
+        INT.setRelease(data, position, length);
+        return position + stride(length);
+    }
+
+    private int checksum(int position, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.slice(position + 8, length - 8));
+        return (int) crc.getValue();
+    }
+
+    int indexSlots() {
+        return index.capacity() / INDEX_ENTRY_BYTES;
+    }
+
+    /**
+     * @return the record position of index entry {@code slot}, 0 if the slot is unused
+     */
+    int indexPosition(int slot) {
+        return (int) INT.getAcquire(index, slot * INDEX_ENTRY_BYTES + 4);
+    }
+
+    int indexRelativeOffset(int slot) {
+        return index.getInt(slot * INDEX_ENTRY_BYTES);
+    }
+
+    void addIndexEntry(int slot, int relativeOffset, int position) {
+        index.putInt(slot * INDEX_ENTRY_BYTES, relativeOffset);
+        INT.setRelease(index, slot * INDEX_ENTRY_BYTES + 4, position);
+    }
+
+    /**
+     * @return the last used index slot whose relative offset is at most {@code relativeOffset}, or -1
+     */
+    int floorIndexSlot(long relativeOffset) {
+        int lo = 0;
+        int hi = indexSlots() - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (indexPosition(mid) != 0 && indexRelativeOffset(mid) <= relativeOffset) {
+                found = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    boolean sealed() {
+        return (int) INT.getAcquire(data, SEALED_AT) != 0;
+    }
+
+    /**
+     * Records the final totals and marks the segment full. Readers that see the mark move on to the next segment.
+     */
+    void seal(long recordCount, long maxTimestamp, int endPosition) {
+        data.putLong(RECORD_COUNT_AT, recordCount);
+        data.putLong(MAX_TIMESTAMP_AT, maxTimestamp);
+        data.putInt(END_POSITION_AT, endPosition);
+        INT.setRelease(data, SEALED_AT, 1);
+    }
+
+    long recordCount() {
+        return data.getLong(RECORD_COUNT_AT);
+    }
+
+    /**
+     * @return the offset after the last one this sealed segment covers
+     */
+    long endOffset() {
+        return baseOffset + recordCount();
+    }
+
+    /**
+     * @return whether compaction replaced the file since it was mapped; the mapping still holds the old records
+     */
+    boolean replacedOnDisk() {
+        try {
+            return fileKey != null && !fileKey.equals(Files.readAttributes(file, BasicFileAttributes.class).fileKey());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    boolean compacted() {
+        return version == COMPACTED_VERSION;
+    }
+
+    long maxTimestamp() {
+        return data.getLong(MAX_TIMESTAMP_AT);
+    }
+
+    /**
+     * Decides which records compaction keeps.
+     */
+    @FunctionalInterface
+    interface Retained {
+        /**
+         * @param key a view of the record's key, empty if it has none
+         */
+        boolean test(long offset, ByteBuffer key);
+    }
+
+    /**
+     * Writes this sealed segment without the records {@code retained} rejects, as a compacted segment of the next
+     * generation with the same offsets, record count and newest timestamp, sized to what is left: the data to
+     * {@code <base>.seg.tmp}, the index under its own name. Nothing replaces this segment until
+     * {@link Rewrite#install()}, so this needs no lock besides keeping other compactions of the log out.
+     *
+     * @return the rewrite, or {@code null} if every record is retained
+     */
+    Rewrite compact(Retained retained, int indexIntervalBytes) throws IOException {
+        // positions and relative offsets of the records kept
+        int[] kept = new int[128];
+        int keptCount = 0;
+        int dropped = 0;
+        long bytes = HEADER_BYTES;
+        long next = baseOffset;
+        int length;
+        for (int position = HEADER_BYTES; (length = length(position)) != 0; position += stride(length)) {
+            long offset = offset(position, next);
+            next = offset + 1;
+            if (!retained.test(offset, key(position))) {
+                dropped++;
+                continue;
+            }
+            if (keptCount + 2 > kept.length) {
+                kept = Arrays.copyOf(kept, kept.length * 2);
+            }
+            kept[keptCount++] = position;
+            kept[keptCount++] = (int) (offset - baseOffset);
+            bytes += stride(RECORD_HEADER_BYTES + 2 * Integer.BYTES + keyLength(position) + payload(position, length).remaining());
+        }
+        if (dropped == 0) {
+            return null;
+        }
+        int capacity = (int) bytes;
+        int nextGeneration = generation + 1;
+        Path newIndexFile = indexFile(file, nextGeneration);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        MappedByteBuffer newIndex = mapNew(newIndexFile, (capacity / indexIntervalBytes + 1) * INDEX_ENTRY_BYTES);
+        MappedByteBuffer newData = mapNew(tmp, capacity);
+        newData.putInt(MAGIC_AT, MAGIC).putInt(VERSION_AT, COMPACTED_VERSION).putLong(BASE_OFFSET_AT, baseOffset)
+                .putInt(GENERATION_AT, nextGeneration);
+        LogSegment target = new LogSegment(file, newIndexFile, newData, newIndex, null);
+
+        int writePosition = HEADER_BYTES;
+        int slot = 0;
+        int sinceIndex = 0;
+        for (int k = 0; k < keptCount; k += 2) {
+            int position = kept[k];
+            int relativeOffset = kept[k + 1];
+            ByteBuffer key = key(position);
+            ByteBuffer payload = payload(position, length(position));
+            byte[] body = new byte[2 * Integer.BYTES + key.remaining() + payload.remaining()];
+            ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(relativeOffset).putInt(key.remaining()).put(key).put(payload);
+            if (sinceIndex >= indexIntervalBytes && slot < target.indexSlots()) {
+                target.addIndexEntry(slot++, relativeOffset, writePosition);
+                sinceIndex = 0;
+            }
+            int after = target.write(writePosition, timestamp(position), body);
+            sinceIndex += after - writePosition;
+            writePosition = after;
+        }
+        target.seal(recordCount(), maxTimestamp(), writePosition);
+        target.force();
+        return new Rewrite(tmp, target, dropped);
+    }
+
+    /**
+     * A compacted copy of a segment, written but not yet in place.
+     */
+    final class Rewrite {
+        private final Path tmp;
+        private final LogSegment target;
+        private final int dropped;
+        private boolean done;
+
+        private Rewrite(Path tmp, LogSegment target, int dropped) {
+            this.tmp = tmp;
+            this.target = target;
+            this.dropped = dropped;
+        }
+
+        LogSegment source() {
+            return LogSegment.this;
+        }
+
+        int dropped() {
+            return dropped;
+        }
+
+        /**
+         * Atomically replaces the source's data file with the rewritten one, then deletes the source's index.
+         * Mappings of the source stay readable, with the records as they were.
+         *
+         * @return the segment now on disk
+         */
+        LogSegment install() throws IOException {
+            Object newFileKey = Files.readAttributes(tmp, BasicFileAttributes.class).fileKey();
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+            if (!indexFile.equals(target.indexFile)) {
+                Files.deleteIfExists(indexFile);
+            }
+            return new LogSegment(file, target.indexFile, target.data, target.index, newFileKey);
+        }
+
+        /**
+         * Deletes the rewritten files, unless they were installed.
+         */
+        void discard() throws IOException {
+            if (!done) {
+                done = true;
+                Files.deleteIfExists(tmp);
+                if (!indexFile.equals(target.indexFile)) {
+                    Files.deleteIfExists(target.indexFile);
+                }
+            }
+        }
+    }
+
+    private static MappedByteBuffer mapNew(Path file, int size) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer buffer = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    void force() {
+        data.force();
+        index.force();
+    }
+
+    void delete() throws IOException {
+        // the mappings stay valid for cursors still reading this segment; the space is freed once they are collected
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(indexFile);
+    }
+
+    @Override
+    public String toString() {
+        return file.getFileName().toString();
+    }
+}
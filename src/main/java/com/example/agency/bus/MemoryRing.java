@@ -0,0 +1,144 @@
+package com.example.agency.bus;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free ring of records for one consumer, the in-memory counterpart of a {@link SegmentedLog}.
+ * <p>
+ * Any number of threads publish, one reads (the {@link QueueConsumer}, whose running flag orders its passes). Each
+ * slot carries a sequence number: a publisher claims the next offset with a CAS on the tail, fills the slot and
+ * releases it by advancing the slot's sequence; the reader takes the record, clears the slot and hands it back to
+ * the publishers one lap ahead. Offsets count records from 0 and are never reused. A record is gone once it was
+ * read: the consumer keeps what is in flight, and nothing survives the process.
+ * <p>
+ * The ring holds {@code bus.RingCapacity} (65536, rounded up to a power of two) records. A publisher that finds it
+ * full spins briefly, then parks for growing intervals, and gives up after {@code bus.PublishTimeoutMillis} (30 s).
+ */
+final class MemoryRing implements RecordSource {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+    static final long DEFAULT_PUBLISH_TIMEOUT_MILLIS = 30_000;
+    private static final int SPINS = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String name;
+    private final int mask;
+    private final long publishTimeoutNanos;
+    // per slot, the offset it can be published at (== offset) or read at (== offset + 1)
+    private final AtomicLongArray sequences;
+    private final String[] keys;
+    private final String[] payloads;
+    private final AtomicLong tail = new AtomicLong();
+    // written by the reader only, read by publishers waiting for room
+    private volatile long head;
+    private final List<Runnable> watchers = new CopyOnWriteArrayList<>();
+
+    MemoryRing(String name) {
+        this.name = name;
+        int requested = Math.min(1 << 30,
+                Math.max(2, BusProperties.getInt("bus.RingCapacity", name, DEFAULT_CAPACITY)));
+        int capacity = Integer.highestOneBit(requested * 2 - 1);
+        this.mask = capacity - 1;
+        this.publishTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                BusProperties.get("bus.PublishTimeoutMillis", name, DEFAULT_PUBLISH_TIMEOUT_MILLIS));
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.keys = new String[capacity];
+        this.payloads = new String[capacity];
+    }
+
+    /**
+     * Adds a record and wakes the reader.
+     *
+     * @param key {@code null} for none
+     * @throws IOException if the ring stayed full for {@code bus.PublishTimeoutMillis}
+     */
+    void publish(String key, String payload) throws IOException {
+        long deadline = 0;
+        int idle = 0;
+        while (true) {
+            long offset = tail.get();
+            int slot = (int) offset & mask;
+            long lag = sequences.get(slot) - offset;
+            if (lag == 0) {
+                if (tail.compareAndSet(offset, offset + 1)) {
+                    keys[slot] = key;
+                    payloads[slot] = payload;
+                    // the release makes key and payload visible to the reader's acquire of the sequence
+                    sequences.setRelease(slot, offset + 1);
+                    break;
+                }
+            } else if (lag < 0) {
+                // full: the reader has not freed this slot since the last lap
+                if (idle == 0) {
+                    deadline = System.nanoTime() + publishTimeoutNanos;
+                }
+                if (++idle <= SPINS) {
+                    Thread.onSpinWait();
+                } else if (System.nanoTime() - deadline > 0) {
+                    throw new IOException("MemoryRing '" + name + "' stayed full for "
+                            + TimeUnit.NANOSECONDS.toMillis(publishTimeoutNanos) + " ms");
+                } else {
+                    LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(10, idle - SPINS)));
+                }
+            }
+            // lag > 0: another publisher took the offset, retry with the new tail
+        }
+        for (Runnable watcher : watchers) {
+            watcher.run();
+        }
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public long position() {
+        return head;
+    }
+
+    /**
+     * {@inheritDoc} The size passed is the payload's length in chars, an estimate of its encoded size.
+     */
+    @Override
+    public int read(Sink sink) {
+        int count = 0;
+        long offset = head;
+        while (true) {
+            int slot = (int) offset & mask;
+            if (sequences.getAcquire(slot) != offset + 1) {
+                break; // empty, or the publisher that claimed it has not finished
+            }
+            String key = keys[slot];
+            String payload = payloads[slot];
+            keys[slot] = null;
+            payloads[slot] = null;
+            sequences.setRelease(slot, offset + mask + 1);
+            head = ++offset;
+            count++;
+            if (!sink.accept(offset - 1, key, payload, payload.length())) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void watch(Runnable onAppend) {
+        watchers.add(onAppend);
+    }
+
+    @Override
+    public void unwatch(Runnable onAppend) {
+        watchers.remove(onAppend);
+    }
+}
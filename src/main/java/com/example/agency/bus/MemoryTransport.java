@@ -0,0 +1,185 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@link Transport} of single-process deployments: every queue and topic is a set of {@link MemoryRing}s in
+ * this JVM, one per consumer group, read by a {@link QueueConsumer} that hands each record straight to the
+ * subscribers. Nothing touches the disk on the way and a hop costs a ring slot and a virtual-thread wakeup.
+ * <p>
+ * A published record goes to the ring of every group that exists at that moment. The default group (every plain
+ * subscription, and the only group of a topic) exists from the first use of the queue, so it keeps what is
+ * published before anyone subscribes; a named group only sees records published after its first worker joined.
+ * The workers of a named group take the group's records in turn, records with the same key still one at a time.
+ * When its last worker leaves, a named group is dropped together with the records it had not handled yet; a
+ * worker joining later starts it afresh.
+ * <p>
+ * Records in memory do not survive the process. With {@code -Dbus.Journal=true} every record is also appended,
+ * without waiting, to a write-behind journal: a {@link SegmentedLog} per queue or topic under
+ * {@code data/bus_state/journal/<kind>/<name>}, apart from the logs of the {@link FileTransport} so that switching
+ * back never delivers journaled records twice. The journal is a record of what was published (for audits and
+ * replays), not a source of redelivery.
+ */
+final class MemoryTransport implements Transport {
+    private static final Logger log = LoggerFactory.getLogger(MemoryTransport.class);
+    static final Path JOURNAL_DIR = Paths.get("data", "bus_state", "journal");
+
+    private final boolean journal;
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    MemoryTransport(boolean journal) {
+        this.journal = journal;
+        log.info("MemoryTransport started, write-behind journal {}", journal ? "in " + JOURNAL_DIR : "off");
+    }
+
+    @Override
+    public void open(String kind, String name) throws IOException {
+        channel(kind, name);
+    }
+
+    private Channel channel(String kind, String name) throws IOException {
+        Channel channel = channels.get(kind + "/" + name);
+        if (channel != null) {
+            return channel;
+        }
+        try {
+            return channels.computeIfAbsent(kind + "/" + name, k -> new Channel(kind, name));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void publish(String kind, String name, String key, String payload) throws IOException {
+        Channel channel = channel(kind, name);
+        if (channel.journal != null) {
+            channel.journal.appendAsync(key, payload).whenComplete((ignored, e) -> {
+                if (e != null) {
+                    log.error("MemoryTransport: Could not journal a record of {}/{}: {}", kind, name, payload, e);
+                }
+            });
+        }
+        for (Group group : channel.groups.values()) {
+            group.ring.publish(key, payload);
+        }
+    }
+
+    @Override
+    public void subscribe(String kind, String name, HandlerExecutor.Handler handler) throws IOException {
+        channel(kind, name).group(name).consumer.subscribe(handler);
+    }
+
+    @Override
+    public Source.Subscription join(String name, String group, HandlerExecutor.Handler handler) throws IOException {
+        Channel channel = channel("tasks", name);
+        int workers = channel.join(group, handler);
+        log.info("MemoryTransport: Worker of group '{}' joined queue '{}', {} worker(s)", group, name, workers);
+        return () -> channel.leave(group, handler);
+    }
+
+    @Override
+    public Path publishedLogDir() {
+        return journal ? JOURNAL_DIR : null;
+    }
+
+    /**
+     * The rings of one queue or topic.
+     */
+    private final class Channel {
+        private final String kind;
+        private final String name;
+        private final Map<String, Group> groups = new ConcurrentHashMap<>();
+        // creating or dropping a group starts or stops a consumer, a ReentrantLock keeps that from pinning
+        // virtual-thread publishers
+        private final ReentrantLock groupsLock = new ReentrantLock();
+        private final SegmentedLog journal;
+
+        private Channel(String kind, String name) {
+            this.kind = kind;
+            this.name = name;
+            try {
+                this.journal = MemoryTransport.this.journal
+                        ? SegmentedLog.open(JOURNAL_DIR.resolve(kind).resolve(name)) : null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            group(name);
+        }
+
+        private Group group(String group) {
+            Group existing = groups.get(group);
+            if (existing != null) {
+                return existing;
+            }
+            groupsLock.lock();
+            try {
+                return groups.computeIfAbsent(group, g -> new Group(kind, name, g));
+            } finally {
+                groupsLock.unlock();
+            }
+        }
+
+        /**
+         * @return the number of workers of the group in this process
+         */
+        private int join(String group, HandlerExecutor.Handler worker) {
+            groupsLock.lock();
+            try {
+                Group g = group(group);
+                g.join(worker);
+                return g.workers.size();
+            } finally {
+                groupsLock.unlock();
+            }
+        }
+
+        private void leave(String group, HandlerExecutor.Handler worker) {
+            groupsLock.lock();
+            try {
+                Group g = groups.get(group);
+                // the default group keeps its ring for the plain subscriptions and what is published meanwhile
+                if (g != null && g.workers.remove(worker) == 0 && !group.equals(name) && groups.remove(group, g)) {
+                    g.consumer.stop();
+                    log.info("MemoryTransport: Last worker of group '{}' left queue '{}', dropped the group", group, name);
+                }
+            } finally {
+                groupsLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One consumer group: its ring, its consumer and, for a named group, the workers taking turns.
+     */
+    private static final class Group {
+        private final MemoryRing ring;
+        private final QueueConsumer consumer;
+        private final GroupWorkers workers;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+
+        private Group(String kind, String name, String group) {
+            this.ring = new MemoryRing(group.equals(name) ? name : name + "." + group);
+            // named after the queue: the handler limit and bus.* settings are per queue, not per group
+            this.consumer = new QueueConsumer(kind, name, ring, OffsetStore.transientAt(ring.position()));
+            this.workers = new GroupWorkers(ring.name());
+            consumer.start();
+        }
+
+        private void join(HandlerExecutor.Handler worker) {
+            workers.add(worker);
+            if (subscribed.compareAndSet(false, true)) {
+                consumer.subscribe(workers);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.agency.bus;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Writes and reads the body of one {@link MessageType}. Codecs are stateless and shared by every thread; they
+ * write fields in a fixed order, without names.
+ */
+public interface MessageCodec<T> {
+
+    void write(T body, BinaryWriter out);
+
+    /**
+     * @param version the {@link MessageType#version()} the body was written with, to read older layouts
+     */
+    T read(BinaryReader in, int version);
+
+    /**
+     * A codec for a type that has had one layout only.
+     */
+    static <T> MessageCodec<T> of(BiConsumer<T, BinaryWriter> write, Function<BinaryReader, T> read) {
+        return new MessageCodec<>() {
+            @Override
+            public void write(T body, BinaryWriter out) {
+                write.accept(body, out);
+            }
+
+            @Override
+            public T read(BinaryReader in, int version) {
+                return read.apply(in);
+            }
+        };
+    }
+}
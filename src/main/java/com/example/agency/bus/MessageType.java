@@ -0,0 +1,162 @@
+package com.example.agency.bus;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A kind of bus message and its schema: a numeric id that is stored with every message and must never be reused,
+ * the name of its text form, the version of its binary layout and the {@link MessageCodec} for its body.
+ * <p>
+ * Types register themselves in a process-wide registry when created, so {@link Envelope#decode(String)} can find
+ * them by id (binary form) or name (text form). The text form, {@code <name>:<body>}, is what the bus carried
+ * before envelopes and remains the debug view; its body is JSON unless the type says otherwise.
+ */
+public final class MessageType<T> {
+    private static final Map<Integer, MessageType<?>> BY_ID = new ConcurrentHashMap<>();
+    private static final Map<String, MessageType<?>> BY_NAME = new ConcurrentHashMap<>();
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final int id;
+    private final String name;
+    private final int version;
+    private final Class<T> bodyType;
+    private final MessageCodec<T> codec;
+    private final Function<T, String> toText;
+    private final Function<String, T> fromText;
+
+    private MessageType(int id, String name, int version, Class<T> bodyType, MessageCodec<T> codec,
+                        Function<T, String> toText, Function<String, T> fromText) {
+        this.id = id;
+        this.name = name;
+        this.version = version;
+        this.bodyType = bodyType;
+        this.codec = codec;
+        this.toText = toText;
+        this.fromText = fromText;
+    }
+
+    /**
+     * Registers a type whose text body is the JSON of {@code bodyType}.
+     *
+     * @throws IllegalStateException if {@code id} or {@code name} belongs to another type
+     */
+    public static <T> MessageType<T> register(int id, String name, int version, Class<T> bodyType,
+                                              MessageCodec<T> codec) {
+        return register(id, name, version, bodyType, codec, body -> json(body), text -> json(text, bodyType));
+    }
+
+    /**
+     * Registers a type with its own text body, e.g. a bare timestamp.
+     *
+     * @throws IllegalStateException if {@code id} or {@code name} belongs to another type
+     */
+    public static <T> MessageType<T> register(int id, String name, int version, Class<T> bodyType,
+                                              MessageCodec<T> codec, Function<T, String> toText,
+                                              Function<String, T> fromText) {
+        if (id <= 0 || version < 0 || version > 0xff) {
+            throw new IllegalArgumentException("MessageType " + name + ": id must be positive, version 0 to 255");
+        }
+        MessageType<T> type = new MessageType<>(id, name, version, bodyType, codec, toText, fromText);
+        MessageType<?> previous = BY_ID.putIfAbsent(id, type);
+        if (previous != null) {
+            throw new IllegalStateException("MessageType id " + id + " of " + name + " is taken by " + previous.name);
+        }
+        previous = BY_NAME.putIfAbsent(name, type);
+        if (previous != null) {
+            BY_ID.remove(id, type);
+            throw new IllegalStateException("MessageType name " + name + " is taken by id " + previous.id);
+        }
+        return type;
+    }
+
+    static MessageType<?> byId(int id) {
+        MessageType<?> type = BY_ID.get(id);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown message type id " + id);
+        }
+        return type;
+    }
+
+    static MessageType<?> byName(String name) {
+        MessageType<?> type = BY_NAME.get(name);
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown message type '" + name + "'");
+        }
+        return type;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int version() {
+        return version;
+    }
+
+    public Class<T> bodyType() {
+        return bodyType;
+    }
+
+    MessageCodec<T> codec() {
+        return codec;
+    }
+
+    /**
+     * @return the body of the text form
+     */
+    String toText(T body) {
+        return toText.apply(body);
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code text} is not a valid body of this type, whatever the parser threw
+     */
+    T fromText(String text) {
+        try {
+            return fromText.apply(text);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Malformed " + name + " text: " + text, e);
+        }
+    }
+
+    /**
+     * @return {@code body} as this type's body
+     * @throws ClassCastException if it is something else
+     */
+    T cast(Object body) {
+        return bodyType.cast(Objects.requireNonNull(body, "body"));
+    }
+
+    private static String json(Object body) {
+        try {
+            return JSON.writeValueAsString(body);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static <T> T json(String text, Class<T> bodyType) {
+        try {
+            return JSON.readValue(text.isBlank() ? "{}" : text, bodyType);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Malformed " + bodyType.getSimpleName() + " JSON: " + text, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + "#" + id + "v" + version;
+    }
+}
@@ -0,0 +1,262 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Committed consumer offsets of the bus, one {@code .offset} file per task queue or event topic.
+ * <p>
+ * A consumer reports every record it dispatches and every record whose handlers finished. Only the contiguous
+ * prefix of finished records is committed, so after a crash every record that was not completely handled is
+ * delivered again (at-least-once). Commits are coalesced: the committed offset is written every
+ * {@code bus.OffsetCommitMillis} (200 ms) or as soon as {@code bus.OffsetCommitRecords} (1000) more records
+ * finished, by one background thread and never on the polling or handler threads. Each write goes to a
+ * temporary file that atomically replaces the offset file, so a crash leaves the old or the new offset, never a
+ * torn one. With {@code bus.Fsync} other than {@code none} the temporary file is forced before the move.
+ */
+final class OffsetStore {
+    private static final Logger log = LoggerFactory.getLogger(OffsetStore.class);
+
+    static final long COMMIT_MILLIS = Math.max(1, Long.getLong("bus.OffsetCommitMillis", 200));
+    static final long COMMIT_RECORDS = Math.max(1, Long.getLong("bus.OffsetCommitRecords", 1000));
+
+    private static final Map<Path, Tracker> TRACKERS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService WRITER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "bus-offsets");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        WRITER.scheduleWithFixedDelay(OffsetStore::writeAll, COMMIT_MILLIS, COMMIT_MILLIS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(OffsetStore::writeAll, "bus-offsets-shutdown"));
+    }
+
+    private OffsetStore() {
+    }
+
+    /**
+     * The tracker of {@code offsetFile}, starting at the offset stored there (0 if there is none).
+     */
+    static Tracker track(Path offsetFile) {
+        return TRACKERS.computeIfAbsent(offsetFile.toAbsolutePath().normalize(), Tracker::new);
+    }
+
+    /**
+     * A tracker that is never written, for records that do not outlive the process, starting at {@code offset}.
+     */
+    static Tracker transientAt(long offset) {
+        return new Tracker(null, offset);
+    }
+
+    private static void writeAll() {
+        for (Tracker tracker : TRACKERS.values()) {
+            tracker.write();
+        }
+    }
+
+    static long read(Path offsetFile) {
+        if (Files.exists(offsetFile)) {
+            try {
+                return Long.parseLong(Files.readString(offsetFile, StandardCharsets.UTF_8).trim());
+            } catch (IOException | NumberFormatException e) {
+                log.error("Error reading offset file {} or parsing its content. Defaulting to 0.", offsetFile, e);
+            }
+        }
+        return 0L;
+    }
+
+    private static void writeAtomically(Path offsetFile, long offset) throws IOException {
+        Path tmp = offsetFile.resolveSibling(offsetFile.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ch.write(ByteBuffer.wrap(String.valueOf(offset).getBytes(StandardCharsets.UTF_8)));
+            if (AppendWriter.DEFAULT_POLICY != AppendWriter.FsyncPolicy.NONE) {
+                ch.force(false);
+            }
+        }
+        try {
+            Files.move(tmp, offsetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, offsetFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Progress of one consumer. Safe for concurrent use by the poller and the handlers.
+     */
+    static final class Tracker {
+        // null for a transient tracker
+        private final Path offsetFile;
+        // not synchronized: handlers acknowledge on virtual threads
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+        // every record below is finished
+        private long committed;
+        // the next offset expected from dispatched()
+        private long nextDispatch;
+        // finished ranges [key, value) above committed
+        private final TreeMap<Long, Long> finishedAhead = new TreeMap<>();
+        private volatile long written;
+
+        private Tracker(Path offsetFile) {
+            this.offsetFile = offsetFile;
+            try {
+                Files.createDirectories(offsetFile.getParent());
+            } catch (IOException e) {
+                log.error("Could not create directory for offset file {}", offsetFile, e);
+            }
+            this.committed = read(offsetFile);
+            this.nextDispatch = committed;
+            this.written = committed;
+        }
+
+        private Tracker(Path offsetFile, long offset) {
+            this.offsetFile = offsetFile;
+            this.committed = offset;
+            this.nextDispatch = offset;
+            this.written = offset;
+        }
+
+        /**
+         * @return the offset a restarted consumer continues at
+         */
+        long committed() {
+            lock.lock();
+            try {
+                return committed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Moves the consumer to {@code offset}, dropping what is in flight, and writes it right away.
+         */
+        void reset(long offset) {
+            lock.lock();
+            try {
+                committed = offset;
+                nextDispatch = offset;
+                finishedAhead.clear();
+            } finally {
+                lock.unlock();
+            }
+            write();
+        }
+
+        /**
+         * Drops what is in flight and continues at the offset in the file, as another process may have moved it.
+         */
+        void reload() {
+            if (offsetFile == null) {
+                return;
+            }
+            writeLock.lock();
+            try {
+                long offset = read(offsetFile);
+                lock.lock();
+                try {
+                    committed = offset;
+                    nextDispatch = offset;
+                    finishedAhead.clear();
+                } finally {
+                    lock.unlock();
+                }
+                written = offset;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /**
+         * Reports that the record at {@code offset} was handed to the handlers. Offsets must arrive in order; records
+         * skipped in between (deleted by retention, or not dispatched at all) count as finished.
+         */
+        void dispatched(long offset) {
+            lock.lock();
+            try {
+                if (offset > nextDispatch) {
+                    finish(nextDispatch, offset);
+                }
+                nextDispatch = Math.max(nextDispatch, offset + 1);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Reports that every handler of the record at {@code offset} finished.
+         */
+        void finished(long offset) {
+            boolean due;
+            lock.lock();
+            try {
+                finish(offset, offset + 1);
+                due = committed - written >= COMMIT_RECORDS;
+            } finally {
+                lock.unlock();
+            }
+            if (due && writeRequested.compareAndSet(false, true)) {
+                WRITER.execute(() -> {
+                    writeRequested.set(false);
+                    write();
+                });
+            }
+        }
+
+        private void finish(long from, long to) {
+            if (from == committed) {
+                committed = to;
+                Long end;
+                while ((end = finishedAhead.remove(committed)) != null) {
+                    committed = end;
+                }
+            } else if (from > committed) {
+                finishedAhead.put(from, to);
+            }
+        }
+
+        /**
+         * Writes the committed offset if it moved since the last write.
+         */
+        void write() {
+            if (offsetFile == null) {
+                return;
+            }
+            // the writer thread, shutdown and reset() may write at once; their temporary files must not cross
+            writeLock.lock();
+            try {
+                long offset = committed();
+                if (offset == written) {
+                    return;
+                }
+                writeAtomically(offsetFile, offset);
+                written = offset;
+            } catch (IOException e) {
+                log.error("Error writing offset file {}. Offset persistence might fail.", offsetFile, e);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+}
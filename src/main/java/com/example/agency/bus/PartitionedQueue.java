@@ -0,0 +1,142 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A task queue split into partitions, one {@link SegmentedLog} each, so that several workers can consume it.
+ * <p>
+ * A record with a key (a project key, ticket id or channel) always goes to the partition its key hashes to, so the
+ * records of one key stay in order; records without a key are spread round-robin. Partition 0 is the log named
+ * after the queue, partition {@code n} the log {@code <queue>.<n>}.
+ * <p>
+ * The number of partitions is {@code -Dbus.Partitions.<queue>} or {@code -Dbus.Partitions} (default 1) when the
+ * queue is first created, and is then fixed in {@code data/bus_state/tasks/<queue>.partitions}: rehashing keys
+ * would break their order, so a different setting later is ignored with a warning.
+ */
+final class PartitionedQueue {
+    private static final Logger log = LoggerFactory.getLogger(PartitionedQueue.class);
+
+    static final Path STATE_DIR = Paths.get("data", "bus_state", "tasks");
+
+    private static final Map<String, PartitionedQueue> QUEUES = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final List<SegmentedLog> partitions;
+    private final AtomicInteger nextUnkeyed = new AtomicInteger();
+
+    private PartitionedQueue(String name, List<SegmentedLog> partitions) {
+        this.name = name;
+        this.partitions = partitions;
+    }
+
+    /**
+     * The queue {@code name}, created on first use. Lines of a {@code data/tasks/<name>.jsonl} file from before the
+     * segmented logs are imported into partition 0.
+     */
+    static PartitionedQueue open(String name) throws IOException {
+        PartitionedQueue existing = QUEUES.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            return QUEUES.computeIfAbsent(name, n -> {
+                try {
+                    return create(n);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static PartitionedQueue create(String name) throws IOException {
+        int count = partitionCount(name);
+        List<SegmentedLog> logs = new ArrayList<>(count);
+        for (int p = 0; p < count; p++) {
+            SegmentedLog partition = SegmentedLog.open("tasks", logName(name, p));
+            LogCompactor.register(name, partition);
+            logs.add(partition);
+        }
+        OffsetStore.Tracker offsets = OffsetStore.track(ConsumerGroup.offsetFile(name, name, 0));
+        logs.get(0).importLegacy(Paths.get("data", "tasks", name + ".jsonl"), offsets.committed(), offsets::reset);
+        return new PartitionedQueue(name, List.copyOf(logs));
+    }
+
+    private static int partitionCount(String name) throws IOException {
+        Path file = STATE_DIR.resolve(name + ".partitions");
+        int configured = Math.max(1, BusProperties.getInt("bus.Partitions", name, 1));
+        if (!Files.exists(file)) {
+            Files.createDirectories(STATE_DIR);
+            Path tmp = Files.createTempFile(STATE_DIR, name, ".partitions.tmp");
+            Files.writeString(tmp, String.valueOf(configured), StandardCharsets.UTF_8);
+            try {
+                // no REPLACE_EXISTING: the first process to create the queue decides
+                Files.move(tmp, file);
+                return configured;
+            } catch (FileAlreadyExistsException e) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        int stored;
+        try {
+            stored = Integer.parseInt(Files.readString(file, StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Cannot read the partition count of queue '" + name + "' from " + file, e);
+        }
+        if (stored != configured && (System.getProperty("bus.Partitions." + name) != null
+                || System.getProperty("bus.Partitions") != null)) {
+            log.warn("Queue '{}' has {} partition(s) (see {}); ignoring bus.Partitions={}", name, stored, file, configured);
+        }
+        return stored;
+    }
+
+    static String logName(String queue, int partition) {
+        return partition == 0 ? queue : queue + "." + partition;
+    }
+
+    String name() {
+        return name;
+    }
+
+    int partitions() {
+        return partitions.size();
+    }
+
+    SegmentedLog partition(int partition) {
+        return partitions.get(partition);
+    }
+
+    /**
+     * @return the partition records with {@code key} go to; the same in every process
+     */
+    int partitionOf(String key) {
+        if (key == null) {
+            return Math.floorMod(nextUnkeyed.getAndIncrement(), partitions.size());
+        }
+        // String.hashCode is specified, so every JVM agrees
+        return Math.floorMod(key.hashCode(), partitions.size());
+    }
+
+    /**
+     * Appends {@code payload} to the partition of {@code key} ({@code null} for none).
+     */
+    void append(String key, String payload) throws IOException {
+        partitions.get(partitionOf(key)).append(key, payload);
+    }
+}
@@ -0,0 +1,457 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers the records of one task queue or event topic to its handlers.
+ * <p>
+ * Delivery is at-least-once. A record is acknowledged when all its handlers finished (their
+ * {@link HandlerExecutor.Attempt} completed), and only the contiguous prefix of acknowledged records is committed.
+ * A record not acknowledged within {@code bus.AckTimeoutMillis} (15 minutes) is delivered again and the late
+ * attempt's handlers are interrupted. A record whose handlers failed is delivered again to the failed handlers
+ * after {@code bus.RetryBackoffMillis} (1 s), doubling per attempt up to {@code bus.RetryMaxBackoffMillis} (1 min).
+ * After {@code bus.MaxAttempts} (5) deliveries it goes to the {@link DeadLetters} file and counts as acknowledged.
+ * A record waiting for its retry keeps its place in the window and in its key's order.
+ * <p>
+ * Reading is credit-based, so a backlog of any size costs no more memory than the credits: at most
+ * {@code bus.MaxInFlight} (64) records and {@code bus.MaxInFlightBytes} (8 MB of payload) are delivered and not yet
+ * acknowledged, and one read takes at most {@code bus.MaxBatchBytes} (1 MB) from the log, but always at least one
+ * record. Reading pauses while the credits are used up and resumes with the next acknowledgement. All settings can
+ * be given per queue, e.g. {@code -Dbus.MaxInFlight.GroomingAgent=4}. Records with the same key
+ * are delivered one at a time in log order: a record waits, inside the window, until the one before it with its key
+ * was acknowledged.
+ * <p>
+ * Every queue is read on its own: a wakeup (records added to its {@link RecordSource}, a new subscriber) starts a
+ * virtual thread for this queue that reads until the source is drained and then ends. Wakeups that arrive while it
+ * runs are coalesced into one more pass. A queue without subscribers is not read, and a
+ * queue whose reads fail backs off on its own thread, from {@value #MIN_BACKOFF_MILLIS} ms doubling up to
+ * {@value #MAX_BACKOFF_MILLIS} ms; neither delays any other queue, however many there are.
+ */
+final class QueueConsumer {
+    private static final Logger log = LoggerFactory.getLogger(QueueConsumer.class);
+
+    static final long MIN_BACKOFF_MILLIS = 10;
+    static final long MAX_BACKOFF_MILLIS = 5000;
+    static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 8L * 1024 * 1024;
+    static final long DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+    static final long DEFAULT_ACK_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(15);
+    static final int DEFAULT_MAX_ATTEMPTS = 5;
+    static final long DEFAULT_RETRY_BACKOFF_MILLIS = 1000;
+    static final long DEFAULT_RETRY_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    // ack timeouts and retries
+    private static final ScheduledExecutorService REDELIVERIES = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "bus-redelivery");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String kind;
+    private final String name;
+    private final RecordSource source;
+    private final OffsetStore.Tracker offsets;
+    private final List<HandlerExecutor.Handler> handlers = new CopyOnWriteArrayList<>();
+    private final int maxInFlight;
+    private final long maxInFlightBytes;
+    private final long maxBatchBytes;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final long ackTimeoutMillis;
+    private final int maxAttempts;
+    private final long retryBackoffMillis;
+    private final long retryMaxBackoffMillis;
+    private final Map<Long, InFlight> inFlight = new ConcurrentHashMap<>();
+    // per key, the records in flight in log order; the first one is delivered, the others wait for it
+    private final Map<String, ArrayDeque<InFlight>> byKey = new HashMap<>();
+    private final ReentrantLock keyLock = new ReentrantLock();
+    private volatile boolean windowFull;
+    private volatile boolean stopped;
+    private final CompletableFuture<Void> drained = new CompletableFuture<>();
+    private final Runnable onTail = this::wake;
+    private final AtomicBoolean wakeRequested = new AtomicBoolean();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private long backoffMillis;
+
+    /**
+     * A record delivered and not yet acknowledged.
+     */
+    private static final class InFlight {
+        final long offset;
+        final String key;
+        final String payload;
+        final int bytes;
+        volatile int deliveries;
+        // the handlers this record still has to succeed with; null until the first delivery
+        volatile List<HandlerExecutor.Handler> pending;
+        volatile HandlerExecutor.Attempt attempt;
+        volatile ScheduledFuture<?> timeout;
+        volatile long firstFailureMillis;
+
+        InFlight(long offset, String key, String payload, int bytes) {
+            this.offset = offset;
+            this.key = key;
+            this.payload = payload;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A consumer of {@code source}, which must be positioned at the committed offset of {@code offsets}; only the
+     * running pass reads it, the running flag orders the passes. It reads nothing before {@link #start()}.
+     */
+    QueueConsumer(String kind, String name, RecordSource source, OffsetStore.Tracker offsets) {
+        this.kind = kind;
+        this.name = name;
+        this.source = source;
+        this.offsets = offsets;
+        this.maxInFlight = Math.max(1, BusProperties.getInt("bus.MaxInFlight", name, DEFAULT_MAX_IN_FLIGHT));
+        this.maxInFlightBytes = Math.max(1, BusProperties.get("bus.MaxInFlightBytes", name, DEFAULT_MAX_IN_FLIGHT_BYTES));
+        this.maxBatchBytes = Math.max(1, BusProperties.get("bus.MaxBatchBytes", name, DEFAULT_MAX_BATCH_BYTES));
+        this.ackTimeoutMillis = Math.max(1, BusProperties.get("bus.AckTimeoutMillis", name, DEFAULT_ACK_TIMEOUT_MILLIS));
+        this.maxAttempts = Math.max(1, BusProperties.getInt("bus.MaxAttempts", name, DEFAULT_MAX_ATTEMPTS));
+        this.retryBackoffMillis = Math.max(1, BusProperties.get("bus.RetryBackoffMillis", name, DEFAULT_RETRY_BACKOFF_MILLIS));
+        this.retryMaxBackoffMillis = Math.max(retryBackoffMillis,
+                BusProperties.get("bus.RetryMaxBackoffMillis", name, DEFAULT_RETRY_MAX_BACKOFF_MILLIS));
+        if (source.position() != offsets.committed()) {
+            // deleted by retention or compaction, or beyond the end of a log that was recreated
+            offsets.reset(source.position());
+        }
+    }
+
+    /**
+     * Opens the log of {@code name} and the committed offset in {@code offsetFile}, importing {@code legacyFile}
+     * on first use. The consumer reads nothing before {@link #start()}.
+     */
+    static QueueConsumer open(String kind, String name, Path legacyFile, Path offsetFile) throws IOException {
+        OffsetStore.Tracker offsets = OffsetStore.track(offsetFile);
+        SegmentedLog records = SegmentedLog.open(kind, name);
+        records.importLegacy(legacyFile, offsets.committed(), offsets::reset);
+        return new QueueConsumer(kind, name, records.reader(offsets.committed()), offsets);
+    }
+
+    /**
+     * Opens a consumer of {@code records} continuing at the offset stored in {@code offsetFile}, as written by
+     * whichever process consumed it last.
+     */
+    static QueueConsumer open(String kind, String name, SegmentedLog records, Path offsetFile) {
+        OffsetStore.Tracker offsets = OffsetStore.track(offsetFile);
+        offsets.reload();
+        return new QueueConsumer(kind, name, records.reader(offsets.committed()), offsets);
+    }
+
+    RecordSource source() {
+        return source;
+    }
+
+    long position() {
+        return offsets.committed();
+    }
+
+    void start() {
+        source.watch(onTail);
+        wake(); // backlog left from a previous run
+    }
+
+    /**
+     * Stops reading. Records waiting behind a key are dropped and timed-out records are not delivered again; they
+     * stay uncommitted for the next consumer of the log. The returned future completes when nothing is in flight
+     * any more, with the offsets of everything acknowledged written.
+     */
+    CompletableFuture<Void> stop() {
+        keyLock.lock();
+        try {
+            stopped = true;
+            for (ArrayDeque<InFlight> records : byKey.values()) {
+                records.stream().skip(1).forEach(this::removeInFlight);
+            }
+        } finally {
+            keyLock.unlock();
+        }
+        source.unwatch(onTail);
+        checkDrained();
+        return drained;
+    }
+
+    private void checkDrained() {
+        if (stopped && inFlight.isEmpty() && !drained.isDone()) {
+            offsets.write();
+            drained.complete(null);
+        }
+    }
+
+    void subscribe(HandlerExecutor.Handler handler) {
+        handlers.add(handler);
+        wake();
+    }
+
+    /**
+     * Makes sure a pass over the log starts after this call. Never blocks.
+     */
+    void wake() {
+        wakeRequested.set(true);
+        if (running.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("bus-consumer-" + name).start(this::run);
+        }
+    }
+
+    private void run() {
+        do {
+            wakeRequested.set(false);
+            try {
+                poll();
+                backoffMillis = 0;
+            } catch (RuntimeException e) {
+                backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+                log.error("Consumer of '{}' failed, retrying in {} ms", name, backoffMillis, e);
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    running.set(false);
+                    return;
+                }
+                wakeRequested.set(true);
+            }
+        } while (wakeRequested.get());
+        running.set(false);
+        // a wake() between the last check and the reset saw the pass still running
+        if (wakeRequested.get() && running.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("bus-consumer-" + name).start(this::run);
+        }
+    }
+
+    private void poll() {
+        if (stopped || handlers.isEmpty()) {
+            // records stay in the log until a subscriber arrives; subscribe() wakes the consumer
+            return;
+        }
+        // set before the window is measured: an acknowledgement from here on wakes the next pass
+        windowFull = true;
+        int room = maxInFlight - inFlight.size();
+        long byteRoom = maxInFlightBytes - inFlightBytes.get();
+        if (room <= 0 || byteRoom <= 0) {
+            log.debug("Consumer of '{}' paused, {} record(s) of {} bytes in flight", name, inFlight.size(), inFlightBytes.get());
+            return;
+        }
+        windowFull = false;
+        long batchLimit = Math.min(maxBatchBytes, byteRoom);
+        List<InFlight> batch = new ArrayList<>();
+        long[] batchBytes = {0};
+        source.read((offset, key, payload, bytes) -> {
+            batch.add(new InFlight(offset, key, payload, bytes));
+            batchBytes[0] += bytes;
+            return batch.size() < room && batchBytes[0] < batchLimit;
+        });
+        if (batch.isEmpty()) {
+            return;
+        }
+        log.debug("Consumer of '{}' polled {} record(s), next offset {}", name, batch.size(), source.position());
+        for (InFlight record : batch) {
+            boolean first;
+            keyLock.lock();
+            try {
+                if (stopped) {
+                    return;
+                }
+                offsets.dispatched(record.offset);
+                inFlight.put(record.offset, record);
+                inFlightBytes.addAndGet(record.bytes);
+                first = record.key == null || queued(record);
+            } finally {
+                keyLock.unlock();
+            }
+            if (first) {
+                deliver(record);
+            }
+        }
+        if (batch.size() == room || batchBytes[0] >= batchLimit) {
+            // stopped before the end of the log: the pass after the next acknowledgement goes on, or the next pass
+            // right away if credits are left (acknowledged meanwhile, or only the batch size stopped the read)
+            windowFull = true;
+            if (inFlight.size() < maxInFlight && inFlightBytes.get() < maxInFlightBytes) {
+                wakeRequested.set(true);
+            }
+        }
+    }
+
+    private void deliver(InFlight record) {
+        if (record.pending == null) {
+            record.pending = List.copyOf(handlers);
+        }
+        record.deliveries++;
+        HandlerExecutor.Attempt attempt = HandlerExecutor.submitAll(kind, name, record.pending, record.payload);
+        record.attempt = attempt;
+        record.timeout = REDELIVERIES.schedule(() -> timedOut(record, attempt), ackTimeoutMillis, TimeUnit.MILLISECONDS);
+        attempt.whenComplete((result, e) -> {
+            if (e != null) {
+                return; // cancelled or interrupted: the timeout takes care of it
+            }
+            if (attempt.failures().isEmpty()) {
+                acknowledge(record);
+            } else {
+                failed(record, attempt);
+            }
+        });
+    }
+
+    private void failed(InFlight record, HandlerExecutor.Attempt attempt) {
+        if (inFlight.get(record.offset) != record || record.attempt != attempt) {
+            return;
+        }
+        record.timeout.cancel(false);
+        record.pending = List.copyOf(attempt.failures().keySet());
+        Throwable error = attempt.failures().values().iterator().next();
+        if (record.firstFailureMillis == 0) {
+            record.firstFailureMillis = System.currentTimeMillis();
+        }
+        if (record.deliveries >= maxAttempts) {
+            deadLetter(record, error);
+            return;
+        }
+        long backoff = Math.min(retryMaxBackoffMillis, retryBackoffMillis << Math.min(30, record.deliveries - 1));
+        log.warn("Consumer of '{}': record {} failed in {} handler(s) (attempt {} of {}), retrying in {} ms: {}",
+                name, record.offset, record.pending.size(), record.deliveries, maxAttempts, backoff, error.toString());
+        record.timeout = REDELIVERIES.schedule(() -> retry(record, attempt), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    private void retry(InFlight record, HandlerExecutor.Attempt failedAttempt) {
+        if (inFlight.get(record.offset) != record || record.attempt != failedAttempt) {
+            return;
+        }
+        if (stopped) {
+            abandon(record);
+            return;
+        }
+        deliver(record);
+    }
+
+    /**
+     * Writes {@code record} to the dead letters and acknowledges it; if that write fails, tries again later.
+     */
+    private void deadLetter(InFlight record, Throwable error) {
+        try {
+            DeadLetters.write(kind, name, source.name(), record.offset, record.key, record.payload,
+                    record.deliveries, error, record.firstFailureMillis);
+        } catch (IOException e) {
+            log.error("Consumer of '{}': could not dead-letter record {}, trying again in {} ms",
+                    name, record.offset, retryMaxBackoffMillis, e);
+            record.timeout = REDELIVERIES.schedule(() -> deadLetter(record, error), retryMaxBackoffMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        log.error("Consumer of '{}': record {} failed {} time(s), moved to {}: {}",
+                name, record.offset, record.deliveries, DeadLetters.file(kind, name), String.valueOf(error));
+        acknowledge(record);
+    }
+
+    /**
+     * Leaves {@code record} uncommitted for the next consumer of the log, after this one stopped.
+     */
+    private void abandon(InFlight record) {
+        log.warn("Consumer of '{}': record {} left for the next consumer", name, record.offset);
+        removeInFlight(record);
+        dequeued(record);
+        checkDrained();
+    }
+
+    /**
+     * Queues {@code record} behind the records in flight with its key. Called under the key lock.
+     *
+     * @return {@code true} if no record with its key is in flight, so it can be delivered now
+     */
+    private boolean queued(InFlight record) {
+        ArrayDeque<InFlight> records = byKey.computeIfAbsent(record.key, k -> new ArrayDeque<>());
+        records.addLast(record);
+        return records.size() == 1;
+    }
+
+    /**
+     * Removes {@code record} from the head of its key's records.
+     *
+     * @return the next record with its key, to deliver now; null if there is none or the consumer stopped
+     */
+    private InFlight dequeued(InFlight record) {
+        if (record.key == null) {
+            return null;
+        }
+        keyLock.lock();
+        try {
+            ArrayDeque<InFlight> records = byKey.get(record.key);
+            if (records == null || records.peekFirst() != record) {
+                return null;
+            }
+            records.pollFirst();
+            if (records.isEmpty() || stopped) {
+                byKey.remove(record.key);
+                return null;
+            }
+            return records.peekFirst();
+        } finally {
+            keyLock.unlock();
+        }
+    }
+
+    private boolean removeInFlight(InFlight record) {
+        if (!inFlight.remove(record.offset, record)) {
+            return false;
+        }
+        inFlightBytes.addAndGet(-record.bytes);
+        return true;
+    }
+
+    private void acknowledge(InFlight record) {
+        if (!removeInFlight(record)) {
+            return; // a redelivery was acknowledged already
+        }
+        record.timeout.cancel(false);
+        offsets.finished(record.offset);
+        InFlight next = dequeued(record);
+        if (next != null) {
+            deliver(next);
+        }
+        if (windowFull) {
+            windowFull = false;
+            wake();
+        }
+        checkDrained();
+    }
+
+    private void timedOut(InFlight record, HandlerExecutor.Attempt attempt) {
+        if (inFlight.get(record.offset) != record || record.attempt != attempt) {
+            return;
+        }
+        attempt.cancel(true);
+        if (stopped) {
+            abandon(record);
+            return;
+        }
+        if (record.firstFailureMillis == 0) {
+            record.firstFailureMillis = System.currentTimeMillis();
+        }
+        if (record.deliveries >= maxAttempts) {
+            deadLetter(record, new TimeoutException("not acknowledged within " + ackTimeoutMillis + " ms"));
+            return;
+        }
+        log.warn("Consumer of '{}': record {} not acknowledged within {} ms (delivery {}), delivering it again",
+                name, record.offset, ackTimeoutMillis, record.deliveries);
+        deliver(record);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.agency.bus;
+
+/**
+ * The records a {@link QueueConsumer} reads, in order, from a position it owns: a {@link SegmentedLog} or an
+ * in-memory {@link MemoryRing}.
+ */
+interface RecordSource {
+
+    /**
+     * Receives one record. {@code key} is null for records without one; {@code bytes} is the payload's encoded size.
+     */
+    @FunctionalInterface
+    interface Sink {
+        /**
+         * @return {@code false} to stop reading after this record
+         */
+        boolean accept(long offset, String key, String payload, int bytes);
+    }
+
+    /**
+     * @return where the records come from, for logs and dead letters
+     */
+    String name();
+
+    /**
+     * @return the offset of the next record {@link #read} passes
+     */
+    long position();
+
+    /**
+     * Passes the records from the current position to the current end to {@code sink}, advancing past each one.
+     *
+     * @return the number of records passed
+     */
+    int read(Sink sink);
+
+    /**
+     * Runs {@code onAppend} whenever records may have been added. It must only hand work off, never block.
+     */
+    void watch(Runnable onAppend);
+
+    void unwatch(Runnable onAppend);
+}
@@ -0,0 +1,132 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Reads the records of a {@link SegmentedLog} directory without opening it as a log: nothing in it is written,
+ * locked or deleted by retention, and the segments are mapped read-only, so a read-only copy can be read too. For
+ * copies of the logs (recordings of production traffic), the journal of the memory transport, and for looking at
+ * what the agents published while they run.
+ * <p>
+ * Not thread-safe; records appended while reading are read if the reader has not passed their segment yet.
+ */
+public final class RecordedLog {
+    private static final Logger log = LoggerFactory.getLogger(RecordedLog.class);
+
+    /**
+     * @param key {@code null} for a record without one
+     */
+    public record Record(long offset, long timestamp, String key, String payload) {
+    }
+
+    private final String name;
+    private final List<LogSegment> segments;
+    private int segment;
+    private int position = LogSegment.HEADER_BYTES;
+    private long offset;
+
+    private RecordedLog(String name, List<LogSegment> segments) {
+        this.name = name;
+        this.segments = segments;
+        this.offset = segments.isEmpty() ? 0 : segments.get(0).baseOffset;
+    }
+
+    /**
+     * Opens the log in {@code dir}, skipping whole segments whose records are all older than {@code sinceMillis}
+     * (0 for none); records in the other segments are all read.
+     */
+    public static RecordedLog open(Path dir, long sinceMillis) throws IOException {
+        List<LogSegment> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                try {
+                    Long.parseLong(fileName.substring(0, fileName.length() - ".seg".length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                LogSegment s = LogSegment.openReadOnly(file);
+                if (!s.sealed() || s.maxTimestamp() >= sinceMillis) {
+                    segments.add(s);
+                }
+            }
+        }
+        segments.sort(Comparator.comparingLong(s -> s.baseOffset));
+        return new RecordedLog(dir.getParent().getFileName() + "/" + dir.getFileName(), segments);
+    }
+
+    /**
+     * The log directories under {@code baseDir}, laid out {@code <kind>/<name>} like {@code data/bus_state/log}.
+     */
+    public static List<Path> logDirs(Path baseDir) throws IOException {
+        List<Path> dirs = new ArrayList<>();
+        for (String kind : List.of("events", "tasks")) {
+            Path kindDir = baseDir.resolve(kind);
+            if (!Files.isDirectory(kindDir)) {
+                continue;
+            }
+            try (Stream<Path> names = Files.list(kindDir)) {
+                names.filter(Files::isDirectory).sorted().forEach(dirs::add);
+            }
+        }
+        return dirs;
+    }
+
+    /**
+     * @return where the transport of this process keeps every published record, laid out like
+     * {@link #logDirs(Path)} expects, or {@code null} if it keeps none (shm, memory without journal)
+     */
+    public static Path publishedDir() {
+        return Transport.current().publishedLogDir();
+    }
+
+    /**
+     * @return {@code <kind>/<name>}
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * @return the next record, or {@code null} at the end of the log
+     */
+    public Record next() {
+        while (segment < segments.size()) {
+            LogSegment s = segments.get(segment);
+            int length = s.length(position);
+            if (length == 0) {
+                if (s.sealed()) {
+                    offset = Math.max(offset, s.endOffset());
+                }
+                segment++;
+                position = LogSegment.HEADER_BYTES;
+                if (segment < segments.size()) {
+                    offset = segments.get(segment).baseOffset;
+                }
+                continue;
+            }
+            int at = position;
+            long recordOffset = s.offset(at, offset);
+            offset = recordOffset + 1;
+            position += LogSegment.stride(length);
+            if (!s.checksumMatches(at, length)) {
+                log.error("RecordedLog {}: record {} in {} fails its checksum, skipping it", name, recordOffset, s);
+                continue;
+            }
+            String key = SegmentedLog.text(s.key(at));
+            return new Record(recordOffset, s.timestamp(at), key.isEmpty() ? null : key,
+                    SegmentedLog.message(s.payload(at, length)));
+        }
+        return null;
+    }
+}
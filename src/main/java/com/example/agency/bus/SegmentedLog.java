@@ -0,0 +1,790 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * An append-only log of text records in fixed-size, memory-mapped segments, one per task queue or event topic,
+ * under {@code data/bus_state/log/<kind>/<name>/}.
+ * <p>
+ * Every record gets the next offset, starting at 0, and may carry a key (a project, ticket or channel) that
+ * consumers keep the order of. Segments are named after the offset of their first record
+ * and hold records with a length, CRC and timestamp ({@link LogSegment}); a sparse index per segment (an entry
+ * every {@code bus.IndexIntervalBytes}, 4 KB) makes seeking to an offset a binary search plus a short scan.
+ * Appends are group commits ({@link GroupCommitQueue}) copied straight into the mapping, and reads hand out
+ * views of it: neither goes through a read or write system call.
+ * <p>
+ * Several processes may append to the same log (the EventDriver and the agents). Appends hold a
+ * {@link FileLock} on the log's {@code lock} file and first catch up with records other processes wrote.
+ * Because stores to a mapping raise no file system notification, every group also rewrites the 8-byte
+ * {@code tail} file, which {@link Tailer} watches.
+ * <p>
+ * Segments are {@code bus.SegmentBytes} (16 MB) each. When a segment is full the next one is created and
+ * sealed segments are deleted, oldest first, while the log is larger than {@code bus.RetentionBytes} (1 GB)
+ * or their newest record is older than {@code bus.RetentionMillis} (7 days). Consumers that fell behind the
+ * retention continue at the oldest remaining record.
+ * <p>
+ * Logs compacted by key ({@link LogCompactor}) have a {@code compacted} file and no retention: {@link #compact()}
+ * rewrites their sealed segments keeping only the last record per key, with the offsets the records had. Consumers
+ * whose offset was dropped continue at the next record kept.
+ */
+public final class SegmentedLog {
+    private static final Logger log = LoggerFactory.getLogger(SegmentedLog.class);
+
+    static final Path BASE_DIR = Paths.get("data", "bus_state", "log");
+    static final int SEGMENT_BYTES = (int) Math.min(1L << 30,
+            Math.max(64 * 1024, Long.getLong("bus.SegmentBytes", 16L * 1024 * 1024))) & ~7;
+    static final int INDEX_INTERVAL_BYTES = Math.max(LogSegment.RECORD_HEADER_BYTES,
+            Integer.getInteger("bus.IndexIntervalBytes", 4096));
+    static final long RETENTION_BYTES = Long.getLong("bus.RetentionBytes", 1L << 30);
+    static final long RETENTION_MILLIS = Long.getLong("bus.RetentionMillis", TimeUnit.DAYS.toMillis(7));
+
+    private static final Map<Path, SegmentedLog> LOGS = new ConcurrentHashMap<>();
+
+    /**
+     * Receives one record: its offset, append time, key (empty if it has none) and payload. Key and payload are
+     * views of the mapped segment and only valid during the call.
+     */
+    @FunctionalInterface
+    public interface RecordSink {
+        /**
+         * @return {@code false} to stop reading after this record
+         */
+        boolean accept(long offset, long timestamp, ByteBuffer key, ByteBuffer payload);
+    }
+
+    /**
+     * A read position in the log. Not thread-safe; one cursor per consumer.
+     */
+    public static final class Cursor {
+        private LogSegment segment;
+        private int position;
+        private long offset;
+
+        private Cursor() {
+        }
+
+        /**
+         * @return the offset of the next record this cursor reads
+         */
+        public long offset() {
+            return offset;
+        }
+    }
+
+    private final Path dir;
+    private final String name;
+    private final NavigableMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    // guards the segments map refresh
+    private final ReentrantLock segmentsLock = new ReentrantLock();
+    // one writer per process at a time; the file lock extends that to other processes
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // one compaction of this log at a time; the compaction.lock file extends that to other processes
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private final FileChannel lockChannel;
+    private final FileChannel tailChannel;
+    private final Path tailFile;
+    private final Path compactionMarker;
+    private final GroupCommitQueue queue;
+
+    // writer state, guarded by writeLock and the file lock
+    private LogSegment active;
+    private int writePosition;
+    private long nextOffset;
+    private long maxTimestamp;
+    private int indexSlot;
+    private int bytesSinceIndex;
+    // the active segment when the log was last compacted
+    private long compactedBelow = -1;
+
+    private SegmentedLog(Path dir) throws IOException {
+        this.dir = dir;
+        this.name = dir.getParent().getFileName() + "/" + dir.getFileName();
+        Files.createDirectories(dir);
+        this.lockChannel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.tailFile = dir.resolve("tail");
+        this.tailChannel = FileChannel.open(tailFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.compactionMarker = dir.resolve("compacted");
+        this.queue = new GroupCommitQueue("SegmentedLog " + name, AppendWriter.DEFAULT_POLICY, new GroupCommitQueue.Committer() {
+            @Override
+            public void commit(List<byte[]> records) throws IOException {
+                appendLocked(records);
+            }
+
+            @Override
+            public void force() {
+                forceTail();
+            }
+
+            @Override
+            public void afterCommit() {
+                signalTail();
+            }
+        });
+        lockedWrite(() -> {
+            catchUp();
+            applyRetention();
+        });
+        log.info("SegmentedLog {} opened: offsets {} to {}, {} segment(s) of {} KB",
+                name, startOffset(), nextOffset, segments.size(), SEGMENT_BYTES / 1024);
+    }
+
+    /**
+     * The log of queue or topic {@code name}; {@code kind} is {@code "tasks"} or {@code "events"}.
+     */
+    public static SegmentedLog open(String kind, String name) throws IOException {
+        return open(BASE_DIR.resolve(kind).resolve(name));
+    }
+
+    static SegmentedLog open(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        SegmentedLog existing = LOGS.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            return LOGS.computeIfAbsent(key, d -> {
+                try {
+                    return new SegmentedLog(d);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * The file rewritten after every append group; watch it to learn about new records.
+     */
+    public Path tailFile() {
+        return tailFile;
+    }
+
+    /**
+     * Appends {@code payload} and waits until it is as durable as {@code bus.Fsync} promises.
+     */
+    public void append(String payload) throws IOException {
+        append(null, payload);
+    }
+
+    /**
+     * Appends {@code payload} under {@code key} ({@code null} for none) and waits like {@link #append(String)}.
+     */
+    public void append(String key, String payload) throws IOException {
+        GroupCommitQueue.await(appendAsync(key, payload));
+    }
+
+    public CompletableFuture<Void> appendAsync(String payload) {
+        return appendAsync(null, payload);
+    }
+
+    public CompletableFuture<Void> appendAsync(String key, String payload) {
+        byte[] keyBytes = key == null ? new byte[0] : key.getBytes(StandardCharsets.UTF_8);
+        return queue.submit(LogSegment.body(keyBytes, Envelope.bytes(payload)));
+    }
+
+    public void flush() throws IOException {
+        queue.flush();
+    }
+
+    /**
+     * @return the offset of the oldest record still retained
+     */
+    public long startOffset() {
+        refreshSegments();
+        Map.Entry<Long, LogSegment> first = segments.firstEntry();
+        return first == null ? 0 : first.getKey();
+    }
+
+    /**
+     * @return the offset the next appended record will get, including appends by other processes
+     */
+    public long endOffset() throws IOException {
+        long[] end = new long[1];
+        lockedWrite(() -> {
+            catchUp();
+            end[0] = nextOffset;
+        });
+        return end[0];
+    }
+
+    /**
+     * A cursor at {@code offset}, or at the oldest retained record if {@code offset} is older, or at the end if it
+     * lies beyond it.
+     */
+    public Cursor cursor(long offset) {
+        Cursor c = new Cursor();
+        seek(c, offset);
+        return c;
+    }
+
+    /**
+     * Passes the records from the cursor to the current end of the log to {@code sink}, advancing the cursor past
+     * each one.
+     *
+     * @return the number of records passed
+     */
+    public int read(Cursor c, RecordSink sink) {
+        int count = 0;
+        while (true) {
+            if (c.segment == null) {
+                seek(c, c.offset);
+                if (c.segment == null) {
+                    return count;
+                }
+            }
+            LogSegment segment = c.segment;
+            int length = segment.length(c.position);
+            if (length != 0) {
+                long offset = segment.offset(c.position, c.offset);
+                int position = c.position;
+                c.position += LogSegment.stride(length);
+                c.offset = offset + 1;
+                if (!segment.checksumMatches(position, length)) {
+                    log.error("SegmentedLog {}: record {} in {} fails its checksum, skipping it", name, offset, segment);
+                    continue;
+                }
+                count++;
+                if (!sink.accept(offset, segment.timestamp(position), segment.key(position), segment.payload(position, length))) {
+                    return count;
+                }
+                continue;
+            }
+            if (!segment.sealed()) {
+                return count;
+            }
+            // the seal is stored after the last record; read again in case that record landed after the first look
+            if (segment.length(c.position) != 0) {
+                continue;
+            }
+            // compaction may have dropped the last records of the segment
+            c.offset = Math.max(c.offset, segment.endOffset());
+            LogSegment next = nextSegment(c.offset);
+            if (next == null || next == segment) {
+                return count;
+            }
+            if (next.baseOffset != c.offset) {
+                log.warn("SegmentedLog {}: records {} to {} were deleted by retention before they were read",
+                        name, c.offset, next.baseOffset - 1);
+            }
+            c.segment = next;
+            c.position = LogSegment.HEADER_BYTES;
+            c.offset = next.baseOffset;
+        }
+    }
+
+    /**
+     * A {@link RecordSource} over this log from {@code offset} (see {@link #cursor(long)}), woken by the tail file.
+     */
+    RecordSource reader(long offset) {
+        Cursor c = cursor(offset);
+        return new RecordSource() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public long position() {
+                return c.offset;
+            }
+
+            @Override
+            public int read(Sink sink) {
+                return SegmentedLog.this.read(c, (offset, timestamp, key, payload) -> {
+                    int bytes = payload.remaining();
+                    return sink.accept(offset, key.hasRemaining() ? text(key) : null, message(payload), bytes);
+                });
+            }
+
+            @Override
+            public void watch(Runnable onAppend) {
+                Tailer.shared().watch(tailFile, onAppend);
+            }
+
+            @Override
+            public void unwatch(Runnable onAppend) {
+                Tailer.shared().unwatch(tailFile, onAppend);
+            }
+        };
+    }
+
+    static String text(ByteBuffer bytes) {
+        byte[] copy = new byte[bytes.remaining()];
+        bytes.get(copy);
+        return new String(copy, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A record's payload as it was appended, see {@link Envelope#bytes(String)}.
+     */
+    static String message(ByteBuffer payload) {
+        byte[] copy = new byte[payload.remaining()];
+        payload.get(copy);
+        return Envelope.message(copy);
+    }
+
+    /**
+     * Copies the lines of a {@code .jsonl} file from before the segmented log into this empty log, then renames the
+     * file to {@code *.imported}. {@code legacyPosition} is a consumer's byte position in that file; the record
+     * offset it corresponds to is handed to {@code commitOffset} before the rename.
+     *
+     * @return the converted offset, or -1 if there was nothing to import
+     */
+    long importLegacy(Path legacyFile, long legacyPosition, LongConsumer commitOffset) throws IOException {
+        if (!Files.exists(legacyFile)) {
+            return -1;
+        }
+        long[] converted = {-1};
+        lockedWrite(() -> {
+            if (!Files.exists(legacyFile)) {
+                return;
+            }
+            catchUp();
+            if (nextOffset > 0) {
+                log.warn("SegmentedLog {}: not importing {}, the log already has records", name, legacyFile);
+                return;
+            }
+            List<byte[]> lines = new ArrayList<>();
+            long[] consumed = {0};
+            try (FileChannel ch = FileChannel.open(legacyFile, StandardOpenOption.READ)) {
+                new LineReader().read(ch, 0, (line, end) -> {
+                    lines.add(LogSegment.body(new byte[0], line.getBytes(StandardCharsets.UTF_8)));
+                    if (end <= legacyPosition) {
+                        consumed[0]++;
+                    }
+                    return true;
+                });
+            }
+            for (int i = 0; i < lines.size(); i += GroupCommitQueue.MAX_GROUP_RECORDS) {
+                writeRecords(lines.subList(i, Math.min(lines.size(), i + GroupCommitQueue.MAX_GROUP_RECORDS)));
+            }
+            forceTail();
+            converted[0] = consumed[0];
+            commitOffset.accept(consumed[0]);
+            Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".imported"),
+                    StandardCopyOption.REPLACE_EXISTING);
+            log.info("SegmentedLog {}: imported {} record(s) from {}, consumer position {} -> offset {}",
+                    name, lines.size(), legacyFile, legacyPosition, consumed[0]);
+        });
+        signalTail();
+        return converted[0];
+    }
+
+    // ---- writing ----
+
+    @FunctionalInterface
+    private interface LockedAction {
+        void run() throws IOException;
+    }
+
+    private void lockedWrite(LockedAction action) throws IOException {
+        writeLock.lock();
+        try (FileLock ignored = lockChannel.lock()) {
+            action.run();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void appendLocked(List<byte[]> records) throws IOException {
+        lockedWrite(() -> {
+            catchUp();
+            writeRecords(records);
+        });
+    }
+
+    private void writeRecords(List<byte[]> records) throws IOException {
+        for (byte[] body : records) {
+            if (!active.fits(LogSegment.HEADER_BYTES, body)) {
+                throw new IOException("Record of " + body.length + " bytes does not fit a segment of "
+                        + SEGMENT_BYTES + " bytes (bus.SegmentBytes)");
+            }
+            if (!active.fits(writePosition, body)) {
+                roll();
+            }
+            long timestamp = System.currentTimeMillis();
+            int position = writePosition;
+            writePosition = active.write(position, timestamp, body);
+            if (bytesSinceIndex >= INDEX_INTERVAL_BYTES && indexSlot < active.indexSlots()) {
+                active.addIndexEntry(indexSlot++, (int) (nextOffset - active.baseOffset), position);
+                bytesSinceIndex = 0;
+            }
+            bytesSinceIndex += writePosition - position;
+            nextOffset++;
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+    }
+
+    /**
+     * Brings the writer state up to date with records and segments other processes added since this one last
+     * wrote, creating the first segment of a new log.
+     */
+    private void catchUp() throws IOException {
+        if (active == null || active.sealed() || !Files.exists(active.file)) {
+            refreshSegments();
+            sealAllButLast();
+            Map.Entry<Long, LogSegment> last = segments.lastEntry();
+            if (last == null) {
+                Files.createDirectories(dir);
+                LogSegment first = LogSegment.create(dir, 0, SEGMENT_BYTES, indexBytes());
+                segments.put(first.baseOffset, first);
+                last = segments.lastEntry();
+            }
+            active = last.getValue();
+            positionAtLastIndexEntry();
+        }
+        while (indexSlot < active.indexSlots() && active.indexPosition(indexSlot) != 0) {
+            indexSlot++;
+        }
+        int length;
+        while ((length = active.length(writePosition)) != 0) {
+            maxTimestamp = Math.max(maxTimestamp, active.timestamp(writePosition));
+            int size = LogSegment.stride(length);
+            writePosition += size;
+            bytesSinceIndex += size;
+            nextOffset++;
+        }
+    }
+
+    private void positionAtLastIndexEntry() {
+        int slot = active.floorIndexSlot(Long.MAX_VALUE);
+        if (slot >= 0) {
+            writePosition = active.indexPosition(slot);
+            nextOffset = active.baseOffset + active.indexRelativeOffset(slot);
+            indexSlot = slot + 1;
+        } else {
+            writePosition = LogSegment.HEADER_BYTES;
+            nextOffset = active.baseOffset;
+            indexSlot = 0;
+        }
+        bytesSinceIndex = 0;
+        maxTimestamp = 0;
+    }
+
+    /**
+     * Seals segments left unsealed by a process that died while rolling, so readers can move past them.
+     */
+    private void sealAllButLast() {
+        LogSegment last = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        for (LogSegment segment : segments.values()) {
+            if (segment == last || segment.sealed()) {
+                continue;
+            }
+            int position = LogSegment.HEADER_BYTES;
+            long count = 0;
+            long newest = 0;
+            int length;
+            while ((length = segment.length(position)) != 0) {
+                newest = Math.max(newest, segment.timestamp(position));
+                position += LogSegment.stride(length);
+                count++;
+            }
+            log.warn("SegmentedLog {}: sealing {} left open with {} record(s)", name, segment, count);
+            segment.seal(count, newest, position);
+        }
+    }
+
+    private void roll() throws IOException {
+        LogSegment previous = active;
+        // the next segment exists before the seal tells readers to look for it
+        LogSegment next = LogSegment.create(dir, nextOffset, SEGMENT_BYTES, indexBytes());
+        segments.put(next.baseOffset, next);
+        previous.seal(nextOffset - previous.baseOffset, maxTimestamp, writePosition);
+        active = next;
+        writePosition = LogSegment.HEADER_BYTES;
+        indexSlot = 0;
+        bytesSinceIndex = 0;
+        maxTimestamp = 0;
+        log.debug("SegmentedLog {}: rolled to {}", name, next);
+        applyRetention();
+    }
+
+    private void applyRetention() throws IOException {
+        if (Files.exists(compactionMarker)) {
+            return;
+        }
+        long total = (long) segments.size() * (SEGMENT_BYTES + indexBytes());
+        long expiredBefore = System.currentTimeMillis() - RETENTION_MILLIS;
+        for (LogSegment segment : new ArrayList<>(segments.values())) {
+            if (segment == active || !segment.sealed()) {
+                break;
+            }
+            if (total <= RETENTION_BYTES && segment.maxTimestamp() >= expiredBefore) {
+                break;
+            }
+            segments.remove(segment.baseOffset, segment);
+            segment.delete();
+            total -= SEGMENT_BYTES + indexBytes();
+            log.info("SegmentedLog {}: retention deleted {} ({} record(s))", name, segment, segment.recordCount());
+        }
+    }
+
+    private static int indexBytes() {
+        return (SEGMENT_BYTES / INDEX_INTERVAL_BYTES + 1) * LogSegment.INDEX_ENTRY_BYTES;
+    }
+
+    private void forceTail() {
+        // the active segment and the one sealed last hold everything not yet forced
+        Map.Entry<Long, LogSegment> last = segments.lastEntry();
+        if (last != null) {
+            last.getValue().force();
+            Map.Entry<Long, LogSegment> before = segments.lowerEntry(last.getKey());
+            if (before != null) {
+                before.getValue().force();
+            }
+        }
+    }
+
+    private void signalTail() {
+        try {
+            ByteBuffer end = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            end.putLong(0, nextOffset);
+            // a real write, unlike the stores to the mapping, raises a change notification in other processes
+            tailChannel.write(end, 0);
+        } catch (IOException e) {
+            log.warn("SegmentedLog {}: could not update {}: {}", name, tailFile, e.toString());
+        }
+        Tailer.shared().changed(tailFile);
+    }
+
+    // ---- compaction ----
+
+    /**
+     * Compacts this log by key from now on: marks it so that retention no longer applies, in every process.
+     */
+    void enableCompaction() throws IOException {
+        if (!Files.exists(compactionMarker)) {
+            Files.writeString(compactionMarker, "key\n", StandardCharsets.UTF_8);
+            log.info("SegmentedLog {}: compacted by key, retention no longer applies", name);
+        }
+    }
+
+    /**
+     * Rewrites the sealed segments keeping, of the records with a key, only the last one per key, the active segment
+     * included; records without a key are all kept. Does nothing if no segment was sealed since the last run.
+     * <p>
+     * Sealed segments never change, so only taking stock of them and swapping in the rewritten ones hold the write
+     * lock; publishers are not held up by the rewrite itself. Compactions of the log in other processes are kept out
+     * by the {@code compaction.lock} file.
+     *
+     * @return the number of records dropped
+     */
+    long compact() throws IOException {
+        compactionLock.lock();
+        try (FileChannel channel = FileChannel.open(dir.resolve("compaction.lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            CompactionSnapshot[] snapshot = new CompactionSnapshot[1];
+            lockedWrite(() -> {
+                refreshSegments();
+                catchUp();
+                if (active.baseOffset == compactedBelow) {
+                    return;
+                }
+                List<LogSegment> sealed = new ArrayList<>();
+                for (LogSegment segment : segments.values()) {
+                    if (segment == active || !segment.sealed()) {
+                        break;
+                    }
+                    sealed.add(segment);
+                }
+                snapshot[0] = new CompactionSnapshot(sealed, active, writePosition);
+            });
+            return snapshot[0] == null ? 0 : compact(snapshot[0]);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * @param active     the active segment, read up to {@code activeEnd} only: it may be written meanwhile
+     */
+    private record CompactionSnapshot(List<LogSegment> sealed, LogSegment active, int activeEnd) {
+    }
+
+    private long compact(CompactionSnapshot snapshot) throws IOException {
+        Map<String, Long> latest = new HashMap<>();
+        for (LogSegment segment : snapshot.sealed()) {
+            collectLatest(segment, Integer.MAX_VALUE, latest);
+        }
+        collectLatest(snapshot.active(), snapshot.activeEnd(), latest);
+
+        List<LogSegment.Rewrite> rewrites = new ArrayList<>();
+        try {
+            for (LogSegment segment : snapshot.sealed()) {
+                LogSegment.Rewrite rewrite = segment.compact((offset, key) -> {
+                    Long last = key.hasRemaining() ? latest.get(text(key)) : null;
+                    return last == null || last == offset;
+                }, INDEX_INTERVAL_BYTES);
+                if (rewrite != null) {
+                    rewrites.add(rewrite);
+                }
+            }
+            long[] dropped = new long[1];
+            int[] rewritten = new int[1];
+            lockedWrite(() -> {
+                for (LogSegment.Rewrite rewrite : rewrites) {
+                    LogSegment source = rewrite.source();
+                    if (segments.get(source.baseOffset) != source || source.replacedOnDisk()) {
+                        log.warn("SegmentedLog {}: {} changed while it was compacted, keeping it as it is", name, source);
+                        continue;
+                    }
+                    LogSegment installed = rewrite.install();
+                    segments.put(installed.baseOffset, installed);
+                    dropped[0] += rewrite.dropped();
+                    rewritten[0]++;
+                }
+                compactedBelow = snapshot.active().baseOffset;
+            });
+            if (rewritten[0] > 0) {
+                log.info("SegmentedLog {}: compaction dropped {} record(s) superseded by a later one with the same key, "
+                        + "{} segment(s) rewritten, {} key(s) live", name, dropped[0], rewritten[0], latest.size());
+            }
+            return dropped[0];
+        } finally {
+            for (LogSegment.Rewrite rewrite : rewrites) {
+                rewrite.discard();
+            }
+        }
+    }
+
+    /**
+     * Records in {@code latest} the offset of the last record per key in {@code segment}, up to position {@code end}.
+     */
+    private static void collectLatest(LogSegment segment, int end, Map<String, Long> latest) {
+        long next = segment.baseOffset;
+        int length;
+        for (int position = LogSegment.HEADER_BYTES; position < end && (length = segment.length(position)) != 0;
+             position += LogSegment.stride(length)) {
+            long offset = segment.offset(position, next);
+            next = offset + 1;
+            ByteBuffer key = segment.key(position);
+            if (key.hasRemaining()) {
+                latest.put(text(key), offset);
+            }
+        }
+    }
+
+    // ---- reading ----
+
+    private void seek(Cursor c, long offset) {
+        Map.Entry<Long, LogSegment> floor = segments.floorEntry(offset);
+        if (floor == null || !Files.exists(floor.getValue().file)) {
+            refreshSegments();
+            floor = segments.floorEntry(offset);
+        }
+        if (floor == null) {
+            Map.Entry<Long, LogSegment> first = segments.firstEntry();
+            if (first == null) {
+                c.segment = null;
+                c.offset = Math.max(0, offset);
+                return;
+            }
+            log.warn("SegmentedLog {}: offset {} was deleted by retention, continuing at {}", name, offset, first.getKey());
+            floor = first;
+            offset = first.getKey();
+        }
+        LogSegment segment = floor.getValue();
+        int slot = segment.floorIndexSlot(offset - segment.baseOffset);
+        c.segment = segment;
+        c.position = slot >= 0 ? segment.indexPosition(slot) : LogSegment.HEADER_BYTES;
+        c.offset = segment.baseOffset + (slot >= 0 ? segment.indexRelativeOffset(slot) : 0);
+        int length;
+        while (c.offset < offset && (length = segment.length(c.position)) != 0) {
+            long recordOffset = segment.offset(c.position, c.offset);
+            if (recordOffset >= offset) {
+                // compaction dropped the records before it
+                c.offset = recordOffset;
+                break;
+            }
+            c.position += LogSegment.stride(length);
+            c.offset = recordOffset + 1;
+        }
+        // an offset past this segment's end lies in a later segment or beyond the end of the log
+        if (c.offset < offset && segment.sealed()) {
+            LogSegment next = nextSegment(c.offset);
+            if (next != null && next != segment) {
+                seek(c, Math.max(offset, next.baseOffset));
+            }
+        }
+    }
+
+    /**
+     * @return the segment starting at {@code offset} or, if retention deleted that one, the oldest after it; null if none
+     */
+    private LogSegment nextSegment(long offset) {
+        Map.Entry<Long, LogSegment> next = segments.ceilingEntry(offset);
+        if (next == null) {
+            refreshSegments();
+            next = segments.ceilingEntry(offset);
+        }
+        return next == null ? null : next.getValue();
+    }
+
+    /**
+     * Syncs the segment map with the directory: maps segments other processes created, forgets deleted ones.
+     */
+    private void refreshSegments() {
+        segmentsLock.lock();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            Set<Long> present = new HashSet<>();
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                long base;
+                try {
+                    base = Long.parseLong(fileName.substring(0, fileName.length() - ".seg".length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                present.add(base);
+                LogSegment known = segments.get(base);
+                if (known == null || known.replacedOnDisk()) {
+                    try {
+                        segments.put(base, LogSegment.open(file));
+                    } catch (IOException e) {
+                        log.error("SegmentedLog {}: cannot open segment {}", name, file, e);
+                    }
+                }
+            }
+            segments.keySet().retainAll(present);
+        } catch (IOException e) {
+            log.error("SegmentedLog {}: cannot list {}", name, dir, e);
+        } finally {
+            segmentsLock.unlock();
+        }
+    }
+}
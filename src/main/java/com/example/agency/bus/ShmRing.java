@@ -0,0 +1,332 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free ring of records in a memory-mapped file, shared by every process on the host that maps it:
+ * the cross-process counterpart of {@link MemoryRing}, by default under {@code /dev/shm}.
+ * <p>
+ * Layout: a header with the capacity and slot size, the tail (next offset to claim) and the head (next offset to
+ * read) on cache lines of their own, one sequence per slot, then the fixed-size slots
+ * ({@code [int keyLength][int payloadLength][key][payload]}, UTF-8). Publishers and readers in any process claim
+ * offsets with a CAS on the tail or head and hand slots to each other through the slot sequences, as in
+ * {@link MemoryRing}; the atomics are plain CPU instructions on the shared pages, no lock and no system call.
+ * Several readers take turns: each record goes to exactly one of them.
+ * <p>
+ * Readers are woken by {@link ShmWaiter}, which watches the rings this process reads, and directly by
+ * publishers in this process. A record does not survive a reboot, a reader that dies loses what it took, and a
+ * publisher that dies between claiming and filling a slot stalls the ring until its file is deleted.
+ */
+final class ShmRing implements RecordSource {
+    private static final Logger log = LoggerFactory.getLogger(ShmRing.class);
+
+    static final int DEFAULT_CAPACITY = 1 << 14;
+    static final int DEFAULT_SLOT_BYTES = 4096;
+    static final long DEFAULT_PUBLISH_TIMEOUT_MILLIS = 30_000;
+
+    private static final long MAGIC = 0x4147454e54425553L; // "AGENTBUS"
+    private static final int VERSION = 1;
+    private static final int MAGIC_AT = 0;
+    private static final int VERSION_AT = 8;
+    private static final int CAPACITY_AT = 12;
+    private static final int SLOT_BYTES_AT = 16;
+    private static final int TAIL_AT = 64;
+    private static final int HEAD_AT = 128;
+    private static final int SEQUENCES_AT = 192;
+    private static final int SLOT_HEADER_BYTES = 8;
+    private static final int SPINS = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // atomic access to the longs of a direct buffer, valid across processes mapping the same file
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    // one mapping per file and process: the file lock used while creating it is held per JVM
+    private static final Map<Path, ShmRing> RINGS = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final String name;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private final int slotBytes;
+    private final int slotsAt;
+    private final long publishTimeoutNanos;
+    private final List<Runnable> watchers = new CopyOnWriteArrayList<>();
+    // every record below was published when the ShmWaiter last looked, -1 before; only used by its thread
+    private long published = -1;
+
+    private ShmRing(Path file, String name) throws IOException {
+        this.file = file;
+        this.name = name;
+        Files.createDirectories(file.getParent());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE); FileLock ignored = channel.lock()) {
+            // the first process to get here formats the file, the others use its settings
+            if (channel.size() < SEQUENCES_AT || readMagic(channel) != MAGIC) {
+                format(channel);
+            }
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEQUENCES_AT);
+            header.order(ByteOrder.nativeOrder());
+            if (header.getInt(VERSION_AT) != VERSION) {
+                throw new IOException("ShmRing " + file + " has format version " + header.getInt(VERSION_AT));
+            }
+            this.capacity = header.getInt(CAPACITY_AT);
+            this.slotBytes = header.getInt(SLOT_BYTES_AT);
+            this.slotsAt = slotsAt(capacity);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slotsAt + (long) capacity * slotBytes);
+            buffer.order(ByteOrder.nativeOrder());
+        }
+        this.mask = capacity - 1;
+        this.publishTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                BusProperties.get("bus.PublishTimeoutMillis", name, DEFAULT_PUBLISH_TIMEOUT_MILLIS));
+        log.info("ShmRing {} mapped: {} slots of {} bytes in {}", name, capacity, slotBytes, file);
+    }
+
+    /**
+     * The ring in {@code file}, created with {@code bus.ShmRingCapacity} (16384, rounded up to a power of two)
+     * slots of {@code bus.ShmSlotBytes} (4096) bytes if no process created it yet.
+     */
+    static ShmRing open(Path file, String name) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        ShmRing existing = RINGS.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            return RINGS.computeIfAbsent(key, f -> {
+                try {
+                    return new ShmRing(f, name);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * {@code bus.ShmDir}, by default {@code /dev/shm/agentic-bus}, or the temporary directory where there is no
+     * {@code /dev/shm}.
+     */
+    static Path baseDir() {
+        String configured = System.getProperty("bus.ShmDir");
+        if (configured != null) {
+            return Paths.get(configured);
+        }
+        Path shm = Paths.get("/dev/shm");
+        return (Files.isDirectory(shm) ? shm : Paths.get(System.getProperty("java.io.tmpdir"))).resolve("agentic-bus");
+    }
+
+    private static long readMagic(FileChannel channel) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SEQUENCES_AT);
+        return header.order(ByteOrder.nativeOrder()).getLong(MAGIC_AT);
+    }
+
+    private void format(FileChannel channel) throws IOException {
+        int requested = Math.min(1 << 24,
+                Math.max(2, BusProperties.getInt("bus.ShmRingCapacity", name, DEFAULT_CAPACITY)));
+        int slots = Integer.highestOneBit(requested * 2 - 1);
+        int bytes = Math.max(64, (BusProperties.getInt("bus.ShmSlotBytes", name, DEFAULT_SLOT_BYTES) + 7) & ~7);
+        long size = (long) slotsAt(slots) + (long) slots * bytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("ShmRing " + file + ": " + slots + " slots of " + bytes + " bytes exceed 2 GB");
+        }
+        channel.truncate(0);
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.order(ByteOrder.nativeOrder());
+        map.putInt(VERSION_AT, VERSION);
+        map.putInt(CAPACITY_AT, slots);
+        map.putInt(SLOT_BYTES_AT, bytes);
+        for (int i = 0; i < slots; i++) {
+            map.putLong(SEQUENCES_AT + i * 8, i);
+        }
+        // written last: a process that died while formatting leaves a file the next one formats again
+        map.putLong(MAGIC_AT, MAGIC);
+        map.force();
+        log.info("ShmRing {} created: {} slots of {} bytes in {}", name, slots, bytes, file);
+    }
+
+    private static int slotsAt(int capacity) {
+        // slots start on a cache line
+        return (SEQUENCES_AT + capacity * 8 + 63) & ~63;
+    }
+
+    private int sequenceAt(long offset) {
+        return SEQUENCES_AT + ((int) offset & mask) * 8;
+    }
+
+    private int slotAt(long offset) {
+        return slotsAt + ((int) offset & mask) * slotBytes;
+    }
+
+    /**
+     * Adds a record and wakes the readers of this process; readers elsewhere are woken by their {@link ShmWaiter}.
+     *
+     * @param key {@code null} for none
+     * @throws IOException if the record does not fit a slot, or the ring stayed full for
+     *                     {@code bus.PublishTimeoutMillis}
+     */
+    void publish(String key, String payload) throws IOException {
+        byte[] keyBytes = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+        byte[] payloadBytes = Envelope.bytes(payload);
+        int length = SLOT_HEADER_BYTES + (keyBytes == null ? 0 : keyBytes.length) + payloadBytes.length;
+        if (length > slotBytes) {
+            throw new IOException("ShmRing '" + name + "': a record of " + length + " bytes does not fit its "
+                    + slotBytes + "-byte slots (bus.ShmSlotBytes)");
+        }
+        long deadline = 0;
+        int idle = 0;
+        while (true) {
+            long offset = (long) LONGS.getVolatile(buffer, TAIL_AT);
+            long lag = (long) LONGS.getAcquire(buffer, sequenceAt(offset)) - offset;
+            if (lag == 0) {
+                if (LONGS.compareAndSet(buffer, TAIL_AT, offset, offset + 1)) {
+                    int slot = slotAt(offset);
+                    buffer.putInt(slot, keyBytes == null ? -1 : keyBytes.length);
+                    buffer.putInt(slot + 4, payloadBytes.length);
+                    int at = slot + SLOT_HEADER_BYTES;
+                    if (keyBytes != null) {
+                        buffer.put(at, keyBytes);
+                        at += keyBytes.length;
+                    }
+                    buffer.put(at, payloadBytes);
+                    LONGS.setRelease(buffer, sequenceAt(offset), offset + 1);
+                    break;
+                }
+            } else if (lag < 0) {
+                // full: no reader has freed this slot since the last lap
+                if (idle == 0) {
+                    deadline = System.nanoTime() + publishTimeoutNanos;
+                }
+                if (++idle <= SPINS) {
+                    Thread.onSpinWait();
+                } else if (System.nanoTime() - deadline > 0) {
+                    throw new IOException("ShmRing '" + name + "' stayed full for "
+                            + TimeUnit.NANOSECONDS.toMillis(publishTimeoutNanos) + " ms");
+                } else {
+                    LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(10, idle - SPINS)));
+                }
+            }
+            // lag > 0: another publisher took the offset, retry with the new tail
+        }
+        for (Runnable watcher : watchers) {
+            watcher.run();
+        }
+    }
+
+    /**
+     * Moves past the records published since the last call, stopping at the first slot that was claimed but not
+     * filled yet: a reader woken by a claim alone might find nothing and miss the record.
+     *
+     * @return whether there were any, or this is the first call
+     */
+    boolean advancePublished() {
+        long tail = (long) LONGS.getVolatile(buffer, TAIL_AT);
+        long from = published < 0 ? position() : published;
+        // a slot published and read since holds a later lap's sequence, also above the offset
+        while (from < tail && (long) LONGS.getAcquire(buffer, sequenceAt(from)) > from) {
+            from++;
+        }
+        boolean advanced = from != published;
+        published = from;
+        return advanced;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public long position() {
+        return (long) LONGS.getVolatile(buffer, HEAD_AT);
+    }
+
+    @Override
+    public int read(Sink sink) {
+        int count = 0;
+        while (true) {
+            long offset = (long) LONGS.getVolatile(buffer, HEAD_AT);
+            long sequence = (long) LONGS.getAcquire(buffer, sequenceAt(offset));
+            if (sequence < offset + 1) {
+                break; // empty, or the publisher that claimed it has not finished
+            }
+            if (sequence > offset + 1 || !LONGS.compareAndSet(buffer, HEAD_AT, offset, offset + 1)) {
+                continue; // another reader took it
+            }
+            int slot = slotAt(offset);
+            int keyLength = buffer.getInt(slot);
+            int payloadLength = buffer.getInt(slot + 4);
+            int at = slot + SLOT_HEADER_BYTES;
+            String key = null;
+            if (keyLength >= 0) {
+                key = text(at, keyLength);
+                at += keyLength;
+            }
+            String payload = Envelope.message(copy(at, payloadLength));
+            LONGS.setRelease(buffer, sequenceAt(offset), offset + capacity);
+            count++;
+            if (!sink.accept(offset, key, payload, payloadLength)) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    private String text(int at, int length) {
+        return new String(copy(at, length), StandardCharsets.UTF_8);
+    }
+
+    private byte[] copy(int at, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(at, bytes);
+        return bytes;
+    }
+
+    @Override
+    public void watch(Runnable onAppend) {
+        watchers.add(onAppend);
+        ShmWaiter.shared().add(this);
+    }
+
+    @Override
+    public void unwatch(Runnable onAppend) {
+        watchers.remove(onAppend);
+        if (watchers.isEmpty()) {
+            ShmWaiter.shared().remove(this);
+        }
+    }
+
+    void notifyWatchers() {
+        for (Runnable watcher : watchers) {
+            watcher.run();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShmRing " + name + " (" + file + ")";
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@link Transport} for agents in separate JVMs on one host: every queue and topic is a directory of
+ * {@link ShmRing}s under {@code bus.ShmDir} (default {@code /dev/shm/agentic-bus/<kind>/<name>/}), one
+ * {@code <group>.ring} per consumer group, mapped by every process that uses it. No broker and no disk: a hop is a
+ * copy into shared memory and a wakeup by the reader's {@link ShmWaiter}.
+ * <p>
+ * A published record goes to every group's ring; publishers notice rings of groups created by other processes
+ * within {@code bus.RebalanceMillis} (1000 ms). The default group ring (and the only ring of a topic) exists from
+ * the first use of the queue in any process, so it keeps records published before anyone subscribes. The
+ * subscribers of a ring in all processes take turns: each record is handled by one process, where every plain
+ * subscriber of a queue or topic gets it, or the next worker of a named group. Records with the same key are
+ * handled one at a time, in order, by the readers of one process; with readers in several processes they are not
+ * (use the file transport's partitions for that). A process that publishes only does not read.
+ * <p>
+ * Records live in memory only: they do not survive a reboot, and records a process took but had not handled when it
+ * died or its last group worker left are lost. A ring nobody reads fills up, and its publishers then wait up to
+ * {@code bus.PublishTimeoutMillis}.
+ */
+final class ShmTransport implements Transport {
+    private static final Logger log = LoggerFactory.getLogger(ShmTransport.class);
+    private static final String RING_SUFFIX = ".ring";
+
+    private final Path baseDir;
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+
+    ShmTransport() {
+        this.baseDir = ShmRing.baseDir();
+        log.info("ShmTransport started in {}", baseDir);
+    }
+
+    @Override
+    public void open(String kind, String name) throws IOException {
+        channel(kind, name);
+    }
+
+    private Channel channel(String kind, String name) throws IOException {
+        Channel channel = channels.get(kind + "/" + name);
+        if (channel != null) {
+            return channel;
+        }
+        try {
+            return channels.computeIfAbsent(kind + "/" + name, k -> new Channel(kind, name));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void publish(String kind, String name, String key, String payload) throws IOException {
+        for (ShmRing ring : channel(kind, name).targets()) {
+            ring.publish(key, payload);
+        }
+    }
+
+    @Override
+    public void subscribe(String kind, String name, HandlerExecutor.Handler handler) throws IOException {
+        channel(kind, name).reader(name).consumer.subscribe(handler);
+    }
+
+    @Override
+    public Source.Subscription join(String name, String group, HandlerExecutor.Handler handler) throws IOException {
+        Channel channel = channel("tasks", name);
+        Reader reader = channel.reader(group);
+        reader.workers.add(handler);
+        if (reader.subscribed.compareAndSet(false, true)) {
+            reader.consumer.subscribe(reader.workers);
+        }
+        log.info("ShmTransport: Worker of group '{}' joined queue '{}', {} worker(s) in this process",
+                group, name, reader.workers.size());
+        return () -> channel.leave(group, reader, handler);
+    }
+
+    /**
+     * The rings of one queue or topic.
+     */
+    private final class Channel {
+        private final String kind;
+        private final String name;
+        private final Path dir;
+        // this process's readers per group
+        private final Map<String, Reader> readers = new ConcurrentHashMap<>();
+        // creating or stopping a reader maps files and starts a consumer, a ReentrantLock keeps that from pinning
+        // virtual-thread publishers
+        private final ReentrantLock readersLock = new ReentrantLock();
+        private volatile List<ShmRing> targets;
+        private volatile long targetsListedAt;
+
+        private Channel(String kind, String name) {
+            this.kind = kind;
+            this.name = name;
+            this.dir = baseDir.resolve(kind).resolve(name);
+            try {
+                ring(name);
+                listTargets();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private ShmRing ring(String group) throws IOException {
+            return ShmRing.open(dir.resolve(group + RING_SUFFIX), group.equals(name) ? name : name + "." + group);
+        }
+
+        private List<ShmRing> targets() throws IOException {
+            if (System.currentTimeMillis() - targetsListedAt >= ConsumerGroup.REBALANCE_MILLIS) {
+                listTargets();
+            }
+            return targets;
+        }
+
+        private void listTargets() throws IOException {
+            List<ShmRing> listed = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + RING_SUFFIX)) {
+                for (Path file : files) {
+                    String fileName = file.getFileName().toString();
+                    listed.add(ring(fileName.substring(0, fileName.length() - RING_SUFFIX.length())));
+                }
+            }
+            targets = listed;
+            targetsListedAt = System.currentTimeMillis();
+        }
+
+        private Reader reader(String group) throws IOException {
+            Reader reader = readers.get(group);
+            if (reader != null) {
+                return reader;
+            }
+            readersLock.lock();
+            try {
+                reader = readers.get(group);
+                if (reader == null) {
+                    reader = new Reader(kind, name, ring(group));
+                    readers.put(group, reader);
+                    // publishers in this process see the new group right away
+                    listTargets();
+                }
+                return reader;
+            } finally {
+                readersLock.unlock();
+            }
+        }
+
+        /**
+         * Removes a worker; the last one of the process stops its reader, so that other processes get the records.
+         */
+        private void leave(String group, Reader reader, HandlerExecutor.Handler worker) {
+            readersLock.lock();
+            try {
+                if (reader.workers.remove(worker) == 0 && readers.remove(group, reader)) {
+                    reader.consumer.stop();
+                    log.info("ShmTransport: Last worker of group '{}' of queue '{}' in this process left", group, name);
+                }
+            } finally {
+                readersLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * This process's consumer of one group's ring.
+     */
+    private static final class Reader {
+        private final QueueConsumer consumer;
+        private final GroupWorkers workers;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+
+        private Reader(String kind, String name, ShmRing ring) {
+            // named after the queue: the handler limit and bus.* settings are per queue, not per group
+            this.consumer = new QueueConsumer(kind, name, ring, OffsetStore.transientAt(ring.position()));
+            this.workers = new GroupWorkers(ring.name());
+            consumer.start();
+        }
+    }
+}
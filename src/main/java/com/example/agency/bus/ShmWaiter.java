@@ -0,0 +1,83 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wakes the readers of {@link ShmRing}s when a process publishes to them. Processes share no kernel object to
+ * signal each other with, so one thread per process watches the rings it reads and runs a ring's watchers when
+ * records were published to it.
+ * <p>
+ * The thread waits like Aeron's backoff idle strategy: it spins {@code bus.ShmSpins} (1000) times after the last
+ * change it saw, then yields as often again, then parks for intervals doubling from 1 µs up to
+ * {@code bus.ShmMaxParkMicros} (100 µs). A busy ring is noticed within nanoseconds, an idle one costs a wakeup per
+ * park interval. With no ring to watch the thread parks until one is added.
+ */
+final class ShmWaiter {
+    private static final Logger log = LoggerFactory.getLogger(ShmWaiter.class);
+
+    static final int SPINS = Math.max(0, Integer.getInteger("bus.ShmSpins", 1000));
+    static final long MAX_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(
+            Math.max(1, Long.getLong("bus.ShmMaxParkMicros", 100)));
+
+    private static final ShmWaiter SHARED = new ShmWaiter();
+
+    private final Set<ShmRing> rings = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+
+    private ShmWaiter() {
+        thread = new Thread(this::run, "bus-shm");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("ShmWaiter started (spin {}, park up to {} µs)", SPINS, TimeUnit.NANOSECONDS.toMicros(MAX_PARK_NANOS));
+    }
+
+    static ShmWaiter shared() {
+        return SHARED;
+    }
+
+    void add(ShmRing ring) {
+        if (rings.add(ring)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    void remove(ShmRing ring) {
+        rings.remove(ring);
+    }
+
+    private void run() {
+        long idle = 0;
+        while (true) {
+            if (rings.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+            boolean changed = false;
+            for (ShmRing ring : rings) {
+                if (ring.advancePublished()) {
+                    changed = true;
+                    try {
+                        ring.notifyWatchers();
+                    } catch (RuntimeException e) {
+                        log.error("ShmWaiter: a watcher of {} failed", ring, e);
+                    }
+                }
+            }
+            if (changed) {
+                idle = 0;
+            } else if (++idle <= SPINS) {
+                Thread.onSpinWait();
+            } else if (idle <= 2L * SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(20, idle - 2L * SPINS)));
+            }
+        }
+    }
+}
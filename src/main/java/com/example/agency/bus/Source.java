@@ -4,277 +4,139 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.*;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Source {
     private static final Logger log = LoggerFactory.getLogger(Source.class);
-    private static final Path STATE_BASE_DIR = Paths.get("data", "bus_state");
-
-    // ... (readOffset and writeOffset helpers remain the same)
-    private static long readOffset(Path offsetFile) {
-        if (Files.exists(offsetFile)) {
-            try {
-                String content = Files.readString(offsetFile, StandardCharsets.UTF_8);
-                return Long.parseLong(content.trim());
-            } catch (IOException | NumberFormatException e) {
-                log.error("Error reading offset file {} or parsing its content. Defaulting to 0.", offsetFile, e);
-            }
-        }
-        return 0L;
-    }
-
-    private static void writeOffset(Path offsetFile, long offset) {
-        try {
-            Files.createDirectories(offsetFile.getParent());
-            Files.writeString(offsetFile, String.valueOf(offset), StandardCharsets.UTF_8,
-                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-        } catch (IOException e) {
-            log.error("Error writing offset file {}. Offset persistence might fail.", offsetFile, e);
-        }
-    }
 
+    /**
+     * Where every queue and topic of this process goes: the segmented logs, or memory with
+     * {@code -Dbus.Transport=memory}.
+     */
+    private static final Transport transport = Transport.current();
 
     private static class TaskDispatcher {
-        // ... (maps remain the same) ...
-        private static final Map<String, List<Consumer<String>>> subscribers = new ConcurrentHashMap<>();
-        private static final Map<String, Path> queueFilePaths = new ConcurrentHashMap<>();
-        private static final Map<String, Path> queueOffsetFiles = new ConcurrentHashMap<>();
-        private static final Map<String, Long> filePositions = new ConcurrentHashMap<>();
-
-        private static final ScheduledExecutorService pollerExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
-            Thread t = new Thread(r, "TaskDispatcher-Poller");
-            // t.setDaemon(true); // REMOVE THIS or set to false to keep app alive
-            log.info("Creating TaskDispatcher-Poller thread (non-daemon by default unless setDaemon(true) is called)");
-            return t;
-        });
-        private static final ExecutorService handlerExecutor = Executors.newCachedThreadPool(r -> {
-            Thread t = new Thread(r, "TaskDispatcher-Handler");
-            t.setDaemon(true); // Handlers can often be daemons if pollers are not
-            return t;
-        });
-
-        static {
-            // ... (static block content remains the same) ...
+        // ... (registerQueue, subscribe, publish methods remain the same, on top of the transport) ...
+        public static void registerQueue(String queueName) {
             try {
-                Files.createDirectories(STATE_BASE_DIR.resolve("tasks"));
+                transport.open("tasks", queueName);
             } catch (IOException e) {
-                log.error("Could not create base state directory for TaskDispatcher: {}", STATE_BASE_DIR.resolve("tasks"), e);
+                log.error("TaskDispatcher: Could not open queue '{}'", queueName, e);
             }
-            pollerExecutor.scheduleAtFixedRate(TaskDispatcher::pollAllQueues, 1, 200, TimeUnit.MILLISECONDS);
-            log.info("TaskDispatcher poller started.");
-        }
-        // ... (registerQueue, subscribe, publish, pollAllQueues methods remain the same) ...
-        public static synchronized void registerQueue(String queueName) {
-            Path queueFilePath = Paths.get("data", "tasks", queueName + ".jsonl");
-            Path offsetFilePath = STATE_BASE_DIR.resolve("tasks").resolve(queueName + ".offset");
-
-            queueFilePaths.putIfAbsent(queueName, queueFilePath);
-            queueOffsetFiles.putIfAbsent(queueName, offsetFilePath);
-            long initialPosition = readOffset(offsetFilePath);
-            filePositions.putIfAbsent(queueName, initialPosition);
-            log.info("TaskDispatcher: Queue '{}' registered. Path: {}, OffsetFile: {}, InitialPos: {}",
-                    queueName, queueFilePath, offsetFilePath, initialPosition);
-        }
-
-        public static synchronized void subscribe(String queueName, Consumer<String> handler) {
-            registerQueue(queueName);
-            subscribers.computeIfAbsent(queueName, k -> new CopyOnWriteArrayList<>()).add(handler);
-            log.info("TaskDispatcher: New subscription for queue '{}'. Handler: {}", queueName, handler.getClass().getName());
         }
 
-        public static void publish(String queueName, String taskPayload) {
-            registerQueue(queueName);
-            Path path = queueFilePaths.get(queueName);
-            if (path == null) {
-                log.error("TaskDispatcher: Path not found for queue '{}'. Cannot publish task: {}", queueName, taskPayload);
+        /**
+         * Subscribes {@code handler} to this process's share of the queue's default group; with one partition and
+         * one process, that is every task.
+         */
+        public static void subscribe(String queueName, HandlerExecutor.Handler handler, Object target) {
+            try {
+                transport.subscribe("tasks", queueName, handler);
+            } catch (IOException e) {
+                log.error("TaskDispatcher: Could not join the consumers of queue '{}'. Cannot subscribe handler: {}", queueName, target.getClass().getName(), e);
                 return;
             }
+            log.info("TaskDispatcher: New subscription for queue '{}'. Handler: {}", queueName, target.getClass().getName());
+        }
+
+        /**
+         * Adds a new worker with {@code handler} to consumer group {@code group} of the queue.
+         */
+        public static Subscription subscribe(String queueName, String group, HandlerExecutor.Handler handler, Object target) {
+            Subscription subscription;
             try {
-                Files.createDirectories(path.getParent());
-                try (BufferedWriter w = Files.newBufferedWriter(path,
-                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-                    w.write(taskPayload);
-                    w.newLine();
-                    log.debug("TaskDispatcher: Published to queue file '{}': {}", path, taskPayload);
-                }
+                subscription = transport.join(queueName, group, handler);
             } catch (IOException e) {
-                log.error("TaskDispatcher: IOException publishing to queue file '{}': {}", path, taskPayload, e);
+                throw new UncheckedIOException("TaskDispatcher: Could not join group '" + group + "' of queue '" + queueName + "'", e);
             }
+            log.info("TaskDispatcher: Worker of group '{}' subscribed to queue '{}'. Handler: {}",
+                    group, queueName, target.getClass().getName());
+            return subscription;
         }
-        private static void pollAllQueues() {
-            for (Map.Entry<String, Path> entry : queueFilePaths.entrySet()) {
-                String queueName = entry.getKey();
-                Path path = entry.getValue();
-                Path offsetFile = queueOffsetFiles.get(queueName);
-                long currentPos = filePositions.getOrDefault(queueName, 0L);
-                long newPos = currentPos;
 
-                if (!Files.exists(path)) continue;
-                if (offsetFile == null) {
-                    log.error("Offset file path not found for queue {}, skipping poll.", queueName);
-                    continue;
-                }
-                try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
-                    if (raf.length() < currentPos) {
-                        log.warn("TaskDispatcher: File {} was reset or truncated. Resetting position to 0 and updating offset file.", path);
-                        currentPos = 0L;
-                        writeOffset(offsetFile, currentPos);
-                    }
-                    raf.seek(currentPos);
-                    String line;
-                    List<String> batchOfLines = new ArrayList<>();
-                    long batchEndPos = currentPos;
-
-                    while ((line = raf.readLine()) != null) {
-                        batchOfLines.add(line);
-                        batchEndPos = raf.getFilePointer();
-                    }
-
-                    if (!batchOfLines.isEmpty()) {
-                        newPos = batchEndPos;
-                        List<Consumer<String>> handlers = subscribers.get(queueName);
-                        if (handlers != null && !handlers.isEmpty()) {
-                            log.debug("TaskDispatcher: Polled {} new task(s) for queue '{}'", batchOfLines.size(), queueName);
-                            for (String finalLine : batchOfLines) {
-                                for (Consumer<String> handler : handlers) {
-                                    handlerExecutor.submit(() -> {
-                                        try {
-                                            handler.accept(finalLine);
-                                        } catch (Exception e) {
-                                            log.error("TaskDispatcher: Error in handler for queue '{}', task '{}'", queueName, finalLine, e);
-                                        }
-                                    });
-                                }
-                            }
-                            filePositions.put(queueName, newPos);
-                            writeOffset(offsetFile, newPos);
-                            log.debug("TaskDispatcher: Queue '{}' position updated to {} and persisted.", queueName, newPos);
-                        } else {
-                            //log.warn("TaskDispatcher: Polled {} tasks for queue '{}' but no subscribers found. Tasks will be re-polled.", batchOfLines.size(), queueName);
-                            Thread.sleep(10 * 1000);
-                        }
-                    }
-                } catch (FileNotFoundException fnfe) {
-                    // file deleted
-                } catch (IOException e) {
-                    log.error("TaskDispatcher: IOException polling queue file '{}'", path, e);
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+        public static void publish(String queueName, String key, String taskPayload) {
+            try {
+                transport.publish("tasks", queueName, key, taskPayload);
+                if (log.isDebugEnabled()) {
+                    log.debug("TaskDispatcher: Published to queue '{}' (key {}): {}", queueName, key, Envelope.debugView(taskPayload));
                 }
+            } catch (IOException e) {
+                log.error("TaskDispatcher: IOException publishing to queue '{}': {}", queueName, Envelope.debugView(taskPayload), e);
             }
         }
+    }
 
+    /**
+     * A worker's membership in a consumer group.
+     */
+    public interface Subscription extends AutoCloseable {
+        /**
+         * Leaves the group; the worker's partitions move to the remaining workers once its tasks in flight finished.
+         */
+        @Override
+        void close();
     }
 
     public static class FileSource {
-        // ... (path, offsetFilePath, subs, pos remain same) ...
-        private Path path = null;
-        private final Path offsetFilePath;
-        private final List<Consumer<String>> subs = new CopyOnWriteArrayList<>();
-        private long pos = 0;
-        private final ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor(r -> {
-            Thread t = new Thread(r, "FileSource-Poller-" + path.getFileName().toString().replace(".log", ""));
-            // t.setDaemon(true); // REMOVE THIS or set to false
-            log.info("Creating FileSource-Poller thread for {} (non-daemon by default)", path.getFileName());
-            return t;
-        });
-        private static final ExecutorService handlerExecutor = Executors.newCachedThreadPool(r -> {
-            Thread t = new Thread(r, "FileSource-Handler");
-            t.setDaemon(true); // Event handlers can often be daemons
-            return t;
-        });
+        // ... (topic remains same, the consumer is the transport's) ...
+        private final String topic;
 
         public FileSource(String topic) {
-            // ... (constructor logic remains the same, including readOffset)
-            this.path = Paths.get("data", "events", topic + ".log");
-            this.offsetFilePath = STATE_BASE_DIR.resolve("events").resolve(topic + ".offset");
+            this.topic = topic;
             try {
-                if (!Files.exists(path.getParent())) Files.createDirectories(path.getParent());
-                if (!Files.exists(offsetFilePath.getParent())) Files.createDirectories(offsetFilePath.getParent());
+                transport.open("events", topic);
             } catch (IOException e) {
-                log.error("FileSource: Could not create parent directory for {} or {}", path, offsetFilePath, e);
+                throw new UncheckedIOException("FileSource: Could not open topic '" + topic + "'", e);
             }
-            this.pos = readOffset(this.offsetFilePath);
-            exec.scheduleAtFixedRate(this::poll, 1, 200, TimeUnit.MILLISECONDS);
-            log.info("FileSource initialized for topic '{}', polling file: {}. Initial offset: {}", topic, path.toAbsolutePath(), this.pos);
+            log.info("FileSource initialized for topic '{}'", topic);
+        }
+        // ... (publish, subscribe methods remain the same) ...
+        /**
+         * Publishes the binary form of {@code event}, under its key.
+         */
+        public void publish(Envelope<?> event) {
+            publish(event.key(), event.encode());
         }
-        // ... (publish, subscribe, poll methods remain the same) ...
+
         public void publish(String msg) {
+            publish(null, msg);
+        }
+
+        /**
+         * Publishes {@code msg} under {@code key} ({@code null} for none), e.g. a record replayed as it was recorded.
+         */
+        public void publish(String key, String msg) {
             try {
-                Files.createDirectories(path.getParent());
-                try (BufferedWriter w = Files.newBufferedWriter(path,
-                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
-                    w.write(msg); w.newLine();
-                    log.debug("FileSource: Published to event file '{}': {}", path.getFileName(), msg);
+                transport.publish("events", topic, key, msg);
+                if (log.isDebugEnabled()) {
+                    log.debug("FileSource: Published to topic '{}': {}", topic, Envelope.debugView(msg));
                 }
             } catch (IOException e) {
-                log.error("FileSource: IOException publishing to event file '{}': {}", path.getFileName(), msg, e);
+                log.error("FileSource: IOException publishing to topic '{}': {}", topic, Envelope.debugView(msg), e);
             }
         }
 
         public void subscribe(Consumer<String> handler) {
-            subs.add(handler);
-            log.info("FileSource: New subscription to topic '{}' using file {}", path.getFileName().toString().replace(".log",""), path.toAbsolutePath());
+            subscribe(HandlerExecutor.Handler.of(handler));
         }
 
-        private void poll() {
-            if (!Files.exists(path)) return;
+        /**
+         * Subscribes a handler that acknowledges each event by completing the returned stage; until then the event
+         * counts against the topic's in-flight window and is delivered again after the ack timeout.
+         */
+        public void subscribeAsync(Function<String, ? extends CompletionStage<?>> handler) {
+            subscribe(handler::apply);
+        }
 
-            long currentFileLength = 0;
+        private void subscribe(HandlerExecutor.Handler handler) {
             try {
-                currentFileLength = Files.size(path);
-            } catch (IOException e) {
-                log.error("FileSource: Could not get size of {}, skipping poll.", path, e);
-                return;
-            }
-
-            if (currentFileLength < pos) {
-                log.warn("FileSource: File {} was reset or truncated (current_len: {}, saved_pos: {}). Resetting position to 0.", path, currentFileLength, pos);
-                pos = 0L;
-                writeOffset(offsetFilePath, pos);
-            }
-
-            if (currentFileLength == pos && pos > 0) return; // Only return if pos > 0 to ensure initial poll happens for empty file
-            if (currentFileLength == 0 && pos == 0) return; // Empty file, nothing to do
-
-
-            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
-                raf.seek(pos);
-                String line;
-                List<String> batchOfLines = new ArrayList<>();
-                long batchEndPos = pos;
-
-                while ((line = raf.readLine()) != null) {
-                    batchOfLines.add(line);
-                    batchEndPos = raf.getFilePointer();
-                }
-
-                if (!batchOfLines.isEmpty()) {
-                    pos = batchEndPos;
-                    log.debug("FileSource: Polled {} new event(s) for topic '{}'. New pos: {}", batchOfLines.size(), path.getFileName().toString().replace(".log",""), pos);
-                    for (String finalLine : batchOfLines) {
-                        subs.forEach(h -> handlerExecutor.submit(() -> {
-                            try {
-                                h.accept(finalLine);
-                            } catch (Exception e) {
-                                log.error("FileSource: Error in handler for topic '{}', event '{}'", path.getFileName().toString().replace(".log",""), finalLine, e);
-                            }
-                        }));
-                    }
-                    writeOffset(offsetFilePath, pos);
-                }
-            } catch (FileNotFoundException fnfe) {
-                // ignore
+                transport.subscribe("events", topic, handler);
             } catch (IOException e) {
-                log.error("FileSource: IOException polling event file '{}'", path, e);
+                throw new UncheckedIOException("FileSource: Could not subscribe to topic '" + topic + "'", e);
             }
+            log.info("FileSource: New subscription to topic '{}'", topic);
         }
     }
 
@@ -289,11 +151,47 @@ public class Source {
         }
 
         public void enqueue(String task) {
-            TaskDispatcher.publish(this.queueName, task);
+            TaskDispatcher.publish(this.queueName, null, task);
+        }
+
+        /**
+         * Enqueues the binary form of {@code task}, under its key.
+         */
+        public void enqueue(Envelope<?> task) {
+            TaskDispatcher.publish(this.queueName, task.key(), task.encode());
+        }
+
+        /**
+         * Enqueues {@code task} under {@code key} (a project key, ticket id or channel): tasks with the same key are
+         * handled one at a time, in the order they were enqueued, also when several workers share the queue.
+         */
+        public void enqueue(String key, String task) {
+            TaskDispatcher.publish(this.queueName, key, task);
         }
 
         public void subscribe(Consumer<String> handler) {
-            TaskDispatcher.subscribe(this.queueName, handler);
+            TaskDispatcher.subscribe(this.queueName, HandlerExecutor.Handler.of(handler), handler);
+        }
+
+        /**
+         * Subscribes a handler that acknowledges each task by completing the returned stage; until then the task
+         * counts against the queue's in-flight window and is delivered again after the ack timeout.
+         */
+        public void subscribeAsync(Function<String, ? extends CompletionStage<?>> handler) {
+            TaskDispatcher.subscribe(this.queueName, handler::apply, handler);
+        }
+
+        /**
+         * Starts a worker in consumer group {@code group}: the workers of a group, in this and other processes on the
+         * host, split the queue's partitions between them (set {@code -Dbus.Partitions.<queue>} before the queue is
+         * first created). Each call adds one worker.
+         */
+        public Subscription subscribe(String group, Consumer<String> handler) {
+            return TaskDispatcher.subscribe(this.queueName, group, HandlerExecutor.Handler.of(handler), handler);
+        }
+
+        public Subscription subscribeAsync(String group, Function<String, ? extends CompletionStage<?>> handler) {
+            return TaskDispatcher.subscribe(this.queueName, group, handler::apply, handler);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,239 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wakes bus readers when the files they tail change, instead of having every reader poll on a timer.
+ * <p>
+ * One thread per process waits on a {@link WatchService} (inotify on Linux). All events queued for a
+ * directory are drained together and every affected file's listeners run once per wakeup, however many
+ * appends happened. In-process publishers call {@link #changed(Path)} so their readers do not wait for
+ * the file system notification at all.
+ * <p>
+ * A stat-based scan of the watched files backs the watch service up: file systems without change
+ * notifications, the JDK's polling watch service and lost events. The scan interval adapts between
+ * {@value #MIN_POLL_MILLIS} ms after a change it caught and {@code bus.TailerMaxPollMillis} when idle
+ * (1000 ms with native notifications, 200 ms without).
+ */
+final class Tailer {
+    private static final Logger log = LoggerFactory.getLogger(Tailer.class);
+
+    static final long MIN_POLL_MILLIS = 5;
+
+    private static final Tailer SHARED = new Tailer();
+
+    private final WatchService watchService;
+    private final boolean nativeNotifications;
+    private final long maxPollMillis;
+    private final Map<Path, WatchKey> watchedDirectories = new ConcurrentHashMap<>();
+    private final Map<Path, WatchedFile> watchedFiles = new ConcurrentHashMap<>();
+
+    private Tailer() {
+        WatchService ws = null;
+        try {
+            ws = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("Tailer: no WatchService available, falling back to polling: {}", e.toString());
+        }
+        this.watchService = ws;
+        // the JDK falls back to sun.nio.fs.PollingWatchService where the OS has no notification API
+        this.nativeNotifications = ws != null && !ws.getClass().getName().contains("Polling");
+        this.maxPollMillis = Long.getLong("bus.TailerMaxPollMillis", nativeNotifications ? 1000 : 200);
+
+        Thread t = new Thread(this::run, "Bus-Tailer");
+        // daemon: one-shot tools such as DeadLetterReplay must exit once main returns;
+        // long-running processes keep themselves alive (see AgencyApp)
+        t.setDaemon(true);
+        t.start();
+        log.info("Tailer started ({} notifications, fallback scan up to every {} ms)",
+                nativeNotifications ? "native" : "no native", maxPollMillis);
+    }
+
+    static Tailer shared() {
+        return SHARED;
+    }
+
+    /**
+     * Runs {@code onChange} whenever {@code file} may have grown, been truncated or been replaced.
+     * The callback runs on the tailer thread and must only hand work off, never block.
+     */
+    void watch(Path file, Runnable onChange) {
+        Path absolute = file.toAbsolutePath().normalize();
+        Path dir = absolute.getParent();
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            log.error("Tailer: could not create directory {} for {}", dir, file, e);
+        }
+        watchedFiles.computeIfAbsent(absolute, WatchedFile::new).listeners.add(onChange);
+        if (watchService != null) {
+            watchedDirectories.computeIfAbsent(dir, d -> {
+                try {
+                    return d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException e) {
+                    log.warn("Tailer: cannot watch {}, relying on polling: {}", d, e.toString());
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes a listener added by {@link #watch(Path, Runnable)}. It may still run once if a change is being fired.
+     */
+    void unwatch(Path file, Runnable onChange) {
+        WatchedFile watched = watchedFiles.get(file.toAbsolutePath().normalize());
+        if (watched != null) {
+            watched.listeners.remove(onChange);
+        }
+    }
+
+    /**
+     * Signals an in-process append to {@code file}; its listeners run right away on the calling thread.
+     */
+    void changed(Path file) {
+        WatchedFile watched = watchedFiles.get(file.toAbsolutePath().normalize());
+        if (watched != null) {
+            watched.fire();
+        }
+    }
+
+    private void run() {
+        long pollMillis = MIN_POLL_MILLIS;
+        long lastScan = System.nanoTime();
+        long nextScan = lastScan;
+        while (true) {
+            try {
+                long waitMillis = Math.max(0, TimeUnit.NANOSECONDS.toMillis(nextScan - System.nanoTime()));
+                Set<WatchedFile> changed = new LinkedHashSet<>();
+                if (watchService != null) {
+                    WatchKey key = watchService.poll(waitMillis, TimeUnit.MILLISECONDS);
+                    // drain everything that is already queued so one wakeup covers a burst of appends
+                    while (key != null) {
+                        collect(key, changed);
+                        key = watchService.poll();
+                    }
+                } else {
+                    Thread.sleep(waitMillis);
+                }
+                for (WatchedFile file : changed) {
+                    file.refreshStat();
+                    file.fire();
+                }
+
+                long now = System.nanoTime();
+                if (now - nextScan >= 0) {
+                    boolean missed = false;
+                    for (WatchedFile file : watchedFiles.values()) {
+                        // a change nobody announced since the previous scan was missed by the notifications
+                        if (file.refreshStat() && file.lastFired - lastScan < 0) {
+                            missed = true;
+                            file.fire();
+                        }
+                    }
+                    lastScan = now;
+                    // scan fast while the scan is what finds changes, back off while notifications keep up
+                    pollMillis = missed ? MIN_POLL_MILLIS : Math.min(maxPollMillis, pollMillis * 2);
+                    nextScan = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pollMillis);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                log.info("Tailer stopped");
+                return;
+            } catch (RuntimeException e) {
+                log.error("Tailer: error while dispatching file changes", e);
+            }
+        }
+    }
+
+    private void collect(WatchKey key, Set<WatchedFile> changed) {
+        Path dir = (Path) key.watchable();
+        List<WatchEvent<?>> events = key.pollEvents();
+        for (WatchEvent<?> event : events) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were dropped, every file of the directory may have changed
+                watchedFiles.values().stream().filter(f -> f.path.getParent().equals(dir)).forEach(changed::add);
+            } else {
+                WatchedFile file = watchedFiles.get(dir.resolve((Path) event.context()));
+                if (file != null) {
+                    changed.add(file);
+                }
+            }
+        }
+        if (!key.reset()) {
+            // directory deleted; it is re-registered on the next watch() for it, until then the scan covers it
+            watchedDirectories.remove(dir, key);
+        }
+    }
+
+    private static final class WatchedFile {
+        final Path path;
+        final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+        volatile long lastFired = System.nanoTime();
+        // stat state, only touched by the tailer thread
+        private long size = -1;
+        private long modified = -1;
+        private Object fileKey;
+
+        WatchedFile(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * @return {@code true} if size, modification time or identity changed since the last call
+         */
+        boolean refreshStat() {
+            long newSize;
+            long newModified;
+            Object newKey;
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                newSize = attributes.size();
+                newModified = attributes.lastModifiedTime().toMillis();
+                newKey = attributes.fileKey();
+            } catch (NoSuchFileException e) {
+                newSize = -1;
+                newModified = -1;
+                newKey = null;
+            } catch (IOException e) {
+                return false;
+            }
+            boolean changed = newSize != size || newModified != modified || !Objects.equals(newKey, fileKey);
+            size = newSize;
+            modified = newModified;
+            fileKey = newKey;
+            return changed;
+        }
+
+        void fire() {
+            lastFired = System.nanoTime();
+            for (Runnable listener : listeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    log.error("Tailer: listener for {} failed", path, e);
+                }
+            }
+        }
+    }
+}
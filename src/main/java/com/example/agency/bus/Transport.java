@@ -0,0 +1,87 @@
+package com.example.agency.bus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * How {@link Source.TaskQueue} and {@link Source.FileSource} move records, chosen once per process with
+ * {@code -Dbus.Transport}:
+ * <ul>
+ *     <li>{@code file} (default): {@link FileTransport}, the segmented logs under {@code data/bus_state}, durable and
+ *     shared by every process on the host.</li>
+ *     <li>{@code memory}: {@link MemoryTransport}, lock-free rings handed straight to the subscribers of this
+ *     process, optionally journaled to the logs behind the scenes.</li>
+ *     <li>{@code shm}: {@link ShmTransport}, rings in shared memory that the agent processes on the host publish to
+ *     and read from directly.</li>
+ * </ul>
+ * All three hand records to the in-flight window, retries and dead letters of {@link QueueConsumer}. Their
+ * guarantees differ:
+ * <ul>
+ *     <li>{@code file} delivers at least once and in order per key, across processes and restarts.</li>
+ *     <li>{@code memory} does the same within the process; records not yet handled are lost when it ends.</li>
+ *     <li>{@code shm} keeps the order per key only among the readers of one process, since each record goes to
+ *     whichever process takes it from the ring first; a reader that dies loses the records it took, and nothing
+ *     survives a reboot.</li>
+ * </ul>
+ */
+interface Transport {
+
+    /**
+     * Makes the queue or topic ready, so that what is published before the first subscription is kept for it.
+     *
+     * @param kind {@code "tasks"} or {@code "events"}
+     */
+    void open(String kind, String name) throws IOException;
+
+    /**
+     * @param key {@code null} for none
+     */
+    void publish(String kind, String name, String key, String payload) throws IOException;
+
+    /**
+     * Subscribes {@code handler} to every record of the queue or topic (for tasks, of its default group in this
+     * process).
+     */
+    void subscribe(String kind, String name, HandlerExecutor.Handler handler) throws IOException;
+
+    /**
+     * Adds a worker with {@code handler} to consumer group {@code group} of a task queue; the workers of a group
+     * share its records.
+     */
+    Source.Subscription join(String name, String group, HandlerExecutor.Handler handler) throws IOException;
+
+    /**
+     * @return the directory where this transport keeps every published record, one {@link SegmentedLog} per
+     * {@code <kind>/<name>}, or {@code null} if it keeps none
+     */
+    default Path publishedLogDir() {
+        return null;
+    }
+
+    static Transport current() {
+        return Holder.CURRENT;
+    }
+
+    final class Holder {
+        private static final Logger log = LoggerFactory.getLogger(Transport.class);
+        private static final Transport CURRENT = create(System.getProperty("bus.Transport", "file"));
+
+        private Holder() {
+        }
+
+        private static Transport create(String name) {
+            Transport transport = switch (name) {
+                case "file" -> new FileTransport();
+                case "memory" -> new MemoryTransport(Boolean.getBoolean("bus.Journal"));
+                case "shm" -> new ShmTransport();
+                default -> throw new IllegalArgumentException(
+                        "Unknown bus.Transport '" + name + "', expected file, memory or shm");
+            };
+            log.info("Bus transport: {}", transport.getClass().getSimpleName());
+            return transport;
+        }
+    }
+}
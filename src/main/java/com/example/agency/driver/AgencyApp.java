@@ -4,7 +4,10 @@ import com.example.agency.agents.GroomingAgent;
 import com.example.agency.agents.TechAgent;
 import com.example.agency.agents.UserAgent;
 import com.example.agency.orchestrator.SchedulerAgent;
+import com.example.agency.bus.Envelope;
 import com.example.agency.bus.Source.FileSource;
+import com.example.agency.messages.AgencyMessages;
+import com.example.agency.messages.AgencyMessages.TodayEvent;
 import com.example.scrum.tools.JiraTool;
 import com.example.scrum.tools.MSTeamsTool;
 import com.example.scrum.tools.OutlookTool;
@@ -57,15 +60,16 @@ public class AgencyApp {
         } catch (InterruptedException e) { /* ... */ }
 
         // Trigger the UserAgent/TechAgent flow via SchedulerAgent's TodayEvent logic
-        String initialEventPayload = "TodayEvent:" + Instant.now();
-        // Or, to directly start the user-tech conversation without other TodayEvent actions:
-        // String initialEventPayload = "StartUserTechSupportConversation:" + Instant.now();
-        // (You'd need SchedulerAgent to handle "StartUserTechSupportConversation" and enqueue for UserAgent)
+        Envelope<TodayEvent> initialEvent = Envelope.of(AgencyMessages.TODAY_EVENT, new TodayEvent(Instant.now()));
+        // Or, to directly start the user-tech conversation without other TodayEvent actions, register a
+        // StartUserTechSupportConversation type in AgencyMessages and have SchedulerAgent enqueue it for UserAgent.
         // For now, TodayEvent should work if userTechChatInitiatedThisRun is false in SchedulerAgent.
 
-        eventBus.publish(initialEventPayload);
-        log.info("Published initial event: {}", initialEventPayload);
+        eventBus.publish(initialEvent);
+        log.info("Published initial event: {}", initialEvent);
 
         log.info("AgencyApp started successfully. Main thread will wait.");
+        // the bus threads are daemons, the agents run until the process is stopped
+        Thread.currentThread().join();
     }
 }
\ No newline at end of file
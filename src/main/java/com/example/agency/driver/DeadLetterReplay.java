@@ -0,0 +1,23 @@
+package com.example.agency.driver;
+
+import com.example.agency.bus.DeadLetters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-injects dead-lettered records into their queue or topic:
+ * {@code DeadLetterReplay <tasks|events> <queue-or-topic>}, e.g. {@code DeadLetterReplay tasks GroomingAgent}.
+ */
+public class DeadLetterReplay {
+    private static final Logger log = LoggerFactory.getLogger(DeadLetterReplay.class);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 || !(args[0].equals("tasks") || args[0].equals("events"))) {
+            System.err.println("Usage: DeadLetterReplay <tasks|events> <queue-or-topic>");
+            System.exit(2);
+        }
+        int replayed = DeadLetters.replay(args[0], args[1]);
+        log.info("Replayed {} dead-lettered record(s) into {}/{}", replayed, args[0], args[1]);
+        System.out.println(replayed + " record(s) replayed from " + DeadLetters.file(args[0], args[1]));
+    }
+}
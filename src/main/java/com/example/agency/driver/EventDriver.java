@@ -1,7 +1,9 @@
 package com.example.agency.driver;
 
+import com.example.agency.bus.Envelope;
 import com.example.agency.bus.Source.FileSource;
 import com.example.agency.bus.Source;
+import com.example.agency.messages.AgencyMessages;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,8 +25,17 @@ public class EventDriver {
         public Builder event(String name) { this.eventName = name; return this; }
         public Builder at(Instant ts) { this.timestamp = ts; return this; }
         public Builder publish() {
-            String payload = eventName+":"+timestamp;
-            bus.publish(payload); log.info("Published {}", payload);
+            // the event name and timestamp are the text form of a registered message, e.g. groomingNeeded:<instant>;
+            // without at(...) the event is for now
+            Envelope<?> event;
+            try {
+                event = AgencyMessages.decode(eventName+":"+(timestamp != null ? timestamp : Instant.now()))
+                        .withTimestamp(System.currentTimeMillis());
+            } catch (IllegalArgumentException e) {
+                log.error("Not publishing event {}: {}", eventName, e.getMessage());
+                return this;
+            }
+            bus.publish(event); log.info("Published {}", event);
             return this;
         }
         public Builder sleep(Duration d) { try { Thread.sleep(d.toMillis()); } catch(Exception ignored){}; return this; }
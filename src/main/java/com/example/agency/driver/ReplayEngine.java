@@ -0,0 +1,376 @@
+package com.example.agency.driver;
+
+import com.example.agency.bus.Envelope;
+import com.example.agency.bus.RecordedLog;
+import com.example.agency.bus.Source;
+import com.example.agency.messages.AgencyMessages;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays recorded bus traffic into the running agents and measures how long each replayed message takes to run
+ * through them, to reproduce production traffic shapes against a new build and find its throughput ceiling.
+ * <p>
+ * A recording is a copy of {@code data/bus_state/log} (or of the memory transport's journal) from another run,
+ * {@code <dir>/<events|tasks>/<name>/*.seg}. Its records are published again through {@link Source.FileSource} and
+ * {@link Source.TaskQueue}, merged across queues and topics in the order they were appended and spaced as they were,
+ * divided by the speed ({@code max} publishes without waiting). With N copies every record is published N times,
+ * copy i under key {@code <key>-i} (copy 0 keeps its key) so that N times as many keys run side by side; bodies are
+ * not rewritten. Replaying events alone reproduces the chains the agents run for them; replaying tasks as well also
+ * re-runs the tasks those chains already produced in the recording.
+ * <p>
+ * Every replayed envelope gets a chain of its own ({@link Envelope#CHAIN_HEADER}), which the agents copy into what
+ * they publish for it. Once nothing was published for the settle time, the engine reads what was published since it
+ * started (the logs of the file transport or the journal of the memory transport) and reports, per type of replayed
+ * message, the time from publishing a record to the last record of its chain, in milliseconds of append time.
+ * Text records from before envelopes cannot carry a chain and are replayed untracked.
+ * <p>
+ * {@code ReplayEngine <recording-dir> [--speed 1|10|max] [--copies N] [--kinds events,tasks] [--settle seconds]
+ * [--timeout seconds] [--report chains.csv]}; it exits once the report is printed, the bus threads it starts are
+ * daemons.
+ */
+public class ReplayEngine {
+    private static final Logger log = LoggerFactory.getLogger(ReplayEngine.class);
+
+    private final Path recording;
+    private final double speed;
+    private final int copies;
+    private final Set<String> kinds;
+    private final Duration settle;
+    private final Duration timeout;
+    private final Path report;
+
+    private final Map<String, Source.TaskQueue> queues = new HashMap<>();
+    private final Map<String, Source.FileSource> topics = new HashMap<>();
+    private final Map<String, Chain> chains = new LinkedHashMap<>();
+
+    private ReplayEngine(Builder b) {
+        this.recording = b.recording;
+        this.speed = b.speed;
+        this.copies = b.copies;
+        this.kinds = b.kinds;
+        this.settle = b.settle;
+        this.timeout = b.timeout;
+        this.report = b.report;
+    }
+
+    public static Builder builder(Path recording) { return new Builder(recording); }
+
+    public static class Builder {
+        private final Path recording;
+        private double speed = 1;
+        private int copies = 1;
+        private Set<String> kinds = Set.of("events", "tasks");
+        private Duration settle = Duration.ofSeconds(5);
+        private Duration timeout = Duration.ofMinutes(10);
+        private Path report;
+
+        Builder(Path recording) { this.recording = recording; }
+
+        /**
+         * @param speed how many times faster than recorded, 0 for as fast as possible
+         */
+        public Builder speed(double speed) { this.speed = Math.max(0, speed); return this; }
+        public Builder copies(int copies) { this.copies = Math.max(1, copies); return this; }
+        public Builder kinds(Set<String> kinds) { this.kinds = Set.copyOf(kinds); return this; }
+        /** How long the bus must be quiet after the replay before the chains count as done. */
+        public Builder settle(Duration settle) { this.settle = settle; return this; }
+        /** The longest wait for the bus to become quiet. */
+        public Builder timeout(Duration timeout) { this.timeout = timeout; return this; }
+        /** A CSV file to write every chain to. */
+        public Builder report(Path report) { this.report = report; return this; }
+        public ReplayEngine build() { return new ReplayEngine(this); }
+    }
+
+    /**
+     * What a replay published and how long its chains took.
+     *
+     * @param latencyMillis the chain latencies per type of replayed message
+     * @param unseen tracked records that never showed up in the published logs
+     * @param maxLagMillis how far publishing fell behind the scaled schedule at worst
+     */
+    public record Report(long published, long untracked, long unseen, double publishSeconds, double drainSeconds,
+                         long maxLagMillis, Map<String, ConcurrentHistogram> latencyMillis) {
+
+        public String summary() {
+            StringBuilder sb = new StringBuilder(String.format(
+                    "Replayed %d record(s) in %.1f s (%.0f/s, up to %d ms behind schedule), chains drained after %.1f s;"
+                            + " %d untracked, %d unseen%n",
+                    published, publishSeconds, publishSeconds > 0 ? published / publishSeconds : 0.0, maxLagMillis,
+                    drainSeconds, untracked, unseen));
+            latencyMillis.forEach((type, h) -> sb.append(String.format(
+                    "  %-28s chains %6d  p50 %7d ms  p90 %7d ms  p99 %7d ms  max %7d ms%n", type, h.getTotalCount(),
+                    h.getValueAtPercentile(50), h.getValueAtPercentile(90), h.getValueAtPercentile(99), h.getMaxValue())));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * One replayed record and what the agents published for it.
+     */
+    private static final class Chain {
+        private final String type;
+        private final long startMillis;
+        private long lastMillis = -1;
+        private int records;
+
+        private Chain(String type, long startMillis) {
+            this.type = type;
+            this.startMillis = startMillis;
+        }
+
+        private void seen(long appendMillis) {
+            records++;
+            lastMillis = Math.max(lastMillis, appendMillis);
+        }
+    }
+
+    /**
+     * The next record of one recorded queue or topic.
+     */
+    private static final class Head {
+        private final String kind;
+        private final String name;
+        private final int order;
+        private final RecordedLog log;
+        private RecordedLog.Record record;
+
+        private Head(String kind, String name, int order, RecordedLog log) {
+            this.kind = kind;
+            this.name = name;
+            this.order = order;
+            this.log = log;
+        }
+
+        private boolean advance() {
+            record = log.next();
+            return record != null;
+        }
+    }
+
+    public Report run() throws IOException, InterruptedException {
+        Path published = RecordedLog.publishedDir();
+        if (published != null && Files.isDirectory(published)
+                && recording.toRealPath().equals(published.toRealPath())) {
+            throw new IllegalArgumentException("The recording " + recording + " is the bus itself; replay a copy");
+        }
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        PriorityQueue<Head> heads = new PriorityQueue<>(Comparator
+                .comparingLong((Head h) -> h.record.timestamp()).thenComparingInt(h -> h.order));
+        for (Path dir : RecordedLog.logDirs(recording)) {
+            String kind = dir.getParent().getFileName().toString();
+            if (!kinds.contains(kind)) {
+                continue;
+            }
+            Head head = new Head(kind, "tasks".equals(kind) ? queueName(dir) : dir.getFileName().toString(),
+                    heads.size(), RecordedLog.open(dir, 0));
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        if (heads.isEmpty()) {
+            throw new NoSuchFileException(recording.toString(), null, "no recorded " + kinds + " logs");
+        }
+        log.info("ReplayEngine {}: replaying {} log(s) of {} at {}, {} cop{}", runId, heads.size(), recording,
+                speed > 0 ? speed + "x" : "max speed", copies, copies == 1 ? "y" : "ies");
+
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        long firstTimestamp = heads.peek().record.timestamp();
+        long publishedCount = 0;
+        long untracked = 0;
+        long maxLagNanos = 0;
+        while (!heads.isEmpty()) {
+            Head head = heads.poll();
+            RecordedLog.Record r = head.record;
+            if (speed > 0) {
+                long due = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(r.timestamp() - firstTimestamp) / speed);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } else {
+                    maxLagNanos = Math.max(maxLagNanos, -wait);
+                }
+            }
+            for (int copy = 0; copy < copies; copy++) {
+                if (!publish(head, r, copy, runId)) {
+                    untracked++;
+                }
+                publishedCount++;
+            }
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+        double publishSeconds = (System.nanoTime() - startNanos) / 1e9;
+        log.info("ReplayEngine {}: published {} record(s) in {} s, waiting for the agents", runId, publishedCount,
+                String.format("%.1f", publishSeconds));
+
+        awaitQuiet(published);
+        return report(published, startMillis, publishedCount, untracked, publishSeconds,
+                TimeUnit.NANOSECONDS.toMillis(maxLagNanos));
+    }
+
+    /**
+     * @return whether the record is tracked, i.e. an envelope that now carries a chain of its own
+     */
+    private boolean publish(Head head, RecordedLog.Record r, int copy, String runId) {
+        String key = copy == 0 || r.key() == null ? r.key() : r.key() + "-" + copy;
+        String payload = r.payload();
+        boolean tracked = false;
+        if (Envelope.isBinary(payload)) {
+            try {
+                String chainId = runId + "." + chains.size();
+                Envelope<?> envelope = AgencyMessages.decode(payload).withKey(key).withHeader(Envelope.CHAIN_HEADER, chainId);
+                payload = envelope.encode();
+                chains.put(chainId, new Chain(envelope.type().name(), System.currentTimeMillis()));
+                tracked = true;
+            } catch (IllegalArgumentException e) {
+                log.debug("ReplayEngine: replaying an undecodable record of {}/{} as it is: {}", head.kind, head.name, e.getMessage());
+            }
+        }
+        if ("tasks".equals(head.kind)) {
+            queues.computeIfAbsent(head.name, Source.TaskQueue::new).enqueue(key, payload);
+        } else {
+            topics.computeIfAbsent(head.name, Source.FileSource::new).publish(key, payload);
+        }
+        return tracked;
+    }
+
+    /**
+     * Partition p > 0 of task queue Q is logged as {@code Q.p}, next to {@code Q}.
+     */
+    private static String queueName(Path dir) {
+        String name = dir.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0 && dot < name.length() - 1 && name.substring(dot + 1).chars().allMatch(Character::isDigit)
+                && Files.isDirectory(dir.resolveSibling(name.substring(0, dot)))) {
+            return name.substring(0, dot);
+        }
+        return name;
+    }
+
+    /**
+     * Waits until nothing was appended to the published logs for the settle time, judged by their tail files.
+     */
+    private void awaitQuiet(Path published) throws IOException, InterruptedException {
+        if (published == null) {
+            log.warn("ReplayEngine: the bus transport keeps no log of what it publishes (use bus.Transport=file, or "
+                    + "memory with bus.Journal=true); reporting throughput only");
+            Thread.sleep(settle.toMillis());
+            return;
+        }
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            long lastAppend = 0;
+            for (Path dir : RecordedLog.logDirs(published)) {
+                Path tail = dir.resolve("tail");
+                if (Files.exists(tail)) {
+                    lastAppend = Math.max(lastAppend, Files.getLastModifiedTime(tail).toMillis());
+                }
+            }
+            long quiet = System.currentTimeMillis() - lastAppend;
+            if (quiet >= settle.toMillis()) {
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                log.warn("ReplayEngine: the agents are still publishing after {}; reporting the chains as they are", timeout);
+                return;
+            }
+            Thread.sleep(Math.max(10, Math.min(settle.toMillis() - quiet, 500)));
+        }
+    }
+
+    private Report report(Path published, long startMillis, long publishedCount, long untracked, double publishSeconds,
+                          long maxLagMillis) throws IOException {
+        if (published != null) {
+            for (Path dir : RecordedLog.logDirs(published)) {
+                RecordedLog live = RecordedLog.open(dir, startMillis);
+                for (RecordedLog.Record r = live.next(); r != null; r = live.next()) {
+                    if (r.timestamp() < startMillis || !Envelope.isBinary(r.payload())) {
+                        continue;
+                    }
+                    String chainId;
+                    try {
+                        chainId = AgencyMessages.decode(r.payload()).header(Envelope.CHAIN_HEADER);
+                    } catch (IllegalArgumentException e) {
+                        continue;
+                    }
+                    Chain chain = chainId == null ? null : chains.get(chainId);
+                    if (chain != null) {
+                        chain.seen(r.timestamp());
+                    }
+                }
+            }
+        }
+        Map<String, ConcurrentHistogram> latencies = new TreeMap<>();
+        List<String> lines = new ArrayList<>();
+        lines.add("chain,type,records,latency_ms");
+        long unseen = 0;
+        long lastMillis = startMillis;
+        for (Map.Entry<String, Chain> e : chains.entrySet()) {
+            Chain chain = e.getValue();
+            if (chain.records == 0) {
+                unseen++;
+                continue;
+            }
+            long latency = Math.max(0, chain.lastMillis - chain.startMillis);
+            latencies.computeIfAbsent(chain.type, t -> new ConcurrentHistogram(3)).recordValue(latency);
+            lastMillis = Math.max(lastMillis, chain.lastMillis);
+            lines.add(e.getKey() + "," + chain.type + "," + chain.records + "," + latency);
+        }
+        if (report != null) {
+            Files.write(report, lines, StandardCharsets.UTF_8);
+            log.info("ReplayEngine: {} chain(s) written to {}", lines.size() - 1, report);
+        }
+        return new Report(publishedCount, untracked, published == null ? 0 : unseen, publishSeconds,
+                (lastMillis - startMillis) / 1000.0, maxLagMillis, latencies);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length % 2 == 0) {
+            usage();
+        }
+        Builder b = builder(Paths.get(args[0]));
+        for (int i = 1; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--speed" -> b.speed("max".equals(value) ? 0 : Double.parseDouble(value.replace("x", "")));
+                case "--copies" -> b.copies(Integer.parseInt(value));
+                case "--kinds" -> b.kinds(Set.of(value.split(",")));
+                case "--settle" -> b.settle(Duration.ofSeconds(Long.parseLong(value)));
+                case "--timeout" -> b.timeout(Duration.ofSeconds(Long.parseLong(value)));
+                case "--report" -> b.report(Paths.get(value));
+                default -> usage();
+            }
+        }
+        Report report = b.build().run();
+        log.info("ReplayEngine finished: {} record(s) replayed", report.published());
+        System.out.print(report.summary());
+    }
+
+    private static void usage() {
+        System.err.println("Usage: ReplayEngine <recording-dir> [--speed 1|10|max] [--copies N] [--kinds events,tasks]"
+                + " [--settle seconds] [--timeout seconds] [--report chains.csv]");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.agency.messages;
+
+import com.example.agency.bus.BinaryReader;
+import com.example.agency.bus.BinaryWriter;
+import com.example.agency.bus.Envelope;
+import com.example.agency.bus.MessageCodec;
+import com.example.agency.bus.MessageType;
+
+import java.time.Instant;
+
+/**
+ * The messages the agents exchange over the bus, with their schema ids. Events use ids from 1, tasks from 100.
+ * Ids and names are stored in the logs: never reuse or rename them, add a type or a version instead.
+ */
+public final class AgencyMessages {
+
+    /**
+     * Starts the day's work: grooming and the user/tech conversation.
+     */
+    public record TodayEvent(Instant date) {
+    }
+
+    /**
+     * Asks for a grooming cycle, from the event driver.
+     */
+    public record GroomingNeeded(Instant at) {
+    }
+
+    /**
+     * A message was posted on a Teams/Slack channel for {@code recipient}.
+     */
+    public record NewSlackMessageEvent(String channel, String sender, String recipient) {
+    }
+
+    public record BeginGroomingCycle(String projectKey) {
+    }
+
+    public record StartLoginIssueConversation() {
+    }
+
+    public record ProcessNewSlackMessage(String channel, String originalSender) {
+    }
+
+    public static final MessageType<TodayEvent> TODAY_EVENT = MessageType.register(1, "TodayEvent", 1,
+            TodayEvent.class,
+            MessageCodec.of((e, out) -> out.writeInstant(e.date()), in -> new TodayEvent(in.readInstant())),
+            e -> e.date().toString(), text -> new TodayEvent(Instant.parse(text)));
+
+    public static final MessageType<GroomingNeeded> GROOMING_NEEDED = MessageType.register(2, "groomingNeeded", 1,
+            GroomingNeeded.class,
+            MessageCodec.of((e, out) -> out.writeInstant(e.at()), in -> new GroomingNeeded(in.readInstant())),
+            e -> e.at().toString(), text -> new GroomingNeeded(Instant.parse(text)));
+
+    public static final MessageType<NewSlackMessageEvent> NEW_SLACK_MESSAGE_EVENT = MessageType.register(3,
+            "NewSlackMessageEvent", 1, NewSlackMessageEvent.class,
+            MessageCodec.of(AgencyMessages::write, AgencyMessages::readNewSlackMessageEvent));
+
+    public static final MessageType<BeginGroomingCycle> BEGIN_GROOMING_CYCLE = MessageType.register(100,
+            "BeginGroomingCycle", 1, BeginGroomingCycle.class,
+            MessageCodec.of((t, out) -> out.writeString(t.projectKey()), in -> new BeginGroomingCycle(in.readString())));
+
+    public static final MessageType<StartLoginIssueConversation> START_LOGIN_ISSUE_CONVERSATION = MessageType.register(
+            101, "StartLoginIssueConversation", 1, StartLoginIssueConversation.class,
+            MessageCodec.of((t, out) -> { }, in -> new StartLoginIssueConversation()),
+            t -> "", text -> new StartLoginIssueConversation());
+
+    public static final MessageType<ProcessNewSlackMessage> PROCESS_NEW_SLACK_MESSAGE = MessageType.register(102,
+            "ProcessNewSlackMessage", 1, ProcessNewSlackMessage.class,
+            MessageCodec.of(AgencyMessages::write, AgencyMessages::readProcessNewSlackMessage));
+
+    private AgencyMessages() {
+    }
+
+    /**
+     * Decodes a message from the bus, binary or text; the types above are registered first.
+     *
+     * @throws IllegalArgumentException if it is not one of them or is malformed
+     */
+    public static Envelope<?> decode(String message) {
+        return Envelope.decode(message);
+    }
+
+    private static void write(NewSlackMessageEvent event, BinaryWriter out) {
+        out.writeString(event.channel());
+        out.writeString(event.sender());
+        out.writeString(event.recipient());
+    }
+
+    private static NewSlackMessageEvent readNewSlackMessageEvent(BinaryReader in) {
+        return new NewSlackMessageEvent(in.readString(), in.readString(), in.readString());
+    }
+
+    private static void write(ProcessNewSlackMessage task, BinaryWriter out) {
+        out.writeString(task.channel());
+        out.writeString(task.originalSender());
+    }
+
+    private static ProcessNewSlackMessage readProcessNewSlackMessage(BinaryReader in) {
+        return new ProcessNewSlackMessage(in.readString(), in.readString());
+    }
+}
@@ -1,16 +1,20 @@
 package com.example.agency.orchestrator;
 
+import com.example.agency.bus.Envelope;
 import com.example.agency.bus.Source;
+import com.example.agency.messages.AgencyMessages;
+import com.example.agency.messages.AgencyMessages.BeginGroomingCycle;
+import com.example.agency.messages.AgencyMessages.GroomingNeeded;
+import com.example.agency.messages.AgencyMessages.NewSlackMessageEvent;
+import com.example.agency.messages.AgencyMessages.ProcessNewSlackMessage;
+import com.example.agency.messages.AgencyMessages.StartLoginIssueConversation;
+import com.example.agency.messages.AgencyMessages.TodayEvent;
 import com.example.agency.util.AgentActivityLogger;
-import com.fasterxml.jackson.databind.JsonNode; // For parsing event payload
-import com.fasterxml.jackson.databind.ObjectMapper; // For parsing event payload
 import dev.langchain4j.memory.ChatMemory;
 import dev.langchain4j.model.language.LanguageModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException; // For ObjectMapper
-import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 
@@ -19,7 +23,6 @@ public class SchedulerAgent {
     private final Source.FileSource eventBus;
     private boolean groomingCycleTriggeredThisRun = false;
     private boolean userTechChatInitiatedThisRun = false;
-    private final ObjectMapper objectMapper = new ObjectMapper(); // For parsing event JSON
 
     public SchedulerAgent(LanguageModel llm, ChatMemory memory, Source.FileSource eventBus) {
         this.eventBus = eventBus;
@@ -28,71 +31,63 @@ public class SchedulerAgent {
     }
 
     private void onEvent(String rawEvent) {
-        AgentActivityLogger.logAction("SchedulerAgent", "EventBus", "Received event: " + rawEvent);
+        Envelope<?> event;
+        try {
+            event = AgencyMessages.decode(rawEvent);
+        } catch (IllegalArgumentException e) {
+            AgentActivityLogger.logError("SchedulerAgent", "EventBus", "Ignoring undecodable event: " + Envelope.debugView(rawEvent), e);
+            return;
+        }
+        AgentActivityLogger.logAction("SchedulerAgent", "EventBus", "Received event: " + event);
 
-        if (rawEvent.startsWith("TodayEvent:")) {
-            handleTodayEvent(rawEvent);
-        } else if (rawEvent.startsWith("NewSlackMessageEvent:")) {
-            handleNewSlackMessageEvent(rawEvent);
-        } else {
-            handleOther(rawEvent);
+        switch (event.body()) {
+            case TodayEvent today -> handleTodayEvent(today);
+            case NewSlackMessageEvent slack -> handleNewSlackMessageEvent(slack);
+            case GroomingNeeded ignored -> {
+                AgentActivityLogger.logAction("SchedulerAgent", "TodayEvent", "Triggering GroomingAgent for ALPHA");
+                new Source.TaskQueue("GroomingAgent").enqueue(beginGrooming("ALPHA"));
+            }
+            default -> log.debug("SchedulerAgent: no routing for {}", event.type());
         }
     }
 
-    private void handleOther(String rawEvent) {
-        if(rawEvent.contains("groomingNeeded")){
-            AgentActivityLogger.logAction("SchedulerAgent", "TodayEvent", "Triggering GroomingAgent for ALPHA");
-            new Source.TaskQueue("GroomingAgent").enqueue("BeginGroomingCycle:{\"projectKey\":\"ALPHA\"}");
-
-        }
+    private static Envelope<BeginGroomingCycle> beginGrooming(String projectKey) {
+        return Envelope.of(AgencyMessages.BEGIN_GROOMING_CYCLE, new BeginGroomingCycle(projectKey)).withKey(projectKey);
     }
 
-    private void handleTodayEvent(String rawTodayEvent) {
-        try {
-            Instant now = Instant.parse(rawTodayEvent.split(":", 2)[1].trim());
-            ZonedDateTime zdt = now.atZone(ZoneId.systemDefault());
-            AgentActivityLogger.logAction("SchedulerAgent", "TodayEvent", "Processing for date: " + zdt);
+    private void handleTodayEvent(TodayEvent today) {
+        ZonedDateTime zdt = today.date().atZone(ZoneId.systemDefault());
+        AgentActivityLogger.logAction("SchedulerAgent", "TodayEvent", "Processing for date: " + zdt);
 
-            if (!groomingCycleTriggeredThisRun) { // Simplified for demo
-                AgentActivityLogger.logAction("SchedulerAgent", "TodayEvent", "Triggering GroomingAgent for ALPHA");
-                new Source.TaskQueue("GroomingAgent").enqueue("BeginGroomingCycle:{\"projectKey\":\"ALPHA\"}");
-                groomingCycleTriggeredThisRun = true;
-            }
+        if (!groomingCycleTriggeredThisRun) { // Simplified for demo
+            AgentActivityLogger.logAction("SchedulerAgent", "TodayEvent", "Triggering GroomingAgent for ALPHA");
+            new Source.TaskQueue("GroomingAgent").enqueue(beginGrooming("ALPHA"));
+            groomingCycleTriggeredThisRun = true;
+        }
 
-            if (!userTechChatInitiatedThisRun) {
-                AgentActivityLogger.logAction("SchedulerAgent", "TodayEvent", "Initiating User-Tech Agent conversation.");
-                new Source.TaskQueue("UserAgent").enqueue("StartLoginIssueConversation");
-                userTechChatInitiatedThisRun = true;
-            }
-        } catch (Exception e) {
-            AgentActivityLogger.logError("SchedulerAgent", "TodayEvent - " + rawTodayEvent, "Error processing", e);
+        if (!userTechChatInitiatedThisRun) {
+            AgentActivityLogger.logAction("SchedulerAgent", "TodayEvent", "Initiating User-Tech Agent conversation.");
+            new Source.TaskQueue("UserAgent").enqueue(
+                    Envelope.of(AgencyMessages.START_LOGIN_ISSUE_CONVERSATION, new StartLoginIssueConversation()));
+            userTechChatInitiatedThisRun = true;
         }
     }
 
-    private void handleNewSlackMessageEvent(String rawSlackEvent) {
-        try {
-            String eventJson = rawSlackEvent.substring("NewSlackMessageEvent:".length());
-            JsonNode eventNode = objectMapper.readTree(eventJson);
-            String channel = eventNode.path("channel").asText();
-            String sender = eventNode.path("sender").asText();
-            String recipient = eventNode.path("recipient").asText();
+    private void handleNewSlackMessageEvent(NewSlackMessageEvent slack) {
+        String channel = slack.channel();
+        String sender = slack.sender();
+        String recipient = slack.recipient();
 
-            AgentActivityLogger.logAction("SchedulerAgent", "NewSlackMessageEvent",
-                    "Routing message from " + sender + " to " + recipient + " on channel " + channel);
+        AgentActivityLogger.logAction("SchedulerAgent", "NewSlackMessageEvent",
+                "Routing message from " + sender + " to " + recipient + " on channel " + channel);
 
-            if (recipient != null && !recipient.isEmpty()) {
-                String taskForRecipient = String.format(
-                        "ProcessNewSlackMessage:{\"channel\":\"%s\", \"originalSender\":\"%s\"}",
-                        channel, sender
-                );
-                new Source.TaskQueue(recipient).enqueue(taskForRecipient);
-                AgentActivityLogger.logAction("SchedulerAgent", "NewSlackMessageEvent",
-                        "Enqueued task for " + recipient + " to process message from " + sender);
-            } else {
-                AgentActivityLogger.logError("SchedulerAgent", "NewSlackMessageEvent", "Recipient not found in event: " + rawSlackEvent, null);
-            }
-        } catch (IOException e) {
-            AgentActivityLogger.logError("SchedulerAgent", "NewSlackMessageEvent - " + rawSlackEvent, "Failed to parse event JSON", e);
+        if (recipient != null && !recipient.isEmpty()) {
+            new Source.TaskQueue(recipient).enqueue(Envelope.of(AgencyMessages.PROCESS_NEW_SLACK_MESSAGE,
+                    new ProcessNewSlackMessage(channel, sender)).withKey(channel));
+            AgentActivityLogger.logAction("SchedulerAgent", "NewSlackMessageEvent",
+                    "Enqueued task for " + recipient + " to process message from " + sender);
+        } else {
+            AgentActivityLogger.logError("SchedulerAgent", "NewSlackMessageEvent", "Recipient not found in event: " + slack, null);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,308 @@
+package com.example.scrum.llm;
+
+import com.example.scrum.llm.metrics.InferenceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Admission queue in front of the models.
+ * <p>
+ * Every generation is submitted with a {@link Priority} and a deadline and waits here until it may run.
+ * A request is admitted when fewer than {@code llama.MaxConcurrentGenerations} generations run and its
+ * KV cache fits into what is left of {@code llama.KvBudgetBytes}; the queue is ordered by priority,
+ * then deadline, then arrival. {@code llama.InteractiveReservedSlots} slots are kept free for
+ * {@link Priority#INTERACTIVE} requests, so a burst of long batch generations cannot delay an
+ * interactive reply by more than one running generation's worth of CPU sharing.
+ * <p>
+ * When {@code llama.QueueCapacity} requests are waiting, a new request evicts the least urgent waiting
+ * one if it is more urgent, otherwise it is rejected. Rejected and evicted requests fail with
+ * {@link RejectedExecutionException}, requests that miss their deadline with {@link TimeoutException}.
+ * Cancelling the returned future removes a waiting request or interrupts a running generation.
+ */
+public class InferenceScheduler implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(InferenceScheduler.class);
+
+    public enum Priority {
+        /** A user or agent is waiting on the reply in a conversation. */
+        INTERACTIVE,
+        NORMAL,
+        /** Reports and other output nobody waits on interactively. */
+        BATCH
+    }
+
+    private static final Comparator<Ticket<?>> URGENCY = Comparator
+            .<Ticket<?>, Priority>comparing(t -> t.priority)
+            .thenComparingLong(t -> t.deadlineNanos)
+            .thenComparingLong(t -> t.sequence);
+
+    private final int maxConcurrent;
+    private final int reservedInteractive;
+    private final long kvBudgetBytes;
+    private final int queueCapacity;
+
+    // not synchronized: submitters are bus handlers on virtual threads, which a contended monitor would pin
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Ticket<?>> waiting = new PriorityQueue<>(URGENCY);
+    private int running;
+    private long runningKvBytes;
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final AtomicInteger workerCount = new AtomicInteger();
+    private final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "inference-" + workerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "inference-deadlines");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Limits from the {@code llama.MaxConcurrentGenerations}, {@code llama.InteractiveReservedSlots},
+     * {@code llama.KvBudgetBytes} and {@code llama.QueueCapacity} system properties. The default KV
+     * budget is half the maximum heap, where the generation state is allocated.
+     */
+    public InferenceScheduler() {
+        this(Integer.getInteger("llama.MaxConcurrentGenerations", 2),
+                Integer.getInteger("llama.InteractiveReservedSlots", 1),
+                Long.getLong("llama.KvBudgetBytes", Runtime.getRuntime().maxMemory() / 2),
+                Integer.getInteger("llama.QueueCapacity", 32));
+    }
+
+    public InferenceScheduler(int maxConcurrent, int reservedInteractive, long kvBudgetBytes, int queueCapacity) {
+        if (maxConcurrent < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("maxConcurrent and queueCapacity must be positive");
+        }
+        this.maxConcurrent = maxConcurrent;
+        // at least one slot stays usable for non-interactive requests
+        this.reservedInteractive = Math.max(0, Math.min(reservedInteractive, maxConcurrent - 1));
+        this.kvBudgetBytes = kvBudgetBytes;
+        this.queueCapacity = queueCapacity;
+        log.info("InferenceScheduler: {} concurrent generation(s), {} reserved for interactive, KV budget {} MB, queue capacity {}",
+                maxConcurrent, this.reservedInteractive, kvBudgetBytes >> 20, queueCapacity);
+    }
+
+    /**
+     * Queues a generation.
+     *
+     * @param kvBytes  KV cache the generation allocates, counted against the budget while it runs
+     * @param deadline time from now after which the request fails instead of running (or is interrupted if running)
+     */
+    public <T> CompletableFuture<T> submit(String agentName, String taskType, Priority priority, Duration deadline,
+                                           long kvBytes, Supplier<T> generation) {
+        Ticket<T> ticket = new Ticket<>(agentName, taskType, priority, System.nanoTime() + deadline.toNanos(),
+                sequence.incrementAndGet(), kvBytes, generation);
+        ticket.future.whenComplete((result, e) -> {
+            if (ticket.future.isCancelled()) {
+                ticket.interruptIfRunning();
+            }
+        });
+
+        Ticket<?> evicted = null;
+        lock.lock();
+        try {
+            if (waiting.size() >= queueCapacity) {
+                Ticket<?> leastUrgent = waiting.stream().max(URGENCY).orElseThrow();
+                if (URGENCY.compare(ticket, leastUrgent) >= 0) {
+                    ticket.future.completeExceptionally(new RejectedExecutionException(
+                            "Inference queue full (" + queueCapacity + "), rejected " + ticket));
+                    log.warn("Shedding {}: queue full", ticket);
+                    return ticket.future;
+                }
+                waiting.remove(leastUrgent);
+                evicted = leastUrgent;
+            }
+            waiting.add(ticket);
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) {
+            log.warn("Shedding {} in favour of {}: queue full", evicted, ticket);
+            evicted.future.completeExceptionally(new RejectedExecutionException(
+                    "Inference queue full (" + queueCapacity + "), evicted " + evicted));
+        }
+
+        ScheduledFuture<?> expiry = timer.schedule(ticket::expire, Math.max(0, deadline.toNanos()), TimeUnit.NANOSECONDS);
+        ticket.future.whenComplete((result, e) -> expiry.cancel(false));
+        dispatch();
+        return ticket.future;
+    }
+
+    /**
+     * Starts as many waiting requests as the limits allow, most urgent first.
+     */
+    private void dispatch() {
+        while (true) {
+            Ticket<?> next;
+            lock.lock();
+            try {
+                next = waiting.peek();
+                while (next != null && next.future.isDone()) {
+                    // cancelled or expired while waiting
+                    waiting.poll();
+                    next = waiting.peek();
+                }
+                if (next == null || !admits(next)) {
+                    return;
+                }
+                waiting.poll();
+                running++;
+                runningKvBytes += next.kvBytes;
+            } finally {
+                lock.unlock();
+            }
+            start(next);
+        }
+    }
+
+    private boolean admits(Ticket<?> ticket) {
+        int slots = ticket.priority == Priority.INTERACTIVE ? maxConcurrent : maxConcurrent - reservedInteractive;
+        if (running >= slots) {
+            return false;
+        }
+        // a single request larger than the budget still runs, alone
+        return running == 0 || runningKvBytes + ticket.kvBytes <= kvBudgetBytes;
+    }
+
+    private void start(Ticket<?> ticket) {
+        InferenceMetrics.global().recordNanos(InferenceMetrics.Metric.QUEUE_WAIT, ticket.agentName, ticket.taskType,
+                System.nanoTime() - ticket.submittedNanos);
+        try {
+            workers.execute(() -> {
+                try {
+                    ticket.run();
+                } finally {
+                    finished(ticket);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ticket.future.completeExceptionally(e);
+            finished(ticket);
+        }
+    }
+
+    private void finished(Ticket<?> ticket) {
+        lock.lock();
+        try {
+            running--;
+            runningKvBytes -= ticket.kvBytes;
+        } finally {
+            lock.unlock();
+        }
+        dispatch();
+    }
+
+    public int waitingCount() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int runningCount() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        Ticket<?>[] pending;
+        lock.lock();
+        try {
+            pending = waiting.toArray(Ticket<?>[]::new);
+            waiting.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Ticket<?> ticket : pending) {
+            ticket.future.completeExceptionally(new RejectedExecutionException("InferenceScheduler closed"));
+        }
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static final class Ticket<T> {
+        final String agentName;
+        final String taskType;
+        final Priority priority;
+        final long submittedNanos = System.nanoTime();
+        final long deadlineNanos;
+        final long sequence;
+        final long kvBytes;
+        final Supplier<T> generation;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        // guarded by this
+        private Thread runner;
+
+        Ticket(String agentName, String taskType, Priority priority, long deadlineNanos, long sequence, long kvBytes, Supplier<T> generation) {
+            this.agentName = agentName;
+            this.taskType = taskType;
+            this.priority = priority;
+            this.deadlineNanos = deadlineNanos;
+            this.sequence = sequence;
+            this.kvBytes = kvBytes;
+            this.generation = generation;
+        }
+
+        void run() {
+            synchronized (this) {
+                if (future.isDone()) {
+                    return;
+                }
+                runner = Thread.currentThread();
+            }
+            try {
+                future.complete(generation.get());
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    runner = null;
+                    // an interrupt aimed at this generation must not leak into the next one on this worker
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        void expire() {
+            if (future.completeExceptionally(new TimeoutException("Deadline exceeded for " + this))) {
+                interruptIfRunning();
+            }
+        }
+
+        synchronized void interruptIfRunning() {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return priority + " request " + sequence + " of " + agentName + "/" + taskType;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.example.scrum.llm;
 
+import com.example.scrum.llm.brains.Generation;
 import com.example.scrum.llm.brains.LlamaService;
+import com.example.scrum.llm.metrics.InferenceMetrics;
+import com.example.scrum.llm.metrics.PrometheusEndpoint;
 import dev.langchain4j.model.language.LanguageModel;
 import dev.langchain4j.model.output.FinishReason;
 import dev.langchain4j.model.output.Response;
@@ -9,16 +12,38 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 public class LlamaLanguageModelWrapper implements LanguageModel {
     private static final Logger log = LoggerFactory.getLogger(LlamaLanguageModelWrapper.class);
-    protected final LlamaService llamaService;
+    protected final ModelRouter modelRouter;
+    protected final InferenceScheduler scheduler = new InferenceScheduler();
     private static final int DEFAULT_MAX_OUTPUT_TOKENS = 100; // Or make configurable
     private static final float DEFAULT_TEMPERATURE = 0.1f;   // Or make configurable
+    private static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(Long.getLong("llama.DefaultDeadlineSeconds", 300));
 
     public LlamaLanguageModelWrapper() throws IOException {
-        // Assuming LlamaService.MODEL_PATH_CONFIG_KEY is accessible or read from a shared config
-        this.llamaService = new LlamaService(LlamaService.MODEL_PATH_CONFIG_KEY);
+        // -Dllama.ModelPath overrides the default model location, -Dllama.Profiles adds routed model profiles
+        this.modelRouter = new ModelRouter(System.getProperty("llama.ModelPath", LlamaService.MODEL_PATH_CONFIG_KEY));
+        // -Dllama.MetricsPort serves the inference metrics for Prometheus, they are always available over JMX
+        PrometheusEndpoint.startFromSystemProperties();
+    }
+
+    /**
+     * Loads another GGUF model for the default profile in the background and switches new requests to it;
+     * requests already running finish on the current model, which is unmapped afterwards.
+     */
+    public CompletableFuture<Void> swapModel(String modelPath) {
+        return swapModel(ModelProfile.DEFAULT, modelPath);
+    }
+
+    public CompletableFuture<Void> swapModel(String profile, String modelPath) {
+        return modelRouter.profile(profile).swap(modelPath);
     }
 
     /**
@@ -41,18 +66,87 @@ public class LlamaLanguageModelWrapper implements LanguageModel {
     }
 
     public Response<String> generate(String systemPrompt, String userPrompt, int maxOutputTokens, float temperature) {
+        ModelRegistry registry = modelRouter.profile(ModelProfile.DEFAULT);
+        return await(submit(registry, InferenceMetrics.UNLABELED, InferenceMetrics.UNLABELED, InferenceScheduler.Priority.NORMAL, DEFAULT_DEADLINE,
+                systemPrompt, userPrompt, maxOutputTokens, temperature, registry.profile().topp()));
+    }
+
+    /**
+     * Routed generation: the model and its sampler settings come from the profile configured for this agent and task type;
+     * {@code temperature} is used unless the profile sets its own.
+     */
+    public Response<String> generate(String agentName, String taskType, String systemPrompt, String userPrompt, int maxOutputTokens,
+                                     float temperature) {
+        return generate(agentName, taskType, InferenceScheduler.Priority.NORMAL, DEFAULT_DEADLINE, systemPrompt, userPrompt,
+                maxOutputTokens, temperature);
+    }
+
+    /**
+     * Routed generation queued with the given priority; if it has not finished within {@code deadline}
+     * an empty response with {@link FinishReason#OTHER} is returned.
+     */
+    public Response<String> generate(String agentName, String taskType, InferenceScheduler.Priority priority, Duration deadline,
+                                     String systemPrompt, String userPrompt, int maxOutputTokens, float temperature) {
+        return await(generateAsync(agentName, taskType, priority, deadline, systemPrompt, userPrompt, maxOutputTokens, temperature));
+    }
+
+    /**
+     * Queues a routed generation. Cancelling the returned future drops the request or stops the running generation.
+     */
+    public CompletableFuture<Response<String>> generateAsync(String agentName, String taskType, InferenceScheduler.Priority priority, Duration deadline,
+                                                             String systemPrompt, String userPrompt, int maxOutputTokens,
+                                                             float temperature) {
+        ModelRegistry registry = modelRouter.route(agentName, taskType);
+        log.debug("Routing {}/{} to model profile '{}' at priority {}", agentName, taskType, registry.profile().name(), priority);
+        return submit(registry, agentName, taskType, priority, deadline,
+                systemPrompt, userPrompt, maxOutputTokens, registry.profile().temperature(temperature), registry.profile().topp());
+    }
+
+    private CompletableFuture<Response<String>> submit(ModelRegistry registry, String agentName, String taskType,
+                                                       InferenceScheduler.Priority priority, Duration deadline,
+                                                       String systemPrompt, String userPrompt, int maxOutputTokens, float temperature, float topp) {
         if (userPrompt == null || userPrompt.isEmpty()) {
             log.warn("User prompt is null or empty, returning empty response.");
-            return new Response<>("", new TokenUsage(0, 0), FinishReason.STOP);
+            return CompletableFuture.completedFuture(new Response<>("", new TokenUsage(0, 0), FinishReason.OTHER));
         }
+        return scheduler.submit(agentName, taskType, priority, deadline, registry.kvCacheBytesPerGeneration(), () -> {
+            Generation generation;
+            try (ModelRegistry.Lease lease = registry.acquire()) {
+                generation = lease.service().generate(agentName, taskType, systemPrompt, userPrompt, maxOutputTokens, temperature, topp);
+            }
+            TokenUsage tokenUsage = new TokenUsage(generation.promptTokens(), generation.generatedTokens());
+            FinishReason finishReason = switch (generation.finish()) {
+                case STOP -> FinishReason.STOP;
+                case LENGTH -> FinishReason.LENGTH;
+                case ERROR -> FinishReason.OTHER;
+            };
+            return new Response<>(generation.text(), tokenUsage, finishReason);
+        });
+    }
 
-        String generatedText = llamaService.generateResponse(systemPrompt, userPrompt, maxOutputTokens, temperature);
-
-        int inputTokensUser = userPrompt.split("\\s+").length; // Rough estimate
-        int inputTokensSystem = (systemPrompt != null) ? systemPrompt.split("\\s+").length : 0; // Rough estimate
-        int outputTokens = generatedText.split("\\s+").length; // Rough estimate
-        TokenUsage tokenUsage = new TokenUsage(inputTokensUser + inputTokensSystem, outputTokens);
-
-        return new Response<>(generatedText, tokenUsage, FinishReason.STOP);
+    /**
+     * Waits for a queued generation. Shed, expired and cancelled requests yield an empty response, which
+     * the agents already treat as an unusable answer.
+     */
+    private static Response<String> await(CompletableFuture<Response<String>> pending) {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            pending.cancel(true);
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for a generation, request cancelled");
+        } catch (CancellationException e) {
+            log.warn("Generation cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RejectedExecutionException || cause instanceof TimeoutException || cause instanceof CancellationException) {
+                log.warn("Generation not completed: {}", cause.getMessage());
+            } else if (cause instanceof RuntimeException re) {
+                throw re;
+            } else {
+                throw new IllegalStateException(cause);
+            }
+        }
+        return new Response<>("", new TokenUsage(0, 0), FinishReason.OTHER);
     }
 }
\ No newline at end of file
@@ -0,0 +1,54 @@
+package com.example.scrum.llm;
+
+import com.example.scrum.llm.brains.LlamaService;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * A model plus the settings it is run with.
+ *
+ * @param name          profile name used by the routes, e.g. {@code small} or {@code default}
+ * @param modelPath     GGUF file
+ * @param contextLength context length the KV caches are allocated for
+ * @param batchSize     prompt tokens ingested per forward pass
+ * @param temperature   sampling temperature (0 = greedy), or NaN to keep the temperature the caller asks for
+ * @param topp          nucleus sampling threshold
+ */
+public record ModelProfile(String name, String modelPath, int contextLength, int batchSize, float temperature, float topp) {
+
+    public static final String DEFAULT = "default";
+
+    public static ModelProfile defaults(String modelPath) {
+        return new ModelProfile(DEFAULT, modelPath, LlamaService.DEFAULT_CONTEXT_LENGTH, LlamaService.DEFAULT_BATCH_SIZE, Float.NaN, 0.95f);
+    }
+
+    /**
+     * @return this profile's temperature, or {@code requested} if it does not set one
+     */
+    public float temperature(float requested) {
+        return Float.isNaN(temperature) ? requested : temperature;
+    }
+
+    /**
+     * Reads {@code profile.<name>.path}, {@code .contextLength}, {@code .batchSize}, {@code .temperature} and {@code .topp};
+     * everything but the path falls back to {@link #defaults(String)}, which leaves the temperature to the caller.
+     */
+    static ModelProfile fromProperties(String name, Properties props) {
+        String prefix = "profile." + name + ".";
+        String path = props.getProperty(prefix + "path");
+        if (path == null) {
+            throw new IllegalArgumentException("Missing " + prefix + "path");
+        }
+        ModelProfile d = defaults(path);
+        return new ModelProfile(name, path,
+                Integer.parseInt(props.getProperty(prefix + "contextLength", String.valueOf(d.contextLength()))),
+                Integer.parseInt(props.getProperty(prefix + "batchSize", String.valueOf(d.batchSize()))),
+                Float.parseFloat(props.getProperty(prefix + "temperature", String.valueOf(d.temperature()))),
+                Float.parseFloat(props.getProperty(prefix + "topp", String.valueOf(d.topp()))));
+    }
+
+    LlamaService load() throws IOException {
+        return new LlamaService(modelPath, contextLength, batchSize);
+    }
+}
@@ -0,0 +1,194 @@
+package com.example.scrum.llm;
+
+import com.example.scrum.llm.brains.LlamaService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the currently active {@link LlamaService} and swaps it without downtime.
+ * <p>
+ * Every generation runs under a {@link Lease}. {@link #swap(String)} loads the new model in the
+ * background and then atomically makes it current; new leases go to the new model while leases
+ * already taken finish on the old one. The old model is closed (its mapping unmapped) as soon as
+ * its last lease is released.
+ * <p>
+ * Once the registry is closed no new leases are handed out; leases already taken keep the last model
+ * mapped until they are released.
+ */
+public class ModelRegistry implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ModelRegistry.class);
+
+    private final ModelProfile profile;
+    // null once the registry is closed
+    private final AtomicReference<Slot> current;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ModelRegistry-loader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ModelRegistry(String modelPath) throws IOException {
+        this(ModelProfile.defaults(modelPath));
+    }
+
+    public ModelRegistry(ModelProfile profile) throws IOException {
+        this.profile = profile;
+        this.current = new AtomicReference<>(new Slot(profile.load()));
+    }
+
+    public ModelProfile profile() {
+        return profile;
+    }
+
+    /**
+     * Leases the current model. The lease must be closed when the generation is done.
+     *
+     * @throws IllegalStateException if the registry is closed
+     */
+    public Lease acquire() {
+        while (true) {
+            Slot slot = slot();
+            if (slot.retain()) {
+                return new Lease(slot);
+            }
+            // Lost a race with a swap that already drained this slot; the next read sees the new one.
+        }
+    }
+
+    /**
+     * Loads the given model in the background, with this registry's context length and batch size,
+     * and switches new requests to it once it is loaded.
+     * The returned future completes after the switch; it fails (and the current model stays active)
+     * if the new model cannot be loaded, or if the registry is closed.
+     */
+    public CompletableFuture<Void> swap(String modelPath) {
+        if (current.get() == null) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Model registry is closed"));
+        }
+        return CompletableFuture.runAsync(() -> {
+            log.info("Loading model {} for hot swap", modelPath);
+            LlamaService service;
+            try {
+                service = new LlamaService(modelPath, profile.contextLength(), profile.batchSize());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Slot next = new Slot(service);
+            Slot previous;
+            do {
+                previous = current.get();
+                if (previous == null) {
+                    service.close();
+                    throw new IllegalStateException("Model registry is closed");
+                }
+            } while (!current.compareAndSet(previous, next));
+            log.info("Switched to model {}, draining {} in-flight request(s) on {}",
+                    modelPath, previous.inFlight(), previous.service.getModelPath());
+            previous.release();
+        }, loader).whenComplete((ignored, e) -> {
+            if (e != null) {
+                log.error("Hot swap to {} failed, keeping the current model", modelPath, e);
+            }
+        });
+    }
+
+    /**
+     * KV cache a generation allocates on the current model, used by the {@link InferenceScheduler} to budget memory.
+     */
+    public long kvCacheBytesPerGeneration() {
+        return slot().service.kvCacheBytes();
+    }
+
+    public String currentModelPath() {
+        return slot().service.getModelPath();
+    }
+
+    private Slot slot() {
+        Slot slot = current.get();
+        if (slot == null) {
+            throw new IllegalStateException("Model registry is closed");
+        }
+        return slot;
+    }
+
+    /**
+     * Stops handing out leases and releases the registry's reference to the current model.
+     * Closing an already closed registry does nothing.
+     */
+    @Override
+    public void close() {
+        Slot slot = current.getAndSet(null);
+        if (slot == null) {
+            return;
+        }
+        loader.shutdownNow();
+        slot.release();
+    }
+
+    /**
+     * A model plus its reference count. The registry holds one reference while the slot is current,
+     * each lease holds another; the service is closed when the count drops to zero.
+     */
+    private static final class Slot {
+        private final LlamaService service;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Slot(LlamaService service) {
+            this.service = service;
+        }
+
+        boolean retain() {
+            int n;
+            do {
+                n = refs.get();
+                if (n == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(n, n + 1));
+            return true;
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                service.close();
+            }
+        }
+
+        int inFlight() {
+            // Minus the registry's own reference.
+            return Math.max(0, refs.get() - 1);
+        }
+    }
+
+    /**
+     * Keeps a model mapped while a generation uses it.
+     */
+    public static final class Lease implements AutoCloseable {
+        private final Slot slot;
+        private boolean released;
+
+        private Lease(Slot slot) {
+            this.slot = slot;
+        }
+
+        public LlamaService service() {
+            return slot.service;
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                slot.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.scrum.llm;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Routes each (agent, task type) pair to a {@link ModelProfile}, so cheap decisions can run on a small
+ * model while open-ended replies use a larger one. All profiles are loaded (memory-mapped) up front and
+ * stay resident; each has its own {@link ModelRegistry} and can be hot-swapped independently.
+ * <p>
+ * Routing is configured in a properties file given with {@code -Dllama.Profiles=<file>}:
+ * <pre>
+ * profile.small.path=/models/Llama-3.2-1B-Instruct-Q4_0.gguf
+ * profile.small.contextLength=1024
+ * profile.small.temperature=0
+ * profile.default.path=/models/Llama-3.2-3B-Instruct-Q8_0.gguf
+ *
+ * route.GroomingAgent.AnalyzeTicket=small
+ * route.TechAgent=default
+ * </pre>
+ * A route is looked up as {@code route.<agent>.<taskType>}, then {@code route.<agent>}, then the
+ * {@code default} profile. Without a file (or without a {@code default} profile) the default profile
+ * is the model given by {@code -Dllama.ModelPath}, falling back to {@link com.example.scrum.llm.brains.LlamaService#MODEL_PATH_CONFIG_KEY}.
+ */
+public class ModelRouter implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(ModelRouter.class);
+
+    private final Map<String, ModelRegistry> registries;
+    private final Map<String, String> routes;
+
+    public ModelRouter(String defaultModelPath) throws IOException {
+        Properties props = new Properties();
+        String profilesFile = System.getProperty("llama.Profiles");
+        if (profilesFile != null) {
+            try (InputStream in = Files.newInputStream(Path.of(profilesFile))) {
+                props.load(in);
+            }
+        }
+
+        TreeSet<String> profileNames = new TreeSet<>();
+        Map<String, String> routes = new HashMap<>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith("profile.") && key.endsWith(".path")) {
+                profileNames.add(key.substring("profile.".length(), key.length() - ".path".length()));
+            } else if (key.startsWith("route.")) {
+                routes.put(key.substring("route.".length()), props.getProperty(key).trim());
+            }
+        }
+
+        Map<String, ModelRegistry> registries = new LinkedHashMap<>();
+        try {
+            if (!profileNames.contains(ModelProfile.DEFAULT)) {
+                registries.put(ModelProfile.DEFAULT, new ModelRegistry(ModelProfile.defaults(defaultModelPath)));
+            }
+            for (String name : profileNames) {
+                ModelProfile profile = ModelProfile.fromProperties(name, props);
+                log.info("Loading model profile '{}': {}", name, profile);
+                registries.put(name, new ModelRegistry(profile));
+            }
+        } catch (IOException | RuntimeException e) {
+            registries.values().forEach(ModelRegistry::close);
+            throw e;
+        }
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            if (!registries.containsKey(route.getValue())) {
+                registries.values().forEach(ModelRegistry::close);
+                throw new IllegalArgumentException("Route " + route.getKey() + " refers to unknown profile " + route.getValue());
+            }
+        }
+        this.registries = registries;
+        this.routes = routes;
+        log.info("ModelRouter initialized with profiles {} and {} route(s)", registries.keySet(), routes.size());
+    }
+
+    /**
+     * The registry serving the given agent and task type; either may be {@code null}.
+     */
+    public ModelRegistry route(String agent, String taskType) {
+        String profile = null;
+        if (agent != null) {
+            if (taskType != null) {
+                profile = routes.get(agent + "." + taskType);
+            }
+            if (profile == null) {
+                profile = routes.get(agent);
+            }
+        }
+        return registries.get(profile != null ? profile : ModelProfile.DEFAULT);
+    }
+
+    /**
+     * The registry of a profile by name, e.g. to hot-swap its model.
+     */
+    public ModelRegistry profile(String name) {
+        ModelRegistry registry = registries.get(name);
+        if (registry == null) {
+            throw new IllegalArgumentException("Unknown model profile: " + name);
+        }
+        return registry;
+    }
+
+    @Override
+    public void close() {
+        registries.values().forEach(ModelRegistry::close);
+    }
+}
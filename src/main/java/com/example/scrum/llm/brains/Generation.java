@@ -0,0 +1,30 @@
+package com.example.scrum.llm.brains;
+
+/**
+ * Result of one {@link LlamaService} generation with the token counts the model actually saw.
+ *
+ * @param text            decoded response, trimmed, stop token excluded; for a failed generation the error
+ * @param promptTokens    tokens of the formatted chat prompt, template tokens included
+ * @param generatedTokens tokens sampled by the model, stop token excluded
+ * @param finish          why generation ended
+ */
+public record Generation(String text, int promptTokens, int generatedTokens, Finish finish) {
+
+    public enum Finish {
+        /** Ended on a stop token. */
+        STOP,
+        /** Hit the token limit. */
+        LENGTH,
+        /** Never ran, e.g. the prompt was empty or did not fit the context. */
+        ERROR;
+
+        /** Value of the {@code finish} label in the metrics. */
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    static Generation failed(String text) {
+        return new Generation(text, 0, 0, Finish.ERROR);
+    }
+}
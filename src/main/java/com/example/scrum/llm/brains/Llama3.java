@@ -29,7 +29,6 @@ import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.lang.reflect.Field;
-import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
@@ -320,16 +319,29 @@ final class GGUF {
         return metadata;
     }
 
-    private final ByteBuffer BB_1 = ByteBuffer.allocate(Byte.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-    private final ByteBuffer BB_2 = ByteBuffer.allocate(Short.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-    private final ByteBuffer BB_4 = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
-    private final ByteBuffer BB_8 = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    // GGUF is little-endian and values are packed, so reads must not assume any alignment.
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfDouble DOUBLE_LE = ValueLayout.JAVA_DOUBLE_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // The header is parsed straight from a read-only mapping of the file, instead of one
+    // FileChannel.read per value (hundreds of thousands of syscalls for the tokenizer arrays).
+    private MemorySegment file;
+    private long position;
 
     public static GGUF loadModel(Path modelPath) throws IOException {
         try (FileChannel fileChannel = FileChannel.open(modelPath);
+             Arena arena = Arena.ofConfined();
              var ignored = Timer.log("Parse " + modelPath)) {
             GGUF gguf = new GGUF();
-            gguf.loadModelImpl(fileChannel);
+            gguf.file = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size(), arena);
+            try {
+                gguf.loadModelImpl();
+            } finally {
+                gguf.file = null; // the mapping is released with the arena, everything read was copied out
+            }
             return gguf;
         }
     }
@@ -381,22 +393,22 @@ final class GGUF {
         }
     }
 
-    private void loadModelImpl(FileChannel fileChannel) throws IOException {
+    private void loadModelImpl() {
         // The header of the file.
-        readHeader(fileChannel); // gguf_header_t header;
+        readHeader(); // gguf_header_t header;
         // Tensor infos, which can be used to locate the tensor data.
         // gguf_tensor_info_t tensor_infos[header.tensor_count];
         this.tensorInfos = HashMap.newHashMap(tensorCount);
         for (int i = 0; i < tensorCount; ++i) {
-            GGUFTensorInfo ti = readTensorInfo(fileChannel);
+            GGUFTensorInfo ti = readTensorInfo();
             assert !tensorInfos.containsKey(ti.name);
             tensorInfos.put(ti.name, ti);
         }
         // Padding to the nearest multiple of `ALIGNMENT`.
         // uint8_t _padding[ALIGNMENT - (sizeof(header + tensor_infos) % ALIGNMENT)];
-        //long _padding = -fileChannel.position() & (ALIGNMENT - 1);
-        long _padding = getAlignment() - (fileChannel.position() % getAlignment());
-        fileChannel.position(fileChannel.position() + _padding);
+        // No padding if the tensor infos already end on an alignment boundary.
+        long _padding = -position & (getAlignment() - 1);
+        position += _padding;
         // Tensor data.
         //
         // This is arbitrary binary data corresponding to the weights of the model. This data should be close
@@ -408,11 +420,17 @@ final class GGUF {
         // The offset of each tensor's data must be a multiple of `ALIGNMENT`, and the space between tensors
         // should be padded to `ALIGNMENT` bytes.
         // uint8_t tensor_data[];
-        this.tensorDataOffset = fileChannel.position();
+        this.tensorDataOffset = position;
     }
 
     public static Map<String, GGMLTensorEntry> loadTensors(FileChannel fileChannel, long tensorDataOffset, Map<String, GGUFTensorInfo> tensorInfos) throws IOException {
-        Arena arena = Arena.ofAuto();
+        return loadTensors(fileChannel, tensorDataOffset, tensorInfos, Arena.ofAuto());
+    }
+
+    /**
+     * Maps the tensor data into the given arena; closing the arena unmaps all returned tensors.
+     */
+    public static Map<String, GGMLTensorEntry> loadTensors(FileChannel fileChannel, long tensorDataOffset, Map<String, GGUFTensorInfo> tensorInfos, Arena arena) throws IOException {
         MemorySegment tensorData = fileChannel.map(FileChannel.MapMode.READ_ONLY, tensorDataOffset, fileChannel.size() - tensorDataOffset, arena);
         Map<String, GGMLTensorEntry> tensorEntries = HashMap.newHashMap(tensorInfos.size());
         for (Map.Entry<String, GGUFTensorInfo> entry : tensorInfos.entrySet()) {
@@ -428,77 +446,77 @@ final class GGUF {
     public record GGUFTensorInfo(String name, int[] dimensions, GGMLType ggmlType, long offset) {
     }
 
-    private GGMLType readGGMLType(FileChannel fileChannel) throws IOException {
-        int ggmlTypeId = readInt(fileChannel); // ggml_type type;
+    private GGMLType readGGMLType() {
+        int ggmlTypeId = readInt(); // ggml_type type;
         return GGMLType.fromId(ggmlTypeId);
     }
 
-    private GGUFTensorInfo readTensorInfo(FileChannel fileChannel) throws IOException {
+    private GGUFTensorInfo readTensorInfo() {
         // The name of the tensor. It is a standard GGUF string, with the caveat that
         // it must be at most 64 bytes long.
-        String name = readString(fileChannel); // gguf_string_t name;
+        String name = readString(); // gguf_string_t name;
         assert name.length() <= 64;
         // The number of dimensions in the tensor.
         // Currently at most 4, but this may change in the future.
-        int n_dimensions = readInt(fileChannel); // uint32_t n_dimensions;
+        int n_dimensions = readInt(); // uint32_t n_dimensions;
         assert n_dimensions <= 4;
         // The dimensions of the tensor.
         int[] dimensions = new int[n_dimensions]; // uint64_t dimensions[n_dimensions];
         for (int i = 0; i < n_dimensions; ++i) {
-            dimensions[i] = Math.toIntExact(readLong(fileChannel));
+            dimensions[i] = Math.toIntExact(readLong());
         }
         // The type of the tensor.
-        GGMLType ggmlType = readGGMLType(fileChannel); // ggml_type type;
+        GGMLType ggmlType = readGGMLType(); // ggml_type type;
         // The offset of the tensor's data in this file in bytes.
         // This offset is relative to `tensor_data`, not to the start
         // of the file, to make it easier for writers to write the file.
         // Readers should consider exposing this offset relative to the
         // file to make it easier to read the data.
         // Must be a multiple of `ALIGNMENT`.
-        long offset = readLong(fileChannel); // uint64_t offset;
+        long offset = readLong(); // uint64_t offset;
         assert offset % getAlignment() == 0;
         return new GGUFTensorInfo(name, dimensions, ggmlType, offset);
     }
 
-    private String readString(FileChannel fileChannel) throws IOException {
+    private String readString() {
         // A string in GGUF.
         // The length of the string, in bytes.
-        int len = Math.toIntExact(readLong(fileChannel)); // uint64_t len;
+        int len = Math.toIntExact(readLong()); // uint64_t len;
         // The string as a UTF-8 non-null-terminated string.
         byte[] bytes = new byte[len]; // char string[len];
-        int bytesRead = fileChannel.read(ByteBuffer.wrap(bytes));
-        assert len == bytesRead;
+        MemorySegment.copy(file, ValueLayout.JAVA_BYTE, position, bytes, 0, len);
+        position += len;
         return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    private Pair<String, Object> readKeyValuePair(FileChannel fileChannel) throws IOException {
+    private Pair<String, Object> readKeyValuePair() {
         // The key of the metadata. It is a standard GGUF string, with the following caveats:
         // - It must be a valid ASCII string.
         // - It must be a hierarchical key, where each segment is `lower_snake_case` and separated by a `.`.
         // - It must be at most 2^16-1/65535 bytes long.
         // Any keys that do not follow these rules are invalid.
-        String key = readString(fileChannel); // gguf_string_t key;
+        String key = readString(); // gguf_string_t key;
         assert key.length() < (1 << 16);
         assert key.codePoints().allMatch(cp -> ('a' <= cp && cp <= 'z') || ('0' <= cp && cp <= '9') || cp == '_' || cp == '.');
-        Object value = readMetadataValue(fileChannel);
+        Object value = readMetadataValue();
         return new Pair<>(key, value);
     }
 
-    private Object readMetadataValue(FileChannel fileChannel) throws IOException {
+    private Object readMetadataValue() {
         // The type of the value.
         // Must be one of the `gguf_metadata_value_type` values.
-        MetadataValueType value_type = readMetadataValueType(fileChannel); // gguf_metadata_value_type value_type;
+        MetadataValueType value_type = readMetadataValueType(); // gguf_metadata_value_type value_type;
         // The value.
-        return readMetadataValueOfType(value_type, fileChannel); // gguf_metadata_value_t value;
+        return readMetadataValueOfType(value_type); // gguf_metadata_value_t value;
     }
 
-    void readHeader(FileChannel fileChannel) throws IOException {
+    void readHeader() {
         // Magic number to announce that this is a GGUF file.
         // Must be `GGUF` at the byte level: `0x47` `0x47` `0x55` `0x46`.
         // Your executor might do little-endian byte order, so it might be
         // check for 0x46554747 and letting the endianness cancel out.
         // Consider being *very* explicit about the byte order here.
-        this.magic = readInt(fileChannel); //    uint32_t magic;
+        this.magic = readInt(); //    uint32_t magic;
         if (magic != GGUF_MAGIC) {
             throw new IllegalArgumentException("unsupported header.magic " + magic);
         }
@@ -508,80 +526,76 @@ final class GGUF {
         // This version should only be increased for structural changes to the format.
         // Changes that do not affect the structure of the file should instead update the metadata
         // to signify the change.
-        this.version = readInt(fileChannel); // uint32_t version;
+        this.version = readInt(); // uint32_t version;
         if (!SUPPORTED_GGUF_VERSIONS.contains(version)) {
             throw new IllegalArgumentException("unsupported header.version " + version);
         }
         // The number of tensors in the file.
         // This is explicit, instead of being included in the metadata, to ensure it is always present
         // for loading the tensors.
-        this.tensorCount = Math.toIntExact(readLong(fileChannel)); // uint64_t tensor_count;
+        this.tensorCount = Math.toIntExact(readLong()); // uint64_t tensor_count;
         // The number of metadata key-value pairs.
-        this.metadata_kv_count = Math.toIntExact(readLong(fileChannel)); // uint64_t metadata_kv_count;
+        this.metadata_kv_count = Math.toIntExact(readLong()); // uint64_t metadata_kv_count;
         // The metadata key-value pairs.
         // gguf_metadata_kv_t metadata_kv[metadata_kv_count];
         this.metadata = HashMap.newHashMap(metadata_kv_count);
         for (int i = 0; i < metadata_kv_count; ++i) {
-            Pair<String, Object> keyValue = readKeyValuePair(fileChannel);
+            Pair<String, Object> keyValue = readKeyValuePair();
             assert !metadata.containsKey(keyValue.first());
             metadata.put(keyValue.first(), keyValue.second());
         }
     }
 
-    private Object readArray(FileChannel fileChannel) throws IOException {
+    private Object readArray() {
         // Any value type is valid, including arrays.
-        MetadataValueType value_type = readMetadataValueType(fileChannel); // gguf_metadata_value_type type;
+        MetadataValueType value_type = readMetadataValueType(); // gguf_metadata_value_type type;
         // Number of elements, not bytes
-        int len = Math.toIntExact(readLong(fileChannel)); // uint64_t len;
+        int len = Math.toIntExact(readLong()); // uint64_t len;
         // The array of values.
         // gguf_metadata_value_t array[len];
         switch (value_type) {
             case UINT8, INT8 -> {
                 byte[] bytes = new byte[len];
-                for (int i = 0; i < len; ++i) {
-                    bytes[i] = readByte(fileChannel);
-                }
+                MemorySegment.copy(file, ValueLayout.JAVA_BYTE, position, bytes, 0, len);
+                position += (long) len * Byte.BYTES;
                 return bytes;
             }
             case UINT16, INT16 -> {
                 short[] shorts = new short[len];
-                for (int i = 0; i < len; ++i) {
-                    shorts[i] = readShort(fileChannel);
-                }
+                MemorySegment.copy(file, SHORT_LE, position, shorts, 0, len);
+                position += (long) len * Short.BYTES;
                 return shorts;
             }
             case UINT32, INT32 -> {
                 int[] ints = new int[len];
-                for (int i = 0; i < len; ++i) {
-                    ints[i] = readInt(fileChannel);
-                }
+                MemorySegment.copy(file, INT_LE, position, ints, 0, len);
+                position += (long) len * Integer.BYTES;
                 return ints;
             }
             case FLOAT32 -> {
                 float[] floats = new float[len];
-                for (int i = 0; i < len; ++i) {
-                    floats[i] = readFloat(fileChannel);
-                }
+                MemorySegment.copy(file, FLOAT_LE, position, floats, 0, len);
+                position += (long) len * Float.BYTES;
                 return floats;
             }
             case BOOL -> {
                 boolean[] booleans = new boolean[len];
                 for (int i = 0; i < len; ++i) {
-                    booleans[i] = readBoolean(fileChannel);
+                    booleans[i] = readBoolean();
                 }
                 return booleans;
             }
             case STRING -> {
                 String[] strings = new String[len];
                 for (int i = 0; i < len; ++i) {
-                    strings[i] = readString(fileChannel);
+                    strings[i] = readString();
                 }
                 return strings;
             }
             case ARRAY -> {
                 Object[] arrays = new Object[len];
                 for (int i = 0; i < len; ++i) {
-                    arrays[i] = readArray(fileChannel);
+                    arrays[i] = readArray();
                 }
                 return arrays;
             }
@@ -589,58 +603,62 @@ final class GGUF {
         }
     }
 
-    private Object readMetadataValueOfType(MetadataValueType valueType, FileChannel fileChannel) throws IOException {
+    private Object readMetadataValueOfType(MetadataValueType valueType) {
         return switch (valueType) {
-            case UINT8, INT8 -> readByte(fileChannel);
-            case UINT16, INT16 -> readShort(fileChannel);
-            case UINT32, INT32 -> readInt(fileChannel);
-            case FLOAT32 -> readFloat(fileChannel);
-            case UINT64, INT64 -> readLong(fileChannel);
-            case FLOAT64 -> readDouble(fileChannel);
-            case BOOL -> readBoolean(fileChannel);
-            case STRING -> readString(fileChannel);
-            case ARRAY -> readArray(fileChannel);
+            case UINT8, INT8 -> readByte();
+            case UINT16, INT16 -> readShort();
+            case UINT32, INT32 -> readInt();
+            case FLOAT32 -> readFloat();
+            case UINT64, INT64 -> readLong();
+            case FLOAT64 -> readDouble();
+            case BOOL -> readBoolean();
+            case STRING -> readString();
+            case ARRAY -> readArray();
         };
     }
 
-    private byte readByte(FileChannel fileChannel) throws IOException {
-        int bytesRead = fileChannel.read(BB_1);
-        assert bytesRead == 1;
-        return BB_1.clear().get(0);
+    private byte readByte() {
+        byte value = file.get(ValueLayout.JAVA_BYTE, position);
+        position += Byte.BYTES;
+        return value;
     }
 
-    private boolean readBoolean(FileChannel fileChannel) throws IOException {
-        return readByte(fileChannel) != 0;
+    private boolean readBoolean() {
+        return readByte() != 0;
     }
 
-    private short readShort(FileChannel fileChannel) throws IOException {
-        int bytesRead = fileChannel.read(BB_2);
-        assert bytesRead == 2;
-        return BB_2.clear().getShort(0);
+    private short readShort() {
+        short value = file.get(SHORT_LE, position);
+        position += Short.BYTES;
+        return value;
     }
 
-    private int readInt(FileChannel fileChannel) throws IOException {
-        int bytesRead = fileChannel.read(BB_4);
-        assert bytesRead == 4;
-        return BB_4.clear().getInt(0);
+    private int readInt() {
+        int value = file.get(INT_LE, position);
+        position += Integer.BYTES;
+        return value;
     }
 
-    private long readLong(FileChannel fileChannel) throws IOException {
-        int bytesRead = fileChannel.read(BB_8);
-        assert bytesRead == 8;
-        return BB_8.clear().getLong(0);
+    private long readLong() {
+        long value = file.get(LONG_LE, position);
+        position += Long.BYTES;
+        return value;
     }
 
-    private float readFloat(FileChannel fileChannel) throws IOException {
-        return Float.intBitsToFloat(readInt(fileChannel));
+    private float readFloat() {
+        float value = file.get(FLOAT_LE, position);
+        position += Float.BYTES;
+        return value;
     }
 
-    private double readDouble(FileChannel fileChannel) throws IOException {
-        return Double.longBitsToDouble(readLong(fileChannel));
+    private double readDouble() {
+        double value = file.get(DOUBLE_LE, position);
+        position += Double.BYTES;
+        return value;
     }
 
-    private MetadataValueType readMetadataValueType(FileChannel fileChannel) throws IOException {
-        int index = readInt(fileChannel);
+    private MetadataValueType readMetadataValueType() {
+        int index = readInt();
         return MetadataValueType.fromIndex(index);
     }
 
@@ -680,7 +698,7 @@ interface Timer extends AutoCloseable {
 final class ModelLoader {
     private static final String TOKENIZER_LLAMA_3_MODEL = "gpt2";
 
-    private static final String LLAMA_3_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
+    static final String LLAMA_3_PATTERN = "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+";
 
     private static Vocabulary loadVocabulary(Map<String, Object> metadata) {
         String model = (String) metadata.get("tokenizer.ggml.model");
@@ -692,12 +710,35 @@ final class ModelLoader {
     }
 
     public static Llama loadModel(Path ggufPath, int contextLength, boolean loadWeights) throws IOException {
+        return loadModel(ggufPath, contextLength, loadWeights, Arena.ofAuto());
+    }
+
+    /**
+     * Loads the model with its weights mapped into the given arena, so the caller decides when they are unmapped.
+     */
+    public static Llama loadModel(Path ggufPath, int contextLength, boolean loadWeights, Arena arena) throws IOException {
+        if (loadWeights) {
+            Llama snapshotModel = ModelSnapshot.tryLoad(ggufPath, contextLength, arena);
+            if (snapshotModel != null) {
+                return snapshotModel;
+            }
+        }
         GGUF gguf = GGUF.loadModel(ggufPath);
-        FileChannel fileChannel = FileChannel.open(ggufPath, StandardOpenOption.READ);
-        return loadModel(fileChannel, gguf, contextLength, loadWeights);
+        Llama model;
+        try (FileChannel fileChannel = FileChannel.open(ggufPath, StandardOpenOption.READ)) {
+            model = loadModel(fileChannel, gguf, contextLength, loadWeights, arena);
+        }
+        if (loadWeights) {
+            ModelSnapshot.tryWrite(ggufPath, gguf, contextLength, model);
+        }
+        return model;
     }
 
     public static Llama loadModel(FileChannel fileChannel, GGUF gguf, int contextLength, boolean loadWeights) throws IOException {
+        return loadModel(fileChannel, gguf, contextLength, loadWeights, Arena.ofAuto());
+    }
+
+    public static Llama loadModel(FileChannel fileChannel, GGUF gguf, int contextLength, boolean loadWeights, Arena arena) throws IOException {
         try (var ignored = Timer.log("Load LlaMa model")) {
             Map<String, Object> metadata = gguf.getMetadata();
             Vocabulary vocabulary = loadVocabulary(metadata);
@@ -721,7 +762,7 @@ final class ModelLoader {
 
             Llama.Weights weights = null;
             if (loadWeights) {
-                Map<String, GGMLTensorEntry> tensorEntries = GGUF.loadTensors(fileChannel, gguf.getTensorDataOffset(), gguf.getTensorInfos());
+                Map<String, GGMLTensorEntry> tensorEntries = GGUF.loadTensors(fileChannel, gguf.getTensorDataOffset(), gguf.getTensorInfos(), arena);
                 weights = loadWeights(tensorEntries, config);
             }
             return new Llama(config, tokenizer, weights);
@@ -736,9 +777,11 @@ final class ModelLoader {
         int oldContextLength = 8192;
         Pair<float[], float[]> ropeFreqs = RoPE.precomputeFreqsCis(config.contextLength, config.headSize, config.ropeTheta,
                 ropeScaling, scaleFactor, loFreqFactor, hiFreqFactor, oldContextLength);
-        float[] ropeFreqsReal = ropeFreqs.first();
-        float[] ropeFreqsImag = ropeFreqs.second();
+        return loadWeights(tensorEntries, config, FloatBuffer.wrap(ropeFreqs.first()), FloatBuffer.wrap(ropeFreqs.second()));
+    }
 
+    static Llama.Weights loadWeights(Map<String, GGMLTensorEntry> tensorEntries, Llama.Configuration config,
+                                     FloatBuffer ropeFreqsReal, FloatBuffer ropeFreqsImag) {
         GGMLTensorEntry tokenEmbeddings = tensorEntries.get("token_embd.weight");
         Llama.Weights qw = new Llama.Weights(
                 loadQuantized(tokenEmbeddings),
@@ -752,8 +795,8 @@ final class ModelLoader {
                 loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_down.weight")), // w2
                 loadArrayOfQuantized(config.numberOfLayers, i -> tensorEntries.get("blk." + i + ".ffn_up.weight")), // w3
                 toFloatBuffer(tensorEntries.get("output_norm.weight")),
-                FloatBuffer.wrap(ropeFreqsReal),
-                FloatBuffer.wrap(ropeFreqsImag),
+                ropeFreqsReal,
+                ropeFreqsImag,
                 // If "output.weight" is not present then the embedding weights are tied/shared with the decoder.
                 // This is commonly referred as "tie word embeddings".
                 loadQuantized(tensorEntries.getOrDefault("output.weight", tokenEmbeddings))
@@ -762,7 +805,7 @@ final class ModelLoader {
         return qw;
     }
 
-    private static Tokenizer createTokenizer(Map<String, Object> metadata, Vocabulary vocabulary) {
+    static Tokenizer createTokenizer(Map<String, Object> metadata, Vocabulary vocabulary) {
         String[] mergeLines = (String[]) metadata.get("tokenizer.ggml.merges");
         List<Pair<Integer, Integer>> merges = Arrays.stream(mergeLines)
                 .map(line -> line.split(" "))
@@ -773,8 +816,7 @@ final class ModelLoader {
                 ).toList();
 
         int allTokens = vocabulary.size();
-        int baseTokens = 128000; // assume all tokens after the base ones are special.
-        int reservedSpecialTokens = allTokens - baseTokens;
+        int baseTokens = firstSpecialToken(metadata, allTokens); // all tokens after the base ones are special.
         List<String> specialTokensList = Arrays.stream(vocabulary.tokens(), baseTokens, allTokens).toList();
 
         assert specialTokensList.stream().allMatch(token -> vocabulary.getIndex(token).isPresent());
@@ -790,6 +832,20 @@ final class ModelLoader {
         return new Tokenizer(vocabulary, merges, LLAMA_3_PATTERN, specialTokens);
     }
 
+    /**
+     * Start of the trailing run of control tokens (token type 3), e.g. 128000 in the Llama 3 vocabulary.
+     * Without token types, or if the last token is not a control token, all tokens from 128000 on are assumed
+     * to be special, as in the Llama 3 vocabulary.
+     */
+    private static int firstSpecialToken(Map<String, Object> metadata, int allTokens) {
+        int[] tokenTypes = (int[]) metadata.get("tokenizer.ggml.token_type");
+        int first = allTokens;
+        while (tokenTypes != null && first > 0 && tokenTypes[first - 1] == 3) {
+            first--;
+        }
+        return first == allTokens ? Math.min(128000, allTokens) : first;
+    }
+
     public static FloatTensor loadQuantized(GGMLTensorEntry entry) {
         GGMLType ggmlType = entry.ggmlType();
         return switch (ggmlType) {
@@ -820,6 +876,7 @@ final class ModelLoader {
 
     public static FloatBuffer toFloatBuffer(GGMLTensorEntry tensorEntry) {
         GGMLType ggmlType = tensorEntry.ggmlType();
+        // A view over the mapped file, nothing is copied; pages are faulted in on first access (see WeightPrefetcher).
         return switch (ggmlType) {
             case F32 -> tensorEntry.memorySegment().asByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
             default -> throw new UnsupportedOperationException("Conversion to " + ggmlType);
@@ -1237,7 +1294,7 @@ class Tokenizer {
         this.vocabulary = vocabulary;
         this.compiledPattern = regexPattern != null ? Pattern.compile(regexPattern) : null;
         this.specialTokens = new HashMap<>(specialTokens);
-        this.merges = new HashMap<>();
+        this.merges = HashMap.newHashMap(merges.size());
         for (Pair<Integer, Integer> pair : merges) {
             int firstIndex = pair.first();
             int secondIndex = pair.second();
@@ -1246,6 +1303,25 @@ class Tokenizer {
         }
     }
 
+    /**
+     * Creates a tokenizer from already resolved merges, (first, second) -> merged token index,
+     * e.g. as stored in a {@link ModelSnapshot}.
+     */
+    Tokenizer(Vocabulary vocabulary, Map<Pair<Integer, Integer>, Integer> resolvedMerges, String regexPattern, Map<String, Integer> specialTokens) {
+        this.vocabulary = vocabulary;
+        this.compiledPattern = regexPattern != null ? Pattern.compile(regexPattern) : null;
+        this.specialTokens = new HashMap<>(specialTokens);
+        this.merges = resolvedMerges;
+    }
+
+    Vocabulary vocabulary() {
+        return vocabulary;
+    }
+
+    Map<Pair<Integer, Integer>, Integer> merges() {
+        return merges;
+    }
+
     private int[] encodeImpl(String text) {
         return encode(text, Set.of()).stream().mapToInt(i -> i).toArray();
     }
@@ -2247,27 +2323,32 @@ final class RoPE {
     public static Pair<float[], float[]> precomputeFreqsCis(int contextLength, int headSize, double theta,
                                                             boolean ropeScaling, float scaleFactor, float loFreqFactor, float hiFreqFactor, float oldContextLength) {
         assert headSize % 2 == 0;
+        // The frequencies only depend on the dimension, compute them once instead of once per position.
+        float[] freqs = new float[headSize / 2];
+        for (int i = 0; i < headSize; i += 2) {
+            float freq = (float) (1.0 / Math.pow(theta, i / (double) headSize));
+            if (ropeScaling) {
+                // Llama 3.1 scaling
+                float loFreqWavelen = oldContextLength / loFreqFactor;
+                float hiFreqWavelen = oldContextLength / hiFreqFactor;
+                float wavelen = (float) (2.0 * Math.PI / freq);
+                if (wavelen < hiFreqWavelen) {
+                    freq = freq;
+                } else if (wavelen > loFreqWavelen) {
+                    freq = freq / scaleFactor;
+                } else {
+                    float smooth = (oldContextLength / wavelen - loFreqFactor) / (hiFreqFactor - loFreqFactor);
+                    freq = (1.0f - smooth) * freq / scaleFactor + smooth * freq;
+                }
+            }
+            freqs[i / 2] = freq;
+        }
         float[] cr = new float[contextLength * (headSize / 2)];
         float[] ci = new float[contextLength * (headSize / 2)];
         int n = 0;
         for (int pos = 0; pos < contextLength; ++pos) {
             for (int i = 0; i < headSize; i += 2) {
-                float freq = (float) (1.0 / Math.pow(theta, i / (double) headSize));
-                if (ropeScaling) {
-                    // Llama 3.1 scaling
-                    float loFreqWavelen = oldContextLength / loFreqFactor;
-                    float hiFreqWavelen = oldContextLength / hiFreqFactor;
-                    float wavelen = (float) (2.0 * Math.PI / freq);
-                    if (wavelen < hiFreqWavelen) {
-                        freq = freq;
-                    } else if (wavelen > loFreqWavelen) {
-                        freq = freq / scaleFactor;
-                    } else {
-                        float smooth = (oldContextLength / wavelen - loFreqFactor) / (hiFreqFactor - loFreqFactor);
-                        freq = (1.0f - smooth) * freq / scaleFactor + smooth * freq;
-                    }
-                }
-                float val = pos * freq;
+                float val = pos * freqs[i / 2];
                 cr[n] = (float) Math.cos(val);
                 ci[n] = (float) Math.sin(val);
                 n++;
@@ -2280,11 +2361,18 @@ final class RoPE {
 
 record Vocabulary(String[] tokens, float[] scores, Map<String, Integer> tokenToIndex) {
     public Vocabulary(String[] vocabulary, float[] scores) {
-        this(vocabulary, scores,
-                IntStream.range(0, vocabulary.length)
-                        .boxed()
-                        .collect(Collectors.toMap(i -> vocabulary[i], i -> i))
-        );
+        this(vocabulary, scores, indexTokens(vocabulary));
+    }
+
+    private static Map<String, Integer> indexTokens(String[] vocabulary) {
+        // Pre-sized, no stream collector: this runs on every model load for ~128k tokens.
+        Map<String, Integer> tokenToIndex = HashMap.newHashMap(vocabulary.length);
+        for (int i = 0; i < vocabulary.length; i++) {
+            if (tokenToIndex.putIfAbsent(vocabulary[i], i) != null) {
+                throw new IllegalStateException("Duplicate key " + vocabulary[i]);
+            }
+        }
+        return tokenToIndex;
     }
 
     public String get(int tokenIndex) {
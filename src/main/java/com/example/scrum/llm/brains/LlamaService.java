@@ -3,52 +3,119 @@ package com.example.scrum.llm.brains;
 // Assuming Llama3.java and its inner classes are accessible
 // (Llama, ChatFormat, ModelLoader, Sampler etc.)
 
+import com.example.scrum.llm.metrics.InferenceMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.foreign.Arena;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
-public class LlamaService {
+public class LlamaService implements AutoCloseable {
     // Make sure this path is correct for your system
     public static final String MODEL_PATH_CONFIG_KEY = "C:\\Users\\drom\\llama3\\Llama-3.2-1B-Instruct-Q8_0.gguf";
 
     private static final Logger log = LoggerFactory.getLogger(LlamaService.class);
+    public static final int DEFAULT_CONTEXT_LENGTH = 2048;
+    public static final int DEFAULT_BATCH_SIZE = Llama3.BATCH_SIZE;
+
+    private final String modelPath;
+    private final int batchSize;
+    // Owns the mapping of the model weights; closing the service unmaps them.
+    private final Arena arena;
     private final Llama model;
     private final ChatFormat chatFormat;
+    private final WeightPrefetcher prefetcher;
 
     public LlamaService(String modelPath) throws IOException {
+        // Using a common context length for loading, the model file itself will also have a max context.
+        this(modelPath, DEFAULT_CONTEXT_LENGTH, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param desiredContextLength context length to allocate KV caches for
+     * @param batchSize            number of prompt tokens ingested per forward pass
+     */
+    public LlamaService(String modelPath, int desiredContextLength, int batchSize) throws IOException {
         Path path = Path.of(modelPath);
         if (!Files.exists(path)) {
             throw new IOException("Model file not found at: " + modelPath);
         }
-        // Using a common context length for loading, the model file itself will also have a max context.
-        int desiredContextLength = 2048;
-        this.model = ModelLoader.loadModel(path, desiredContextLength, true);
+        this.modelPath = modelPath;
+        this.batchSize = batchSize;
+        this.arena = Arena.ofShared();
+        try {
+            this.model = ModelLoader.loadModel(path, desiredContextLength, true, arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            throw e;
+        }
         log.info("Model loaded. Reported model.configuration().contextLength: {}", model.configuration().contextLength);
         this.chatFormat = new ChatFormat(this.model.tokenizer());
+        // Fault the mapped weights in layer order in the background so the first request does not stall on page faults.
+        this.prefetcher = WeightPrefetcher.start(this.model);
         log.info("LlamaService initialized with model: {} and effective context length: {}", modelPath, model.configuration().contextLength);
     }
 
+    /**
+     * Completes once all model weights have been faulted into memory.
+     * Requests are accepted before that, they just may be slower until the weights are resident.
+     */
+    public CompletableFuture<Void> weightsResident() {
+        return prefetcher.resident();
+    }
+
+    public boolean isWeightsResident() {
+        return prefetcher.isResident();
+    }
+
+    public String getModelPath() {
+        return modelPath;
+    }
+
+    /**
+     * Unmaps the model weights. Must only be called once no generation is running on this service.
+     */
+    @Override
+    public void close() {
+        prefetcher.stop();
+        arena.close();
+        log.info("LlamaService closed, model unmapped: {}", modelPath);
+    }
+
     public String generateResponse(String systemPrompt, String userPrompt, int maxNewTokensToGenerate, float temperature) {
+        return generateResponse(systemPrompt, userPrompt, maxNewTokensToGenerate, temperature, 0.95f);
+    }
+
+    public String generateResponse(String systemPrompt, String userPrompt, int maxNewTokensToGenerate, float temperature, float topp) {
+        return generate(InferenceMetrics.UNLABELED, InferenceMetrics.UNLABELED, systemPrompt, userPrompt, maxNewTokensToGenerate, temperature, topp).text();
+    }
+
+    /**
+     * Generates a response and records its timings and token counts in {@link InferenceMetrics} under the given agent and task type.
+     */
+    public Generation generate(String agentName, String taskType, String systemPrompt, String userPrompt, int maxNewTokensToGenerate, float temperature, float topp) {
         // This is the version from our last successful iteration, which correctly calls Llama.generateTokens
         log.debug("Generating response with systemPrompt: [{}...], userPrompt: [{}...], maxNewTokensToGenerate: {}",
                 (systemPrompt != null && !systemPrompt.isEmpty()) ? systemPrompt.substring(0, Math.min(systemPrompt.length(), 70)) : "null",
                 (userPrompt != null && !userPrompt.isEmpty()) ? userPrompt.substring(0, Math.min(userPrompt.length(), 70)) : "null",
                 maxNewTokensToGenerate);
         long startTime = System.nanoTime();
+        InferenceMetrics metrics = InferenceMetrics.global();
 
         if (userPrompt == null || userPrompt.isEmpty()) {
             log.warn("User prompt is empty or null. Returning empty string.");
-            return "";
+            return failed(metrics, agentName, taskType, "");
         }
 
-        Llama.State state = model.createNewState(Llama3.BATCH_SIZE);
+        Llama.Configuration config = model.configuration();
 
         List<Integer> formattedPromptTokens = new ArrayList<>();
         formattedPromptTokens.add(chatFormat.beginOfText);
@@ -57,60 +124,108 @@ public class LlamaService {
         }
         formattedPromptTokens.addAll(chatFormat.encodeMessage(new ChatFormat.Message(ChatFormat.Role.USER, userPrompt)));
         formattedPromptTokens.addAll(chatFormat.encodeHeader(new ChatFormat.Message(ChatFormat.Role.ASSISTANT, "")));
+        long tokenizedTime = System.nanoTime();
+        metrics.recordNanos(InferenceMetrics.Metric.TOKENIZATION, agentName, taskType, tokenizedTime - startTime);
 
         int promptTokenCount = formattedPromptTokens.size();
         log.debug("Total tokens in formattedPromptTokens list (before Llama.generateTokens): {}", promptTokenCount);
 
         Sampler sampler = Llama3.selectSampler(
-                model.configuration().vocabularySize,
-                temperature, 0.95f, System.nanoTime());
+                config.vocabularySize,
+                temperature, topp, System.nanoTime());
         Set<Integer> stopTokens = chatFormat.getStopTokens();
 
-        if (promptTokenCount >= model.configuration().contextLength - 1) {
+        if (promptTokenCount >= config.contextLength - 1) {
             log.error("Formatted prompt ({} tokens) is too long for model context ({} tokens). Cannot generate.",
-                    promptTokenCount, model.configuration().contextLength);
-            return "[ERROR: Formatted prompt is too long for model context]";
+                    promptTokenCount, config.contextLength);
+            return failed(metrics, agentName, taskType, "[ERROR: Formatted prompt is too long for model context]");
         }
 
-        int actualNewTokensPossibleInContext = model.configuration().contextLength - promptTokenCount - 1;
+        int actualNewTokensPossibleInContext = config.contextLength - promptTokenCount - 1;
         int effectiveNewTokensToGenerate = Math.min(maxNewTokensToGenerate, actualNewTokensPossibleInContext);
 
         if (effectiveNewTokensToGenerate <= 0) {
             log.error("Not enough space in context to generate new tokens. Prompt tokens: {}, Model context: {}, Requested new: {}, Possible new in context: {}",
-                    promptTokenCount, model.configuration().contextLength, maxNewTokensToGenerate, actualNewTokensPossibleInContext);
-            return "[ERROR: No space left in context for new token generation]";
+                    promptTokenCount, config.contextLength, maxNewTokensToGenerate, actualNewTokensPossibleInContext);
+            return failed(metrics, agentName, taskType, "[ERROR: No space left in context for new token generation]");
         }
 
         int maxPositionForLoop = promptTokenCount + effectiveNewTokensToGenerate;
-        maxPositionForLoop = Math.min(maxPositionForLoop, model.configuration().contextLength -1);
+        maxPositionForLoop = Math.min(maxPositionForLoop, config.contextLength -1);
 
 
         log.debug("Calling Llama.generateTokens with: promptTokenCount={}, effectiveNewTokensToGenerate={}, maxPositionForLoop (as maxTokens arg)={}",
                 promptTokenCount, effectiveNewTokensToGenerate, maxPositionForLoop);
 
-        List<Integer> responseTokens = Llama.generateTokens(
-                model,
-                state,
-                0,
-                formattedPromptTokens,
-                stopTokens,
-                maxPositionForLoop,
-                sampler,
-                false,
-                null
-        );
-
-        if (!responseTokens.isEmpty() && stopTokens.contains(responseTokens.get(responseTokens.size() - 1))) {
+        List<Integer> responseTokens;
+        try (InferenceMetrics.Active active = metrics.startGeneration(kvCacheBytes(config))) {
+            Llama.State state = model.createNewState(batchSize);
+            long[] lastTokenTime = {0};
+            responseTokens = Llama.generateTokens(
+                    model,
+                    state,
+                    0,
+                    formattedPromptTokens,
+                    stopTokens,
+                    maxPositionForLoop,
+                    sampler,
+                    false,
+                    token -> {
+                        if (Thread.currentThread().isInterrupted()) {
+                            // cancelled or past its deadline in the InferenceScheduler
+                            throw new CancellationException("Generation interrupted");
+                        }
+                        long now = System.nanoTime();
+                        if (lastTokenTime[0] == 0) {
+                            // the first token is sampled right after the last prompt batch
+                            metrics.recordNanos(InferenceMetrics.Metric.PREFILL, agentName, taskType, now - tokenizedTime);
+                            metrics.recordNanos(InferenceMetrics.Metric.TIME_TO_FIRST_TOKEN, agentName, taskType, now - startTime);
+                        } else {
+                            metrics.recordNanos(InferenceMetrics.Metric.INTER_TOKEN, agentName, taskType, now - lastTokenTime[0]);
+                        }
+                        lastTokenTime[0] = now;
+                    }
+            );
+        }
+
+        boolean stopped = !responseTokens.isEmpty() && stopTokens.contains(responseTokens.get(responseTokens.size() - 1));
+        int usedPositions = promptTokenCount + responseTokens.size();
+        if (stopped) {
             responseTokens.remove(responseTokens.size() - 1);
         }
         String responseText = model.tokenizer().decode(responseTokens);
         long endTime = System.nanoTime();
+        metrics.recordNanos(InferenceMetrics.Metric.GENERATION, agentName, taskType, endTime - startTime);
+        metrics.recordTokens(agentName, taskType, promptTokenCount, responseTokens.size());
+        metrics.recordKvOccupancy(agentName, taskType, usedPositions, config.contextLength);
+        Generation.Finish finish = stopped ? Generation.Finish.STOP : Generation.Finish.LENGTH;
+        metrics.recordFinish(agentName, taskType, finish.label());
         long durationMillis = TimeUnit.NANOSECONDS.toMillis(endTime - startTime);
         log.debug("LlamaService: Call duration: {} ms. Generated response snippet: [{}] ({} tokens)",
                 durationMillis,
                 responseText.substring(0, Math.min(responseText.length(), 100)) + (responseText.length() > 100 ? "..." : ""),
                 responseTokens.size());
-        return responseText.trim();
+        return new Generation(responseText.trim(), promptTokenCount, responseTokens.size(), finish);
+    }
+
+    private static Generation failed(InferenceMetrics metrics, String agentName, String taskType, String text) {
+        metrics.recordFinish(agentName, taskType, Generation.Finish.ERROR.label());
+        return Generation.failed(text);
+    }
+
+    /**
+     * Bytes of KV cache each running generation allocates on this model.
+     */
+    public long kvCacheBytes() {
+        return kvCacheBytes(model.configuration());
+    }
+
+    /**
+     * Bytes of the key and value caches a {@link Llama.State} allocates: one float per layer, position and KV dimension, twice.
+     */
+    static long kvCacheBytes(Llama.Configuration config) {
+        long kvDim = (long) config.dim * config.numberOfKeyValueHeads / config.numberOfHeads;
+        return 2L * config.numberOfLayers * config.contextLength * kvDim * Float.BYTES;
     }
 
     // --- Main method for testing different prompts ---
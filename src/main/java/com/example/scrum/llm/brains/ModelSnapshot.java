@@ -0,0 +1,326 @@
+package com.example.scrum.llm.brains;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * JVM-friendly sidecar snapshot of everything {@link ModelLoader} derives from a GGUF file.
+ * <p>
+ * A snapshot is written next to the model as {@code <model>.gguf.snapshot} after the first full load and
+ * holds the model configuration, the vocabulary, the resolved merges (first, second -> merged token),
+ * the special token indices, the RoPE tables and the tensor index (name, type, shape, offset) in a flat
+ * little-endian layout. On the next start the snapshot is mapped, the RoPE tables are used in place, and
+ * the GGUF metadata is not parsed at all.
+ * <p>
+ * A snapshot is only used if the GGUF file size and the CRC32C of the GGUF header (everything before the
+ * tensor data) match, the requested context length is the same and the snapshot's own checksum is valid;
+ * otherwise the model is loaded from the GGUF file and the snapshot is rewritten.
+ * <p>
+ * Disable with {@code -Dllama.Snapshot=false}.
+ */
+final class ModelSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(ModelSnapshot.class);
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("llama.Snapshot", "true"));
+
+    private static final int MAGIC = 0x50414E53; // "SNAP"
+    private static final int VERSION = 1;
+    // magic, version, ggufSize, ggufHeaderCrc, tensorDataOffset, requestedContextLength, bodyCrc
+    private static final int HEADER_BYTES = Integer.BYTES * 2 + Long.BYTES * 3 + Integer.BYTES + Long.BYTES;
+
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private ModelSnapshot() {
+    }
+
+    static Path sidecarPath(Path ggufPath) {
+        return ggufPath.resolveSibling(ggufPath.getFileName() + ".snapshot");
+    }
+
+    /**
+     * Loads the model from its snapshot, mapping the snapshot and the GGUF tensor data into the given arena.
+     *
+     * @return the model, or {@code null} if there is no valid snapshot for this file and context length
+     */
+    static Llama tryLoad(Path ggufPath, int contextLength, Arena arena) throws IOException {
+        Path sidecar = sidecarPath(ggufPath);
+        if (!ENABLED || !Files.isRegularFile(sidecar)) {
+            return null;
+        }
+        try (var ignored = Timer.log("Load LlaMa model from snapshot " + sidecar.getFileName());
+             FileChannel snapshotChannel = FileChannel.open(sidecar, StandardOpenOption.READ);
+             FileChannel fileChannel = FileChannel.open(ggufPath, StandardOpenOption.READ)) {
+            // The RoPE tables and the tensors are used in place: the mappings live as long as the model's arena,
+            // not the channels.
+            MemorySegment snapshot = snapshotChannel.map(FileChannel.MapMode.READ_ONLY, 0, snapshotChannel.size(), arena);
+            Reader in = new Reader(snapshot);
+            if (snapshot.byteSize() < HEADER_BYTES || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("Ignoring snapshot {}: unknown format", sidecar);
+                return null;
+            }
+            long ggufSize = in.readLong();
+            long ggufHeaderCrc = in.readLong();
+            long tensorDataOffset = in.readLong();
+            int requestedContextLength = in.readInt();
+            long bodyCrc = in.readLong();
+            if (ggufSize != Files.size(ggufPath) || requestedContextLength != contextLength) {
+                log.info("Snapshot {} is stale (model size or context length changed), reloading from GGUF", sidecar);
+                return null;
+            }
+            if (bodyCrc != crc32c(snapshot.asSlice(HEADER_BYTES))) {
+                log.warn("Snapshot {} is corrupt (checksum mismatch), reloading from GGUF", sidecar);
+                return null;
+            }
+            if (ggufHeaderCrc != headerCrc(fileChannel, tensorDataOffset)) {
+                log.info("Snapshot {} does not match the GGUF header, reloading from GGUF", sidecar);
+                return null;
+            }
+
+            Llama.Configuration config = new Llama.Configuration(
+                    in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                    in.readInt(), in.readInt(), in.readFloat(), in.readFloat());
+
+            String[] tokens = new String[in.readInt()];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = in.readString();
+            }
+            Vocabulary vocabulary = new Vocabulary(tokens, null);
+
+            int mergeCount = in.readInt();
+            Map<Pair<Integer, Integer>, Integer> merges = HashMap.newHashMap(mergeCount);
+            for (int i = 0; i < mergeCount; i++) {
+                merges.put(new Pair<>(in.readInt(), in.readInt()), in.readInt());
+            }
+
+            int specialCount = in.readInt();
+            Map<String, Integer> specialTokens = HashMap.newHashMap(specialCount);
+            for (int i = 0; i < specialCount; i++) {
+                int index = in.readInt();
+                specialTokens.put(tokens[index], index);
+            }
+            Tokenizer tokenizer = new Tokenizer(vocabulary, merges, ModelLoader.LLAMA_3_PATTERN, specialTokens);
+
+            FloatBuffer ropeReal = in.readFloatBuffer();
+            FloatBuffer ropeImag = in.readFloatBuffer();
+
+            int tensorCount = in.readInt();
+            Map<String, GGUF.GGUFTensorInfo> tensorInfos = HashMap.newHashMap(tensorCount);
+            for (int i = 0; i < tensorCount; i++) {
+                String name = in.readString();
+                GGMLType ggmlType = GGMLType.fromId(in.readInt());
+                int[] dimensions = new int[in.readInt()];
+                for (int d = 0; d < dimensions.length; d++) {
+                    dimensions[d] = in.readInt();
+                }
+                tensorInfos.put(name, new GGUF.GGUFTensorInfo(name, dimensions, ggmlType, in.readLong()));
+            }
+
+            Map<String, GGMLTensorEntry> tensorEntries = GGUF.loadTensors(fileChannel, tensorDataOffset, tensorInfos, arena);
+            Llama.Weights weights = ModelLoader.loadWeights(tensorEntries, config, ropeReal, ropeImag);
+            return new Llama(config, tokenizer, weights);
+        } catch (RuntimeException e) {
+            log.warn("Failed to read snapshot {}, reloading from GGUF", sidecar, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes (or replaces) the snapshot for a model that was just loaded from the given GGUF file.
+     * Failures are logged and otherwise ignored, e.g. a read-only model directory.
+     */
+    static void tryWrite(Path ggufPath, GGUF gguf, int contextLength, Llama model) {
+        if (!ENABLED) {
+            return;
+        }
+        Path sidecar = sidecarPath(ggufPath);
+        Path tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        try (var ignored = Timer.log("Write model snapshot " + sidecar.getFileName())) {
+            long ggufHeaderCrc;
+            try (FileChannel fileChannel = FileChannel.open(ggufPath, StandardOpenOption.READ)) {
+                ggufHeaderCrc = headerCrc(fileChannel, gguf.getTensorDataOffset());
+            }
+            ByteBuffer body = encodeBody(model, gguf.getTensorInfos());
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putLong(Files.size(ggufPath))
+                    .putLong(ggufHeaderCrc)
+                    .putLong(gguf.getTensorDataOffset())
+                    .putInt(contextLength)
+                    .putLong(crc32c(MemorySegment.ofBuffer(body)))
+                    .flip();
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining() || body.hasRemaining()) {
+                    out.write(new ByteBuffer[]{header, body});
+                }
+                out.force(true);
+            }
+            Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not write model snapshot {}", sidecar, e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+                // best effort
+            }
+        }
+    }
+
+    private static ByteBuffer encodeBody(Llama model, Map<String, GGUF.GGUFTensorInfo> tensorInfos) {
+        Llama.Configuration config = model.configuration();
+        Tokenizer tokenizer = model.tokenizer();
+        String[] tokens = tokenizer.vocabulary().tokens();
+
+        List<byte[]> encodedTokens = new ArrayList<>(tokens.length);
+        long size = Integer.BYTES * 7 + Float.BYTES * 2; // configuration
+        size += Integer.BYTES;
+        for (String token : tokens) {
+            byte[] bytes = token.getBytes(StandardCharsets.UTF_8);
+            encodedTokens.add(bytes);
+            size += Integer.BYTES + bytes.length;
+        }
+        size += Integer.BYTES + (long) tokenizer.merges().size() * 3 * Integer.BYTES;
+        size += Integer.BYTES + (long) tokenizer.getSpecialTokens().size() * Integer.BYTES;
+        size += 2 * (Integer.BYTES + (long) config.contextLength * (config.headSize / 2) * Float.BYTES);
+        size += Integer.BYTES;
+        for (GGUF.GGUFTensorInfo ti : tensorInfos.values()) {
+            size += Integer.BYTES + ti.name().getBytes(StandardCharsets.UTF_8).length
+                    + Integer.BYTES * 2 + (long) ti.dimensions().length * Integer.BYTES + Long.BYTES;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(size)).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(config.dim)
+                .putInt(config.hiddenDim)
+                .putInt(config.numberOfLayers)
+                .putInt(config.numberOfHeads)
+                .putInt(config.numberOfKeyValueHeads)
+                .putInt(config.vocabularySize)
+                .putInt(config.contextLength)
+                .putFloat(config.rmsNormEps)
+                .putFloat(config.ropeTheta);
+
+        out.putInt(encodedTokens.size());
+        for (byte[] bytes : encodedTokens) {
+            out.putInt(bytes.length).put(bytes);
+        }
+
+        out.putInt(tokenizer.merges().size());
+        tokenizer.merges().forEach((pair, merged) -> out.putInt(pair.first()).putInt(pair.second()).putInt(merged));
+
+        out.putInt(tokenizer.getSpecialTokens().size());
+        tokenizer.getSpecialTokens().values().forEach(out::putInt);
+
+        putFloatBuffer(out, model.weights().freq_cis_real);
+        putFloatBuffer(out, model.weights().freq_cis_imag);
+
+        out.putInt(tensorInfos.size());
+        for (GGUF.GGUFTensorInfo ti : tensorInfos.values()) {
+            byte[] name = ti.name().getBytes(StandardCharsets.UTF_8);
+            out.putInt(name.length).put(name);
+            out.putInt(ti.ggmlType().ordinal());
+            out.putInt(ti.dimensions().length);
+            for (int d : ti.dimensions()) {
+                out.putInt(d);
+            }
+            out.putLong(ti.offset());
+        }
+        assert !out.hasRemaining();
+        return out.flip();
+    }
+
+    private static void putFloatBuffer(ByteBuffer out, FloatBuffer values) {
+        FloatBuffer view = values.duplicate().rewind();
+        out.putInt(view.remaining());
+        while (view.hasRemaining()) {
+            out.putFloat(view.get());
+        }
+    }
+
+    private static long headerCrc(FileChannel ggufChannel, long tensorDataOffset) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            return crc32c(ggufChannel.map(FileChannel.MapMode.READ_ONLY, 0, tensorDataOffset, arena));
+        }
+    }
+
+    private static long crc32c(MemorySegment segment) {
+        // Buffers of segments from a shared arena have no usable address for CRC32C, so hash through a heap chunk.
+        CRC32C crc = new CRC32C();
+        byte[] chunk = new byte[(int) Math.min(segment.byteSize(), 1 << 16)];
+        for (long offset = 0; offset < segment.byteSize(); offset += chunk.length) {
+            int length = (int) Math.min(chunk.length, segment.byteSize() - offset);
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset, chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Sequential little-endian reader over the mapped snapshot.
+     */
+    private static final class Reader {
+        private final MemorySegment segment;
+        private long position;
+
+        Reader(MemorySegment segment) {
+            this.segment = segment;
+        }
+
+        int readInt() {
+            int value = segment.get(INT_LE, position);
+            position += Integer.BYTES;
+            return value;
+        }
+
+        long readLong() {
+            long value = segment.get(LONG_LE, position);
+            position += Long.BYTES;
+            return value;
+        }
+
+        float readFloat() {
+            float value = segment.get(FLOAT_LE, position);
+            position += Float.BYTES;
+            return value;
+        }
+
+        String readString() {
+            int length = readInt();
+            byte[] bytes = new byte[length];
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, position, bytes, 0, length);
+            position += length;
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * A view over the mapped floats, nothing is copied.
+         */
+        FloatBuffer readFloatBuffer() {
+            int count = readInt();
+            long bytes = (long) count * Float.BYTES;
+            FloatBuffer view = segment.asSlice(position, bytes).asByteBuffer().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            position += bytes;
+            return view;
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.example.scrum.llm.brains;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes a valid Llama 3 GGUF file with random weights, for reproducible performance and load tests without
+ * downloading a real model. {@link ModelLoader#loadModel} loads the result like any other GGUF file.
+ * <p>
+ * The vocabulary is Llama 3 style byte-level BPE: the 256 byte tokens, merges learned from a built-in sample
+ * prompt, filler tokens up to the requested size and the Llama 3 special tokens at the end, so the regular
+ * {@link Tokenizer} and {@link ChatFormat} work on it.
+ * <pre>
+ * SyntheticGGUF.builder()
+ *         .dim(512).layers(4).heads(8).kvHeads(2)
+ *         .vocabularySize(8192)
+ *         .type("Q4_0")
+ *         .write(Path.of("synthetic-q4_0.gguf"));
+ * </pre>
+ * or from the command line: {@code SyntheticGGUF out.gguf dim=512 layers=4 heads=8 kvHeads=2 vocab=8192 type=Q4_0}.
+ */
+public final class SyntheticGGUF {
+    private static final Logger log = LoggerFactory.getLogger(SyntheticGGUF.class);
+
+    private static final int GGUF_MAGIC = 0x46554747;
+    private static final int GGUF_VERSION = 3;
+    private static final int ALIGNMENT = 32;
+
+    // gguf_metadata_value_type
+    private static final int UINT32 = 4;
+    private static final int FLOAT32 = 6;
+    private static final int STRING = 8;
+    private static final int ARRAY = 9;
+    private static final int INT32 = 5;
+
+    // tokenizer.ggml.token_type
+    static final int TOKEN_TYPE_NORMAL = 1;
+    static final int TOKEN_TYPE_CONTROL = 3;
+
+    static final String SAMPLE_TEXT = """
+            As a scrum master I want every ticket in the sprint backlog to have a clear description, an assignee and
+            story points, so that the team can plan the next sprint without surprises. The grooming agent reads the
+            tickets that need grooming for project ALPHA, asks the reporter for missing details on Microsoft Teams and
+            sets needsGrooming to false once a ticket is ready. Users report that the login page times out after 30
+            seconds when the VPN is enabled; the tech agent suggests clearing the browser cache, checking the proxy
+            settings and retrying with a different network before escalating to the platform team.
+            """;
+
+    static final List<String> SPECIAL_TOKENS = List.of(
+            "<|begin_of_text|>", "<|end_of_text|>", "<|start_header_id|>", "<|end_header_id|>", "<|eot_id|>", "<|eom_id|>");
+
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfFloat FLOAT_LE = ValueLayout.JAVA_FLOAT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private int dim = 512;
+    private int hiddenDim = -1; // 3 * dim unless set
+    private int layers = 4;
+    private int heads = 8;
+    private int kvHeads = 2;
+    private int vocabularySize = 8192;
+    private int contextLength = 2048;
+    private GGMLType type = GGMLType.Q8_0;
+    private boolean tiedEmbeddings = true;
+    private long seed = 42;
+
+    private SyntheticGGUF() {
+    }
+
+    public static SyntheticGGUF builder() {
+        return new SyntheticGGUF();
+    }
+
+    public SyntheticGGUF dim(int dim) { this.dim = dim; return this; }
+
+    public SyntheticGGUF hiddenDim(int hiddenDim) { this.hiddenDim = hiddenDim; return this; }
+
+    public SyntheticGGUF layers(int layers) { this.layers = layers; return this; }
+
+    public SyntheticGGUF heads(int heads) { this.heads = heads; return this; }
+
+    public SyntheticGGUF kvHeads(int kvHeads) { this.kvHeads = kvHeads; return this; }
+
+    public SyntheticGGUF vocabularySize(int vocabularySize) { this.vocabularySize = vocabularySize; return this; }
+
+    public SyntheticGGUF contextLength(int contextLength) { this.contextLength = contextLength; return this; }
+
+    /**
+     * Weight type of the matrices: Q4_0, Q8_0, F16 or BF16. Norm weights are always F32.
+     */
+    public SyntheticGGUF type(String type) { return type(GGMLType.valueOf(type.toUpperCase())); }
+
+    SyntheticGGUF type(GGMLType type) { this.type = type; return this; }
+
+    /**
+     * If false, a separate {@code output.weight} classifier is written instead of reusing the token embeddings.
+     */
+    public SyntheticGGUF tiedEmbeddings(boolean tiedEmbeddings) { this.tiedEmbeddings = tiedEmbeddings; return this; }
+
+    public SyntheticGGUF seed(long seed) { this.seed = seed; return this; }
+
+    /**
+     * Writes the model to the given file, replacing it if it exists.
+     */
+    public Path write(Path path) throws IOException {
+        int ffnDim = hiddenDim > 0 ? hiddenDim : 3 * dim;
+        validate(ffnDim);
+        int kvDim = dim * kvHeads / heads;
+
+        // tensor name -> dimensions (ne0 first, i.e. the row length)
+        Map<String, int[]> shapes = new LinkedHashMap<>();
+        shapes.put("token_embd.weight", new int[]{dim, vocabularySize});
+        for (int l = 0; l < layers; l++) {
+            String p = "blk." + l + ".";
+            shapes.put(p + "attn_norm.weight", new int[]{dim});
+            shapes.put(p + "attn_q.weight", new int[]{dim, dim});
+            shapes.put(p + "attn_k.weight", new int[]{dim, kvDim});
+            shapes.put(p + "attn_v.weight", new int[]{dim, kvDim});
+            shapes.put(p + "attn_output.weight", new int[]{dim, dim});
+            shapes.put(p + "ffn_norm.weight", new int[]{dim});
+            shapes.put(p + "ffn_gate.weight", new int[]{dim, ffnDim});
+            shapes.put(p + "ffn_up.weight", new int[]{dim, ffnDim});
+            shapes.put(p + "ffn_down.weight", new int[]{ffnDim, dim});
+        }
+        shapes.put("output_norm.weight", new int[]{dim});
+        if (!tiedEmbeddings) {
+            shapes.put("output.weight", new int[]{dim, vocabularySize});
+        }
+
+        SyntheticVocabulary vocabulary = vocabulary(vocabularySize);
+
+        Header metadata = new Header();
+        metadata.key("general.architecture").writeInt(STRING).writeString("llama");
+        metadata.key("general.name").writeInt(STRING).writeString("synthetic-" + type.name().toLowerCase());
+        metadata.key("general.alignment").writeInt(UINT32).writeInt(ALIGNMENT);
+        metadata.key("general.file_type").writeInt(UINT32).writeInt(fileType(type));
+        metadata.key("llama.vocab_size").writeInt(UINT32).writeInt(vocabularySize);
+        metadata.key("llama.context_length").writeInt(UINT32).writeInt(contextLength);
+        metadata.key("llama.embedding_length").writeInt(UINT32).writeInt(dim);
+        metadata.key("llama.feed_forward_length").writeInt(UINT32).writeInt(ffnDim);
+        metadata.key("llama.block_count").writeInt(UINT32).writeInt(layers);
+        metadata.key("llama.attention.head_count").writeInt(UINT32).writeInt(heads);
+        metadata.key("llama.attention.head_count_kv").writeInt(UINT32).writeInt(kvHeads);
+        metadata.key("llama.attention.layer_norm_rms_epsilon").writeInt(FLOAT32).writeFloat(1e-5f);
+        metadata.key("llama.rope.freq_base").writeInt(FLOAT32).writeFloat(500000f);
+        metadata.key("llama.rope.dimension_count").writeInt(UINT32).writeInt(dim / heads);
+        metadata.key("tokenizer.ggml.model").writeInt(STRING).writeString("gpt2");
+        metadata.key("tokenizer.ggml.tokens").writeInt(ARRAY).writeInt(STRING).writeLong(vocabulary.tokens().size());
+        vocabulary.tokens().forEach(metadata::writeString);
+        metadata.key("tokenizer.ggml.token_type").writeInt(ARRAY).writeInt(INT32).writeLong(vocabulary.tokenTypes().length);
+        for (int tokenType : vocabulary.tokenTypes()) {
+            metadata.writeInt(tokenType);
+        }
+        metadata.key("tokenizer.ggml.merges").writeInt(ARRAY).writeInt(STRING).writeLong(vocabulary.merges().size());
+        vocabulary.merges().forEach(metadata::writeString);
+        metadata.key("tokenizer.ggml.bos_token_id").writeInt(UINT32).writeInt(vocabulary.tokens().indexOf("<|begin_of_text|>"));
+
+        Header header = new Header();
+        header.writeInt(GGUF_MAGIC);
+        header.writeInt(GGUF_VERSION);
+        header.writeLong(shapes.size());
+        header.writeLong(metadata.keys);
+        metadata.writeTo(header);
+
+        long dataSize = 0;
+        Map<String, Long> offsets = new HashMap<>();
+        for (Map.Entry<String, int[]> e : shapes.entrySet()) {
+            GGMLType tensorType = e.getValue().length == 1 ? GGMLType.F32 : type;
+            offsets.put(e.getKey(), dataSize);
+            header.writeString(e.getKey());
+            header.writeInt(e.getValue().length);
+            for (int d : e.getValue()) {
+                header.writeLong(d);
+            }
+            header.writeInt(tensorType.ordinal());
+            header.writeLong(dataSize);
+            dataSize = align(dataSize + tensorType.byteSizeFor(FloatTensor.numberOfElements(e.getValue())));
+        }
+        long tensorDataOffset = align(header.size());
+
+        try (var ignored = Timer.log("Write synthetic GGUF " + path.getFileName());
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Arena arena = Arena.ofConfined()) {
+            ByteBuffer headerBytes = ByteBuffer.wrap(header.toByteArray());
+            while (headerBytes.hasRemaining()) {
+                channel.write(headerBytes);
+            }
+            // Padding and the gaps between tensors are left as zeros by the mapping.
+            MemorySegment data = channel.map(FileChannel.MapMode.READ_WRITE, tensorDataOffset, dataSize, arena);
+            SplittableRandom random = new SplittableRandom(seed);
+            for (Map.Entry<String, int[]> e : shapes.entrySet()) {
+                int n = FloatTensor.numberOfElements(e.getValue());
+                GGMLType tensorType = e.getValue().length == 1 ? GGMLType.F32 : type;
+                MemorySegment tensor = data.asSlice(offsets.get(e.getKey()), tensorType.byteSizeFor(n));
+                if (tensorType == GGMLType.F32) {
+                    fillOnes(tensor, n);
+                } else {
+                    fillRandom(tensor, tensorType, n, random);
+                }
+            }
+            data.force();
+        }
+        log.info("Wrote synthetic {} model to {}: dim={} hiddenDim={} layers={} heads={} kvHeads={} vocab={} ({} MB)",
+                type, path, dim, ffnDim, layers, heads, kvHeads, vocabularySize, (tensorDataOffset + dataSize) / (1024 * 1024));
+        return path;
+    }
+
+    private void validate(int ffnDim) {
+        if (dim % heads != 0 || heads % kvHeads != 0 || (dim / heads) % 2 != 0) {
+            throw new IllegalArgumentException("dim must be divisible by heads, heads by kvHeads, and the head size must be even");
+        }
+        if (vocabularySize < 256 + SPECIAL_TOKENS.size()) {
+            throw new IllegalArgumentException("vocabularySize must be at least " + (256 + SPECIAL_TOKENS.size()));
+        }
+        int blockSize = type.getBlockSize();
+        if (dim % blockSize != 0 || ffnDim % blockSize != 0 || (dim * kvHeads / heads) % blockSize != 0) {
+            throw new IllegalArgumentException(type + " needs dim, hiddenDim and kvDim to be multiples of " + blockSize);
+        }
+        switch (type) {
+            case Q4_0, Q8_0, F16, BF16 -> {
+            }
+            default -> throw new IllegalArgumentException("Unsupported weight type " + type);
+        }
+    }
+
+    private static int fileType(GGMLType type) {
+        // llama_ftype
+        return switch (type) {
+            case F16 -> 1;
+            case Q4_0 -> 2;
+            case Q8_0 -> 7;
+            case BF16 -> 32;
+            default -> throw new IllegalArgumentException("Unsupported weight type " + type);
+        };
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static void fillOnes(MemorySegment segment, int n) {
+        for (int i = 0; i < n; i++) {
+            segment.setAtIndex(FLOAT_LE, i, 1f);
+        }
+    }
+
+    /**
+     * Random values in [-0.05, 0.05], or random quants with a scale that maps them onto roughly that range.
+     */
+    static void fillRandom(MemorySegment segment, GGMLType type, int n, SplittableRandom random) {
+        switch (type) {
+            case F16 -> {
+                for (int i = 0; i < n; i++) {
+                    segment.set(SHORT_LE, 2L * i, Float.floatToFloat16((float) random.nextDouble(-0.05, 0.05)));
+                }
+            }
+            case BF16 -> {
+                for (int i = 0; i < n; i++) {
+                    segment.set(SHORT_LE, 2L * i, (short) (Float.floatToRawIntBits((float) random.nextDouble(-0.05, 0.05)) >>> 16));
+                }
+            }
+            case Q8_0, Q4_0 -> {
+                // block = f16 scale + quants
+                int blockBytes = type.getTypeSize();
+                short scale = Float.floatToFloat16(type == GGMLType.Q8_0 ? 0.05f / 127 : 0.05f / 8);
+                byte[] quants = new byte[blockBytes - GGMLType.FLOAT16_BYTES];
+                for (long block = 0; block < n / type.getBlockSize(); block++) {
+                    long offset = block * blockBytes;
+                    segment.set(SHORT_LE, offset, scale);
+                    random.nextBytes(quants);
+                    MemorySegment.copy(quants, 0, segment, ValueLayout.JAVA_BYTE, offset + GGMLType.FLOAT16_BYTES, quants.length);
+                }
+            }
+            default -> throw new UnsupportedOperationException("Quantization format " + type);
+        }
+    }
+
+    /**
+     * @param tokens     all tokens, byte-encoded as in the Llama 3 vocabulary
+     * @param tokenTypes {@link #TOKEN_TYPE_NORMAL} or {@link #TOKEN_TYPE_CONTROL} for the special tokens
+     * @param merges     GGUF merge lines, {@code "first second"}, in priority order
+     */
+    record SyntheticVocabulary(List<String> tokens, int[] tokenTypes, List<String> merges) {
+    }
+
+    /**
+     * Byte tokens, then merges learned from {@link #SAMPLE_TEXT} (greedy BPE, most frequent pair first),
+     * then filler tokens, then the special tokens.
+     */
+    static SyntheticVocabulary vocabulary(int vocabularySize) {
+        int maxMerges = vocabularySize - 256 - SPECIAL_TOKENS.size();
+        List<String> tokens = new ArrayList<>(vocabularySize);
+        Map<String, Integer> index = new HashMap<>();
+        for (int b = 0; b < 256; b++) {
+            String token = Character.toString(Tokenizer.BYTE_ENCODER.get(b));
+            index.put(token, tokens.size());
+            tokens.add(token);
+        }
+
+        // Pre-tokenize the byte-encoded text like Tokenizer.encode does; byte token i is byte value i.
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : SAMPLE_TEXT.getBytes(StandardCharsets.UTF_8)) {
+            encoded.appendCodePoint(Tokenizer.BYTE_ENCODER.get(Byte.toUnsignedInt(b)));
+        }
+        List<List<Integer>> words = new ArrayList<>();
+        Matcher matcher = Pattern.compile(ModelLoader.LLAMA_3_PATTERN).matcher(encoded);
+        while (matcher.find()) {
+            List<Integer> word = new ArrayList<>();
+            matcher.group().codePoints().forEach(cp -> word.add(Tokenizer.BYTE_DECODER.get(cp)));
+            words.add(word);
+        }
+
+        List<String> merges = new ArrayList<>();
+        while (merges.size() < maxMerges && tokens.size() < 256 + maxMerges) {
+            Map<Pair<Integer, Integer>, Integer> counts = new LinkedHashMap<>();
+            for (List<Integer> word : words) {
+                for (int i = 0; i + 1 < word.size(); i++) {
+                    counts.merge(new Pair<>(word.get(i), word.get(i + 1)), 1, Integer::sum);
+                }
+            }
+            Pair<Integer, Integer> best = null;
+            int bestCount = 1;
+            for (Map.Entry<Pair<Integer, Integer>, Integer> e : counts.entrySet()) {
+                if (e.getValue() > bestCount) {
+                    best = e.getKey();
+                    bestCount = e.getValue();
+                }
+            }
+            if (best == null) {
+                break; // nothing repeats anymore
+            }
+            String merged = tokens.get(best.first()) + tokens.get(best.second());
+            Integer mergedIndex = index.get(merged);
+            if (mergedIndex == null) {
+                mergedIndex = tokens.size();
+                index.put(merged, mergedIndex);
+                tokens.add(merged);
+            }
+            merges.add(tokens.get(best.first()) + " " + tokens.get(best.second()));
+            for (List<Integer> word : words) {
+                for (int i = 0; i + 1 < word.size(); i++) {
+                    if (word.get(i).equals(best.first()) && word.get(i + 1).equals(best.second())) {
+                        word.set(i, mergedIndex);
+                        word.remove(i + 1);
+                    }
+                }
+            }
+        }
+
+        int firstSpecial = vocabularySize - SPECIAL_TOKENS.size();
+        while (tokens.size() < firstSpecial) {
+            tokens.add("<|filler_" + tokens.size() + "|>");
+        }
+        tokens.addAll(SPECIAL_TOKENS);
+        int[] tokenTypes = new int[vocabularySize];
+        for (int i = 0; i < vocabularySize; i++) {
+            tokenTypes[i] = i < firstSpecial ? TOKEN_TYPE_NORMAL : TOKEN_TYPE_CONTROL;
+        }
+        return new SyntheticVocabulary(tokens, tokenTypes, merges);
+    }
+
+    /**
+     * Little-endian GGUF header being built in memory.
+     */
+    private static final class Header extends ByteArrayOutputStream {
+        private final ByteBuffer scratch = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private int keys;
+
+        /**
+         * Starts a metadata key-value pair; the caller writes the value type and the value.
+         */
+        Header key(String key) {
+            keys++;
+            return writeString(key);
+        }
+
+        Header writeInt(int value) {
+            write(scratch.clear().putInt(value).array(), 0, Integer.BYTES);
+            return this;
+        }
+
+        Header writeLong(long value) {
+            write(scratch.clear().putLong(value).array(), 0, Long.BYTES);
+            return this;
+        }
+
+        Header writeFloat(float value) {
+            write(scratch.clear().putFloat(value).array(), 0, Float.BYTES);
+            return this;
+        }
+
+        Header writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeLong(bytes.length);
+            write(bytes, 0, bytes.length);
+            return this;
+        }
+    }
+
+    /**
+     * {@code SyntheticGGUF <out.gguf> [dim=512] [hiddenDim=1536] [layers=4] [heads=8] [kvHeads=2] [vocab=8192]
+     * [context=2048] [type=Q8_0] [tied=true] [seed=42]}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: SyntheticGGUF <out.gguf> [dim=512] [hiddenDim=1536] [layers=4] [heads=8] [kvHeads=2] [vocab=8192] [context=2048] [type=Q8_0] [tied=true] [seed=42]");
+            System.exit(1);
+        }
+        SyntheticGGUF builder = builder();
+        for (int i = 1; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("Expected key=value but got " + args[i]);
+            }
+            switch (kv[0]) {
+                case "dim" -> builder.dim(Integer.parseInt(kv[1]));
+                case "hiddenDim" -> builder.hiddenDim(Integer.parseInt(kv[1]));
+                case "layers" -> builder.layers(Integer.parseInt(kv[1]));
+                case "heads" -> builder.heads(Integer.parseInt(kv[1]));
+                case "kvHeads" -> builder.kvHeads(Integer.parseInt(kv[1]));
+                case "vocab" -> builder.vocabularySize(Integer.parseInt(kv[1]));
+                case "context" -> builder.contextLength(Integer.parseInt(kv[1]));
+                case "type" -> builder.type(kv[1]);
+                case "tied" -> builder.tiedEmbeddings(Boolean.parseBoolean(kv[1]));
+                case "seed" -> builder.seed(Long.parseLong(kv[1]));
+                default -> throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+        builder.write(Path.of(args[0]));
+    }
+}
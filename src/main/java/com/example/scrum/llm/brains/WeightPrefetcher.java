@@ -0,0 +1,193 @@
+package com.example.scrum.llm.brains;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Faults the memory-mapped model weights into the page cache in the background.
+ * <p>
+ * {@link ModelLoader} only maps the GGUF file, so without this the first request pays a
+ * major page fault for every page of every tensor it touches. The prefetcher walks the
+ * tensors in the order {@link Llama#forward} uses them (layer by layer, then the classifier)
+ * and reads one byte per page, so a request that starts while prefetching is still running
+ * mostly hits pages that are already resident.
+ * <p>
+ * Controlled with {@code -Dllama.Prefetch=false} (enabled by default).
+ */
+public final class WeightPrefetcher {
+    private static final Logger log = LoggerFactory.getLogger(WeightPrefetcher.class);
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("llama.Prefetch", "true"));
+    private static final int PAGE_SIZE = 4096;
+
+    private final List<MemorySegment> segments;
+    private final long totalBytes;
+    private final AtomicLong residentBytes = new AtomicLong();
+    private final CompletableFuture<Void> resident = new CompletableFuture<>();
+    // Keeps the touched bytes observable so the page walk cannot be optimized away.
+    private volatile long checksum;
+    private volatile boolean stopped;
+    private Thread thread;
+
+    private WeightPrefetcher(List<MemorySegment> segments) {
+        this.segments = segments;
+        this.totalBytes = segments.stream().mapToLong(MemorySegment::byteSize).sum();
+    }
+
+    /**
+     * Starts prefetching the weights of the given model on a daemon thread.
+     * If prefetching is disabled, or the model has no weights, the returned prefetcher is already resident.
+     */
+    static WeightPrefetcher start(Llama model) {
+        if (model.weights() == null) {
+            WeightPrefetcher prefetcher = new WeightPrefetcher(List.of());
+            prefetcher.resident.complete(null);
+            return prefetcher;
+        }
+        WeightPrefetcher prefetcher = new WeightPrefetcher(layerOrder(model.configuration(), model.weights()));
+        if (!ENABLED) {
+            log.info("Weight prefetching disabled (llama.Prefetch=false), pages will be faulted on first use.");
+            prefetcher.resident.complete(null);
+            return prefetcher;
+        }
+        Thread thread = new Thread(prefetcher::run, "WeightPrefetcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        prefetcher.thread = thread;
+        thread.start();
+        return prefetcher;
+    }
+
+    /**
+     * Completes once every weight page has been touched at least once.
+     */
+    public CompletableFuture<Void> resident() {
+        return resident;
+    }
+
+    public boolean isResident() {
+        return resident.isDone();
+    }
+
+    public long residentBytes() {
+        return residentBytes.get();
+    }
+
+    public long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Stops prefetching and waits for the prefetch thread to exit, so that the model's mapping can be
+     * released afterwards. Pages touched so far stay resident.
+     */
+    void stop() {
+        stopped = true;
+        resident.cancel(false);
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        long startNanos = System.nanoTime();
+        try {
+            long sum = 0;
+            for (MemorySegment segment : segments) {
+                if (stopped) {
+                    log.debug("Weight prefetching stopped after {} of {} bytes", residentBytes.get(), totalBytes);
+                    return;
+                }
+                long size = segment.byteSize();
+                for (long offset = 0; offset < size; offset += PAGE_SIZE) {
+                    if (stopped) {
+                        log.debug("Weight prefetching stopped after {} of {} bytes", residentBytes.get(), totalBytes);
+                        return;
+                    }
+                    sum += segment.get(ValueLayout.JAVA_BYTE, offset);
+                }
+                residentBytes.addAndGet(size);
+            }
+            checksum = sum;
+            log.info("Model weights resident: {} MB in {} ms",
+                    totalBytes / (1024 * 1024), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+            resident.complete(null);
+        } catch (RuntimeException e) {
+            if (stopped) {
+                return; // the mapping was released underneath us
+            }
+            log.error("Weight prefetching failed after {} of {} bytes", residentBytes.get(), totalBytes, e);
+            resident.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Mapped weight segments in the order a forward pass reads them, without duplicates
+     * (tied embeddings share the same segment for the embedding table and the classifier).
+     */
+    static List<MemorySegment> layerOrder(Llama.Configuration config, Llama.Weights weights) {
+        Set<Long> seen = new HashSet<>();
+        List<MemorySegment> ordered = new ArrayList<>();
+        for (int l = 0; l < config.numberOfLayers; l++) {
+            addBuffer(ordered, seen, weights.rms_att_weight[l]);
+            addTensor(ordered, seen, weights.wq[l]);
+            addTensor(ordered, seen, weights.wk[l]);
+            addTensor(ordered, seen, weights.wv[l]);
+            addTensor(ordered, seen, weights.wo[l]);
+            addBuffer(ordered, seen, weights.rms_ffn_weight[l]);
+            addTensor(ordered, seen, weights.w1[l]);
+            addTensor(ordered, seen, weights.w3[l]);
+            addTensor(ordered, seen, weights.w2[l]);
+        }
+        addBuffer(ordered, seen, weights.rms_final_weight);
+        addTensor(ordered, seen, weights.wcls);
+        // Only a handful of embedding rows are read per request, so the table goes last.
+        addTensor(ordered, seen, weights.token_embedding_table);
+        return ordered;
+    }
+
+    private static void addTensor(List<MemorySegment> ordered, Set<Long> seen, FloatTensor tensor) {
+        MemorySegment segment = switch (tensor) {
+            case Q4_0FloatTensor t -> t.memorySegment;
+            case Q8_0FloatTensor t -> t.memorySegment;
+            case F16FloatTensor t -> t.memorySegment;
+            case BF16FloatTensor t -> t.memorySegment;
+            default -> null; // heap-backed tensors are already resident
+        };
+        if (segment != null && seen.add(segment.address())) {
+            ordered.add(segment);
+        }
+    }
+
+    private static void addBuffer(List<MemorySegment> ordered, Set<Long> seen, FloatBuffer buffer) {
+        if (buffer.isDirect()) {
+            MemorySegment segment = MemorySegment.ofBuffer(buffer);
+            if (seen.add(segment.address())) {
+                ordered.add(segment);
+            }
+        }
+    }
+}
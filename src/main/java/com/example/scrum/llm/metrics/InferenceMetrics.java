@@ -0,0 +1,260 @@
+package com.example.scrum.llm.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide registry of inference metrics.
+ * <p>
+ * Every {@link Metric} is kept as one HDR histogram per (agent, task type), created on first use and
+ * registered with the platform MBean server under {@value #JMX_DOMAIN}. The same data is rendered in
+ * the Prometheus text format by {@link #prometheusText()}, served by {@link PrometheusEndpoint}.
+ * Generations are also counted per (agent, task type) and how they finished.
+ */
+public final class InferenceMetrics implements InferenceMetricsMXBean {
+    private static final Logger log = LoggerFactory.getLogger(InferenceMetrics.class);
+
+    public static final String JMX_DOMAIN = "com.example.scrum.llm";
+    /** Label used when a generation is not attributed to an agent or task type. */
+    public static final String UNLABELED = "none";
+    /** Finish label of a generation that failed, counted in {@link #getFailedGenerations()}. */
+    public static final String FINISH_ERROR = "error";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double MICROS_TO_SECONDS = 1e-6;
+
+    public enum Metric {
+        QUEUE_WAIT("llm_queue_wait_seconds", "Time a request waited for an inference slot", MICROS_TO_SECONDS),
+        TOKENIZATION("llm_tokenization_seconds", "Time to encode the chat prompt into tokens", MICROS_TO_SECONDS),
+        PREFILL("llm_prefill_seconds", "Time to ingest the prompt tokens and sample the first token", MICROS_TO_SECONDS),
+        TIME_TO_FIRST_TOKEN("llm_time_to_first_token_seconds", "Time from the start of a generation to its first token", MICROS_TO_SECONDS),
+        INTER_TOKEN("llm_inter_token_seconds", "Time between two consecutive generated tokens", MICROS_TO_SECONDS),
+        GENERATION("llm_generation_seconds", "Total time of a generation, tokenization to decoded text", MICROS_TO_SECONDS),
+        PROMPT_TOKENS("llm_prompt_tokens", "Prompt tokens per generation, chat template included", 1),
+        GENERATED_TOKENS("llm_generated_tokens", "Generated tokens per generation, stop token excluded", 1),
+        KV_OCCUPANCY("llm_kv_cache_occupancy_ratio", "Fraction of the KV cache positions used when a generation ends", 1e-4);
+
+        private final String metricName;
+        private final String help;
+        private final double scale;
+
+        Metric(String metricName, String help, double scale) {
+            this.metricName = metricName;
+            this.help = help;
+            this.scale = scale;
+        }
+
+        public String metricName() {
+            return metricName;
+        }
+
+        /** Multiplier from the recorded long value to the exported unit. */
+        double scale() {
+            return scale;
+        }
+
+        boolean isDuration() {
+            return scale == MICROS_TO_SECONDS;
+        }
+    }
+
+    private record Key(Metric metric, String agent, String taskType) {
+    }
+
+    private record FinishKey(String agent, String taskType, String finish) {
+    }
+
+    private static final InferenceMetrics GLOBAL = new InferenceMetrics();
+
+    private final ConcurrentMap<Key, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<FinishKey, LongAdder> finishes = new ConcurrentHashMap<>();
+    private final LongAdder failedGenerations = new LongAdder();
+    private final AtomicLong activeGenerations = new AtomicLong();
+    private final AtomicLong kvCacheBytes = new AtomicLong();
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    private InferenceMetrics() {
+        register(this, JMX_DOMAIN + ":type=InferenceMetrics");
+    }
+
+    public static InferenceMetrics global() {
+        return GLOBAL;
+    }
+
+    public LatencyHistogram histogram(Metric metric, String agent, String taskType) {
+        Key key = new Key(metric, label(agent), label(taskType));
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram != null) {
+            return histogram;
+        }
+        return histograms.computeIfAbsent(key, k -> {
+            LatencyHistogram created = new LatencyHistogram(k.metric(), k.agent(), k.taskType());
+            register(created, JMX_DOMAIN + ":type=InferenceMetrics"
+                    + ",metric=" + k.metric().metricName()
+                    + ",agent=" + ObjectName.quote(k.agent())
+                    + ",taskType=" + ObjectName.quote(k.taskType()));
+            return created;
+        });
+    }
+
+    public void recordNanos(Metric metric, String agent, String taskType, long nanos) {
+        histogram(metric, agent, taskType).record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordTokens(String agent, String taskType, int promptTokens, int generatedTokens) {
+        histogram(Metric.PROMPT_TOKENS, agent, taskType).record(promptTokens);
+        histogram(Metric.GENERATED_TOKENS, agent, taskType).record(generatedTokens);
+    }
+
+    public void recordKvOccupancy(String agent, String taskType, int usedPositions, int contextLength) {
+        // recorded in basis points, exported as a ratio
+        histogram(Metric.KV_OCCUPANCY, agent, taskType).record(10_000L * usedPositions / Math.max(1, contextLength));
+    }
+
+    /**
+     * Counts a generation that ended as {@code finish}, e.g. {@code "stop"}, {@code "length"} or {@code "error"}.
+     */
+    public void recordFinish(String agent, String taskType, String finish) {
+        finishes.computeIfAbsent(new FinishKey(label(agent), label(taskType), finish), k -> new LongAdder()).increment();
+        if (FINISH_ERROR.equals(finish)) {
+            failedGenerations.increment();
+        }
+    }
+
+    public long finishCount(String agent, String taskType, String finish) {
+        LongAdder count = finishes.get(new FinishKey(label(agent), label(taskType), finish));
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * Accounts a generation and the KV cache it allocated until the returned handle is closed.
+     */
+    public Active startGeneration(long kvBytes) {
+        activeGenerations.incrementAndGet();
+        kvCacheBytes.addAndGet(kvBytes);
+        return new Active(kvBytes);
+    }
+
+    public final class Active implements AutoCloseable {
+        private final long kvBytes;
+        private boolean closed;
+
+        private Active(long kvBytes) {
+            this.kvBytes = kvBytes;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                activeGenerations.decrementAndGet();
+                kvCacheBytes.addAndGet(-kvBytes);
+            }
+        }
+    }
+
+    @Override
+    public long getActiveGenerations() {
+        return activeGenerations.get();
+    }
+
+    @Override
+    public long getKvCacheBytes() {
+        return kvCacheBytes.get();
+    }
+
+    @Override
+    public long getFailedGenerations() {
+        return failedGenerations.sum();
+    }
+
+    @Override
+    public String getPrometheusText() {
+        return prometheusText();
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text exposition format (version 0.0.4).
+     * Histograms are exported as summaries with fixed quantiles.
+     */
+    public String prometheusText() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "llm_active_generations", "Generations currently running", activeGenerations.get());
+        gauge(out, "llm_kv_cache_bytes", "Bytes of KV cache allocated by running generations", kvCacheBytes.get());
+
+        if (!finishes.isEmpty()) {
+            out.append("# HELP llm_generations_total Generations by how they finished\n");
+            out.append("# TYPE llm_generations_total counter\n");
+            List<FinishKey> keys = new ArrayList<>(finishes.keySet());
+            keys.sort(Comparator.comparing(FinishKey::agent)
+                    .thenComparing(FinishKey::taskType)
+                    .thenComparing(FinishKey::finish));
+            for (FinishKey k : keys) {
+                String labels = "agent=\"" + escape(k.agent()) + "\",taskType=\"" + escape(k.taskType())
+                        + "\",finish=\"" + escape(k.finish()) + "\"";
+                sample(out, "llm_generations_total", labels, String.valueOf(finishes.get(k).sum()));
+            }
+        }
+
+        List<LatencyHistogram> sorted = new ArrayList<>(histograms.values());
+        sorted.sort(Comparator.comparing(LatencyHistogram::metric)
+                .thenComparing(LatencyHistogram::getAgent)
+                .thenComparing(LatencyHistogram::getTaskType));
+        Metric previous = null;
+        for (LatencyHistogram h : sorted) {
+            Metric metric = h.metric();
+            if (metric != previous) {
+                out.append("# HELP ").append(metric.metricName()).append(' ').append(metric.help).append('\n');
+                out.append("# TYPE ").append(metric.metricName()).append(" summary\n");
+                previous = metric;
+            }
+            String labels = "agent=\"" + escape(h.getAgent()) + "\",taskType=\"" + escape(h.getTaskType()) + "\"";
+            for (double q : QUANTILES) {
+                sample(out, metric.metricName(), labels + ",quantile=\"" + q + "\"", Double.toString(h.valueAtPercentile(q * 100)));
+            }
+            sample(out, metric.metricName() + "_sum", labels, Double.toString(h.sum()));
+            sample(out, metric.metricName() + "_count", labels, String.valueOf(h.count()));
+        }
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String label(String value) {
+        return value == null || value.isBlank() ? UNLABELED : value;
+    }
+
+    private void register(Object mbean, String name) {
+        try {
+            mBeanServer.registerMBean(mbean, new ObjectName(name));
+        } catch (JMException e) {
+            // metrics must never break inference, the histogram still works without JMX
+            log.warn("Could not register MBean {}: {}", name, e.toString());
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.scrum.llm.metrics;
+
+/**
+ * JMX view of the process-wide inference gauges. Per agent/task type histograms are registered as
+ * separate {@link LatencyHistogramMXBean}s.
+ */
+public interface InferenceMetricsMXBean {
+
+    long getActiveGenerations();
+
+    long getKvCacheBytes();
+
+    long getFailedGenerations();
+
+    String getPrometheusText();
+}
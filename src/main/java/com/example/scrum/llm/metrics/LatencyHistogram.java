@@ -0,0 +1,115 @@
+package com.example.scrum.llm.metrics;
+
+import org.HdrHistogram.ConcurrentHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HDR histogram (3 significant digits, auto-resizing) for one metric of one agent and task type.
+ * Durations are recorded in microseconds; {@link InferenceMetrics.Metric#scale()} converts
+ * recorded values to the exported unit.
+ */
+public final class LatencyHistogram implements LatencyHistogramMXBean {
+
+    private final InferenceMetrics.Metric metric;
+    private final String agent;
+    private final String taskType;
+    private final ConcurrentHistogram histogram = new ConcurrentHistogram(3);
+    // HdrHistogram does not keep an exact total, Prometheus summaries need one
+    private final LongAdder sum = new LongAdder();
+
+    LatencyHistogram(InferenceMetrics.Metric metric, String agent, String taskType) {
+        this.metric = metric;
+        this.agent = agent;
+        this.taskType = taskType;
+    }
+
+    void record(long value) {
+        long v = Math.max(0, value);
+        histogram.recordValue(v);
+        sum.add(v);
+    }
+
+    InferenceMetrics.Metric metric() {
+        return metric;
+    }
+
+    /**
+     * @return the recorded value at the given percentile, in the exported unit
+     */
+    public double valueAtPercentile(double percentile) {
+        return histogram.getValueAtPercentile(percentile) * metric.scale();
+    }
+
+    /**
+     * @return sum of all recorded values, in the exported unit
+     */
+    public double sum() {
+        return sum.sum() * metric.scale();
+    }
+
+    public long count() {
+        return histogram.getTotalCount();
+    }
+
+    // --- JMX, durations in milliseconds ---
+
+    private double jmx(double exported) {
+        return metric.isDuration() ? exported * 1000.0 : exported;
+    }
+
+    @Override
+    public String getMetric() {
+        return metric.metricName();
+    }
+
+    @Override
+    public String getAgent() {
+        return agent;
+    }
+
+    @Override
+    public String getTaskType() {
+        return taskType;
+    }
+
+    @Override
+    public long getCount() {
+        return count();
+    }
+
+    @Override
+    public double getSum() {
+        return jmx(sum());
+    }
+
+    @Override
+    public double getMean() {
+        return jmx(histogram.getMean() * metric.scale());
+    }
+
+    @Override
+    public double getMax() {
+        return jmx(histogram.getMaxValue() * metric.scale());
+    }
+
+    @Override
+    public double getP50() {
+        return jmx(valueAtPercentile(50));
+    }
+
+    @Override
+    public double getP90() {
+        return jmx(valueAtPercentile(90));
+    }
+
+    @Override
+    public double getP99() {
+        return jmx(valueAtPercentile(99));
+    }
+
+    @Override
+    public double getP999() {
+        return jmx(valueAtPercentile(99.9));
+    }
+}
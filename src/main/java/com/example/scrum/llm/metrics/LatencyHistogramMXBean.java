@@ -0,0 +1,30 @@
+package com.example.scrum.llm.metrics;
+
+/**
+ * JMX view of one {@link LatencyHistogram}. Durations are reported in milliseconds, token and
+ * occupancy metrics in their own unit.
+ */
+public interface LatencyHistogramMXBean {
+
+    String getMetric();
+
+    String getAgent();
+
+    String getTaskType();
+
+    long getCount();
+
+    double getSum();
+
+    double getMean();
+
+    double getMax();
+
+    double getP50();
+
+    double getP90();
+
+    double getP99();
+
+    double getP999();
+}
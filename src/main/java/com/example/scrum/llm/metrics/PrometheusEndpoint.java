@@ -0,0 +1,86 @@
+package com.example.scrum.llm.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves {@link InferenceMetrics#prometheusText()} on {@code GET /metrics}.
+ * Started by {@link #startFromSystemProperties()} when {@code -Dllama.MetricsPort} is set.
+ */
+public final class PrometheusEndpoint implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(PrometheusEndpoint.class);
+
+    public static final String PORT_PROPERTY = "llama.MetricsPort";
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static PrometheusEndpoint started;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "PrometheusEndpoint");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public PrometheusEndpoint(int port, InferenceMetrics metrics) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> respond(exchange, metrics));
+        server.setExecutor(executor);
+        server.start();
+        log.info("Prometheus metrics served on http://localhost:{}/metrics", server.getAddress().getPort());
+    }
+
+    /**
+     * Starts the process-wide endpoint once if {@value #PORT_PROPERTY} is configured; a port that cannot
+     * be bound is logged and otherwise ignored.
+     */
+    public static synchronized void startFromSystemProperties() {
+        String port = System.getProperty(PORT_PROPERTY);
+        if (started != null || port == null || port.isBlank()) {
+            return;
+        }
+        try {
+            started = new PrometheusEndpoint(Integer.parseInt(port.trim()), InferenceMetrics.global());
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Prometheus endpoint not started on port '{}': {}", port, e.toString());
+        }
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private static void respond(HttpExchange exchange, InferenceMetrics metrics) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.prometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
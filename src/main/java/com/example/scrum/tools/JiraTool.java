@@ -1,5 +1,6 @@
 package com.example.scrum.tools;
 
+import com.example.agency.bus.AppendWriter;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -163,8 +164,7 @@ public class JiraTool {
                 "issueId", ticketId, "author", author, "body", body, "timestamp", Instant.now().toString()
         );
         try {
-            String commentJson = objectMapper.writeValueAsString(comment) + System.lineSeparator();
-            Files.writeString(commentsFile, commentJson, StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+            AppendWriter.forPath(commentsFile).append(objectMapper.writeValueAsString(comment));
             return "{\"status\": \"success\", \"message\": \"Comment added to " + ticketId + "\"}";
         } catch (IOException e) {
             log.error("Error adding comment to {}: {}", ticketId, e.getMessage(), e);
@@ -177,8 +177,7 @@ public class JiraTool {
                 "issueId", ticketId, "fromStatus", fromStatus, "toStatus", toStatus, "user", user, "timestamp", Instant.now().toString()
         );
         try {
-            String transitionJson = objectMapper.writeValueAsString(transition) + System.lineSeparator();
-            Files.writeString(transitionsFile, transitionJson, StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+            AppendWriter.forPath(transitionsFile).append(objectMapper.writeValueAsString(transition));
             log.info("Logged transition for {}: {} -> {} by {}", ticketId, fromStatus, toStatus, user);
         } catch (IOException e) {
             log.error("Error logging transition for {}: {}", ticketId, e.getMessage(), e);
@@ -1,5 +1,6 @@
 package com.example.scrum.tools;
 
+import com.example.agency.bus.AppendWriter;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
@@ -8,7 +9,6 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.util.List;
 import java.util.Map;
@@ -53,8 +53,7 @@ public class MSTeamsTool {
         messageData.put("timestamp", Instant.now().toString());
 
         try {
-            String messageJsonLine = jsonLineMapper.writeValueAsString(messageData) + System.lineSeparator();
-            Files.writeString(channelLogFile, messageJsonLine, StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+            AppendWriter.forPath(channelLogFile).append(jsonLineMapper.writeValueAsString(messageData));
             log.info("Message recorded successfully to {}", channelLogFile.toAbsolutePath());
             return "{\"status\": \"success\", \"message\": \"Message sent and recorded to channel " + channelName + ".\"}";
         } catch (IOException e) {
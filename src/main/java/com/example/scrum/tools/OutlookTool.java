@@ -1,5 +1,6 @@
 package com.example.scrum.tools;
 
+import com.example.agency.bus.AppendWriter;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -8,7 +9,6 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
@@ -41,8 +41,7 @@ public class OutlookTool {
         emailData.put("timestamp", Instant.now().toString());
 
         try {
-            String emailJsonLine = jsonMapper.writeValueAsString(emailData) + System.lineSeparator();
-            Files.writeString(recipientLogFile, emailJsonLine, StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+            AppendWriter.forPath(recipientLogFile).append(jsonMapper.writeValueAsString(emailData));
             log.info("Email to {} recorded successfully in {}", to, recipientLogFile.toAbsolutePath());
             return "{\"status\": \"success\", \"message\": \"Email sent and recorded to " + to + ".\"}";
         } catch (IOException e) {
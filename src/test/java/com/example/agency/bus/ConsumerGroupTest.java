@@ -0,0 +1,162 @@
+package com.example.agency.bus;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsumerGroupTest {
+    private static final int PARTITIONS = 4;
+    private static final int KEYS = 16;
+
+    // the queues live under data/bus_state like the agents' queues, each test run uses new ones
+    private final String queueName = "ConsumerGroupTest-" + System.nanoTime();
+
+    @AfterEach
+    void deleteQueue() throws IOException {
+        System.clearProperty("bus.Partitions." + queueName);
+        List<Path> paths = new ArrayList<>();
+        paths.add(ConsumerGroup.BASE_DIR.resolve(queueName));
+        for (Path dir : List.of(PartitionedQueue.STATE_DIR, SegmentedLog.BASE_DIR.resolve("tasks"))) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, queueName + "*")) {
+                files.forEach(paths::add);
+            }
+        }
+        for (Path path : paths) {
+            if (Files.exists(path)) {
+                try (Stream<Path> tree = Files.walk(path)) {
+                    for (Path file : tree.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 1000 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * Records {@code <key>:<n>} handled, per member, in the order they were handled.
+     */
+    private static final class Handled {
+        final Map<String, List<String>> byMember = new ConcurrentHashMap<>();
+
+        HandlerExecutor.Handler handler(String member) {
+            List<String> records = byMember.computeIfAbsent(member, m -> new ArrayList<>());
+            return HandlerExecutor.Handler.of(payload -> {
+                synchronized (records) {
+                    records.add(payload);
+                }
+            });
+        }
+
+        int count() {
+            int count = 0;
+            for (List<String> records : byMember.values()) {
+                synchronized (records) {
+                    count += records.size();
+                }
+            }
+            return count;
+        }
+
+        int count(String member) {
+            List<String> records = byMember.get(member);
+            synchronized (records) {
+                return records.size();
+            }
+        }
+
+        /**
+         * Asserts every record was handled once, in order per key.
+         */
+        void assertHandledOnce(int recordsPerKey) {
+            Map<String, List<Integer>> byKey = new ConcurrentHashMap<>();
+            for (List<String> records : byMember.values()) {
+                synchronized (records) {
+                    for (String record : records) {
+                        int colon = record.indexOf(':');
+                        byKey.computeIfAbsent(record.substring(0, colon), k -> new ArrayList<>())
+                                .add(Integer.parseInt(record.substring(colon + 1)));
+                    }
+                }
+            }
+            assertEquals(KEYS, byKey.size());
+            for (Map.Entry<String, List<Integer>> key : byKey.entrySet()) {
+                List<Integer> numbers = key.getValue();
+                numbers.sort(null);
+                assertEquals(recordsPerKey, numbers.size(), key.getKey());
+                for (int i = 0; i < recordsPerKey; i++) {
+                    assertEquals(i, numbers.get(i), key.getKey());
+                }
+            }
+        }
+    }
+
+    private static void append(PartitionedQueue queue, int from, int to) throws IOException {
+        for (int n = from; n < to; n++) {
+            for (int k = 0; k < KEYS; k++) {
+                queue.append("key" + k, "key" + k + ":" + n);
+            }
+        }
+    }
+
+    @Test
+    void membersSplitThePartitionsAndTakeOverFromOneThatLeaves() throws Exception {
+        System.setProperty("bus.Partitions." + queueName, String.valueOf(PARTITIONS));
+        PartitionedQueue queue = PartitionedQueue.open(queueName);
+        assertEquals(PARTITIONS, queue.partitions());
+
+        Handled handled = new Handled();
+        ConsumerGroup.Member first = ConsumerGroup.join(queue, "workers");
+        first.subscribe(handled.handler("first"));
+        ConsumerGroup.Member second = ConsumerGroup.join(queue, "workers");
+        second.subscribe(handled.handler("second"));
+
+        append(queue, 0, 10);
+        await(() -> handled.count() == 10 * KEYS);
+        // each member owns two of the four partitions once the first rebalances are done
+        append(queue, 10, 20);
+        await(() -> handled.count() == 20 * KEYS);
+        assertTrue(handled.count("first") > 0 && handled.count("second") > 0);
+
+        // the partitions of a member that left go to the one left
+        second.leave();
+        int handledBySecond = handled.count("second");
+        // nothing is in flight, the member gives its partitions up right away
+        Thread.sleep(500);
+        append(queue, 20, 30);
+        await(() -> handled.count() == 30 * KEYS);
+        handled.assertHandledOnce(30);
+        assertEquals(handledBySecond, handled.count("second"));
+
+        first.leave();
+        Path members = ConsumerGroup.BASE_DIR.resolve(queueName).resolve("workers").resolve("members");
+        await(() -> {
+            try (Stream<Path> files = Files.list(members)) {
+                return files.findAny().isEmpty();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.agency.bus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogSegmentTest {
+    private static final long BASE = 100;
+    private static final int INDEX_INTERVAL = 64;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * A sealed segment of 40 records at offsets 100..139: keys a, b, c in turn, every fifth record without a key.
+     */
+    private LogSegment sealedSegment() throws IOException {
+        LogSegment segment = LogSegment.create(dir, BASE, 64 * 1024, 4096);
+        int position = LogSegment.HEADER_BYTES;
+        int slot = 0;
+        int sinceIndex = 0;
+        for (int i = 0; i < 40; i++) {
+            String key = i % 5 == 0 ? "" : String.valueOf((char) ('a' + i % 3));
+            byte[] body = LogSegment.body(key.getBytes(StandardCharsets.UTF_8), ("v" + (BASE + i)).getBytes(StandardCharsets.UTF_8));
+            if (sinceIndex >= INDEX_INTERVAL) {
+                segment.addIndexEntry(slot++, i, position);
+                sinceIndex = 0;
+            }
+            int next = segment.write(position, 1000 + i, body);
+            sinceIndex += next - position;
+            position = next;
+        }
+        segment.seal(40, 1039, position);
+        return segment;
+    }
+
+    private record Entry(long offset, String key, String payload) {
+    }
+
+    private static List<Entry> records(LogSegment segment) {
+        List<Entry> records = new ArrayList<>();
+        long next = segment.baseOffset;
+        int length;
+        for (int position = LogSegment.HEADER_BYTES; (length = segment.length(position)) != 0;
+             position += LogSegment.stride(length)) {
+            assertTrue(segment.checksumMatches(position, length));
+            long offset = segment.offset(position, next);
+            next = offset + 1;
+            records.add(new Entry(offset, SegmentedLog.text(segment.key(position)),
+                    SegmentedLog.text(segment.payload(position, length))));
+        }
+        return records;
+    }
+
+    /**
+     * Keeps the records without a key and the last one of each key, at offsets 137 (b), 138 (c) and 139 (a).
+     */
+    private static LogSegment.Retained lastPerKey() {
+        return (offset, key) -> !key.hasRemaining() || offset >= BASE + 37;
+    }
+
+    @Test
+    void writesAndReadsBackRecords() throws IOException {
+        List<Entry> records = records(sealedSegment());
+        assertEquals(40, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(BASE + i, records.get(i).offset());
+            assertEquals("v" + (BASE + i), records.get(i).payload());
+        }
+        assertEquals("", records.get(0).key());
+        assertEquals("b", records.get(1).key());
+    }
+
+    @Test
+    void compactionKeepsTheOffsetsOfTheRecordsLeft() throws IOException {
+        LogSegment segment = sealedSegment();
+        LogSegment.Rewrite rewrite = segment.compact(lastPerKey(), INDEX_INTERVAL);
+        assertEquals(29, rewrite.dropped());
+        LogSegment compacted = rewrite.install();
+
+        List<Long> offsets = new ArrayList<>();
+        for (Entry record : records(compacted)) {
+            offsets.add(record.offset());
+            assertEquals("v" + record.offset(), record.payload());
+        }
+        assertEquals(List.of(100L, 105L, 110L, 115L, 120L, 125L, 130L, 135L, 137L, 138L, 139L), offsets);
+        assertTrue(compacted.compacted());
+        assertTrue(compacted.sealed());
+        assertEquals(1, compacted.generation);
+        assertEquals(40, compacted.recordCount());
+        assertEquals(BASE + 40, compacted.endOffset());
+        assertEquals(1039, compacted.maxTimestamp());
+
+        // the old mapping still reads the records as they were, the file on disk is the compacted one
+        assertTrue(segment.replacedOnDisk());
+        assertFalse(compacted.replacedOnDisk());
+        assertEquals(40, records(segment).size());
+        assertFalse(Files.exists(LogSegment.indexFile(segment.file, 0)));
+        assertEquals(offsets, records(LogSegment.open(segment.file)).stream().map(Entry::offset).toList());
+    }
+
+    @Test
+    void compactingAgainWritesTheNextGeneration() throws IOException {
+        LogSegment once = sealedSegment().compact(lastPerKey(), INDEX_INTERVAL).install();
+        LogSegment twice = once.compact((offset, key) -> offset != BASE + 39, INDEX_INTERVAL).install();
+        assertEquals(2, twice.generation);
+        assertFalse(Files.exists(LogSegment.indexFile(once.file, 1)));
+        assertTrue(Files.exists(LogSegment.indexFile(once.file, 2)));
+        assertEquals(10, records(twice).size());
+        assertEquals(BASE + 40, twice.endOffset());
+    }
+
+    @Test
+    void indexOfACompactedSegmentFindsTheRecordsLeft() throws IOException {
+        LogSegment compacted = sealedSegment().compact(lastPerKey(), INDEX_INTERVAL).install();
+        assertTrue(compacted.floorIndexSlot(39) > 0);
+        for (long relativeOffset = 0; relativeOffset < 40; relativeOffset++) {
+            int slot = compacted.floorIndexSlot(relativeOffset);
+            if (slot < 0) {
+                continue;
+            }
+            int position = compacted.indexPosition(slot);
+            long offset = compacted.offset(position, -1);
+            assertEquals(BASE + compacted.indexRelativeOffset(slot), offset);
+            assertTrue(offset <= BASE + relativeOffset);
+        }
+    }
+
+    @Test
+    void nothingIsRewrittenWhenEveryRecordIsRetained() throws IOException {
+        assertNull(sealedSegment().compact((offset, key) -> true, INDEX_INTERVAL));
+    }
+
+    @Test
+    void aDiscardedRewriteLeavesTheSegmentAlone() throws IOException {
+        LogSegment segment = sealedSegment();
+        LogSegment.Rewrite rewrite = segment.compact(lastPerKey(), INDEX_INTERVAL);
+        rewrite.discard();
+        assertFalse(segment.replacedOnDisk());
+        assertFalse(Files.exists(LogSegment.indexFile(segment.file, 1)));
+        assertFalse(Files.exists(segment.file.resolveSibling(segment.file.getFileName() + ".tmp")));
+        assertEquals(40, records(LogSegment.open(segment.file)).size());
+    }
+}
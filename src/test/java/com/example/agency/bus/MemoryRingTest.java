@@ -0,0 +1,100 @@
+package com.example.agency.bus;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MemoryRingTest {
+    private static final int PUBLISHERS = 4;
+    private static final int RECORDS = 20_000;
+
+    private static MemoryRing ring(String name, int capacity, long publishTimeoutMillis) {
+        System.setProperty("bus.RingCapacity." + name, String.valueOf(capacity));
+        System.setProperty("bus.PublishTimeoutMillis." + name, String.valueOf(publishTimeoutMillis));
+        try {
+            return new MemoryRing(name);
+        } finally {
+            System.clearProperty("bus.RingCapacity." + name);
+            System.clearProperty("bus.PublishTimeoutMillis." + name);
+        }
+    }
+
+    @Test
+    void everyRecordIsReadOnceInPublishOrder() throws Exception {
+        // a small ring: the publishers lap the reader and wait for it all the time
+        MemoryRing ring = ring("MemoryRingTest-stress", 64, 30_000);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> publishers = new ArrayList<>();
+        for (int p = 0; p < PUBLISHERS; p++) {
+            String key = "p" + p;
+            publishers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    for (int i = 0; i < RECORDS; i++) {
+                        ring.publish(key, key + ":" + i);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure.set(e);
+                }
+            }));
+        }
+
+        int[] next = new int[PUBLISHERS];
+        long[] expectedOffset = {0};
+        int total = PUBLISHERS * RECORDS;
+        while (expectedOffset[0] < total && failure.get() == null) {
+            ring.read((offset, key, payload, bytes) -> {
+                assertEquals(expectedOffset[0]++, offset);
+                int publisher = Integer.parseInt(key.substring(1));
+                assertEquals(key + ":" + next[publisher]++, payload);
+                return true;
+            });
+            Thread.onSpinWait();
+        }
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+        assertNull(failure.get());
+        for (int count : next) {
+            assertEquals(RECORDS, count);
+        }
+        assertEquals(total, ring.position());
+        assertEquals(0, ring.read((offset, key, payload, bytes) -> true));
+    }
+
+    @Test
+    void readingStopsWhereTheSinkSays() throws IOException {
+        MemoryRing ring = ring("MemoryRingTest-stop", 8, 30_000);
+        for (int i = 0; i < 5; i++) {
+            ring.publish(null, "r" + i);
+        }
+        List<String> read = new ArrayList<>();
+        assertEquals(2, ring.read((offset, key, payload, bytes) -> {
+            read.add(payload);
+            return read.size() < 2;
+        }));
+        assertEquals(2, ring.position());
+        assertEquals(3, ring.read((offset, key, payload, bytes) -> read.add(payload)));
+        assertEquals(List.of("r0", "r1", "r2", "r3", "r4"), read);
+    }
+
+    @Test
+    void aPublisherGivesUpWhenTheRingStaysFull() throws IOException {
+        MemoryRing ring = ring("MemoryRingTest-full", 2, 50);
+        ring.publish(null, "a");
+        ring.publish(null, "b");
+        assertThrows(IOException.class, () -> ring.publish(null, "c"));
+        // reading frees a slot
+        ring.read((offset, key, payload, bytes) -> false);
+        ring.publish(null, "c");
+        List<String> read = new ArrayList<>();
+        ring.read((offset, key, payload, bytes) -> read.add(payload));
+        assertEquals(List.of("b", "c"), read);
+    }
+}
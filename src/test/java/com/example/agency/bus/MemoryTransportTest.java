@@ -0,0 +1,42 @@
+package com.example.agency.bus;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MemoryTransportTest {
+
+    private static void await(List<String> received, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (received.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void aGroupIsDroppedWhenItsLastWorkerLeaves() throws Exception {
+        MemoryTransport transport = new MemoryTransport(false);
+        String queue = "MemoryTransportTest-" + System.nanoTime();
+        List<String> first = new CopyOnWriteArrayList<>();
+        Source.Subscription subscription = transport.join(queue, "workers", HandlerExecutor.Handler.of(first::add));
+        transport.publish("tasks", queue, "k", "one");
+        await(first, 1);
+        assertEquals(List.of("one"), first);
+
+        subscription.close();
+        transport.publish("tasks", queue, "k", "while nobody is in the group");
+
+        // a worker joining later starts the group afresh
+        List<String> second = new CopyOnWriteArrayList<>();
+        transport.join(queue, "workers", HandlerExecutor.Handler.of(second::add));
+        transport.publish("tasks", queue, "k", "two");
+        await(second, 1);
+        Thread.sleep(50);
+        assertEquals(List.of("two"), second);
+        assertEquals(List.of("one"), first);
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.agency.bus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OffsetStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private OffsetStore.Tracker trackerAt(long offset) {
+        OffsetStore.Tracker tracker = OffsetStore.track(dir.resolve("consumer.offset"));
+        tracker.reset(offset);
+        return tracker;
+    }
+
+    @Test
+    void commitsUpToTheFirstRecordStillRunning() {
+        OffsetStore.Tracker tracker = trackerAt(10);
+        for (long offset = 10; offset < 15; offset++) {
+            tracker.dispatched(offset);
+        }
+        tracker.finished(11);
+        tracker.finished(13);
+        assertEquals(10, tracker.committed());
+
+        tracker.finished(10);
+        assertEquals(12, tracker.committed());
+        tracker.finished(12);
+        assertEquals(14, tracker.committed());
+        tracker.finished(14);
+        assertEquals(15, tracker.committed());
+    }
+
+    @Test
+    void mergesFinishedRangesInAnyOrder() {
+        OffsetStore.Tracker tracker = trackerAt(0);
+        for (long offset = 0; offset < 8; offset++) {
+            tracker.dispatched(offset);
+        }
+        for (long offset : new long[]{7, 5, 6, 2, 1, 3}) {
+            tracker.finished(offset);
+            assertEquals(0, tracker.committed());
+        }
+        tracker.finished(4);
+        assertEquals(0, tracker.committed());
+        tracker.finished(0);
+        assertEquals(8, tracker.committed());
+    }
+
+    @Test
+    void offsetsSkippedBetweenDispatchesCountAsFinished() {
+        // gaps left by compaction or retention
+        OffsetStore.Tracker tracker = trackerAt(0);
+        tracker.dispatched(0);
+        tracker.dispatched(5);
+        tracker.dispatched(9);
+        tracker.finished(5);
+        assertEquals(0, tracker.committed());
+        tracker.finished(0);
+        assertEquals(9, tracker.committed());
+        tracker.finished(9);
+        assertEquals(10, tracker.committed());
+    }
+
+    @Test
+    void resetDropsWhatIsInFlight() {
+        OffsetStore.Tracker tracker = trackerAt(0);
+        tracker.dispatched(0);
+        tracker.dispatched(1);
+        tracker.dispatched(2);
+        tracker.finished(2);
+        tracker.reset(20);
+        assertEquals(20, tracker.committed());
+        tracker.dispatched(20);
+        tracker.finished(20);
+        assertEquals(21, tracker.committed());
+    }
+
+    @Test
+    void writesTheCommittedOffset() {
+        Path file = dir.resolve("consumer.offset");
+        OffsetStore.Tracker tracker = trackerAt(3);
+        assertEquals(3, OffsetStore.read(file));
+        tracker.dispatched(3);
+        tracker.dispatched(4);
+        tracker.finished(3);
+        tracker.write();
+        assertEquals(4, OffsetStore.read(file));
+    }
+}
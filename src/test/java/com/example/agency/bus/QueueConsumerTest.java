@@ -0,0 +1,189 @@
+package com.example.agency.bus;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueueConsumerTest {
+    private static final String KIND = "tasks";
+
+    @TempDir
+    Path dir;
+
+    private final List<String> queues = new ArrayList<>();
+
+    /**
+     * A consumer of a new log, retrying after 10 ms, at most three deliveries per record.
+     */
+    private QueueConsumer consumer(String name, SegmentedLog log) {
+        queues.add(name);
+        System.setProperty("bus.MaxAttempts." + name, "3");
+        System.setProperty("bus.RetryBackoffMillis." + name, "10");
+        return QueueConsumer.open(KIND, name, log, dir.resolve(name + ".offset"));
+    }
+
+    @AfterEach
+    void removeDeadLetters() throws IOException {
+        for (String name : queues) {
+            Files.deleteIfExists(DeadLetters.file(KIND, name));
+            System.clearProperty("bus.MaxAttempts." + name);
+            System.clearProperty("bus.RetryBackoffMillis." + name);
+            System.clearProperty("bus.AckTimeoutMillis." + name);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 1000 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    void aFailedRecordIsDeliveredAgainUntilItSucceeds() throws Exception {
+        SegmentedLog log = SegmentedLog.open(dir.resolve("retry"));
+        QueueConsumer consumer = consumer("QueueConsumerTest-retry", log);
+        Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+        AtomicInteger other = new AtomicInteger();
+        consumer.subscribe(payload -> {
+            // the first record fails twice
+            if (calls.computeIfAbsent(payload, p -> new AtomicInteger()).incrementAndGet() <= 2 && payload.equals("a")) {
+                throw new IllegalStateException("not yet");
+            }
+            return null;
+        });
+        // a handler that succeeded is not called again
+        consumer.subscribe(HandlerExecutor.Handler.of(payload -> other.incrementAndGet()));
+        consumer.start();
+        log.append("a");
+        log.append("b");
+
+        await(() -> consumer.position() == 2);
+        assertEquals(3, calls.get("a").get());
+        assertEquals(1, calls.get("b").get());
+        assertEquals(2, other.get());
+        assertFalse(Files.exists(DeadLetters.file(KIND, "QueueConsumerTest-retry")));
+        consumer.stop().get(5, TimeUnit.SECONDS);
+        assertEquals(2, OffsetStore.read(dir.resolve("QueueConsumerTest-retry.offset")));
+    }
+
+    @Test
+    void aRecordFailingEveryAttemptIsDeadLettered() throws Exception {
+        String name = "QueueConsumerTest-dlq";
+        SegmentedLog log = SegmentedLog.open(dir.resolve("dlq"));
+        QueueConsumer consumer = consumer(name, log);
+        AtomicInteger attempts = new AtomicInteger();
+        List<String> handled = new ArrayList<>();
+        consumer.subscribe(HandlerExecutor.Handler.of(payload -> {
+            if (payload.equals("poison")) {
+                attempts.incrementAndGet();
+                throw new IllegalArgumentException("cannot handle " + payload);
+            }
+            synchronized (handled) {
+                handled.add(payload);
+            }
+        }));
+        consumer.start();
+        log.append("k", "poison");
+        // waits behind the poison record, which has its key
+        log.append("k", "after");
+        log.append("other");
+
+        await(() -> consumer.position() == 3);
+        assertEquals(3, attempts.get());
+        synchronized (handled) {
+            assertEquals(List.of("other", "after"), handled);
+        }
+        List<String> lines = Files.readAllLines(DeadLetters.file(KIND, name));
+        assertEquals(1, lines.size());
+        String line = lines.get(0);
+        assertTrue(line.contains("\"offset\":0"), line);
+        assertTrue(line.contains("\"key\":\"k\""), line);
+        assertTrue(line.contains("\"payload\":\"poison\""), line);
+        assertTrue(line.contains("\"attempts\":3"), line);
+        assertTrue(line.contains("cannot handle poison"), line);
+        consumer.stop().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void aRecordNotAcknowledgedInTimeIsDeliveredAgain() throws Exception {
+        String name = "QueueConsumerTest-timeout";
+        System.setProperty("bus.AckTimeoutMillis." + name, "100");
+        SegmentedLog log = SegmentedLog.open(dir.resolve("timeout"));
+        QueueConsumer consumer = consumer(name, log);
+        AtomicInteger deliveries = new AtomicInteger();
+        CountDownLatch interrupted = new CountDownLatch(1);
+        consumer.subscribe(HandlerExecutor.Handler.of(payload -> {
+            if (deliveries.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(60_000);
+                } catch (InterruptedException e) {
+                    // the late attempt is interrupted
+                    interrupted.countDown();
+                }
+            }
+        }));
+        consumer.start();
+        log.append("slow");
+
+        await(() -> consumer.position() == 1);
+        assertEquals(2, deliveries.get());
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertFalse(Files.exists(DeadLetters.file(KIND, name)));
+        consumer.stop().get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void recordsWithTheSameKeyAreHandledOneAtATimeInOrder() throws Exception {
+        SegmentedLog log = SegmentedLog.open(dir.resolve("keys"));
+        QueueConsumer consumer = consumer("QueueConsumerTest-keys", log);
+        Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        AtomicInteger overlaps = new AtomicInteger();
+        consumer.subscribe(HandlerExecutor.Handler.of(payload -> {
+            String key = payload.substring(0, 1);
+            if (running.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            seen.computeIfAbsent(key, k -> new ArrayList<>()).add(Integer.parseInt(payload.substring(1)));
+            running.get(key).decrementAndGet();
+        }));
+        consumer.start();
+        for (int i = 0; i < 60; i++) {
+            String key = String.valueOf((char) ('a' + i % 3));
+            log.append(key, key + i);
+        }
+
+        await(() -> consumer.position() == 60);
+        assertEquals(0, overlaps.get());
+        for (String key : List.of("a", "b", "c")) {
+            List<Integer> order = seen.get(key);
+            assertEquals(20, order.size());
+            for (int i = 1; i < order.size(); i++) {
+                assertTrue(order.get(i - 1) < order.get(i), key + " " + order);
+            }
+        }
+        consumer.stop().get(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.agency.bus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentedLogTest {
+    // about 20 records per segment, whatever bus.SegmentBytes is
+    private static final String PADDING = "x".repeat(SegmentedLog.SEGMENT_BYTES / 20);
+
+    @TempDir
+    Path dir;
+
+    private static int segmentFiles(Path dir) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Appends records {@code "<offset>:<padding>"} until the log has {@code segments} segments.
+     *
+     * @return the number of records appended
+     */
+    private static long fill(SegmentedLog log, Path dir, int segments, String... keys) throws IOException {
+        long offset = log.endOffset();
+        long start = offset;
+        while (segmentFiles(dir) < segments) {
+            String key = keys.length == 0 ? null : keys[(int) (offset % keys.length)];
+            log.append(key, offset + ":" + PADDING);
+            offset++;
+        }
+        return offset - start;
+    }
+
+    private static List<Long> readAll(SegmentedLog log, SegmentedLog.Cursor cursor) {
+        List<Long> offsets = new ArrayList<>();
+        log.read(cursor, (offset, timestamp, key, payload) -> {
+            String text = SegmentedLog.text(payload);
+            assertEquals(offset, Long.parseLong(text.substring(0, text.indexOf(':'))));
+            offsets.add(offset);
+            return true;
+        });
+        return offsets;
+    }
+
+    @Test
+    void readsAcrossARoll() throws IOException {
+        Path logDir = dir.resolve("roll");
+        SegmentedLog log = SegmentedLog.open(logDir);
+        long count = fill(log, logDir, 3);
+
+        SegmentedLog.Cursor cursor = log.cursor(0);
+        List<Long> offsets = readAll(log, cursor);
+        assertEquals(count, offsets.size());
+        for (int i = 0; i < offsets.size(); i++) {
+            assertEquals(i, offsets.get(i));
+        }
+        assertEquals(count, cursor.offset());
+
+        log.append(count + ":late");
+        assertEquals(List.of(count), readAll(log, cursor));
+    }
+
+    @Test
+    void readingStopsAndResumesAtTheCursor() throws IOException {
+        Path logDir = dir.resolve("resume");
+        SegmentedLog log = SegmentedLog.open(logDir);
+        long count = fill(log, logDir, 2);
+
+        SegmentedLog.Cursor cursor = log.cursor(0);
+        long[] stoppedAt = new long[1];
+        // stop at the last record of the first segment, so that resuming crosses the roll
+        log.read(cursor, (offset, timestamp, key, payload) -> {
+            stoppedAt[0] = offset;
+            return offset < count - 2;
+        });
+        assertEquals(count - 2, stoppedAt[0]);
+        assertEquals(List.of(count - 1), readAll(log, cursor));
+    }
+
+    @Test
+    void aCursorSeeksIntoALaterSegment() throws IOException {
+        Path logDir = dir.resolve("seek");
+        SegmentedLog log = SegmentedLog.open(logDir);
+        long count = fill(log, logDir, 3);
+
+        for (long offset : new long[]{0, count / 2, count - 1}) {
+            List<Long> offsets = readAll(log, log.cursor(offset));
+            assertEquals(offset, offsets.get(0));
+            assertEquals(count - offset, offsets.size());
+        }
+        assertEquals(count, log.cursor(count + 10).offset());
+    }
+
+    @Test
+    void aCursorOnADroppedOffsetLandsOnTheNextRecordKept() throws IOException {
+        Path logDir = dir.resolve("compacted");
+        SegmentedLog log = SegmentedLog.open(logDir);
+        long count = fill(log, logDir, 4, "a", "b", "c");
+        log.enableCompaction();
+        long dropped = log.compact();
+        assertTrue(dropped > 0);
+
+        // only the last record of each key is left
+        List<Long> offsets = readAll(log, log.cursor(0));
+        assertEquals(List.of(count - 3, count - 2, count - 1), offsets);
+        assertEquals(count - 3, dropped);
+
+        SegmentedLog.Cursor cursor = log.cursor(1);
+        assertEquals(List.of(count - 3, count - 2, count - 1), readAll(log, cursor));
+        assertEquals(count, cursor.offset());
+
+        // what is on disk is the compacted log too
+        RecordedLog recorded = RecordedLog.open(logDir, 0);
+        List<Long> recordedOffsets = new ArrayList<>();
+        for (RecordedLog.Record record; (record = recorded.next()) != null; ) {
+            recordedOffsets.add(record.offset());
+        }
+        assertEquals(offsets, recordedOffsets);
+    }
+
+    @Test
+    void aBinaryEnvelopeIsStoredAsOneBytePerChar() throws IOException {
+        StringBuilder sb = new StringBuilder("\0");
+        for (char c = 1; c < 256; c++) {
+            sb.append(c);
+        }
+        String message = sb.toString();
+        Path logDir = dir.resolve("binary");
+        SegmentedLog log = SegmentedLog.open(logDir);
+        log.append("k", message);
+        log.append("k", "text é");
+
+        List<String> read = new ArrayList<>();
+        log.read(log.cursor(0), (offset, timestamp, key, payload) -> {
+            if (offset == 0) {
+                assertEquals(message.length(), payload.remaining());
+            }
+            read.add(SegmentedLog.message(payload));
+            return true;
+        });
+        assertEquals(List.of(message, "text é"), read);
+        assertEquals(message, RecordedLog.open(logDir, 0).next().payload());
+    }
+
+    @Test
+    void compactionKeepsRecordsWithoutAKey() throws IOException {
+        Path logDir = dir.resolve("unkeyed");
+        SegmentedLog log = SegmentedLog.open(logDir);
+        long count = fill(log, logDir, 3);
+        log.enableCompaction();
+        assertEquals(0, log.compact());
+        assertEquals(count, readAll(log, log.cursor(0)).size());
+    }
+}
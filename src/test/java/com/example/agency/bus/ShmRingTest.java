@@ -0,0 +1,137 @@
+package com.example.agency.bus;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShmRingTest {
+    private static final int PUBLISHERS = 4;
+    private static final int READERS = 2;
+    private static final int RECORDS = 20_000;
+
+    @TempDir
+    Path dir;
+
+    private ShmRing ring(String name, int capacity, int slotBytes, long publishTimeoutMillis) throws IOException {
+        System.setProperty("bus.ShmRingCapacity." + name, String.valueOf(capacity));
+        System.setProperty("bus.ShmSlotBytes." + name, String.valueOf(slotBytes));
+        System.setProperty("bus.PublishTimeoutMillis." + name, String.valueOf(publishTimeoutMillis));
+        try {
+            return ShmRing.open(dir.resolve(name + ".ring"), name);
+        } finally {
+            System.clearProperty("bus.ShmRingCapacity." + name);
+            System.clearProperty("bus.ShmSlotBytes." + name);
+            System.clearProperty("bus.PublishTimeoutMillis." + name);
+        }
+    }
+
+    @Test
+    void everyRecordGoesToExactlyOneReader() throws Exception {
+        // a small ring: the publishers lap the readers and wait for them all the time
+        ShmRing ring = ring("ShmRingTest-stress", 64, 128, 30_000);
+        int total = PUBLISHERS * RECORDS;
+        AtomicReferenceArray<String> received = new AtomicReferenceArray<>(total);
+        AtomicInteger count = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < PUBLISHERS; p++) {
+            String key = "p" + p;
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    for (int i = 0; i < RECORDS; i++) {
+                        // non-ASCII, so a payload is more bytes than chars
+                        ring.publish(key, key + ":" + i + ":é");
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure.set(e);
+                }
+            }));
+        }
+        for (int r = 0; r < READERS; r++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                while (count.get() < total && failure.get() == null) {
+                    ring.read((offset, key, payload, bytes) -> {
+                        if (!received.compareAndSet((int) offset, null, key + "|" + payload)) {
+                            failure.compareAndSet(null, new AssertionError("offset " + offset + " read twice"));
+                        }
+                        count.incrementAndGet();
+                        return true;
+                    });
+                    Thread.onSpinWait();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertEquals(total, count.get());
+        assertEquals(total, ring.position());
+
+        // the records of each publisher kept their order in the offsets
+        int[] next = new int[PUBLISHERS];
+        for (int offset = 0; offset < total; offset++) {
+            String record = received.get(offset);
+            String key = record.substring(0, record.indexOf('|'));
+            int publisher = Integer.parseInt(key.substring(1));
+            assertEquals(key + "|" + key + ":" + next[publisher]++ + ":é", record);
+        }
+    }
+
+    @Test
+    void theRingIsMappedOncePerProcess() throws IOException {
+        ShmRing ring = ring("ShmRingTest-shared", 8, 128, 30_000);
+        assertSame(ring, ShmRing.open(dir.resolve("ShmRingTest-shared.ring"), "ShmRingTest-shared"));
+        ring.publish(null, "one");
+        List<String> read = new ArrayList<>();
+        ring.read((offset, key, payload, bytes) -> read.add(key + ":" + payload));
+        assertEquals(List.of("null:one"), read);
+    }
+
+    @Test
+    void aBinaryEnvelopeIsSentAsOneBytePerChar() throws IOException {
+        ShmRing ring = ring("ShmRingTest-binary", 8, 64, 30_000);
+        String message = "\0\u0001\u0080\u00ff";
+        ring.publish(null, message);
+        List<String> read = new ArrayList<>();
+        ring.read((offset, key, payload, bytes) -> {
+            assertEquals(message.length(), bytes);
+            return read.add(payload);
+        });
+        assertEquals(List.of(message), read);
+    }
+
+    @Test
+    void aRecordLargerThanASlotIsRejected() throws IOException {
+        ShmRing ring = ring("ShmRingTest-large", 8, 64, 30_000);
+        IOException e = assertThrows(IOException.class, () -> ring.publish("k", "x".repeat(64)));
+        assertTrue(e.getMessage().contains("does not fit"), e.getMessage());
+        assertEquals(0, ring.read((offset, key, payload, bytes) -> true));
+    }
+
+    @Test
+    void aPublisherGivesUpWhenTheRingStaysFull() throws IOException {
+        ShmRing ring = ring("ShmRingTest-full", 2, 64, 50);
+        ring.publish(null, "a");
+        ring.publish(null, "b");
+        assertThrows(IOException.class, () -> ring.publish(null, "c"));
+        ring.read((offset, key, payload, bytes) -> false);
+        ring.publish(null, "c");
+        List<String> read = new ArrayList<>();
+        ring.read((offset, key, payload, bytes) -> read.add(payload));
+        assertEquals(List.of("b", "c"), read);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.agency.messages;
+
+import com.example.agency.bus.Envelope;
+import com.example.agency.messages.AgencyMessages.BeginGroomingCycle;
+import com.example.agency.messages.AgencyMessages.GroomingNeeded;
+import com.example.agency.messages.AgencyMessages.NewSlackMessageEvent;
+import com.example.agency.messages.AgencyMessages.ProcessNewSlackMessage;
+import com.example.agency.messages.AgencyMessages.StartLoginIssueConversation;
+import com.example.agency.messages.AgencyMessages.TodayEvent;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AgencyMessagesTest {
+
+    private static final Instant AT = Instant.parse("2025-05-01T09:00:00.123456789Z");
+
+    // one message of every registered type
+    private static final List<Envelope<?>> MESSAGES = List.of(
+            Envelope.of(AgencyMessages.TODAY_EVENT, new TodayEvent(AT)),
+            Envelope.of(AgencyMessages.GROOMING_NEEDED, new GroomingNeeded(AT)),
+            Envelope.of(AgencyMessages.NEW_SLACK_MESSAGE_EVENT, new NewSlackMessageEvent("support-channel", "TechAgent", "UserAgent")),
+            Envelope.of(AgencyMessages.BEGIN_GROOMING_CYCLE, new BeginGroomingCycle("ALPHA")),
+            Envelope.of(AgencyMessages.START_LOGIN_ISSUE_CONVERSATION, new StartLoginIssueConversation()),
+            Envelope.of(AgencyMessages.PROCESS_NEW_SLACK_MESSAGE, new ProcessNewSlackMessage("support-channel", "UserAgent")));
+
+    @Test
+    void binaryFormRoundTripsEveryType() {
+        for (Envelope<?> message : MESSAGES) {
+            Envelope<?> keyed = message.withKey("k-" + message.type().id()).withHeader("chain", "run.1");
+            String encoded = keyed.encode();
+            assertTrue(Envelope.isBinary(encoded), message.type().name());
+            Envelope<?> decoded = AgencyMessages.decode(encoded);
+            assertSame(message.type(), decoded.type());
+            assertEquals(keyed, decoded, message.type().name());
+        }
+    }
+
+    @Test
+    void textFormRoundTripsEveryType() {
+        for (Envelope<?> message : MESSAGES) {
+            String text = message.toString();
+            Envelope<?> decoded = AgencyMessages.decode(text);
+            assertSame(message.type(), decoded.type());
+            assertEquals(message.body(), decoded.body(), text);
+        }
+    }
+
+    @Test
+    void malformedTextIsAnIllegalArgument() {
+        // EventDriver used to publish this when no time was given
+        assertThrows(IllegalArgumentException.class, () -> AgencyMessages.decode("groomingNeeded:null"));
+        assertThrows(IllegalArgumentException.class, () -> AgencyMessages.decode("TodayEvent:yesterday"));
+        assertThrows(IllegalArgumentException.class, () -> AgencyMessages.decode("NewSlackMessageEvent:{not json"));
+        assertThrows(IllegalArgumentException.class, () -> AgencyMessages.decode("NoSuchType:x"));
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.scrum.llm;
+
+import com.example.scrum.llm.InferenceScheduler.Priority;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class InferenceSchedulerTest {
+    private static final Duration LONG = Duration.ofMinutes(1);
+
+    /**
+     * A generation that runs until {@code release} is counted down.
+     */
+    private static CompletableFuture<String> blocking(InferenceScheduler scheduler, Priority priority,
+                                                      CountDownLatch release, String result) {
+        return scheduler.submit("agent", "test", priority, LONG, 0, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted", e);
+            }
+            return result;
+        });
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) throws InterruptedException {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        return e.getCause();
+    }
+
+    private static void awaitRunning(InferenceScheduler scheduler, int running) throws InterruptedException {
+        for (int i = 0; i < 500 && scheduler.runningCount() != running; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(running, scheduler.runningCount());
+    }
+
+    @Test
+    void theReservedSlotIsKeptForInteractiveRequests() throws Exception {
+        try (InferenceScheduler scheduler = new InferenceScheduler(2, 1, Long.MAX_VALUE, 8)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<String> batch = blocking(scheduler, Priority.BATCH, release, "batch");
+            CompletableFuture<String> secondBatch = blocking(scheduler, Priority.BATCH, release, "second");
+            awaitRunning(scheduler, 1);
+            assertEquals(1, scheduler.waitingCount());
+
+            CompletableFuture<String> interactive = scheduler.submit("agent", "reply", Priority.INTERACTIVE, LONG, 0, () -> "now");
+            assertEquals("now", interactive.get(5, TimeUnit.SECONDS));
+            assertFalse(secondBatch.isDone());
+
+            release.countDown();
+            assertEquals("batch", batch.get(5, TimeUnit.SECONDS));
+            assertEquals("second", secondBatch.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void waitingRequestsStartInPriorityOrder() throws Exception {
+        try (InferenceScheduler scheduler = new InferenceScheduler(1, 0, Long.MAX_VALUE, 8)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<String> first = blocking(scheduler, Priority.NORMAL, release, "first");
+            awaitRunning(scheduler, 1);
+
+            List<String> order = new ArrayList<>();
+            List<CompletableFuture<?>> queued = new ArrayList<>();
+            for (Priority priority : new Priority[]{Priority.BATCH, Priority.NORMAL, Priority.INTERACTIVE}) {
+                queued.add(scheduler.submit("agent", "test", priority, LONG, 0, () -> {
+                    synchronized (order) {
+                        order.add(priority.name());
+                    }
+                    return null;
+                }));
+            }
+            release.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            CompletableFuture.allOf(queued.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("INTERACTIVE", "NORMAL", "BATCH"), order);
+        }
+    }
+
+    @Test
+    void aFullQueueShedsTheLeastUrgentRequest() throws Exception {
+        try (InferenceScheduler scheduler = new InferenceScheduler(1, 0, Long.MAX_VALUE, 2)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<String> running = blocking(scheduler, Priority.NORMAL, release, "running");
+            awaitRunning(scheduler, 1);
+
+            CompletableFuture<String> batch = scheduler.submit("agent", "test", Priority.BATCH, LONG, 0, () -> "batch");
+            CompletableFuture<String> normal = scheduler.submit("agent", "test", Priority.NORMAL, LONG, 0, () -> "normal");
+            // the queue is full: a request no more urgent than the least urgent one is rejected ...
+            CompletableFuture<String> rejected = scheduler.submit("agent", "test", Priority.BATCH, LONG, 0, () -> "rejected");
+            assertInstanceOf(RejectedExecutionException.class, failure(rejected));
+            // ... a more urgent one evicts it
+            CompletableFuture<String> interactive = scheduler.submit("agent", "test", Priority.INTERACTIVE, LONG, 0, () -> "interactive");
+            assertInstanceOf(RejectedExecutionException.class, failure(batch));
+
+            release.countDown();
+            assertEquals("running", running.get(5, TimeUnit.SECONDS));
+            assertEquals("interactive", interactive.get(5, TimeUnit.SECONDS));
+            assertEquals("normal", normal.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    void aRequestPastItsDeadlineFails() throws Exception {
+        try (InferenceScheduler scheduler = new InferenceScheduler(1, 0, Long.MAX_VALUE, 8)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<String> running = blocking(scheduler, Priority.NORMAL, release, "running");
+            awaitRunning(scheduler, 1);
+
+            AtomicBoolean ran = new AtomicBoolean();
+            CompletableFuture<String> waiting = scheduler.submit("agent", "test", Priority.NORMAL,
+                    Duration.ofMillis(50), 0, () -> {
+                        ran.set(true);
+                        return "too late";
+                    });
+            assertInstanceOf(TimeoutException.class, failure(waiting));
+
+            // a running generation is interrupted at its deadline
+            release.countDown();
+            running.get(5, TimeUnit.SECONDS);
+            CompletableFuture<String> slow = scheduler.submit("agent", "test", Priority.NORMAL, Duration.ofMillis(50), 0, () -> {
+                try {
+                    Thread.sleep(60_000);
+                    return "finished";
+                } catch (InterruptedException e) {
+                    return "interrupted";
+                }
+            });
+            assertInstanceOf(TimeoutException.class, failure(slow));
+            awaitRunning(scheduler, 0);
+            assertEquals(0, scheduler.waitingCount());
+            assertFalse(ran.get());
+        }
+    }
+
+    @Test
+    void theKvBudgetLimitsWhatRunsTogether() throws Exception {
+        try (InferenceScheduler scheduler = new InferenceScheduler(4, 0, 100, 8)) {
+            CountDownLatch release = new CountDownLatch(1);
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                String result = "r" + i;
+                futures.add(scheduler.submit("agent", "test", Priority.NORMAL, LONG, 60, () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return result;
+                }));
+            }
+            // 60 + 60 bytes do not fit into 100, one runs at a time
+            awaitRunning(scheduler, 1);
+            assertEquals(2, scheduler.waitingCount());
+            release.countDown();
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("r" + i, futures.get(i).get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(0, scheduler.waitingCount());
+        }
+    }
+}
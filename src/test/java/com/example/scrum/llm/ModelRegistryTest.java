@@ -0,0 +1,80 @@
+package com.example.scrum.llm;
+
+import com.example.scrum.llm.brains.SyntheticGGUF;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ModelRegistryTest {
+    private static final int CONTEXT_LENGTH = 64;
+
+    @TempDir
+    Path dir;
+
+    private String writeModel(String name, long seed) throws IOException {
+        return SyntheticGGUF.builder().dim(32).hiddenDim(96).layers(1).heads(2).kvHeads(2)
+                .vocabularySize(512).contextLength(CONTEXT_LENGTH).type("Q8_0").seed(seed)
+                .write(dir.resolve(name + ".gguf")).toString();
+    }
+
+    private static ModelProfile profile(String modelPath) {
+        return new ModelProfile(ModelProfile.DEFAULT, modelPath, CONTEXT_LENGTH, 16, 0f, 0.95f);
+    }
+
+    @Test
+    void aLeaseKeepsTheOldModelUntilItIsReleased() throws Exception {
+        String first = writeModel("first", 1);
+        String second = writeModel("second", 2);
+        try (ModelRegistry registry = new ModelRegistry(profile(first))) {
+            ModelRegistry.Lease lease = registry.acquire();
+            registry.swap(second).get(30, TimeUnit.SECONDS);
+            assertEquals(second, registry.currentModelPath());
+
+            // the lease taken before the swap still runs on the first model
+            assertEquals(first, lease.service().getModelPath());
+            lease.service().generateResponse("system", "hello", 4, 0f);
+            lease.close();
+            lease.close();
+
+            try (ModelRegistry.Lease next = registry.acquire()) {
+                assertEquals(second, next.service().getModelPath());
+            }
+        }
+    }
+
+    @Test
+    void aFailedSwapKeepsTheCurrentModel() throws Exception {
+        String first = writeModel("first", 1);
+        try (ModelRegistry registry = new ModelRegistry(profile(first))) {
+            ExecutionException e = assertThrows(ExecutionException.class,
+                    () -> registry.swap(dir.resolve("missing.gguf").toString()).get(30, TimeUnit.SECONDS));
+            assertFalse(e.getCause() instanceof IllegalStateException);
+            assertEquals(first, registry.currentModelPath());
+        }
+    }
+
+    @Test
+    void aClosedRegistryHandsOutNoLeases() throws Exception {
+        ModelRegistry registry = new ModelRegistry(profile(writeModel("first", 1)));
+        ModelRegistry.Lease lease = registry.acquire();
+        registry.close();
+        registry.close();
+        assertThrows(IllegalStateException.class, registry::acquire);
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> registry.swap(writeModel("second", 2)).get(30, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+
+        // the lease taken before the close still has its model mapped
+        lease.service().generateResponse("system", "hello", 4, 0f);
+        lease.close();
+    }
+}
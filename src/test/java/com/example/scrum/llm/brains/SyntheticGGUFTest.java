@@ -0,0 +1,113 @@
+package com.example.scrum.llm.brains;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SyntheticGGUFTest {
+    private static final int CONTEXT_LENGTH = 128;
+
+    @TempDir
+    Path dir;
+
+    private Path writeModel(String type, boolean tiedEmbeddings) throws IOException {
+        return SyntheticGGUF.builder().dim(64).hiddenDim(192).layers(2).heads(4).kvHeads(2)
+                .vocabularySize(1024).contextLength(CONTEXT_LENGTH).type(type).tiedEmbeddings(tiedEmbeddings).seed(7)
+                .write(dir.resolve(type + (tiedEmbeddings ? "" : "-untied") + ".gguf"));
+    }
+
+    private static float[] logits(Llama model, String prompt) {
+        int[] tokens = model.tokenizer().encode(prompt);
+        Llama.State state = model.createNewState(tokens.length);
+        FloatTensor logits = Llama.forward(model, state, tokens, 0, true);
+        float[] values = new float[model.configuration().vocabularySize];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = logits.getFloat(i);
+        }
+        return values;
+    }
+
+    @Test
+    void theLoaderReadsEveryWeightType() throws IOException {
+        for (String type : new String[]{"Q4_0", "Q8_0", "F16", "BF16"}) {
+            for (boolean tied : new boolean[]{true, false}) {
+                Path file = writeModel(type, tied);
+                try (Arena arena = Arena.ofShared()) {
+                    Llama model = ModelLoader.loadModel(file, CONTEXT_LENGTH, true, arena);
+                    Llama.Configuration config = model.configuration();
+                    assertEquals(64, config.dim, type);
+                    assertEquals(192, config.hiddenDim, type);
+                    assertEquals(2, config.numberOfLayers, type);
+                    assertEquals(4, config.numberOfHeads, type);
+                    assertEquals(2, config.numberOfKeyValueHeads, type);
+                    assertEquals(1024, config.vocabularySize, type);
+                    assertEquals(CONTEXT_LENGTH, config.contextLength, type);
+                    for (float value : logits(model, "Users report that the login page times out")) {
+                        assertTrue(Float.isFinite(value), type);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void theVocabularyEndsWithTheLlama3SpecialTokens() throws IOException {
+        try (Arena arena = Arena.ofShared()) {
+            Llama model = ModelLoader.loadModel(writeModel("Q8_0", true), CONTEXT_LENGTH, true, arena);
+            Tokenizer tokenizer = model.tokenizer();
+            assertEquals(SyntheticGGUF.SPECIAL_TOKENS.size(), tokenizer.getSpecialTokens().size());
+            for (int i = 0; i < SyntheticGGUF.SPECIAL_TOKENS.size(); i++) {
+                assertEquals(1024 - SyntheticGGUF.SPECIAL_TOKENS.size() + i,
+                        tokenizer.getSpecialTokens().get(SyntheticGGUF.SPECIAL_TOKENS.get(i)));
+            }
+            assertEquals(SyntheticGGUF.SAMPLE_TEXT, tokenizer.decode(tokenizer.encodeAsList(SyntheticGGUF.SAMPLE_TEXT)));
+        }
+    }
+
+    @Test
+    void theSnapshotHoldsTheSameModel() throws IOException {
+        Path file = writeModel("Q4_0", false);
+        String prompt = "The grooming agent reads the tickets";
+        try (Arena arena = Arena.ofShared()) {
+            // the first load reads the GGUF file and writes the snapshot
+            Llama loaded = ModelLoader.loadModel(file, CONTEXT_LENGTH, true, arena);
+            assertTrue(Files.isRegularFile(ModelSnapshot.sidecarPath(file)));
+
+            Llama snapshot = ModelSnapshot.tryLoad(file, CONTEXT_LENGTH, arena);
+            assertNotNull(snapshot);
+            Llama.Configuration expected = loaded.configuration();
+            Llama.Configuration actual = snapshot.configuration();
+            assertEquals(expected.dim, actual.dim);
+            assertEquals(expected.hiddenDim, actual.hiddenDim);
+            assertEquals(expected.numberOfLayers, actual.numberOfLayers);
+            assertEquals(expected.numberOfKeyValueHeads, actual.numberOfKeyValueHeads);
+            assertEquals(expected.vocabularySize, actual.vocabularySize);
+            assertEquals(expected.contextLength, actual.contextLength);
+            assertEquals(expected.ropeTheta, actual.ropeTheta);
+            assertEquals(loaded.tokenizer().getSpecialTokens(), snapshot.tokenizer().getSpecialTokens());
+            assertArrayEquals(loaded.tokenizer().encode(SyntheticGGUF.SAMPLE_TEXT),
+                    snapshot.tokenizer().encode(SyntheticGGUF.SAMPLE_TEXT));
+            assertArrayEquals(logits(loaded, prompt), logits(snapshot, prompt));
+        }
+    }
+
+    @Test
+    void aSnapshotForAnotherContextLengthIsIgnored() throws IOException {
+        Path file = writeModel("Q8_0", true);
+        try (Arena arena = Arena.ofShared()) {
+            ModelLoader.loadModel(file, CONTEXT_LENGTH, true, arena);
+            assertNull(ModelSnapshot.tryLoad(file, CONTEXT_LENGTH / 2, arena));
+            assertNotNull(ModelSnapshot.tryLoad(file, CONTEXT_LENGTH, arena));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.scrum.llm.metrics;
+
+import com.example.scrum.llm.metrics.InferenceMetrics.Metric;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InferenceMetricsTest {
+    // the registry is process wide, every test uses its own agent name
+    private final InferenceMetrics metrics = InferenceMetrics.global();
+
+    @Test
+    void durationsAreExportedInSeconds() {
+        for (int i = 1; i <= 100; i++) {
+            metrics.recordNanos(Metric.PREFILL, "durations", "grooming", i * 1_000_000L);
+        }
+        LatencyHistogram histogram = metrics.histogram(Metric.PREFILL, "durations", "grooming");
+        assertEquals(100, histogram.count());
+        assertEquals(5.05, histogram.sum(), 1e-9);
+        assertEquals(0.05, histogram.valueAtPercentile(50), 0.0001);
+        assertEquals(0.1, histogram.valueAtPercentile(100), 0.0001);
+        // JMX reports milliseconds
+        assertEquals(50.5, histogram.getMean(), 0.1);
+    }
+
+    @Test
+    void aMissingLabelIsRecordedAsNone() {
+        metrics.recordTokens(null, " ", 12, 3);
+        LatencyHistogram prompt = metrics.histogram(Metric.PROMPT_TOKENS, InferenceMetrics.UNLABELED, InferenceMetrics.UNLABELED);
+        assertSame(prompt, metrics.histogram(Metric.PROMPT_TOKENS, "", null));
+        assertTrue(prompt.count() >= 1);
+    }
+
+    @Test
+    void kvOccupancyIsARatio() {
+        metrics.recordKvOccupancy("occupancy", "report", 512, 2048);
+        assertEquals(0.25, metrics.histogram(Metric.KV_OCCUPANCY, "occupancy", "report").valueAtPercentile(50), 0.001);
+    }
+
+    @Test
+    void activeGenerationsAreCountedUntilClosed() {
+        long active = metrics.getActiveGenerations();
+        long kvBytes = metrics.getKvCacheBytes();
+        InferenceMetrics.Active generation = metrics.startGeneration(4096);
+        assertEquals(active + 1, metrics.getActiveGenerations());
+        assertEquals(kvBytes + 4096, metrics.getKvCacheBytes());
+        generation.close();
+        generation.close();
+        assertEquals(active, metrics.getActiveGenerations());
+        assertEquals(kvBytes, metrics.getKvCacheBytes());
+    }
+
+    @Test
+    void prometheusTextHasOneSummaryPerLabelSet() {
+        metrics.recordTokens("prometheus \"agent\"", "standup", 100, 20);
+        metrics.recordTokens("prometheus \"agent\"", "standup", 300, 40);
+        String text = metrics.prometheusText();
+        String labels = "agent=\"prometheus \\\"agent\\\"\",taskType=\"standup\"";
+        assertTrue(text.contains("# TYPE llm_prompt_tokens summary\n"), text);
+        assertTrue(text.contains("llm_prompt_tokens_count{" + labels + "} 2\n"), text);
+        assertTrue(text.contains("llm_prompt_tokens_sum{" + labels + "} 400.0\n"), text);
+        assertTrue(text.contains("llm_generated_tokens_sum{" + labels + "} 60.0\n"), text);
+        assertTrue(text.contains("llm_prompt_tokens{" + labels + ",quantile=\"0.5\"} "), text);
+        assertTrue(text.contains("# TYPE llm_active_generations gauge\n"), text);
+        assertEquals(1, text.split("# HELP llm_prompt_tokens ", -1).length - 1);
+    }
+
+    @Test
+    void generationsAreCountedByHowTheyFinished() {
+        long failed = metrics.getFailedGenerations();
+        metrics.recordFinish("finish", "triage", "stop");
+        metrics.recordFinish("finish", "triage", "stop");
+        metrics.recordFinish("finish", "triage", InferenceMetrics.FINISH_ERROR);
+        assertEquals(2, metrics.finishCount("finish", "triage", "stop"));
+        assertEquals(0, metrics.finishCount("finish", "triage", "length"));
+        assertEquals(failed + 1, metrics.getFailedGenerations());
+        String text = metrics.prometheusText();
+        assertTrue(text.contains("# TYPE llm_generations_total counter\n"), text);
+        assertTrue(text.contains("llm_generations_total{agent=\"finish\",taskType=\"triage\",finish=\"error\"} 1\n"), text);
+    }
+
+    @Test
+    void histogramsAreRegisteredWithJmx() throws Exception {
+        metrics.recordNanos(Metric.GENERATION, "jmx", "demo", 1_000_000);
+        ObjectName name = new ObjectName(InferenceMetrics.JMX_DOMAIN + ":type=InferenceMetrics,metric=llm_generation_seconds"
+                + ",agent=" + ObjectName.quote("jmx") + ",taskType=" + ObjectName.quote("demo"));
+        assertEquals(1L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count"));
+    }
+}